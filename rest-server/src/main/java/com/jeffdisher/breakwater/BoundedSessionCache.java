@@ -0,0 +1,229 @@
+package com.jeffdisher.breakwater;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Function;
+
+import org.eclipse.jetty.server.session.DefaultSessionCache;
+import org.eclipse.jetty.server.session.Session;
+import org.eclipse.jetty.server.session.SessionHandler;
+import org.eclipse.jetty.util.thread.AutoLock;
+
+
+/**
+ * The session cache installed by RestServer.setSessionCache():  Jetty's DefaultSessionCache, backed by a file store,
+ * with a limit on the number of sessions held in memory and counters for how well it is working.  Obtained from
+ * RestServer.getSessionCache().
+ *
+ * Every request which uses a session writes it to the store when it completes (Jetty's behaviour whenever there is a
+ * store), so evicting a session only needs to drop it from memory.  Once the cache is over its limit, the next request
+ * to complete evicts a batch of the least recently used sessions (those not in use by a request), so that we don't sort
+ * the cache for every new session.
+ * Note that session attributes must be Serializable to survive eviction.
+ */
+public class BoundedSessionCache extends DefaultSessionCache
+{
+	private final ConcurrentMap<String, Session> _sessions;
+	private final int _maxSessions;
+	// Eviction stops once the cache is back down to this size.
+	private final int _lowWaterMark;
+
+	// All the variables below are protected by the monitor on this.
+	private boolean _isEvicting;
+	private long _lookups;
+	private long _misses;
+	private long _reloads;
+	private long _evictions;
+	private long _idleEvictions;
+
+	BoundedSessionCache(SessionHandler handler, int maxSessions)
+	{
+		this(handler, new ConcurrentHashMap<>(), maxSessions);
+	}
+
+	private BoundedSessionCache(SessionHandler handler, ConcurrentMap<String, Session> sessions, int maxSessions)
+	{
+		super(handler, sessions);
+		_sessions = sessions;
+		_maxSessions = maxSessions;
+		_lowWaterMark = Math.max(1, maxSessions - (maxSessions / 10));
+	}
+
+	/**
+	 * @return The number of times a request's session was found in memory.
+	 */
+	public synchronized long getHitCount()
+	{
+		return _lookups - _misses;
+	}
+
+	/**
+	 * @return The number of times a request's session wasn't in memory (whether or not it could be reloaded).
+	 */
+	public synchronized long getMissCount()
+	{
+		return _misses;
+	}
+
+	/**
+	 * @return The number of misses where the session was reloaded from the store.
+	 */
+	public synchronized long getReloadCount()
+	{
+		return _reloads;
+	}
+
+	/**
+	 * @return The number of sessions evicted because the cache was over its limit.
+	 */
+	public synchronized long getEvictionCount()
+	{
+		return _evictions;
+	}
+
+	/**
+	 * @return The number of sessions evicted because they were idle.
+	 */
+	public synchronized long getIdleEvictionCount()
+	{
+		return _idleEvictions;
+	}
+
+	@Override
+	protected Session doComputeIfAbsent(String id, Function<String, Session> mappingFunction)
+	{
+		synchronized (this)
+		{
+			_lookups += 1;
+		}
+		// The function is only called when the session isn't in memory, in which case it loads it from the store.
+		return super.doComputeIfAbsent(id, (String key) -> {
+			Session loaded = mappingFunction.apply(key);
+			synchronized (this)
+			{
+				_misses += 1;
+				if (null != loaded)
+				{
+					_reloads += 1;
+				}
+			}
+			return loaded;
+		});
+	}
+
+	@Override
+	public void release(String id, Session session) throws Exception
+	{
+		super.release(id, session);
+		// We evict here, since the session has just been written to the store, and we hold no session lock.
+		if (_sessions.size() > _maxSessions)
+		{
+			_evictOverflow();
+		}
+	}
+
+	@Override
+	public void checkInactiveSession(Session session)
+	{
+		boolean wasResident = (null != session) && session.isResident();
+		super.checkInactiveSession(session);
+		if (wasResident && !session.isResident())
+		{
+			synchronized (this)
+			{
+				_idleEvictions += 1;
+			}
+		}
+	}
+
+
+	private void _evictOverflow()
+	{
+		boolean shouldEvict;
+		synchronized (this)
+		{
+			// Only one thread evicts at a time:  the others can carry on since it will get the cache under the limit.
+			shouldEvict = !_isEvicting;
+			_isEvicting = true;
+		}
+		if (shouldEvict)
+		{
+			try
+			{
+				// Access times change as we go so we sort a snapshot of them.
+				List<Candidate> candidates = new ArrayList<>(_sessions.size());
+				for (Session session : _sessions.values())
+				{
+					try
+					{
+						candidates.add(new Candidate(session, session.getLastAccessedTime()));
+					}
+					catch (IllegalStateException e)
+					{
+						// The session was invalidated so it is leaving the cache anyway.
+					}
+				}
+				candidates.sort(Comparator.comparingLong((Candidate candidate) -> candidate.lastAccessed));
+				int excess = _sessions.size() - _lowWaterMark;
+				for (int i = 0; (excess > 0) && (i < candidates.size()); ++i)
+				{
+					if (_evict(candidates.get(i).session))
+					{
+						excess -= 1;
+					}
+				}
+			}
+			finally
+			{
+				synchronized (this)
+				{
+					_isEvicting = false;
+				}
+			}
+		}
+	}
+
+	private boolean _evict(Session session)
+	{
+		boolean didEvict = false;
+		AutoLock lock = session.lock();
+		try
+		{
+			// Sessions in use by a request are skipped, since the request will write them back when it completes.
+			if (session.isResident() && session.isValid() && (0L == session.getRequests()))
+			{
+				doDelete(session.getId());
+				session.setResident(false);
+				didEvict = true;
+			}
+		}
+		finally
+		{
+			lock.close();
+		}
+		if (didEvict)
+		{
+			synchronized (this)
+			{
+				_evictions += 1;
+			}
+		}
+		return didEvict;
+	}
+
+
+	private static class Candidate
+	{
+		public final Session session;
+		public final long lastAccessed;
+
+		public Candidate(Session session, long lastAccessed)
+		{
+			this.session = session;
+			this.lastAccessed = lastAccessed;
+		}
+	}
+}
@@ -0,0 +1,247 @@
+package com.jeffdisher.breakwater;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
+
+/**
+ * Parses "Range" headers and writes the corresponding 206 responses for IRangeGetHandler routes.
+ * Ranges are represented as long[2] arrays of {first, last}, both inclusive, matching the "Content-Range" format.
+ */
+class ByteRanges
+{
+	/**
+	 * More ranges than this (after merging overlapping ones) are treated as abuse and the Range header is ignored.
+	 */
+	public static final int MAX_RANGES = 16;
+
+	private static final int COPY_BUFFER_SIZE = 16 * 1024;
+
+	/**
+	 * Parses a "Range" header against a resource of the given length.  Overlapping and adjacent ranges are merged and
+	 * the result is sorted by offset.
+	 *
+	 * @param header The value of the "Range" header.
+	 * @param length The length of the resource.
+	 * @return The satisfiable ranges (empty if none are satisfiable, meaning a 416 should be sent), or null if the header
+	 * should be ignored (not "bytes", malformed, or too many ranges).
+	 */
+	public static List<long[]> parse(String header, long length)
+	{
+		List<long[]> ranges = null;
+		String trimmed = header.trim();
+		if (trimmed.regionMatches(true, 0, "bytes=", 0, 6))
+		{
+			ranges = new ArrayList<>();
+			for (String spec : trimmed.substring(6).split(","))
+			{
+				if (null != ranges)
+				{
+					long[] range = _parseOne(spec.trim(), length);
+					if (null == range)
+					{
+						// Malformed so ignore the entire header.
+						ranges = null;
+					}
+					else if (range.length > 0)
+					{
+						ranges.add(range);
+					}
+				}
+			}
+		}
+		if (null != ranges)
+		{
+			ranges = _merge(ranges);
+			if (ranges.size() > MAX_RANGES)
+			{
+				ranges = null;
+			}
+		}
+		return ranges;
+	}
+
+	/**
+	 * Sends a 416 for a request whose ranges were all unsatisfiable.
+	 *
+	 * @param response The response.
+	 * @param length The length of the resource.
+	 */
+	public static void sendUnsatisfiable(HttpServletResponse response, long length)
+	{
+		response.setHeader("Content-Range", "bytes */" + length);
+		response.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+	}
+
+	/**
+	 * Sends a 206 with the given ranges of the resource:  a single range is sent directly while multiple ranges are sent
+	 * as "multipart/byteranges".
+	 *
+	 * @param handler The handler providing the resource.
+	 * @param request The request.
+	 * @param response The response.
+	 * @param path The parsed path components.
+	 * @param ranges The non-empty list of ranges returned by parse().
+	 * @param length The length of the resource.
+	 * @throws IOException There was an error reading the resource or writing the response.
+	 */
+	public static void sendRanges(IRangeGetHandler handler, HttpServletRequest request, HttpServletResponse response, Object[] path, List<long[]> ranges, long length) throws IOException
+	{
+		String contentType = handler.getContentType(request, path);
+		response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+		if (1 == ranges.size())
+		{
+			long[] range = ranges.get(0);
+			response.setContentType(contentType);
+			response.setHeader("Content-Range", _contentRange(range, length));
+			response.setContentLengthLong(range[1] - range[0] + 1L);
+			_copyRange(handler, request, path, range, response.getOutputStream());
+		}
+		else
+		{
+			String boundary = _randomBoundary();
+			List<byte[]> partHeaders = new ArrayList<>();
+			long total = 0L;
+			for (long[] range : ranges)
+			{
+				String partHeader = "\r\n--" + boundary + "\r\n"
+						+ ((null != contentType) ? ("Content-Type: " + contentType + "\r\n") : "")
+						+ "Content-Range: " + _contentRange(range, length) + "\r\n"
+						+ "\r\n"
+				;
+				byte[] bytes = partHeader.getBytes(StandardCharsets.ISO_8859_1);
+				partHeaders.add(bytes);
+				total += bytes.length + (range[1] - range[0] + 1L);
+			}
+			byte[] trailer = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.ISO_8859_1);
+			total += trailer.length;
+
+			response.setContentType("multipart/byteranges; boundary=" + boundary);
+			response.setContentLengthLong(total);
+			OutputStream out = response.getOutputStream();
+			for (int i = 0; i < ranges.size(); ++i)
+			{
+				out.write(partHeaders.get(i));
+				_copyRange(handler, request, path, ranges.get(i), out);
+			}
+			out.write(trailer);
+		}
+	}
+
+
+	// Returns null if malformed, an empty array if syntactically valid but unsatisfiable, or {first, last}.
+	private static long[] _parseOne(String spec, long length)
+	{
+		long[] range = null;
+		int dash = spec.indexOf('-');
+		if (dash >= 0)
+		{
+			String firstString = spec.substring(0, dash).trim();
+			String lastString = spec.substring(dash + 1).trim();
+			try
+			{
+				if (firstString.isEmpty())
+				{
+					// Suffix range:  the last N bytes.
+					long suffix = Long.parseLong(lastString);
+					if (suffix < 0L)
+					{
+						range = null;
+					}
+					else if ((0L == suffix) || (0L == length))
+					{
+						range = new long[0];
+					}
+					else
+					{
+						range = new long[] { Math.max(0L, length - suffix), length - 1L };
+					}
+				}
+				else
+				{
+					long first = Long.parseLong(firstString);
+					long last = lastString.isEmpty()
+							? Long.MAX_VALUE
+							: Long.parseLong(lastString)
+					;
+					if ((first < 0L) || (last < first))
+					{
+						range = null;
+					}
+					else if (first >= length)
+					{
+						range = new long[0];
+					}
+					else
+					{
+						range = new long[] { first, Math.min(last, length - 1L) };
+					}
+				}
+			}
+			catch (NumberFormatException e)
+			{
+				range = null;
+			}
+		}
+		return range;
+	}
+
+	private static List<long[]> _merge(List<long[]> ranges)
+	{
+		ranges.sort(Comparator.comparingLong((long[] range) -> range[0]));
+		List<long[]> merged = new ArrayList<>();
+		long[] current = null;
+		for (long[] range : ranges)
+		{
+			if ((null != current) && (range[0] <= (current[1] + 1L)))
+			{
+				current[1] = Math.max(current[1], range[1]);
+			}
+			else
+			{
+				current = new long[] { range[0], range[1] };
+				merged.add(current);
+			}
+		}
+		return merged;
+	}
+
+	private static String _contentRange(long[] range, long length)
+	{
+		return "bytes " + range[0] + "-" + range[1] + "/" + length;
+	}
+
+	private static String _randomBoundary()
+	{
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		return Long.toHexString(random.nextLong()) + Long.toHexString(random.nextLong());
+	}
+
+	private static void _copyRange(IRangeGetHandler handler, HttpServletRequest request, Object[] path, long[] range, OutputStream out) throws IOException
+	{
+		long remaining = range[1] - range[0] + 1L;
+		byte[] buffer = new byte[(int)Math.min(COPY_BUFFER_SIZE, remaining)];
+		try (InputStream in = handler.openRange(request, path, range[0], remaining))
+		{
+			while (remaining > 0L)
+			{
+				int read = in.read(buffer, 0, (int)Math.min(buffer.length, remaining));
+				if (read < 0)
+				{
+					throw new IOException("Range stream ended " + remaining + " bytes early");
+				}
+				out.write(buffer, 0, read);
+				remaining -= read;
+			}
+		}
+	}
+}
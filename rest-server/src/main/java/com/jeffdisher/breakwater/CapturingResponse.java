@@ -0,0 +1,690 @@
+package com.jeffdisher.breakwater;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.UncheckedIOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+
+import org.eclipse.jetty.http.DateGenerator;
+import org.eclipse.jetty.http.HttpCookie;
+import org.eclipse.jetty.http.MimeTypes;
+
+import com.jeffdisher.breakwater.utilities.Assert;
+
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.ServletResponse;
+import jakarta.servlet.ServletResponseWrapper;
+import jakarta.servlet.WriteListener;
+import jakarta.servlet.http.Cookie;
+import jakarta.servlet.http.HttpServletResponse;
+import jakarta.servlet.http.HttpServletResponseWrapper;
+
+
+/**
+ * A response wrapper which records everything the handler does to the response, instead of sending it, so that the
+ * result can be replayed into any number of real responses (see ResponseCache).
+ * Nothing written to this wrapper reaches the wrapped response until replay() is called, except sendError(), which is
+ * passed straight through (with the headers captured so far) so the container can generate its error page.
+ * The captured body is limited, since a response too large to cache shouldn't be held on the heap:  once the limit is
+ * exceeded, everything captured so far is written to the wrapped response and the rest of the response passes straight
+ * through, as though it had never been captured.
+ * A handler writing asynchronously (setting a WriteListener) is passed through the same way, since its writes must reach
+ * the wrapped stream as they become possible, so its response is never cached.
+ */
+class CapturingResponse extends HttpServletResponseWrapper
+{
+	/**
+	 * Finds the capture a response writes into, looking through wrappers (which pass what is written through to the
+	 * response they wrap).
+	 *
+	 * @param response A response given to a handler.
+	 * @return The first CapturingResponse in the chain of wrappers, or null if there isn't one.
+	 */
+	public static CapturingResponse find(ServletResponse response)
+	{
+		ServletResponse current = response;
+		while (!(current instanceof CapturingResponse) && (current instanceof ServletResponseWrapper))
+		{
+			current = ((ServletResponseWrapper)current).getResponse();
+		}
+		return (current instanceof CapturingResponse)
+				? (CapturingResponse)current
+				: null
+		;
+	}
+
+	private final long _maxBodyBytes;
+	private final ByteArrayOutputStream _body;
+	private final List<String[]> _headers;
+	private final List<Cookie> _cookies;
+	private int _status;
+	private String _contentType;
+	private String _characterEncoding;
+	private boolean _isCacheable;
+	private boolean _isPrivate;
+	private boolean _isErrorSent;
+	// Once set, everything passes through to the wrapped response (the body through _target, once it is needed).
+	private boolean _isPassedThrough;
+	private ServletOutputStream _target;
+	private ServletOutputStream _stream;
+	private PrintWriter _writer;
+
+	/**
+	 * Creates the capture.
+	 *
+	 * @param response The response to wrap.
+	 * @param maxBodyBytes The most body bytes to capture before passing the response through.
+	 */
+	public CapturingResponse(HttpServletResponse response, long maxBodyBytes)
+	{
+		super(response);
+		_maxBodyBytes = maxBodyBytes;
+		_body = new ByteArrayOutputStream();
+		_headers = new ArrayList<>();
+		_cookies = new ArrayList<>();
+		_status = HttpServletResponse.SC_OK;
+		_isCacheable = true;
+	}
+
+	/**
+	 * @return True if the captured response is a plain 200 which can be shared with other clients.
+	 */
+	public boolean isCacheable()
+	{
+		return _isCacheable && !_isPrivate && (HttpServletResponse.SC_OK == _status);
+	}
+
+	/**
+	 * Marks the response as depending on per-client state (like the session), so it is never shared.  Unlike the
+	 * headers which prevent sharing, this isn't undone by reset().
+	 */
+	public void markPrivate()
+	{
+		_isPrivate = true;
+	}
+
+	/**
+	 * @return True if the response was passed through to the wrapped response (by sendError() or a body exceeding the
+	 * limit), meaning it is already sent and the capture must not be replayed.
+	 */
+	public boolean isPassedThrough()
+	{
+		return _isPassedThrough;
+	}
+
+	/**
+	 * Completes the capture, flushing any buffered writer.
+	 *
+	 * @return The captured response.
+	 */
+	public Captured finish()
+	{
+		if (null != _writer)
+		{
+			_writer.flush();
+		}
+		return new Captured(_status, _contentType, _characterEncoding, new ArrayList<>(_headers), new ArrayList<>(_cookies), _body.toByteArray());
+	}
+
+	@Override
+	public ServletOutputStream getOutputStream()
+	{
+		if (null != _writer)
+		{
+			throw new IllegalStateException("getWriter() already called");
+		}
+		if (null == _stream)
+		{
+			_stream = new CaptureStream();
+		}
+		return _stream;
+	}
+
+	@Override
+	public PrintWriter getWriter()
+	{
+		if (null == _writer)
+		{
+			if (null != _stream)
+			{
+				throw new IllegalStateException("getOutputStream() already called");
+			}
+			_stream = new CaptureStream();
+			_writer = new PrintWriter(new OutputStreamWriter(_stream, Charset.forName(getCharacterEncoding())));
+		}
+		return _writer;
+	}
+
+	@Override
+	public void setStatus(int sc)
+	{
+		_status = sc;
+		if (_isPassedThrough)
+		{
+			super.setStatus(sc);
+		}
+	}
+
+	@Override
+	public int getStatus()
+	{
+		return _isPassedThrough
+				? super.getStatus()
+				: _status
+		;
+	}
+
+	@Override
+	public void sendError(int sc) throws IOException
+	{
+		sendError(sc, null);
+	}
+
+	@Override
+	public void sendError(int sc, String msg) throws IOException
+	{
+		// The container generates the error page on the real response so we send it through, with whatever headers (like
+		// session cookies) were already set, and never share this response.
+		_status = sc;
+		_body.reset();
+		if (!_isPassedThrough)
+		{
+			_passThrough();
+		}
+		_isErrorSent = true;
+		super.sendError(sc, msg);
+	}
+
+	@Override
+	public void sendRedirect(String location) throws IOException
+	{
+		if (_isPassedThrough)
+		{
+			super.sendRedirect(location);
+		}
+		else
+		{
+			_status = HttpServletResponse.SC_FOUND;
+			setHeader("Location", location);
+		}
+	}
+
+	@Override
+	public void setContentType(String type)
+	{
+		_contentType = type;
+		String charset = (null != type) ? MimeTypes.getCharsetFromContentType(type) : null;
+		if (null != charset)
+		{
+			_characterEncoding = charset;
+		}
+		if (_isPassedThrough)
+		{
+			super.setContentType(type);
+		}
+	}
+
+	@Override
+	public String getContentType()
+	{
+		return _isPassedThrough
+				? super.getContentType()
+				: _contentType
+		;
+	}
+
+	@Override
+	public void setCharacterEncoding(String charset)
+	{
+		_characterEncoding = charset;
+		if (_isPassedThrough)
+		{
+			super.setCharacterEncoding(charset);
+		}
+	}
+
+	@Override
+	public String getCharacterEncoding()
+	{
+		return (null != _characterEncoding)
+				? _characterEncoding
+				: StandardCharsets.ISO_8859_1.name()
+		;
+	}
+
+	@Override
+	public void setLocale(Locale loc)
+	{
+		// We don't track locale so just ignore this, unless we are passing through.
+		if (_isPassedThrough)
+		{
+			super.setLocale(loc);
+		}
+	}
+
+	@Override
+	public void setContentLength(int len)
+	{
+		// The length is recomputed on replay (and, if we pass through, some of the body may already be written).
+	}
+
+	@Override
+	public void setContentLengthLong(long len)
+	{
+		// The length is recomputed on replay (and, if we pass through, some of the body may already be written).
+	}
+
+	@Override
+	public void addCookie(Cookie cookie)
+	{
+		if (_isPassedThrough)
+		{
+			super.addCookie(cookie);
+		}
+		else
+		{
+			// Per-client state can't be shared.
+			_isCacheable = false;
+			_cookies.add(cookie);
+		}
+	}
+
+	/**
+	 * Records a cookie, replacing any this response already has with the same name (as Jetty's Response does).
+	 * Note that this must not be called once the response is passed through.
+	 *
+	 * @param cookie The cookie.
+	 */
+	public void replaceCookie(HttpCookie cookie)
+	{
+		Assert.assertTrue(!_isPassedThrough);
+		// Per-client state can't be shared.
+		_isPrivate = true;
+		String prefix = cookie.getName() + "=";
+		_headers.removeIf((String[] header) -> "Set-Cookie".equalsIgnoreCase(header[0]) && header[1].startsWith(prefix));
+		_headers.add(new String[] { "Set-Cookie", cookie.getRFC6265SetCookie() });
+	}
+
+	@Override
+	public void setHeader(String name, String value)
+	{
+		if (_isPassedThrough)
+		{
+			if (!"Content-Length".equalsIgnoreCase(name))
+			{
+				super.setHeader(name, value);
+			}
+		}
+		else
+		{
+			_removeHeader(name);
+			if (null != value)
+			{
+				addHeader(name, value);
+			}
+		}
+	}
+
+	@Override
+	public void addHeader(String name, String value)
+	{
+		if (_isPassedThrough)
+		{
+			if (!"Content-Length".equalsIgnoreCase(name))
+			{
+				super.addHeader(name, value);
+			}
+		}
+		else if ("Content-Length".equalsIgnoreCase(name))
+		{
+			// The length is recomputed on replay.
+		}
+		else if ("Content-Type".equalsIgnoreCase(name))
+		{
+			setContentType(value);
+		}
+		else
+		{
+			if ("Set-Cookie".equalsIgnoreCase(name))
+			{
+				_isCacheable = false;
+			}
+			else if ("Cache-Control".equalsIgnoreCase(name))
+			{
+				String lower = value.toLowerCase(Locale.ROOT);
+				if (lower.contains("private") || lower.contains("no-store"))
+				{
+					_isCacheable = false;
+				}
+			}
+			_headers.add(new String[] { name, value });
+		}
+	}
+
+	@Override
+	public void setIntHeader(String name, int value)
+	{
+		setHeader(name, Integer.toString(value));
+	}
+
+	@Override
+	public void addIntHeader(String name, int value)
+	{
+		addHeader(name, Integer.toString(value));
+	}
+
+	@Override
+	public void setDateHeader(String name, long date)
+	{
+		setHeader(name, DateGenerator.formatDate(date));
+	}
+
+	@Override
+	public void addDateHeader(String name, long date)
+	{
+		addHeader(name, DateGenerator.formatDate(date));
+	}
+
+	@Override
+	public boolean containsHeader(String name)
+	{
+		return null != getHeader(name);
+	}
+
+	@Override
+	public String getHeader(String name)
+	{
+		String value = null;
+		if (_isPassedThrough)
+		{
+			value = super.getHeader(name);
+		}
+		else if ("Content-Type".equalsIgnoreCase(name))
+		{
+			value = _contentType;
+		}
+		else
+		{
+			for (String[] header : _headers)
+			{
+				if ((null == value) && header[0].equalsIgnoreCase(name))
+				{
+					value = header[1];
+				}
+			}
+		}
+		return value;
+	}
+
+	@Override
+	public Collection<String> getHeaders(String name)
+	{
+		if (_isPassedThrough)
+		{
+			return super.getHeaders(name);
+		}
+		List<String> values = new ArrayList<>();
+		for (String[] header : _headers)
+		{
+			if (header[0].equalsIgnoreCase(name))
+			{
+				values.add(header[1]);
+			}
+		}
+		return values;
+	}
+
+	@Override
+	public Collection<String> getHeaderNames()
+	{
+		if (_isPassedThrough)
+		{
+			return super.getHeaderNames();
+		}
+		List<String> names = new ArrayList<>();
+		for (String[] header : _headers)
+		{
+			names.add(header[0]);
+		}
+		return names;
+	}
+
+	@Override
+	public void flushBuffer() throws IOException
+	{
+		if (null != _writer)
+		{
+			_writer.flush();
+		}
+		if (_isPassedThrough)
+		{
+			super.flushBuffer();
+		}
+	}
+
+	@Override
+	public boolean isCommitted()
+	{
+		return _isErrorSent || (_isPassedThrough && super.isCommitted());
+	}
+
+	@Override
+	public void resetBuffer()
+	{
+		if (null != _writer)
+		{
+			_writer.flush();
+		}
+		_body.reset();
+		if (_isPassedThrough)
+		{
+			super.resetBuffer();
+		}
+	}
+
+	@Override
+	public void reset()
+	{
+		resetBuffer();
+		if (_isPassedThrough)
+		{
+			super.reset();
+		}
+		_headers.clear();
+		_cookies.clear();
+		_status = HttpServletResponse.SC_OK;
+		_contentType = null;
+		_characterEncoding = null;
+		_isCacheable = true;
+	}
+
+
+	private void _removeHeader(String name)
+	{
+		_headers.removeIf((String[] header) -> header[0].equalsIgnoreCase(name));
+	}
+
+	// Sends everything captured so far to the wrapped response, and anything written afterward straight to it.
+	private void _passThrough() throws IOException
+	{
+		_isPassedThrough = true;
+		// Whatever else happens, this response can't be shared.
+		_isPrivate = true;
+		HttpServletResponse response = (HttpServletResponse)getResponse();
+		_applyHead(response, _status, _contentType, _characterEncoding, _headers, _cookies);
+		_headers.clear();
+		_cookies.clear();
+		if (_body.size() > 0)
+		{
+			_body.writeTo(_getTarget());
+			_body.reset();
+		}
+	}
+
+	private ServletOutputStream _getTarget() throws IOException
+	{
+		if (null == _target)
+		{
+			_target = getResponse().getOutputStream();
+		}
+		return _target;
+	}
+
+	private static void _applyHead(HttpServletResponse response, int status, String contentType, String characterEncoding, List<String[]> headers, List<Cookie> cookies)
+	{
+		response.setStatus(status);
+		if (null != contentType)
+		{
+			response.setContentType(contentType);
+		}
+		if (null != characterEncoding)
+		{
+			response.setCharacterEncoding(characterEncoding);
+		}
+		for (String[] header : headers)
+		{
+			response.addHeader(header[0], header[1]);
+		}
+		for (Cookie cookie : cookies)
+		{
+			response.addCookie(cookie);
+		}
+	}
+
+
+	/**
+	 * The immutable result of a capture, which can be replayed into real responses.
+	 */
+	static class Captured
+	{
+		// A rough per-header overhead, on top of the characters, used when estimating memory.
+		private static final int HEADER_OVERHEAD_BYTES = 64;
+		private static final int BASE_OVERHEAD_BYTES = 128;
+
+		public final int status;
+		public final String contentType;
+		public final String characterEncoding;
+		public final List<String[]> headers;
+		public final List<Cookie> cookies;
+		public final byte[] body;
+
+		public Captured(int status, String contentType, String characterEncoding, List<String[]> headers, List<Cookie> cookies, byte[] body)
+		{
+			this.status = status;
+			this.contentType = contentType;
+			this.characterEncoding = characterEncoding;
+			this.headers = headers;
+			this.cookies = cookies;
+			this.body = body;
+		}
+
+		/**
+		 * Writes this captured response to a real response.
+		 *
+		 * @param response The response to populate.
+		 * @throws IOException There was an error writing the body.
+		 */
+		public void replay(HttpServletResponse response) throws IOException
+		{
+			_applyHead(response, this.status, this.contentType, this.characterEncoding, this.headers, this.cookies);
+			if (this.body.length > 0)
+			{
+				response.setContentLength(this.body.length);
+				response.getOutputStream().write(this.body);
+			}
+		}
+
+		/**
+		 * @return A rough estimate of the heap consumed by this response.
+		 */
+		public long estimateBytes()
+		{
+			long size = BASE_OVERHEAD_BYTES + this.body.length;
+			for (String[] header : this.headers)
+			{
+				// Java strings are at most 2 bytes per char.
+				size += HEADER_OVERHEAD_BYTES + (2L * (header[0].length() + header[1].length()));
+			}
+			return size;
+		}
+	}
+
+
+	private class CaptureStream extends ServletOutputStream
+	{
+		@Override
+		public void write(int b) throws IOException
+		{
+			_checkLimit(1);
+			if (_isPassedThrough)
+			{
+				_getTarget().write(b);
+			}
+			else
+			{
+				_body.write(b);
+			}
+		}
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException
+		{
+			_checkLimit(len);
+			if (_isPassedThrough)
+			{
+				_getTarget().write(b, off, len);
+			}
+			else
+			{
+				_body.write(b, off, len);
+			}
+		}
+		@Override
+		public void flush() throws IOException
+		{
+			if (_isPassedThrough)
+			{
+				_getTarget().flush();
+			}
+		}
+		@Override
+		public boolean isReady()
+		{
+			// Only the wrapped stream can be in asynchronous mode so the capture itself never blocks.
+			return (null != _target)
+					? _target.isReady()
+					: true
+			;
+		}
+		@Override
+		public void setWriteListener(WriteListener writeListener)
+		{
+			try
+			{
+				if (!_isPassedThrough)
+				{
+					_passThrough();
+				}
+				_getTarget().setWriteListener(writeListener);
+			}
+			catch (IOException e)
+			{
+				// The interface doesn't allow IOException.
+				throw new UncheckedIOException(e);
+			}
+		}
+		private void _checkLimit(int len) throws IOException
+		{
+			if (!_isPassedThrough && (((long)_body.size() + len) > _maxBodyBytes))
+			{
+				_passThrough();
+			}
+		}
+	}
+}
@@ -0,0 +1,436 @@
+package com.jeffdisher.breakwater;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.UncheckedIOException;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import org.eclipse.jetty.util.compression.CompressionPool;
+
+import com.jeffdisher.breakwater.utilities.Assert;
+
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.WriteListener;
+import jakarta.servlet.http.HttpServletResponse;
+import jakarta.servlet.http.HttpServletResponseWrapper;
+
+
+/**
+ * The response wrapper used to apply a CompressionPolicy to the response of a handler.
+ * The first bytes written by the handler are buffered until the policy's minimum size is reached, at which point we
+ * decide whether or not to compress (based on status, MIME type, and any Content-Encoding the handler set itself) and
+ * commit to that decision.  If the handler returns before reaching the minimum size, the response is sent as-is, with
+ * an accurate Content-Length.
+ * finish() MUST be called once the handler returns, even if it failed, since that is what returns the Deflater to the
+ * pool.
+ * A handler using asynchronous writes (setting a WriteListener) gets an uncompressed response, written straight
+ * through to the wrapped stream, since the compressed stream can't be written without blocking.  The listener must be
+ * set before the response has started being compressed.
+ */
+class CompressingResponse extends HttpServletResponseWrapper
+{
+	private static final int DEFLATE_BUFFER_SIZE = 8 * 1024;
+	// The fixed 10-byte GZIP header:  magic, CM=8 (deflate), no flags, no mtime, no extra flags, unknown OS.
+	private static final byte[] GZIP_HEADER = new byte[] { 0x1f, (byte)0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte)0xff };
+	// The 2-byte zlib header:  CM=8 (deflate) with a 32 KiB window, no dictionary, and the check bits for the default
+	// level (the level is only advisory).
+	private static final byte[] ZLIB_HEADER = new byte[] { 0x78, (byte)0x9c };
+
+	private final CompressionPolicy _policy;
+	private final CompressionPolicy.Encoding _encoding;
+	private final byte[] _buffer;
+	private int _buffered;
+	private long _declaredLength;
+
+	// These are null until we have decided whether or not to compress.
+	private OutputStream _target;
+	private CompressionPool<Deflater>.Entry _deflater;
+	private DeflaterOutputStream _deflaterStream;
+	// The check value of the uncompressed data, for the trailer (CRC-32 for gzip, Adler-32 for zlib).
+	private Checksum _checksum;
+	private long _uncompressedSize;
+
+	private BufferingStream _stream;
+	private PrintWriter _writer;
+	// Set once the handler starts writing asynchronously (at which point this is also _target).
+	private ServletOutputStream _asyncTarget;
+	// Set while we drain the writer in finish() so that its implicit flush doesn't force an early decision.
+	private boolean _finishing;
+
+	public CompressingResponse(HttpServletResponse response, CompressionPolicy policy, CompressionPolicy.Encoding encoding)
+	{
+		super(response);
+		_policy = policy;
+		_encoding = encoding;
+		_buffer = new byte[policy.getMinimumSize()];
+		_declaredLength = -1L;
+	}
+
+	@Override
+	public ServletOutputStream getOutputStream() throws IOException
+	{
+		if (null != _writer)
+		{
+			throw new IllegalStateException("getWriter() already called");
+		}
+		if (null == _stream)
+		{
+			_stream = new BufferingStream();
+		}
+		return _stream;
+	}
+
+	@Override
+	public PrintWriter getWriter() throws IOException
+	{
+		if (null == _writer)
+		{
+			if (null != _stream)
+			{
+				throw new IllegalStateException("getOutputStream() already called");
+			}
+			_stream = new BufferingStream();
+			_writer = new PrintWriter(new OutputStreamWriter(_stream, getCharacterEncoding()));
+		}
+		return _writer;
+	}
+
+	@Override
+	public void setContentLength(int len)
+	{
+		setContentLengthLong(len);
+	}
+
+	@Override
+	public void setContentLengthLong(long len)
+	{
+		// We can't know the length until we decide whether or not to compress so hold this until then.
+		if (null == _target)
+		{
+			_declaredLength = len;
+		}
+		else if (null == _deflater)
+		{
+			super.setContentLengthLong(len);
+		}
+	}
+
+	@Override
+	public void setHeader(String name, String value)
+	{
+		if ("Content-Length".equalsIgnoreCase(name))
+		{
+			setContentLengthLong((null != value) ? Long.parseLong(value) : -1L);
+		}
+		else
+		{
+			super.setHeader(name, value);
+		}
+	}
+
+	@Override
+	public void addHeader(String name, String value)
+	{
+		if ("Content-Length".equalsIgnoreCase(name))
+		{
+			setContentLengthLong(Long.parseLong(value));
+		}
+		else
+		{
+			super.addHeader(name, value);
+		}
+	}
+
+	@Override
+	public void setIntHeader(String name, int value)
+	{
+		if ("Content-Length".equalsIgnoreCase(name))
+		{
+			setContentLengthLong(value);
+		}
+		else
+		{
+			super.setIntHeader(name, value);
+		}
+	}
+
+	@Override
+	public void flushBuffer() throws IOException
+	{
+		if (null != _writer)
+		{
+			_writer.flush();
+		}
+		if (null != _stream)
+		{
+			_stream.flush();
+		}
+		super.flushBuffer();
+	}
+
+	@Override
+	public boolean isCommitted()
+	{
+		return (null != _target) || super.isCommitted();
+	}
+
+	@Override
+	public void resetBuffer()
+	{
+		if (null == _target)
+		{
+			_buffered = 0;
+		}
+		super.resetBuffer();
+	}
+
+	@Override
+	public void reset()
+	{
+		if (null == _target)
+		{
+			_buffered = 0;
+			_declaredLength = -1L;
+		}
+		super.reset();
+	}
+
+	/**
+	 * Completes the response:  writes out anything still buffered, finishes the compressed stream (if compressing),
+	 * and returns the Deflater to the pool.
+	 *
+	 * @param success True if the handler returned normally (false means we only release resources).
+	 * @throws IOException There was an error writing the response.
+	 */
+	public void finish(boolean success) throws IOException
+	{
+		try
+		{
+			if (success)
+			{
+				if (null != _writer)
+				{
+					_finishing = true;
+					_writer.flush();
+				}
+				if (null == _target)
+				{
+					// We never hit the minimum size so this goes out uncompressed, unless nothing was written.
+					if (_buffered > 0)
+					{
+						_decide(false);
+						_target.write(_buffer, 0, _buffered);
+						_buffered = 0;
+					}
+					else if (_declaredLength >= 0L)
+					{
+						super.setContentLengthLong(_declaredLength);
+					}
+				}
+				else if (null != _deflaterStream)
+				{
+					_deflaterStream.finish();
+					_writeTrailer();
+				}
+			}
+		}
+		finally
+		{
+			if (null != _deflater)
+			{
+				_deflater.release();
+				_deflater = null;
+			}
+		}
+	}
+
+
+	private void _decide(boolean allowCompression) throws IOException
+	{
+		Assert.assertTrue(null == _target);
+		OutputStream raw = super.getOutputStream();
+		int status = getStatus();
+		boolean compress = allowCompression
+				&& (HttpServletResponse.SC_OK == status)
+				&& (null == getHeader("Content-Encoding"))
+				&& _policy.isCompressible(getContentType())
+		;
+		if (compress)
+		{
+			super.setHeader("Content-Encoding", _encoding.headerName);
+			_deflater = _policy.acquireDeflater();
+			// The pooled Deflaters produce raw streams so we write the framing of the encoding around them.
+			if (CompressionPolicy.Encoding.GZIP == _encoding)
+			{
+				raw.write(GZIP_HEADER);
+				_checksum = new CRC32();
+			}
+			else
+			{
+				raw.write(ZLIB_HEADER);
+				_checksum = new Adler32();
+			}
+			// We use sync flush so that a handler explicitly flushing a streaming response still reaches the client.
+			_deflaterStream = new DeflaterOutputStream(raw, _deflater.get(), DEFLATE_BUFFER_SIZE, true);
+			_target = _deflaterStream;
+		}
+		else
+		{
+			if (!allowCompression)
+			{
+				// We know the whole response so we can set an accurate length.
+				super.setContentLengthLong(_buffered);
+			}
+			else if (_declaredLength >= 0L)
+			{
+				super.setContentLengthLong(_declaredLength);
+			}
+			_target = raw;
+		}
+	}
+
+	private void _startAsync(WriteListener writeListener) throws IOException
+	{
+		if (null != _deflaterStream)
+		{
+			throw new IllegalStateException("Asynchronous writes must start before the response is compressed");
+		}
+		ServletOutputStream raw = super.getOutputStream();
+		if (null == _target)
+		{
+			// We are still buffering (in blocking mode) so send that uncompressed before the wrapped stream goes async.
+			if (_declaredLength >= 0L)
+			{
+				super.setContentLengthLong(_declaredLength);
+			}
+			_target = raw;
+			raw.write(_buffer, 0, _buffered);
+			_buffered = 0;
+		}
+		_asyncTarget = raw;
+		raw.setWriteListener(writeListener);
+	}
+
+	private void _write(byte[] b, int off, int len) throws IOException
+	{
+		if (null != _checksum)
+		{
+			_checksum.update(b, off, len);
+			_uncompressedSize += len;
+		}
+		_target.write(b, off, len);
+	}
+
+	private void _writeTrailer() throws IOException
+	{
+		OutputStream raw = super.getOutputStream();
+		long check = _checksum.getValue();
+		byte[] trailer;
+		if (CompressionPolicy.Encoding.GZIP == _encoding)
+		{
+			// The CRC-32, then ISIZE (the uncompressed size, modulo 2^32), both little-endian.
+			trailer = new byte[8];
+			for (int i = 0; i < 4; ++i)
+			{
+				trailer[i] = (byte)(check >> (8 * i));
+				trailer[4 + i] = (byte)(_uncompressedSize >> (8 * i));
+			}
+		}
+		else
+		{
+			// The Adler-32, big-endian.
+			trailer = new byte[4];
+			for (int i = 0; i < 4; ++i)
+			{
+				trailer[i] = (byte)(check >> (8 * (3 - i)));
+			}
+		}
+		raw.write(trailer);
+	}
+
+
+	private class BufferingStream extends ServletOutputStream
+	{
+		@Override
+		public void write(int b) throws IOException
+		{
+			write(new byte[] { (byte)b }, 0, 1);
+		}
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException
+		{
+			if (null == _target)
+			{
+				if ((_buffered + len) <= _buffer.length)
+				{
+					System.arraycopy(b, off, _buffer, _buffered, len);
+					_buffered += len;
+				}
+				else
+				{
+					// We are past the threshold so we can decide how to send this.
+					_decide(true);
+					_write(_buffer, 0, _buffered);
+					_buffered = 0;
+					_write(b, off, len);
+				}
+			}
+			else
+			{
+				_write(b, off, len);
+			}
+		}
+		@Override
+		public void flush() throws IOException
+		{
+			// An explicit flush means that the handler is streaming so we need to decide now, even if we are below the
+			// threshold.
+			if (_finishing)
+			{
+				// finish() will write out or complete whatever is left.
+			}
+			else if (null == _target)
+			{
+				if (_buffered > 0)
+				{
+					_decide(true);
+					_write(_buffer, 0, _buffered);
+					_buffered = 0;
+					_target.flush();
+				}
+			}
+			else
+			{
+				_target.flush();
+			}
+		}
+		@Override
+		public boolean isReady()
+		{
+			// We only block once writes are asynchronous, which go straight through.
+			return (null != _asyncTarget)
+					? _asyncTarget.isReady()
+					: true
+			;
+		}
+		@Override
+		public void setWriteListener(WriteListener writeListener)
+		{
+			try
+			{
+				_startAsync(writeListener);
+			}
+			catch (IOException e)
+			{
+				// The interface doesn't allow IOException.
+				throw new UncheckedIOException(e);
+			}
+		}
+	}
+}
@@ -0,0 +1,233 @@
+package com.jeffdisher.breakwater;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.Deflater;
+
+import org.eclipse.jetty.util.compression.CompressionPool;
+import org.eclipse.jetty.util.compression.DeflaterPool;
+
+import com.jeffdisher.breakwater.utilities.Assert;
+
+
+/**
+ * Describes how the responses of a route should be compressed, when the client advertises support for it in its
+ * "Accept-Encoding" header.
+ * A response is only compressed if it is at least minimumSize bytes and its MIME type is compressible:  if the policy was
+ * given an explicit set of MIME types, only those are compressed, otherwise everything but the common already-compressed
+ * types (images, audio, video, archives, etc) is compressed.
+ *
+ * The policy also owns the pool of Deflater instances used to compress responses, so the same instance should be
+ * shared by all routes which want the same behaviour.
+ */
+public class CompressionPolicy
+{
+	/**
+	 * The policy used if the caller doesn't want to tune anything:  compress anything compressible over 1 KiB at the
+	 * default compression level.
+	 */
+	public static final CompressionPolicy DEFAULT = new CompressionPolicy(1024, Deflater.DEFAULT_COMPRESSION, Collections.emptySet());
+
+	private static final Set<String> ALREADY_COMPRESSED_TYPES = Set.of(
+			"application/gzip"
+			, "application/x-gzip"
+			, "application/zip"
+			, "application/x-7z-compressed"
+			, "application/x-bzip2"
+			, "application/x-rar-compressed"
+			, "application/x-xz"
+			, "application/zstd"
+			, "font/woff"
+			, "font/woff2"
+			, "image/avif"
+			, "image/gif"
+			, "image/jpeg"
+			, "image/png"
+			, "image/webp"
+	);
+	private static final Set<String> ALREADY_COMPRESSED_PREFIXES = Set.of(
+			"audio/"
+			, "video/"
+	);
+
+	/**
+	 * The content encodings we know how to produce.
+	 */
+	public static enum Encoding
+	{
+		GZIP("gzip"),
+		DEFLATE("deflate"),
+		;
+		public final String headerName;
+		private Encoding(String headerName)
+		{
+			this.headerName = headerName;
+		}
+	}
+
+	private final int _minimumSize;
+	private final int _level;
+	private final Set<String> _mimeTypes;
+	private final DeflaterPool _deflaterPool;
+
+	/**
+	 * Creates a new compression policy.
+	 *
+	 * @param minimumSize Responses smaller than this many bytes are sent uncompressed.
+	 * @param level The Deflater compression level (0-9 or Deflater.DEFAULT_COMPRESSION).
+	 * @param mimeTypes The MIME types to compress (if empty, all types other than already-compressed types are
+	 * compressed).
+	 */
+	public CompressionPolicy(int minimumSize, int level, Set<String> mimeTypes)
+	{
+		Assert.assertTrue(minimumSize >= 0);
+		Assert.assertTrue((Deflater.DEFAULT_COMPRESSION == level) || ((level >= Deflater.NO_COMPRESSION) && (level <= Deflater.BEST_COMPRESSION)));
+		_minimumSize = minimumSize;
+		_level = level;
+		Set<String> types = new HashSet<>();
+		for (String type : mimeTypes)
+		{
+			types.add(type.toLowerCase(Locale.ROOT));
+		}
+		_mimeTypes = Collections.unmodifiableSet(types);
+		// The Deflaters produce raw streams (hence "nowrap") since CompressingResponse writes the gzip or zlib framing
+		// around them itself, so one pool serves both encodings.
+		_deflaterPool = new DeflaterPool(CompressionPool.DEFAULT_CAPACITY, level, true);
+		// Unlike the WebSocket pool, nothing else manages the lifecycle of this one so it lives as long as the policy.
+		try
+		{
+			_deflaterPool.start();
+		}
+		catch (Exception e)
+		{
+			// Starting a pool just allocates it.
+			throw Assert.unexpected(e);
+		}
+	}
+
+	/**
+	 * @return The minimum size, in bytes, of a response before it will be compressed.
+	 */
+	public int getMinimumSize()
+	{
+		return _minimumSize;
+	}
+
+	/**
+	 * @return The Deflater compression level.
+	 */
+	public int getLevel()
+	{
+		return _level;
+	}
+
+	/**
+	 * Checks if a response with the given Content-Type should be compressed.
+	 *
+	 * @param contentType The Content-Type of the response (can include parameters like charset).
+	 * @return True if this type should be compressed.
+	 */
+	public boolean isCompressible(String contentType)
+	{
+		boolean compressible = false;
+		if (null != contentType)
+		{
+			int semi = contentType.indexOf(';');
+			String mimeType = ((semi >= 0) ? contentType.substring(0, semi) : contentType).trim().toLowerCase(Locale.ROOT);
+			if (_mimeTypes.isEmpty())
+			{
+				compressible = !ALREADY_COMPRESSED_TYPES.contains(mimeType);
+				for (String prefix : ALREADY_COMPRESSED_PREFIXES)
+				{
+					if (mimeType.startsWith(prefix))
+					{
+						compressible = false;
+					}
+				}
+			}
+			else
+			{
+				compressible = _mimeTypes.contains(mimeType);
+			}
+		}
+		return compressible;
+	}
+
+	/**
+	 * Selects the encoding we should use, given the client's "Accept-Encoding" header.  We prefer gzip over deflate
+	 * since it is the more widely-supported of the two.
+	 *
+	 * @param acceptEncoding The raw "Accept-Encoding" header (can be null).
+	 * @return The encoding to use or null if the client doesn't accept any we support.
+	 */
+	public static Encoding selectEncoding(String acceptEncoding)
+	{
+		boolean gzip = false;
+		boolean deflate = false;
+		boolean gzipRefused = false;
+		boolean deflateRefused = false;
+		boolean wildcard = false;
+		if (null != acceptEncoding)
+		{
+			for (String token : acceptEncoding.split(","))
+			{
+				String[] parts = token.split(";");
+				String name = parts[0].trim().toLowerCase(Locale.ROOT);
+				boolean refused = false;
+				for (int i = 1; i < parts.length; ++i)
+				{
+					String param = parts[i].trim();
+					if (param.startsWith("q="))
+					{
+						try
+						{
+							refused = (0.0f == Float.parseFloat(param.substring(2)));
+						}
+						catch (NumberFormatException e)
+						{
+							// Treat a malformed weight as a refusal.
+							refused = true;
+						}
+					}
+				}
+				if ("gzip".equals(name) || "x-gzip".equals(name))
+				{
+					gzip = !refused;
+					gzipRefused = refused;
+				}
+				else if ("deflate".equals(name))
+				{
+					deflate = !refused;
+					deflateRefused = refused;
+				}
+				else if ("*".equals(name))
+				{
+					wildcard = !refused;
+				}
+			}
+		}
+		Encoding selected = null;
+		if (gzip || (wildcard && !gzipRefused))
+		{
+			selected = Encoding.GZIP;
+		}
+		else if (deflate || (wildcard && !deflateRefused))
+		{
+			selected = Encoding.DEFLATE;
+		}
+		return selected;
+	}
+
+	/**
+	 * Acquires a Deflater, producing a raw (unframed) deflate stream, from the pool.  It must be returned by releasing
+	 * the entry.
+	 *
+	 * @return The pool entry holding a reset Deflater.
+	 */
+	CompressionPool<Deflater>.Entry acquireDeflater()
+	{
+		return _deflaterPool.acquire();
+	}
+}
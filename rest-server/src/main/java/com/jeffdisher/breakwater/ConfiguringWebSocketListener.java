@@ -0,0 +1,251 @@
+package com.jeffdisher.breakwater;
+
+import java.nio.ByteBuffer;
+import java.time.Duration;
+
+import org.eclipse.jetty.io.ByteBufferPool;
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.StatusCode;
+import org.eclipse.jetty.websocket.api.WebSocketConnectionListener;
+import org.eclipse.jetty.websocket.api.WebSocketListener;
+import org.eclipse.jetty.websocket.api.WebSocketPartialListener;
+import org.eclipse.jetty.websocket.api.WebSocketPingPongListener;
+
+
+/**
+ * Wraps the WebSocketListener returned by an IWebSocketFactory in order to apply the route's WebSocketSettings to the
+ * session when it connects (Jetty only supports configuring these once per servlet, not per upgrade) and to remove
+ * the connection from the WebSocketRegistry when it closes (or fails).
+ * Everything else is passed straight through to the wrapped listener, except that IWebSocketStreamListener instances
+ * are given to Jetty as a WebSocketPartialListener, so that their binary messages are never assembled.
+ */
+abstract class ConfiguringWebSocketListener implements WebSocketConnectionListener
+{
+	/**
+	 * Wraps the given listener, preserving its support for WebSocketPingPongListener (Jetty changes its ping handling
+	 * based on which interfaces the listener implements).
+	 *
+	 * @param listener The listener created by the factory.
+	 * @param settings The settings to apply on connect (null to leave the servlet's defaults).
+	 * @param registration The registration to release on close or error.
+	 * @param pool The pool used when an IWebSocketStreamListener retains a fragment.
+	 * @return The wrapper to return to Jetty.
+	 */
+	public static Object wrap(WebSocketListener listener, WebSocketSettings settings, WebSocketRegistry.Registration registration, ByteBufferPool pool)
+	{
+		boolean isPingPong = (listener instanceof WebSocketPingPongListener);
+		Object wrapper;
+		if (listener instanceof IWebSocketStreamListener)
+		{
+			IWebSocketStreamListener stream = (IWebSocketStreamListener)listener;
+			wrapper = isPingPong
+					? new StreamingPingPong(stream, settings, registration, pool)
+					: new Streaming(stream, settings, registration, pool)
+			;
+		}
+		else
+		{
+			wrapper = isPingPong
+					? new WholePingPong(listener, settings, registration)
+					: new Whole(listener, settings, registration)
+			;
+		}
+		return wrapper;
+	}
+
+	protected final WebSocketListener _listener;
+	private final WebSocketSettings _settings;
+	private final WebSocketRegistry.Registration _registration;
+	protected Session _session;
+
+	private ConfiguringWebSocketListener(WebSocketListener listener, WebSocketSettings settings, WebSocketRegistry.Registration registration)
+	{
+		_listener = listener;
+		_settings = settings;
+		_registration = registration;
+	}
+
+	@Override
+	public void onWebSocketConnect(Session session)
+	{
+		if (null != _settings)
+		{
+			session.setIdleTimeout(Duration.ofMillis(_settings.idleTimeoutMillis));
+			session.setMaxTextMessageSize(_settings.maxTextMessageSize);
+			session.setMaxBinaryMessageSize(_settings.maxBinaryMessageSize);
+			session.setInputBufferSize(_settings.inputBufferSize);
+			session.setAutoFragment(_settings.autoFragment);
+		}
+		_session = session;
+		_listener.onWebSocketConnect(session);
+	}
+
+	@Override
+	public void onWebSocketClose(int statusCode, String reason)
+	{
+		_registration.release();
+		_listener.onWebSocketClose(statusCode, reason);
+	}
+
+	@Override
+	public void onWebSocketError(Throwable cause)
+	{
+		// A connection which fails before it opens is never closed (and release is idempotent, if it is).
+		_registration.release();
+		_listener.onWebSocketError(cause);
+	}
+
+
+	private static class Whole extends ConfiguringWebSocketListener implements WebSocketListener
+	{
+		private Whole(WebSocketListener listener, WebSocketSettings settings, WebSocketRegistry.Registration registration)
+		{
+			super(listener, settings, registration);
+		}
+
+		@Override
+		public void onWebSocketText(String message)
+		{
+			_listener.onWebSocketText(message);
+		}
+
+		@Override
+		public void onWebSocketBinary(byte[] payload, int offset, int len)
+		{
+			_listener.onWebSocketBinary(payload, offset, len);
+		}
+	}
+
+
+	private static class WholePingPong extends Whole implements WebSocketPingPongListener
+	{
+		private WholePingPong(WebSocketListener listener, WebSocketSettings settings, WebSocketRegistry.Registration registration)
+		{
+			super(listener, settings, registration);
+		}
+
+		@Override
+		public void onWebSocketPing(ByteBuffer payload)
+		{
+			((WebSocketPingPongListener)_listener).onWebSocketPing(payload);
+		}
+
+		@Override
+		public void onWebSocketPong(ByteBuffer payload)
+		{
+			((WebSocketPingPongListener)_listener).onWebSocketPong(payload);
+		}
+	}
+
+
+	private static class Streaming extends ConfiguringWebSocketListener implements WebSocketPartialListener
+	{
+		private final IWebSocketStreamListener _stream;
+		private final ByteBufferPool _pool;
+		// Jetty doesn't assemble (or limit) partial text messages so we do that here.
+		private final StringBuilder _text;
+		private long _textBytes;
+		private boolean _isTextTooLarge;
+
+		private Streaming(IWebSocketStreamListener listener, WebSocketSettings settings, WebSocketRegistry.Registration registration, ByteBufferPool pool)
+		{
+			super(listener, settings, registration);
+			_stream = listener;
+			_pool = pool;
+			_text = new StringBuilder();
+		}
+
+		@Override
+		public void onWebSocketPartialText(String payload, boolean fin)
+		{
+			if (!_isTextTooLarge)
+			{
+				_textBytes += _utf8Length(payload);
+				if (_textBytes > _session.getMaxTextMessageSize())
+				{
+					_isTextTooLarge = true;
+					_text.setLength(0);
+					_session.close(StatusCode.MESSAGE_TOO_LARGE, "Text message too large");
+				}
+				else
+				{
+					_text.append(payload);
+				}
+			}
+			if (fin)
+			{
+				if (!_isTextTooLarge)
+				{
+					_listener.onWebSocketText(_text.toString());
+				}
+				_text.setLength(0);
+				_textBytes = 0L;
+				_isTextTooLarge = false;
+			}
+		}
+
+		@Override
+		public void onWebSocketPartialBinary(ByteBuffer payload, boolean fin)
+		{
+			WebSocketFragment fragment = new WebSocketFragment(payload, _pool, false);
+			try
+			{
+				_stream.onWebSocketBinaryFragment(fragment, fin);
+			}
+			finally
+			{
+				// Jetty reuses the buffer once we return.
+				fragment.expire();
+			}
+		}
+
+		private static long _utf8Length(String string)
+		{
+			long length = 0L;
+			for (int i = 0; i < string.length(); ++i)
+			{
+				char c = string.charAt(i);
+				if (c < 0x80)
+				{
+					length += 1;
+				}
+				else if (c < 0x800)
+				{
+					length += 2;
+				}
+				else if (Character.isHighSurrogate(c))
+				{
+					// The pair is encoded as 4 bytes, and we skip the low surrogate.
+					length += 4;
+					i += 1;
+				}
+				else
+				{
+					length += 3;
+				}
+			}
+			return length;
+		}
+	}
+
+
+	private static class StreamingPingPong extends Streaming implements WebSocketPingPongListener
+	{
+		private StreamingPingPong(IWebSocketStreamListener listener, WebSocketSettings settings, WebSocketRegistry.Registration registration, ByteBufferPool pool)
+		{
+			super(listener, settings, registration, pool);
+		}
+
+		@Override
+		public void onWebSocketPing(ByteBuffer payload)
+		{
+			((WebSocketPingPongListener)_listener).onWebSocketPing(payload);
+		}
+
+		@Override
+		public void onWebSocketPong(ByteBuffer payload)
+		{
+			((WebSocketPingPongListener)_listener).onWebSocketPong(payload);
+		}
+	}
+}
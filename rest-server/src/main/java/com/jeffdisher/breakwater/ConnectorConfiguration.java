@@ -0,0 +1,211 @@
+package com.jeffdisher.breakwater;
+
+import java.net.InetSocketAddress;
+import java.nio.file.Path;
+
+import com.jeffdisher.breakwater.utilities.Assert;
+
+
+/**
+ * Describes one listener of a RestServer:  either a TCP interface/port or a Unix domain socket, along with the
+ * networking knobs for that listener.  Instances are created with the Builder returned by tcp() or unixDomain().
+ *
+ * Anything not explicitly set uses Jetty's defaults:  acceptor and selector counts derived from the number of cores,
+ * the OS default accept queue, a 30 second idle timeout, a 32 KiB output buffer, and TCP_NODELAY enabled.
+ */
+public class ConnectorConfiguration
+{
+	/**
+	 * Used for the acceptor and selector counts to mean "let Jetty choose based on the number of cores".
+	 */
+	public static final int DEFAULT_COUNT = -1;
+
+	/**
+	 * Starts building a TCP listener.
+	 *
+	 * @param bindAddress The interface and port to bind (port 0 picks a random port).
+	 * @return The builder.
+	 */
+	public static Builder tcp(InetSocketAddress bindAddress)
+	{
+		Assert.assertTrue(null != bindAddress);
+		return new Builder(bindAddress, null);
+	}
+
+	/**
+	 * Starts building a Unix domain socket listener (requires JDK 16+ at runtime).
+	 *
+	 * @param socketPath The path where the socket file will be created (must not already exist).
+	 * @return The builder.
+	 */
+	public static Builder unixDomain(Path socketPath)
+	{
+		Assert.assertTrue(null != socketPath);
+		return new Builder(null, socketPath);
+	}
+
+	public final InetSocketAddress bindAddress;
+	public final Path socketPath;
+	public final int acceptors;
+	public final int selectors;
+	public final int acceptQueueSize;
+	public final long idleTimeoutMillis;
+	public final int outputBufferSize;
+	public final boolean tcpNoDelay;
+	public final Http2Configuration http2;
+
+	private ConnectorConfiguration(InetSocketAddress bindAddress
+			, Path socketPath
+			, int acceptors
+			, int selectors
+			, int acceptQueueSize
+			, long idleTimeoutMillis
+			, int outputBufferSize
+			, boolean tcpNoDelay
+			, Http2Configuration http2
+	)
+	{
+		this.bindAddress = bindAddress;
+		this.socketPath = socketPath;
+		this.acceptors = acceptors;
+		this.selectors = selectors;
+		this.acceptQueueSize = acceptQueueSize;
+		this.idleTimeoutMillis = idleTimeoutMillis;
+		this.outputBufferSize = outputBufferSize;
+		this.tcpNoDelay = tcpNoDelay;
+		this.http2 = http2;
+	}
+
+	/**
+	 * @return True if this describes a Unix domain socket, false if it is TCP.
+	 */
+	public boolean isUnixDomain()
+	{
+		return (null != this.socketPath);
+	}
+
+
+	/**
+	 * Accumulates the settings of a ConnectorConfiguration.  Each setter returns the builder, for chaining.
+	 */
+	public static class Builder
+	{
+		private final InetSocketAddress _bindAddress;
+		private final Path _socketPath;
+		private int _acceptors;
+		private int _selectors;
+		private int _acceptQueueSize;
+		private long _idleTimeoutMillis;
+		private int _outputBufferSize;
+		private boolean _tcpNoDelay;
+		private Http2Configuration _http2;
+
+		private Builder(InetSocketAddress bindAddress, Path socketPath)
+		{
+			_bindAddress = bindAddress;
+			_socketPath = socketPath;
+			_acceptors = DEFAULT_COUNT;
+			_selectors = DEFAULT_COUNT;
+			_acceptQueueSize = 0;
+			_idleTimeoutMillis = 30_000L;
+			_outputBufferSize = 32 * 1024;
+			_tcpNoDelay = true;
+			_http2 = null;
+		}
+
+		/**
+		 * @param acceptors The number of threads blocked accepting new connections (DEFAULT_COUNT to let Jetty choose).
+		 * @return This builder.
+		 */
+		public Builder acceptors(int acceptors)
+		{
+			Assert.assertTrue((DEFAULT_COUNT == acceptors) || (acceptors >= 0));
+			_acceptors = acceptors;
+			return this;
+		}
+
+		/**
+		 * @param selectors The number of selectors managing the connections (DEFAULT_COUNT to let Jetty choose).
+		 * @return This builder.
+		 */
+		public Builder selectors(int selectors)
+		{
+			Assert.assertTrue((DEFAULT_COUNT == selectors) || (selectors > 0));
+			_selectors = selectors;
+			return this;
+		}
+
+		/**
+		 * @param acceptQueueSize The backlog of connections waiting to be accepted (0 for the OS default).
+		 * @return This builder.
+		 */
+		public Builder acceptQueueSize(int acceptQueueSize)
+		{
+			Assert.assertTrue(acceptQueueSize >= 0);
+			_acceptQueueSize = acceptQueueSize;
+			return this;
+		}
+
+		/**
+		 * @param idleTimeoutMillis How long a connection can be idle before it is closed.
+		 * @return This builder.
+		 */
+		public Builder idleTimeoutMillis(long idleTimeoutMillis)
+		{
+			Assert.assertTrue(idleTimeoutMillis > 0L);
+			_idleTimeoutMillis = idleTimeoutMillis;
+			return this;
+		}
+
+		/**
+		 * @param outputBufferSize The size of each response's output buffer (responses which fit get a Content-Length
+		 * instead of being chunked).
+		 * @return This builder.
+		 */
+		public Builder outputBufferSize(int outputBufferSize)
+		{
+			Assert.assertTrue(outputBufferSize > 0);
+			_outputBufferSize = outputBufferSize;
+			return this;
+		}
+
+		/**
+		 * @param tcpNoDelay True to disable Nagle's algorithm on accepted connections (ignored for Unix domain sockets).
+		 * @return This builder.
+		 */
+		public Builder tcpNoDelay(boolean tcpNoDelay)
+		{
+			_tcpNoDelay = tcpNoDelay;
+			return this;
+		}
+
+		/**
+		 * @param http2 The HTTP/2 configuration (null if only HTTP/1.1 should be offered).  Unix domain sockets can't
+		 * use TLS.
+		 * @return This builder.
+		 */
+		public Builder http2(Http2Configuration http2)
+		{
+			Assert.assertTrue((null == _socketPath) || (null == http2) || !http2.isSecure());
+			_http2 = http2;
+			return this;
+		}
+
+		/**
+		 * @return The configuration built from the current settings.
+		 */
+		public ConnectorConfiguration build()
+		{
+			return new ConnectorConfiguration(_bindAddress
+					, _socketPath
+					, _acceptors
+					, _selectors
+					, _acceptQueueSize
+					, _idleTimeoutMillis
+					, _outputBufferSize
+					, _tcpNoDelay
+					, _http2
+			);
+		}
+	}
+}
@@ -0,0 +1,374 @@
+package com.jeffdisher.breakwater;
+
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.eclipse.jetty.http.HttpCookie;
+import org.eclipse.jetty.server.Response;
+
+import com.jeffdisher.breakwater.utilities.Assert;
+
+import jakarta.servlet.ServletContext;
+import jakarta.servlet.ServletResponse;
+import jakarta.servlet.ServletResponseWrapper;
+import jakarta.servlet.http.HttpServletResponse;
+import jakarta.servlet.http.HttpSession;
+import jakarta.servlet.http.HttpSessionContext;
+
+
+/**
+ * The HttpSession returned by request.getSession() when the server uses cookie sessions.  Its state lives only in the
+ * request's cookie:  every change re-signs the state and replaces the cookie in the response, so changes must be made
+ * before the response is committed (as with any cookie).
+ * A change which would make the cookie larger than the settings allow (or would add an attribute of a type which can't
+ * be stored in a cookie) is rejected with an exception, leaving the session as it was.
+ * The cookie is written through the response the handler was given (see setResponse()), so a CapturingResponse sees
+ * it:  the capture then isn't shared by the ResponseCache and the cookie is replayed into the real response.
+ */
+class CookieSession implements HttpSession
+{
+	private final CookieSessionCodec _codec;
+	private final ServletContext _context;
+	private final String _path;
+	private final boolean _isSecure;
+	private final boolean _isNew;
+	private final long _creationMillis;
+	private final long _lastAccessedMillis;
+
+	// All the variables below are protected by the monitor on this.
+	private HttpServletResponse _response;
+	private final Map<String, Object> _attributes;
+	private String _id;
+	private int _maxInactiveSeconds;
+	private boolean _isValid;
+
+	/**
+	 * Creates the session for a request.
+	 *
+	 * @param codec The codec for the server's cookie settings.
+	 * @param response The response where the cookie is written (until setResponse() changes it).
+	 * @param context The servlet context of the request.
+	 * @param path The path of the cookie.
+	 * @param isSecure True if the cookie should only be sent over secure connections.
+	 * @param existing The state from the request's cookie, or null to create a new session.
+	 * @param nowMillis The current time.
+	 */
+	public CookieSession(CookieSessionCodec codec, HttpServletResponse response, ServletContext context, String path, boolean isSecure, CookieSessionCodec.State existing, long nowMillis)
+	{
+		_codec = codec;
+		_response = response;
+		_context = context;
+		_path = path;
+		_isSecure = isSecure;
+		_isNew = (null == existing);
+		if (null != existing)
+		{
+			_creationMillis = existing.creationMillis;
+			_lastAccessedMillis = existing.lastAccessedMillis;
+			_attributes = existing.attributes;
+			_id = existing.id;
+			_maxInactiveSeconds = existing.maxInactiveSeconds;
+		}
+		else
+		{
+			_creationMillis = nowMillis;
+			_lastAccessedMillis = nowMillis;
+			_attributes = new HashMap<>();
+			_id = codec.newId();
+			_maxInactiveSeconds = codec.getSettings().maxInactiveSeconds;
+		}
+		_isValid = true;
+	}
+
+	/**
+	 * Writes the session's cookie, if it is new or if it was issued long enough ago that the client would lose it before
+	 * it expires (we refresh at half of the inactive interval, so we don't re-issue it on every request).
+	 *
+	 * @param nowMillis The current time.
+	 */
+	public synchronized void refreshIfNeeded(long nowMillis)
+	{
+		boolean isStale = (_maxInactiveSeconds > 0)
+				&& ((nowMillis - _lastAccessedMillis) > (_maxInactiveSeconds * 500L))
+		;
+		// A refresh is only an optimization so we skip it if the handler already committed the response.
+		if (_isNew || (isStale && !_response.isCommitted()))
+		{
+			_write(_attributes);
+		}
+	}
+
+	/**
+	 * Changes the response where the cookie is written, for when the handler is given a wrapper of the original.
+	 *
+	 * @param response The response the handler is now writing.
+	 */
+	public synchronized void setResponse(HttpServletResponse response)
+	{
+		_response = response;
+	}
+
+	/**
+	 * @return True if the session hasn't been invalidated.
+	 */
+	public synchronized boolean isValid()
+	{
+		return _isValid;
+	}
+
+	/**
+	 * Gives the session a new ID (for HttpServletRequest.changeSessionId()).
+	 *
+	 * @return The new ID.
+	 */
+	public synchronized String changeId()
+	{
+		_checkValid();
+		String oldId = _id;
+		_id = _codec.newId();
+		try
+		{
+			_write(_attributes);
+		}
+		catch (IllegalStateException e)
+		{
+			_id = oldId;
+			throw e;
+		}
+		return _id;
+	}
+
+	@Override
+	public long getCreationTime()
+	{
+		_checkValidSynchronized();
+		return _creationMillis;
+	}
+
+	@Override
+	public synchronized String getId()
+	{
+		return _id;
+	}
+
+	@Override
+	public long getLastAccessedTime()
+	{
+		_checkValidSynchronized();
+		return _lastAccessedMillis;
+	}
+
+	@Override
+	public ServletContext getServletContext()
+	{
+		return _context;
+	}
+
+	@Override
+	public synchronized void setMaxInactiveInterval(int interval)
+	{
+		_checkValid();
+		int oldInterval = _maxInactiveSeconds;
+		// The servlet API uses zero or negative to mean "never expires".
+		_maxInactiveSeconds = Math.max(0, interval);
+		try
+		{
+			_write(_attributes);
+		}
+		catch (IllegalStateException e)
+		{
+			_maxInactiveSeconds = oldInterval;
+			throw e;
+		}
+	}
+
+	@Override
+	public synchronized int getMaxInactiveInterval()
+	{
+		return _maxInactiveSeconds;
+	}
+
+	@Override
+	@Deprecated
+	public HttpSessionContext getSessionContext()
+	{
+		return null;
+	}
+
+	@Override
+	public synchronized Object getAttribute(String name)
+	{
+		_checkValid();
+		return _attributes.get(name);
+	}
+
+	@Override
+	@Deprecated
+	public Object getValue(String name)
+	{
+		return getAttribute(name);
+	}
+
+	@Override
+	public synchronized Enumeration<String> getAttributeNames()
+	{
+		_checkValid();
+		return Collections.enumeration(new HashMap<>(_attributes).keySet());
+	}
+
+	@Override
+	@Deprecated
+	public synchronized String[] getValueNames()
+	{
+		_checkValid();
+		return _attributes.keySet().toArray(new String[_attributes.size()]);
+	}
+
+	@Override
+	public synchronized void setAttribute(String name, Object value)
+	{
+		_checkValid();
+		if (null == value)
+		{
+			removeAttribute(name);
+		}
+		else
+		{
+			if (!CookieSessionCodec.isSupported(value))
+			{
+				throw new IllegalArgumentException("Cookie sessions can't store attributes of type " + value.getClass().getName());
+			}
+			Map<String, Object> updated = new HashMap<>(_attributes);
+			updated.put(name, value);
+			// Each character is at least one byte, once encoded, so we can reject this before serializing something huge.
+			if (_minimumEncodedBytes(updated) > _codec.getSettings().maxCookieBytes)
+			{
+				throw new IllegalStateException("Session attribute too large for the cookie: " + name);
+			}
+			_write(updated);
+			_attributes.put(name, value);
+		}
+	}
+
+	@Override
+	@Deprecated
+	public void putValue(String name, Object value)
+	{
+		setAttribute(name, value);
+	}
+
+	@Override
+	public synchronized void removeAttribute(String name)
+	{
+		_checkValid();
+		if (_attributes.containsKey(name))
+		{
+			Map<String, Object> updated = new HashMap<>(_attributes);
+			updated.remove(name);
+			_write(updated);
+			_attributes.remove(name);
+		}
+	}
+
+	@Override
+	@Deprecated
+	public void removeValue(String name)
+	{
+		removeAttribute(name);
+	}
+
+	@Override
+	public synchronized void invalidate()
+	{
+		_checkValid();
+		_isValid = false;
+		_attributes.clear();
+		// An expired, empty cookie tells the client to delete it.
+		_replaceCookie("", 0L);
+	}
+
+	@Override
+	public boolean isNew()
+	{
+		_checkValidSynchronized();
+		return _isNew;
+	}
+
+
+	private void _checkValidSynchronized()
+	{
+		synchronized (this)
+		{
+			_checkValid();
+		}
+	}
+
+	private void _checkValid()
+	{
+		if (!_isValid)
+		{
+			throw new IllegalStateException("Session invalidated");
+		}
+	}
+
+	private static long _minimumEncodedBytes(Map<String, Object> attributes)
+	{
+		long total = 0L;
+		for (Map.Entry<String, Object> entry : attributes.entrySet())
+		{
+			total += entry.getKey().length();
+			if (entry.getValue() instanceof String)
+			{
+				total += ((String)entry.getValue()).length();
+			}
+		}
+		return total;
+	}
+
+	// Must be called with the monitor held.
+	private void _write(Map<String, Object> attributes)
+	{
+		long nowMillis = System.currentTimeMillis();
+		String value = _codec.encode(new CookieSessionCodec.State(_id, _creationMillis, nowMillis, _maxInactiveSeconds, attributes));
+		CookieSessionSettings settings = _codec.getSettings();
+		if ((settings.cookieName.length() + 1 + value.length()) > settings.maxCookieBytes)
+		{
+			throw new IllegalStateException("Session too large for the cookie (" + value.length() + " bytes)");
+		}
+		long maxAgeSeconds = (_maxInactiveSeconds > 0)
+				? _maxInactiveSeconds
+				: -1L
+		;
+		_replaceCookie(value, maxAgeSeconds);
+	}
+
+	private void _replaceCookie(String value, long maxAgeSeconds)
+	{
+		// Headers set after this point would be silently dropped.
+		if (_response.isCommitted())
+		{
+			throw new IllegalStateException("Session changed after the response was committed");
+		}
+		HttpCookie cookie = new HttpCookie(_codec.getSettings().cookieName, value, null, _path, maxAgeSeconds, true, _isSecure, null, 0, HttpCookie.SameSite.LAX);
+		// Other wrappers pass headers through, so we write to the capture, if there is one which is still capturing, or to
+		// Jetty's own response (the only one which can replace a cookie already written by this request).
+		CapturingResponse capture = CapturingResponse.find(_response);
+		if ((null != capture) && !capture.isPassedThrough())
+		{
+			capture.replaceCookie(cookie);
+		}
+		else
+		{
+			ServletResponse base = _response;
+			while (base instanceof ServletResponseWrapper)
+			{
+				base = ((ServletResponseWrapper)base).getResponse();
+			}
+			// The servlet is always given Jetty's response, under any of our wrappers.
+			Assert.assertTrue(base instanceof Response);
+			((Response)base).replaceCookie(cookie);
+		}
+	}
+}
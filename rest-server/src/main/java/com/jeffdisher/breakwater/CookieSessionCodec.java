@@ -0,0 +1,393 @@
+package com.jeffdisher.breakwater;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import com.jeffdisher.breakwater.utilities.Assert;
+
+
+/**
+ * Converts the state of a CookieSession to and from a cookie value:  "<key id>.<payload>.<signature>", where the
+ * payload is the serialized state (encrypted with AES-GCM, if enabled) and the signature is the HMAC-SHA256 of
+ * everything before it, both base64url encoded.
+ * Attributes are written with a tag for their type, rather than with Java serialization, so decoding a cookie can never
+ * construct arbitrary objects (and the signature is checked before anything is decoded, anyway).  Only String,
+ * Integer, Long, Boolean, and Double values are supported.
+ */
+class CookieSessionCodec
+{
+	private static final String MAC_ALGORITHM = "HmacSHA256";
+	private static final String CIPHER_ALGORITHM = "AES/GCM/NoPadding";
+	private static final int IV_BYTES = 12;
+	private static final int TAG_BITS = 128;
+	private static final int ID_BYTES = 16;
+
+	private static final byte TYPE_STRING = 'S';
+	private static final byte TYPE_INTEGER = 'I';
+	private static final byte TYPE_LONG = 'J';
+	private static final byte TYPE_BOOLEAN = 'Z';
+	private static final byte TYPE_DOUBLE = 'D';
+
+	/**
+	 * @param value An attribute value.
+	 * @return True if the value can be stored in a cookie session.
+	 */
+	public static boolean isSupported(Object value)
+	{
+		return (value instanceof String)
+				|| (value instanceof Integer)
+				|| (value instanceof Long)
+				|| (value instanceof Boolean)
+				|| (value instanceof Double)
+		;
+	}
+
+	private final CookieSessionSettings _settings;
+	private final DerivedKey _currentKey;
+	private final Map<String, DerivedKey> _keys;
+	private final SecureRandom _random;
+
+	public CookieSessionCodec(CookieSessionSettings settings)
+	{
+		_settings = settings;
+		_currentKey = new DerivedKey(settings.currentKey);
+		_keys = new HashMap<>();
+		_keys.put(_currentKey.id, _currentKey);
+		for (CookieSessionSettings.Key key : settings.previousKeys)
+		{
+			_keys.put(key.id, new DerivedKey(key));
+		}
+		_random = new SecureRandom();
+	}
+
+	public CookieSessionSettings getSettings()
+	{
+		return _settings;
+	}
+
+	/**
+	 * @return A new random session ID.
+	 */
+	public String newId()
+	{
+		byte[] raw = new byte[ID_BYTES];
+		_random.nextBytes(raw);
+		return Base64.getUrlEncoder().withoutPadding().encodeToString(raw);
+	}
+
+	/**
+	 * Encodes the state, signed with the current key.
+	 *
+	 * @param state The session state.
+	 * @return The cookie value.
+	 */
+	public String encode(State state)
+	{
+		byte[] serialized = _serialize(state);
+		byte[] payload = _settings.encrypt
+				? _encrypt(_currentKey, serialized)
+				: serialized
+		;
+		String signed = _currentKey.id + "." + Base64.getUrlEncoder().withoutPadding().encodeToString(payload);
+		return signed + "." + Base64.getUrlEncoder().withoutPadding().encodeToString(_sign(_currentKey, signed));
+	}
+
+	/**
+	 * Decodes a cookie value, checking its signature and expiry.
+	 *
+	 * @param value The cookie value.
+	 * @param nowMillis The current time.
+	 * @return The session state, or null if the cookie is malformed, forged, signed with an unknown key, or expired.
+	 */
+	public State decode(String value, long nowMillis)
+	{
+		State state = null;
+		String[] parts = value.split("\\.", -1);
+		DerivedKey key = (3 == parts.length)
+				? _keys.get(parts[0])
+				: null
+		;
+		if (null != key)
+		{
+			try
+			{
+				byte[] payload = Base64.getUrlDecoder().decode(parts[1]);
+				byte[] signature = Base64.getUrlDecoder().decode(parts[2]);
+				byte[] expected = _sign(key, parts[0] + "." + parts[1]);
+				if (MessageDigest.isEqual(expected, signature))
+				{
+					byte[] serialized = _settings.encrypt
+							? _decrypt(key, payload)
+							: payload
+					;
+					State decoded = (null != serialized)
+							? _deserialize(serialized)
+							: null
+					;
+					boolean isExpired = (null != decoded)
+							&& (decoded.maxInactiveSeconds > 0)
+							&& ((nowMillis - decoded.lastAccessedMillis) > (decoded.maxInactiveSeconds * 1000L))
+					;
+					if (!isExpired)
+					{
+						state = decoded;
+					}
+				}
+			}
+			catch (IllegalArgumentException e)
+			{
+				// Not valid base64 so not one of ours.
+			}
+		}
+		return state;
+	}
+
+
+	private byte[] _sign(DerivedKey key, String signed)
+	{
+		try
+		{
+			Mac mac = Mac.getInstance(MAC_ALGORITHM);
+			mac.init(key.macKey);
+			return mac.doFinal(signed.getBytes(StandardCharsets.US_ASCII));
+		}
+		catch (GeneralSecurityException e)
+		{
+			// HMAC-SHA256 is required to exist in every JRE.
+			throw Assert.unexpected(e);
+		}
+	}
+
+	private byte[] _encrypt(DerivedKey key, byte[] plain)
+	{
+		byte[] iv = new byte[IV_BYTES];
+		_random.nextBytes(iv);
+		try
+		{
+			Cipher cipher = Cipher.getInstance(CIPHER_ALGORITHM);
+			cipher.init(Cipher.ENCRYPT_MODE, key.encryptionKey, new GCMParameterSpec(TAG_BITS, iv));
+			byte[] encrypted = cipher.doFinal(plain);
+			byte[] payload = Arrays.copyOf(iv, IV_BYTES + encrypted.length);
+			System.arraycopy(encrypted, 0, payload, IV_BYTES, encrypted.length);
+			return payload;
+		}
+		catch (GeneralSecurityException e)
+		{
+			// AES-GCM is required to exist in every JRE.
+			throw Assert.unexpected(e);
+		}
+	}
+
+	private byte[] _decrypt(DerivedKey key, byte[] payload)
+	{
+		byte[] plain = null;
+		if (payload.length > IV_BYTES)
+		{
+			try
+			{
+				Cipher cipher = Cipher.getInstance(CIPHER_ALGORITHM);
+				cipher.init(Cipher.DECRYPT_MODE, key.encryptionKey, new GCMParameterSpec(TAG_BITS, payload, 0, IV_BYTES));
+				plain = cipher.doFinal(payload, IV_BYTES, payload.length - IV_BYTES);
+			}
+			catch (GeneralSecurityException e)
+			{
+				// The signature matched so this can only happen if the encryption setting changed.
+				plain = null;
+			}
+		}
+		return plain;
+	}
+
+	private static byte[] _serialize(State state)
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (DataOutputStream out = new DataOutputStream(bytes))
+		{
+			_writeString(out, state.id);
+			out.writeLong(state.creationMillis);
+			out.writeLong(state.lastAccessedMillis);
+			out.writeInt(state.maxInactiveSeconds);
+			out.writeInt(state.attributes.size());
+			for (Map.Entry<String, Object> entry : state.attributes.entrySet())
+			{
+				_writeString(out, entry.getKey());
+				Object value = entry.getValue();
+				if (value instanceof String)
+				{
+					out.writeByte(TYPE_STRING);
+					_writeString(out, (String)value);
+				}
+				else if (value instanceof Integer)
+				{
+					out.writeByte(TYPE_INTEGER);
+					out.writeInt((Integer)value);
+				}
+				else if (value instanceof Long)
+				{
+					out.writeByte(TYPE_LONG);
+					out.writeLong((Long)value);
+				}
+				else if (value instanceof Boolean)
+				{
+					out.writeByte(TYPE_BOOLEAN);
+					out.writeBoolean((Boolean)value);
+				}
+				else if (value instanceof Double)
+				{
+					out.writeByte(TYPE_DOUBLE);
+					out.writeDouble((Double)value);
+				}
+				else
+				{
+					// CookieSession checks this when the attribute is set.
+					Assert.assertTrue(false);
+				}
+			}
+		}
+		catch (IOException e)
+		{
+			// We are writing to memory.
+			throw Assert.unexpected(e);
+		}
+		return bytes.toByteArray();
+	}
+
+	private static State _deserialize(byte[] serialized)
+	{
+		State state;
+		try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(serialized)))
+		{
+			String id = _readString(in);
+			long creationMillis = in.readLong();
+			long lastAccessedMillis = in.readLong();
+			int maxInactiveSeconds = in.readInt();
+			int count = in.readInt();
+			Map<String, Object> attributes = new HashMap<>();
+			for (int i = 0; i < count; ++i)
+			{
+				String name = _readString(in);
+				byte type = in.readByte();
+				Object value;
+				switch (type)
+				{
+				case TYPE_STRING:
+					value = _readString(in);
+					break;
+				case TYPE_INTEGER:
+					value = in.readInt();
+					break;
+				case TYPE_LONG:
+					value = in.readLong();
+					break;
+				case TYPE_BOOLEAN:
+					value = in.readBoolean();
+					break;
+				case TYPE_DOUBLE:
+					value = in.readDouble();
+					break;
+				default:
+					throw new IOException("Unknown attribute type: " + type);
+				}
+				attributes.put(name, value);
+			}
+			state = new State(id, creationMillis, lastAccessedMillis, maxInactiveSeconds, attributes);
+		}
+		catch (IOException e)
+		{
+			// This was signed by us so it can only be malformed if it came from an incompatible version.
+			state = null;
+		}
+		return state;
+	}
+
+	// DataOutputStream.writeUTF() is limited to 65535 bytes (and uses modified UTF-8) so we write the length and bytes.
+	private static void _writeString(DataOutputStream out, String value) throws IOException
+	{
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String _readString(DataInputStream in) throws IOException
+	{
+		int length = in.readInt();
+		// We read from memory so available() is the rest of the payload.
+		if ((length < 0) || (length > in.available()))
+		{
+			throw new IOException("Invalid string length: " + length);
+		}
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+
+	/**
+	 * The state of a session, as stored in its cookie.
+	 */
+	public static class State
+	{
+		public final String id;
+		public final long creationMillis;
+		public final long lastAccessedMillis;
+		public final int maxInactiveSeconds;
+		public final Map<String, Object> attributes;
+
+		public State(String id, long creationMillis, long lastAccessedMillis, int maxInactiveSeconds, Map<String, Object> attributes)
+		{
+			this.id = id;
+			this.creationMillis = creationMillis;
+			this.lastAccessedMillis = lastAccessedMillis;
+			this.maxInactiveSeconds = maxInactiveSeconds;
+			this.attributes = attributes;
+		}
+	}
+
+
+	// The keys derived from a secret, so the same secret is never used for both signing and encryption.
+	private static class DerivedKey
+	{
+		public final String id;
+		public final SecretKeySpec macKey;
+		public final SecretKeySpec encryptionKey;
+
+		public DerivedKey(CookieSessionSettings.Key key)
+		{
+			this.id = key.id;
+			byte[] secret = key.getSecret();
+			this.macKey = new SecretKeySpec(_derive(secret, "breakwater-cookie-mac"), MAC_ALGORITHM);
+			this.encryptionKey = new SecretKeySpec(Arrays.copyOf(_derive(secret, "breakwater-cookie-encrypt"), 16), "AES");
+		}
+
+		private static byte[] _derive(byte[] secret, String purpose)
+		{
+			try
+			{
+				Mac mac = Mac.getInstance(MAC_ALGORITHM);
+				mac.init(new SecretKeySpec(secret, MAC_ALGORITHM));
+				return mac.doFinal(purpose.getBytes(StandardCharsets.US_ASCII));
+			}
+			catch (GeneralSecurityException e)
+			{
+				// HMAC-SHA256 is required to exist in every JRE.
+				throw Assert.unexpected(e);
+			}
+		}
+	}
+}
@@ -0,0 +1,174 @@
+package com.jeffdisher.breakwater;
+
+import jakarta.servlet.ServletRequest;
+import jakarta.servlet.ServletRequestWrapper;
+import jakarta.servlet.http.Cookie;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletRequestWrapper;
+import jakarta.servlet.http.HttpServletResponse;
+import jakarta.servlet.http.HttpSession;
+
+
+/**
+ * The request wrapper used when the server uses cookie sessions, so that handlers get a CookieSession from the usual
+ * getSession() calls.  The cookie is only decoded (and its signature checked) the first time the session is requested.
+ */
+class CookieSessionRequest extends HttpServletRequestWrapper
+{
+	/**
+	 * Changes the response where the session cookie of the request is written, if the request uses cookie sessions.
+	 * This must be called when a handler is given a wrapper which doesn't pass headers through to the original
+	 * response (a CapturingResponse).
+	 *
+	 * @param request The request, possibly wrapping a CookieSessionRequest.
+	 * @param response The response the handler will write.
+	 * @return The response previously used (to restore once the handler returns), or null if the request doesn't use
+	 * cookie sessions.
+	 */
+	public static HttpServletResponse bindResponse(HttpServletRequest request, HttpServletResponse response)
+	{
+		ServletRequest current = request;
+		while (!(current instanceof CookieSessionRequest) && (current instanceof ServletRequestWrapper))
+		{
+			current = ((ServletRequestWrapper)current).getRequest();
+		}
+		return (current instanceof CookieSessionRequest)
+				? ((CookieSessionRequest)current)._setResponse(response)
+				: null
+		;
+	}
+
+	private final CookieSessionCodec _codec;
+
+	// All the variables below are protected by the monitor on this.
+	private HttpServletResponse _response;
+	private boolean _isLoaded;
+	private CookieSession _session;
+
+	public CookieSessionRequest(HttpServletRequest request, HttpServletResponse response, CookieSessionCodec codec)
+	{
+		super(request);
+		_codec = codec;
+		_response = response;
+	}
+
+	@Override
+	public HttpSession getSession()
+	{
+		return getSession(true);
+	}
+
+	@Override
+	public synchronized HttpSession getSession(boolean create)
+	{
+		long nowMillis = System.currentTimeMillis();
+		if (!_isLoaded)
+		{
+			_isLoaded = true;
+			CookieSessionCodec.State state = _findState(nowMillis);
+			if (null != state)
+			{
+				_session = _newSession(state, nowMillis);
+			}
+		}
+		if ((null != _session) && !_session.isValid())
+		{
+			_session = null;
+		}
+		if ((null == _session) && create)
+		{
+			_session = _newSession(null, nowMillis);
+		}
+		// A response built from session state is only for this client, even if the cookie didn't change.
+		CapturingResponse capture = (null != _session)
+				? CapturingResponse.find(_response)
+				: null
+		;
+		if (null != capture)
+		{
+			capture.markPrivate();
+		}
+		return _session;
+	}
+
+	@Override
+	public String changeSessionId()
+	{
+		CookieSession session = (CookieSession)getSession(false);
+		if (null == session)
+		{
+			throw new IllegalStateException("No session");
+		}
+		return session.changeId();
+	}
+
+	@Override
+	public String getRequestedSessionId()
+	{
+		HttpSession session = getSession(false);
+		return ((null != session) && !session.isNew())
+				? session.getId()
+				: null
+		;
+	}
+
+	@Override
+	public boolean isRequestedSessionIdValid()
+	{
+		return (null != getRequestedSessionId());
+	}
+
+	@Override
+	public boolean isRequestedSessionIdFromCookie()
+	{
+		return isRequestedSessionIdValid();
+	}
+
+	@Override
+	public boolean isRequestedSessionIdFromURL()
+	{
+		return false;
+	}
+
+
+	private synchronized HttpServletResponse _setResponse(HttpServletResponse response)
+	{
+		HttpServletResponse previous = _response;
+		_response = response;
+		if (null != _session)
+		{
+			_session.setResponse(response);
+		}
+		return previous;
+	}
+
+	private CookieSessionCodec.State _findState(long nowMillis)
+	{
+		CookieSessionCodec.State state = null;
+		Cookie[] cookies = getCookies();
+		if (null != cookies)
+		{
+			String name = _codec.getSettings().cookieName;
+			// A client can send several cookies with the same name (from different paths) so we take the first which is valid.
+			for (int i = 0; (null == state) && (i < cookies.length); ++i)
+			{
+				if (name.equals(cookies[i].getName()))
+				{
+					state = _codec.decode(cookies[i].getValue(), nowMillis);
+				}
+			}
+		}
+		return state;
+	}
+
+	private CookieSession _newSession(CookieSessionCodec.State state, long nowMillis)
+	{
+		String path = getContextPath().isEmpty()
+				? "/"
+				: getContextPath()
+		;
+		CookieSession session = new CookieSession(_codec, _response, getServletContext(), path, isSecure(), state, nowMillis);
+		session.refreshIfNeeded(nowMillis);
+		return session;
+	}
+}
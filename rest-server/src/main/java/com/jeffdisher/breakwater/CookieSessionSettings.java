@@ -0,0 +1,185 @@
+package com.jeffdisher.breakwater;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.jeffdisher.breakwater.utilities.Assert;
+
+
+/**
+ * The settings of stateless cookie sessions, passed to RestServer.setCookieSessions().  The session's attributes are
+ * kept in a cookie, signed with HMAC-SHA256 (and optionally encrypted with AES-GCM), so any server with the same keys
+ * can serve any request and nothing is held in memory between requests.
+ * Instances are created with the Builder returned by builder(), which takes the key used to sign new cookies.  Keys
+ * can be rotated by making the old key a previous key of the new settings:  cookies signed with it are still accepted
+ * and are re-signed with the new key the next time they are written.  By default, the cookie is named "BWSESSION", is
+ * limited to 4000 bytes, is only signed (the attributes are readable by the client), and expires after 30 minutes
+ * without a request.
+ */
+public class CookieSessionSettings
+{
+	/**
+	 * The smallest secret we accept for a key.
+	 */
+	public static final int MIN_SECRET_BYTES = 32;
+	/**
+	 * The largest cookie we allow.  Jetty (like most servers) rejects request headers over 8 KiB so a larger cookie
+	 * could never be sent back.
+	 */
+	public static final int MAX_COOKIE_BYTES = 8 * 1024;
+
+	/**
+	 * @param keyId The name of the key, written in each cookie so we know which key to check it with (letters and
+	 * digits only).
+	 * @param secret The secret the signing and encryption keys are derived from (at least MIN_SECRET_BYTES).
+	 * @return A new builder, starting from the default settings.
+	 */
+	public static Builder builder(String keyId, byte[] secret)
+	{
+		return new Builder(new Key(keyId, secret));
+	}
+
+	public final String cookieName;
+	public final int maxCookieBytes;
+	public final boolean encrypt;
+	public final int maxInactiveSeconds;
+	public final Key currentKey;
+	public final List<Key> previousKeys;
+
+	private CookieSessionSettings(String cookieName
+			, int maxCookieBytes
+			, boolean encrypt
+			, int maxInactiveSeconds
+			, Key currentKey
+			, List<Key> previousKeys
+	)
+	{
+		this.cookieName = cookieName;
+		this.maxCookieBytes = maxCookieBytes;
+		this.encrypt = encrypt;
+		this.maxInactiveSeconds = maxInactiveSeconds;
+		this.currentKey = currentKey;
+		this.previousKeys = previousKeys;
+	}
+
+
+	/**
+	 * A named secret.
+	 */
+	public static class Key
+	{
+		public final String id;
+		private final byte[] _secret;
+
+		private Key(String id, byte[] secret)
+		{
+			Assert.assertTrue((null != id) && !id.isEmpty() && id.chars().allMatch((int c) -> Character.isLetterOrDigit(c) && (c < 0x80)));
+			Assert.assertTrue((null != secret) && (secret.length >= MIN_SECRET_BYTES));
+			this.id = id;
+			_secret = secret.clone();
+		}
+
+		byte[] getSecret()
+		{
+			return _secret.clone();
+		}
+	}
+
+
+	/**
+	 * Accumulates the settings of a CookieSessionSettings.  Each setter returns the builder, for chaining.
+	 */
+	public static class Builder
+	{
+		private final Key _currentKey;
+		private final List<Key> _previousKeys;
+		private String _cookieName;
+		private int _maxCookieBytes;
+		private boolean _encrypt;
+		private int _maxInactiveSeconds;
+
+		private Builder(Key currentKey)
+		{
+			_currentKey = currentKey;
+			_previousKeys = new ArrayList<>();
+			_cookieName = "BWSESSION";
+			_maxCookieBytes = 4000;
+			_encrypt = false;
+			_maxInactiveSeconds = 30 * 60;
+		}
+
+		/**
+		 * @param keyId The name the key was given when it was the current key.
+		 * @param secret The key's secret.
+		 * @return This builder.
+		 */
+		public Builder previousKey(String keyId, byte[] secret)
+		{
+			Key key = new Key(keyId, secret);
+			Assert.assertTrue(!key.id.equals(_currentKey.id));
+			_previousKeys.add(key);
+			return this;
+		}
+
+		/**
+		 * @param cookieName The name of the session cookie.
+		 * @return This builder.
+		 */
+		public Builder cookieName(String cookieName)
+		{
+			Assert.assertTrue((null != cookieName) && !cookieName.isEmpty());
+			_cookieName = cookieName;
+			return this;
+		}
+
+		/**
+		 * @param maxCookieBytes The largest the cookie (name and value) can be, at most MAX_COOKIE_BYTES.  Browsers
+		 * commonly drop cookies over 4096 bytes.  Changes which would exceed this are rejected with
+		 * IllegalStateException.
+		 * @return This builder.
+		 */
+		public Builder maxCookieBytes(int maxCookieBytes)
+		{
+			Assert.assertTrue((maxCookieBytes > 0) && (maxCookieBytes <= MAX_COOKIE_BYTES));
+			_maxCookieBytes = maxCookieBytes;
+			return this;
+		}
+
+		/**
+		 * @param encrypt True to encrypt the attributes, so the client can't read them (changing this invalidates
+		 * existing cookies).
+		 * @return This builder.
+		 */
+		public Builder encrypt(boolean encrypt)
+		{
+			_encrypt = encrypt;
+			return this;
+		}
+
+		/**
+		 * @param maxInactiveSeconds How long a session can go without a request before it expires (0 to never expire).
+		 * @return This builder.
+		 */
+		public Builder maxInactiveSeconds(int maxInactiveSeconds)
+		{
+			Assert.assertTrue(maxInactiveSeconds >= 0);
+			_maxInactiveSeconds = maxInactiveSeconds;
+			return this;
+		}
+
+		/**
+		 * @return The settings.
+		 */
+		public CookieSessionSettings build()
+		{
+			return new CookieSessionSettings(_cookieName
+					, _maxCookieBytes
+					, _encrypt
+					, _maxInactiveSeconds
+					, _currentKey
+					, Collections.unmodifiableList(new ArrayList<>(_previousKeys))
+			);
+		}
+	}
+}
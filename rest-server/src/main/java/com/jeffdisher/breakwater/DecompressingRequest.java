@@ -0,0 +1,632 @@
+package com.jeffdisher.breakwater;
+
+import java.io.BufferedReader;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.Locale;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
+
+import org.eclipse.jetty.http.GZIPContentDecoder;
+
+import jakarta.servlet.ReadListener;
+import jakarta.servlet.ServletInputStream;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletRequestWrapper;
+
+
+/**
+ * The request wrapper used when a client sends a request body with a "Content-Encoding" we know how to inflate.
+ * The body is inflated as a stream, as the handler reads it, so it never needs to be held in memory.  Since a small
+ * compressed body can inflate to something enormous, the decompressed size is limited and exceeding it causes the
+ * stream to throw LimitExceededException.  A body which isn't validly encoded causes it to throw MalformedBodyException.
+ * To the handler, the request looks like it was sent without any encoding and with an unknown length.
+ * A handler using asynchronous reads (setting a ReadListener) is notified as the compressed body arrives and only reads
+ * what could be inflated from it so far, so it never blocks.  The listener must be set before the first read.
+ */
+class DecompressingRequest extends HttpServletRequestWrapper
+{
+	private static final int INFLATE_BUFFER_SIZE = 8 * 1024;
+
+	/**
+	 * Checks the "Content-Encoding" of the request to see how its body must be decoded.
+	 *
+	 * @param request The request.
+	 * @param maxDecompressedBytes The maximum number of bytes the body may inflate to.
+	 * @return The request itself, if it has no encoding, a DecompressingRequest wrapping it if the encoding is
+	 * supported, or null if the encoding is not supported.
+	 */
+	public static HttpServletRequest wrapIfEncoded(HttpServletRequest request, long maxDecompressedBytes)
+	{
+		String encoding = request.getHeader("Content-Encoding");
+		HttpServletRequest result;
+		if (null == encoding)
+		{
+			result = request;
+		}
+		else
+		{
+			String normalized = encoding.trim().toLowerCase(Locale.ROOT);
+			if ("identity".equals(normalized) || normalized.isEmpty())
+			{
+				result = request;
+			}
+			else if ("gzip".equals(normalized) || "x-gzip".equals(normalized))
+			{
+				result = new DecompressingRequest(request, true, maxDecompressedBytes);
+			}
+			else if ("deflate".equals(normalized))
+			{
+				result = new DecompressingRequest(request, false, maxDecompressedBytes);
+			}
+			else
+			{
+				// This includes stacked encodings, which we don't try to handle.
+				result = null;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Checks if the given exception was caused by a body exceeding its decompressed size limit.  This walks the cause
+	 * chain since parsers (like the multi-part parser) may wrap the exception from the stream.
+	 *
+	 * @param t The exception.
+	 * @return True if this was caused by LimitExceededException.
+	 */
+	public static boolean isLimitExceeded(Throwable t)
+	{
+		return _isCausedBy(t, LimitExceededException.class);
+	}
+
+	/**
+	 * Checks if the given exception was caused by a body which couldn't be decoded (a corrupt or truncated stream).
+	 * Like isLimitExceeded(), this walks the cause chain.
+	 *
+	 * @param t The exception.
+	 * @return True if this was caused by MalformedBodyException.
+	 */
+	public static boolean isMalformed(Throwable t)
+	{
+		return _isCausedBy(t, MalformedBodyException.class);
+	}
+
+
+	private final boolean _isGzip;
+	private final long _maxDecompressedBytes;
+	private InflatingStream _stream;
+	private BufferedReader _reader;
+
+	private DecompressingRequest(HttpServletRequest request, boolean isGzip, long maxDecompressedBytes)
+	{
+		super(request);
+		_isGzip = isGzip;
+		_maxDecompressedBytes = maxDecompressedBytes;
+	}
+
+	@Override
+	public ServletInputStream getInputStream() throws IOException
+	{
+		if (null != _reader)
+		{
+			throw new IllegalStateException("getReader() already called");
+		}
+		if (null == _stream)
+		{
+			_stream = new InflatingStream(super.getInputStream(), _isGzip, _maxDecompressedBytes);
+		}
+		return _stream;
+	}
+
+	@Override
+	public BufferedReader getReader() throws IOException
+	{
+		if (null == _reader)
+		{
+			if (null != _stream)
+			{
+				throw new IllegalStateException("getInputStream() already called");
+			}
+			String charset = getCharacterEncoding();
+			InputStream stream = getInputStream();
+			_reader = new BufferedReader((null != charset)
+					? new InputStreamReader(stream, charset)
+					: new InputStreamReader(stream, StandardCharsets.ISO_8859_1)
+			);
+		}
+		return _reader;
+	}
+
+	@Override
+	public int getContentLength()
+	{
+		return -1;
+	}
+
+	@Override
+	public long getContentLengthLong()
+	{
+		return -1L;
+	}
+
+	@Override
+	public String getHeader(String name)
+	{
+		return _isHiddenHeader(name)
+				? null
+				: super.getHeader(name)
+		;
+	}
+
+	@Override
+	public Enumeration<String> getHeaders(String name)
+	{
+		return _isHiddenHeader(name)
+				? Collections.emptyEnumeration()
+				: super.getHeaders(name)
+		;
+	}
+
+	@Override
+	public int getIntHeader(String name)
+	{
+		return _isHiddenHeader(name)
+				? -1
+				: super.getIntHeader(name)
+		;
+	}
+
+
+	private static boolean _isCausedBy(Throwable t, Class<? extends Throwable> type)
+	{
+		boolean found = false;
+		while ((null != t) && !found)
+		{
+			found = type.isInstance(t);
+			t = t.getCause();
+		}
+		return found;
+	}
+
+	private static boolean _isHiddenHeader(String name)
+	{
+		// Once we inflate the body, neither the encoding nor the length of the encoded body are meaningful.
+		return "Content-Encoding".equalsIgnoreCase(name) || "Content-Length".equalsIgnoreCase(name);
+	}
+
+
+	/**
+	 * Thrown by the stream when the body inflates past the configured limit.
+	 */
+	static class LimitExceededException extends IOException
+	{
+		private static final long serialVersionUID = 1L;
+		public LimitExceededException(long limit)
+		{
+			super("Decompressed request body exceeds " + limit + " bytes");
+		}
+	}
+
+
+	/**
+	 * Thrown by the stream when the body isn't valid for its encoding.
+	 */
+	static class MalformedBodyException extends IOException
+	{
+		private static final long serialVersionUID = 1L;
+		public MalformedBodyException(IOException cause)
+		{
+			super("Malformed compressed request body", cause);
+		}
+	}
+
+
+	private static class DeflateStream extends InflaterInputStream
+	{
+		public DeflateStream(InputStream raw, Inflater inflater, int size)
+		{
+			super(raw, inflater, size);
+		}
+		@Override
+		public void close() throws IOException
+		{
+			// InflaterInputStream only ends the Inflater it creates itself.
+			super.close();
+			this.inf.end();
+		}
+	}
+
+
+	/**
+	 * Inflates a body as its compressed bytes are handed to it, for asynchronous reads (the blocking streams pull from
+	 * the body themselves).
+	 */
+	private static abstract class AsyncDecoder
+	{
+		/**
+		 * Inflates some of the given compressed bytes, advancing its position past whatever was consumed.
+		 *
+		 * @param compressed The compressed bytes.
+		 * @return The inflated bytes (possibly empty), valid until the next call.
+		 * @throws MalformedBodyException The bytes aren't valid for the encoding.
+		 */
+		public abstract ByteBuffer decode(ByteBuffer compressed) throws MalformedBodyException;
+		/**
+		 * @return True if the decoder has seen the entire encoded stream.
+		 */
+		public abstract boolean isComplete();
+		/**
+		 * Releases the inflater.
+		 */
+		public abstract void end();
+	}
+
+
+	private static class GzipDecoder extends AsyncDecoder
+	{
+		private final ChunkDecoder _decoder = new ChunkDecoder();
+		private boolean _isStarted;
+
+		@Override
+		public ByteBuffer decode(ByteBuffer compressed) throws MalformedBodyException
+		{
+			_isStarted = true;
+			_decoder.chunk = null;
+			try
+			{
+				_decoder.decode(compressed);
+			}
+			catch (RuntimeException e)
+			{
+				// Jetty's decoder reports a bad stream by wrapping the ZipException.
+				if (e.getCause() instanceof ZipException)
+				{
+					throw new MalformedBodyException((ZipException)e.getCause());
+				}
+				throw e;
+			}
+			return (null != _decoder.chunk)
+					? _decoder.chunk
+					: ByteBuffer.allocate(0)
+			;
+		}
+		@Override
+		public boolean isComplete()
+		{
+			// The decoder only reports "finished" between members so an empty body isn't complete.
+			return _isStarted && _decoder.isFinished();
+		}
+		@Override
+		public void end()
+		{
+			_decoder.destroy();
+		}
+
+		private static class ChunkDecoder extends GZIPContentDecoder
+		{
+			public ByteBuffer chunk;
+			public ChunkDecoder()
+			{
+				super(INFLATE_BUFFER_SIZE);
+			}
+			@Override
+			protected boolean decodedChunk(ByteBuffer chunk)
+			{
+				// We stop at each chunk, instead of letting the decoder accumulate them, so that the limit can be
+				// enforced before the rest of the body is inflated.
+				this.chunk = chunk;
+				return true;
+			}
+		}
+	}
+
+
+	private static class DeflateDecoder extends AsyncDecoder
+	{
+		private final Inflater _inflater = new Inflater();
+		private final byte[] _output = new byte[INFLATE_BUFFER_SIZE];
+
+		@Override
+		public ByteBuffer decode(ByteBuffer compressed) throws MalformedBodyException
+		{
+			int didInflate = 0;
+			if (_inflater.finished())
+			{
+				// Like InflaterInputStream, we ignore anything after the end of the stream.
+				compressed.position(compressed.limit());
+			}
+			else
+			{
+				_inflater.setInput(compressed);
+				try
+				{
+					didInflate = _inflater.inflate(_output);
+				}
+				catch (DataFormatException e)
+				{
+					throw new MalformedBodyException(new ZipException(e.getMessage()));
+				}
+				if (_inflater.needsDictionary())
+				{
+					throw new MalformedBodyException(new ZipException("Deflate dictionaries are not supported"));
+				}
+			}
+			return ByteBuffer.wrap(_output, 0, didInflate);
+		}
+		@Override
+		public boolean isComplete()
+		{
+			return _inflater.finished();
+		}
+		@Override
+		public void end()
+		{
+			_inflater.end();
+		}
+	}
+
+
+	private static class InflatingStream extends ServletInputStream
+	{
+		private final ServletInputStream _raw;
+		private final boolean _isGzip;
+		private final long _limit;
+		private long _total;
+		private boolean _finished;
+
+		// Created by the first blocking read.
+		private InputStream _inflater;
+
+		// These are only used once a ReadListener is set.
+		private AsyncDecoder _decoder;
+		private byte[] _rawBuffer;
+		private ByteBuffer _compressed;
+		private ByteBuffer _decoded;
+		// Set while the last decode produced something, since the decoder may still have more without new input.
+		private boolean _isInflating;
+		private boolean _isRawEnded;
+		private boolean _isDecoderEnded;
+		private boolean _isComplete;
+		private IOException _failure;
+
+		public InflatingStream(ServletInputStream raw, boolean isGzip, long limit)
+		{
+			_raw = raw;
+			_isGzip = isGzip;
+			_limit = limit;
+		}
+		@Override
+		public int read() throws IOException
+		{
+			byte[] one = new byte[1];
+			int didRead = read(one, 0, 1);
+			return (1 == didRead)
+					? Byte.toUnsignedInt(one[0])
+					: -1
+			;
+		}
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException
+		{
+			int didRead = (null != _decoder)
+					? _readDecoded(b, off, len)
+					: _readBlocking(b, off, len)
+			;
+			if (didRead > 0)
+			{
+				_total += didRead;
+				if (_total > _limit)
+				{
+					throw new LimitExceededException(_limit);
+				}
+			}
+			else if (-1 == didRead)
+			{
+				_finished = true;
+			}
+			return didRead;
+		}
+		@Override
+		public int available() throws IOException
+		{
+			int available;
+			if (null != _decoder)
+			{
+				available = _decoded.remaining();
+			}
+			else
+			{
+				available = (null != _inflater)
+						? _inflater.available()
+						: 0
+				;
+			}
+			return available;
+		}
+		@Override
+		public void close() throws IOException
+		{
+			if (null != _inflater)
+			{
+				_inflater.close();
+			}
+			else
+			{
+				_raw.close();
+			}
+			if (null != _decoder)
+			{
+				_endDecoder();
+			}
+		}
+		@Override
+		public boolean isFinished()
+		{
+			return _finished;
+		}
+		@Override
+		public boolean isReady()
+		{
+			boolean isReady;
+			if (null != _decoder)
+			{
+				_fill();
+				// A failure is "ready" so that the next read can report it.
+				isReady = _decoded.hasRemaining() || _isRawEnded || (null != _failure);
+			}
+			else
+			{
+				isReady = true;
+			}
+			return isReady;
+		}
+		@Override
+		public void setReadListener(ReadListener readListener)
+		{
+			if ((null != _inflater) || (null != _decoder))
+			{
+				throw new IllegalStateException("ReadListener must be set before reading");
+			}
+			_decoder = _isGzip
+					? new GzipDecoder()
+					: new DeflateDecoder()
+			;
+			_rawBuffer = new byte[INFLATE_BUFFER_SIZE];
+			_compressed = ByteBuffer.allocate(0);
+			_decoded = ByteBuffer.allocate(0);
+			_raw.setReadListener(new ReadListener() {
+				@Override
+				public void onDataAvailable() throws IOException
+				{
+					readListener.onDataAvailable();
+				}
+				@Override
+				public void onAllDataRead() throws IOException
+				{
+					// The raw body is done but the listener may not have read everything we inflated from it (or seen
+					// that it was truncated).
+					if (!_finished)
+					{
+						readListener.onDataAvailable();
+					}
+					readListener.onAllDataRead();
+				}
+				@Override
+				public void onError(Throwable t)
+				{
+					readListener.onError(t);
+				}
+			});
+		}
+
+
+		private int _readBlocking(byte[] b, int off, int len) throws IOException
+		{
+			try
+			{
+				if (null == _inflater)
+				{
+					// The gzip header is read (and checked) here.
+					_inflater = _isGzip
+							? new GZIPInputStream(_raw, INFLATE_BUFFER_SIZE)
+							: new DeflateStream(_raw, new Inflater(), INFLATE_BUFFER_SIZE);
+				}
+				return _inflater.read(b, off, len);
+			}
+			catch (ZipException | EOFException e)
+			{
+				throw new MalformedBodyException(e);
+			}
+		}
+
+		private int _readDecoded(byte[] b, int off, int len) throws IOException
+		{
+			_fill();
+			int didRead;
+			if (_decoded.hasRemaining())
+			{
+				didRead = Math.min(len, _decoded.remaining());
+				_decoded.get(b, off, didRead);
+			}
+			else if (null != _failure)
+			{
+				throw _failure;
+			}
+			else if (_isRawEnded)
+			{
+				if (!_isComplete)
+				{
+					throw new MalformedBodyException(new EOFException("Compressed request body truncated"));
+				}
+				didRead = -1;
+			}
+			else
+			{
+				throw new IllegalStateException("read() called when not ready");
+			}
+			return didRead;
+		}
+
+		// Inflates whatever we can without blocking, until we have something for the listener to read.
+		private void _fill()
+		{
+			boolean canProgress = true;
+			try
+			{
+				while (canProgress && !_decoded.hasRemaining() && !_isRawEnded && !_isDecoderEnded && (null == _failure))
+				{
+					if (_compressed.hasRemaining() || _isInflating)
+					{
+						_decoded = _decoder.decode(_compressed);
+						_isInflating = _decoded.hasRemaining();
+					}
+					else if (_raw.isReady())
+					{
+						int didRead = _raw.read(_rawBuffer);
+						if (-1 == didRead)
+						{
+							_isRawEnded = true;
+						}
+						else
+						{
+							_compressed = ByteBuffer.wrap(_rawBuffer, 0, didRead);
+						}
+					}
+					else
+					{
+						// The container will call onDataAvailable() once there is more.
+						canProgress = false;
+					}
+				}
+			}
+			catch (IOException e)
+			{
+				_failure = e;
+			}
+			if (_isRawEnded || (null != _failure))
+			{
+				_endDecoder();
+			}
+		}
+
+		private void _endDecoder()
+		{
+			if (!_isDecoderEnded)
+			{
+				_isComplete = _decoder.isComplete();
+				_decoder.end();
+				_isDecoderEnded = true;
+			}
+		}
+	}
+}
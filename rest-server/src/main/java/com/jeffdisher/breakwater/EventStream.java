@@ -0,0 +1,420 @@
+package com.jeffdisher.breakwater;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import com.jeffdisher.breakwater.utilities.Assert;
+
+import jakarta.servlet.AsyncContext;
+import jakarta.servlet.AsyncEvent;
+import jakarta.servlet.AsyncListener;
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.WriteListener;
+
+
+/**
+ * A feed of Server-Sent Events, published to every subscribed client (see RestServer.addEventStreamHandler()).
+ * Each event is encoded once and the same bytes are queued for every subscriber, which are written with non-blocking
+ * servlet IO so no threads are held by idle connections.
+ *
+ * A bounded buffer of recent events allows reconnecting clients to resume from their "Last-Event-ID".  Subscribers
+ * which fall too far behind (more than maxQueuedBytes waiting to be written) are disconnected, so that one slow client
+ * can't grow the heap without bound, and they can resume when they reconnect.  A comment line is sent as a heartbeat
+ * so that idle connections aren't closed by proxies and dead clients are noticed.
+ */
+public class EventStream
+{
+	private static final byte[] HEARTBEAT = ":\n\n".getBytes(StandardCharsets.UTF_8);
+
+	private final int _replayCapacity;
+	private final long _maxQueuedBytes;
+	private final ScheduledExecutorService _heartbeat;
+
+	// All the variables below are protected by the monitor on this.
+	private final ArrayDeque<Event> _replay;
+	private final Set<Subscriber> _subscribers;
+	private long _nextId;
+	private long _evictions;
+	private boolean _isClosed;
+
+	/**
+	 * Creates a new event stream.
+	 *
+	 * @param replayCapacity The number of recent events kept for clients resuming with "Last-Event-ID" (0 to disable).
+	 * @param heartbeatMillis How often to send a heartbeat comment to all subscribers.
+	 * @param maxQueuedBytes The number of bytes which can be waiting to be written to a subscriber before it is
+	 * disconnected.
+	 */
+	public EventStream(int replayCapacity, long heartbeatMillis, long maxQueuedBytes)
+	{
+		Assert.assertTrue(replayCapacity >= 0);
+		Assert.assertTrue(heartbeatMillis > 0L);
+		Assert.assertTrue(maxQueuedBytes > 0L);
+		_replayCapacity = replayCapacity;
+		_maxQueuedBytes = maxQueuedBytes;
+		ScheduledThreadPoolExecutor heartbeat = new ScheduledThreadPoolExecutor(1, (Runnable runnable) -> {
+			Thread thread = new Thread(runnable, "EventStream heartbeat");
+			thread.setDaemon(true);
+			return thread;
+		});
+		heartbeat.scheduleAtFixedRate(() -> _sendToAll(HEARTBEAT), heartbeatMillis, heartbeatMillis, TimeUnit.MILLISECONDS);
+		_heartbeat = heartbeat;
+		_replay = new ArrayDeque<>();
+		_subscribers = new HashSet<>();
+		_nextId = 1L;
+	}
+
+	/**
+	 * Publishes an event to all current subscribers.
+	 *
+	 * @param eventType The event type (null for the default "message" type).
+	 * @param data The event data (can contain newlines).
+	 * @return The ID assigned to the event.
+	 */
+	public long publish(String eventType, String data)
+	{
+		Assert.assertTrue((null == eventType) || ((-1 == eventType.indexOf('\n')) && (-1 == eventType.indexOf('\r'))));
+		List<Subscriber> targets;
+		long id;
+		synchronized (this)
+		{
+			Assert.assertTrue(!_isClosed);
+			id = _nextId;
+			_nextId += 1;
+			Event event = new Event(id, _encode(id, eventType, data));
+			if (_replayCapacity > 0)
+			{
+				if (_replay.size() == _replayCapacity)
+				{
+					_replay.removeFirst();
+				}
+				_replay.addLast(event);
+			}
+			// We enqueue under the lock so every subscriber sees events in ID order, but write outside of it.
+			targets = _enqueueAll(event.bytes);
+		}
+		_drainAll(targets);
+		return id;
+	}
+
+	/**
+	 * @return The number of currently-connected subscribers.
+	 */
+	public synchronized int getSubscriberCount()
+	{
+		return _subscribers.size();
+	}
+
+	/**
+	 * @return The number of subscribers disconnected for falling too far behind.
+	 */
+	public synchronized long getEvictionCount()
+	{
+		return _evictions;
+	}
+
+	/**
+	 * Disconnects all subscribers and stops the heartbeat.  No more events can be published.
+	 */
+	public void close()
+	{
+		List<Subscriber> toClose;
+		synchronized (this)
+		{
+			_isClosed = true;
+			toClose = new ArrayList<>(_subscribers);
+			_subscribers.clear();
+		}
+		_heartbeat.shutdownNow();
+		for (Subscriber subscriber : toClose)
+		{
+			subscriber.close();
+		}
+	}
+
+	/**
+	 * Attaches a new subscriber to the stream, replaying anything it missed since lastEventId.
+	 *
+	 * @param context The started async context of the request.
+	 * @param lastEventId The ID from the client's "Last-Event-ID" header (-1 if it wasn't provided).
+	 * @throws IOException There was an error configuring the output stream.
+	 */
+	void subscribe(AsyncContext context, long lastEventId) throws IOException
+	{
+		Subscriber subscriber = new Subscriber(context);
+		boolean isClosed;
+		synchronized (this)
+		{
+			isClosed = _isClosed;
+			if (!isClosed)
+			{
+				if (lastEventId >= 0L)
+				{
+					for (Event event : _replay)
+					{
+						if ((event.id > lastEventId) && !subscriber.isEvicted() && !subscriber.enqueue(event.bytes))
+						{
+							// The replay alone is more than this subscriber is allowed to have queued.
+							subscriber.markEvicted();
+							_evictions += 1;
+						}
+					}
+				}
+				if (!subscriber.isEvicted())
+				{
+					_subscribers.add(subscriber);
+				}
+			}
+		}
+		if (isClosed || subscriber.isEvicted())
+		{
+			context.complete();
+		}
+		else
+		{
+			context.addListener(subscriber);
+			// Setting the listener will call onWritePossible(), which commits the headers and writes any replay.
+			context.getResponse().getOutputStream().setWriteListener(subscriber);
+		}
+	}
+
+
+	private void _sendToAll(byte[] bytes)
+	{
+		List<Subscriber> targets;
+		synchronized (this)
+		{
+			targets = _enqueueAll(bytes);
+		}
+		_drainAll(targets);
+	}
+
+	// Must be called under the monitor.  Returns the subscribers to drain, with any which are too far behind removed.
+	private List<Subscriber> _enqueueAll(byte[] bytes)
+	{
+		List<Subscriber> targets = new ArrayList<>();
+		for (Subscriber subscriber : _subscribers)
+		{
+			boolean accepted = subscriber.enqueue(bytes);
+			if (!accepted)
+			{
+				// We will close it, outside of the lock, in _drainAll().
+				subscriber.markEvicted();
+				_evictions += 1;
+			}
+			targets.add(subscriber);
+		}
+		_subscribers.removeIf((Subscriber subscriber) -> subscriber.isEvicted());
+		return targets;
+	}
+
+	private static void _drainAll(List<Subscriber> targets)
+	{
+		for (Subscriber subscriber : targets)
+		{
+			if (subscriber.isEvicted())
+			{
+				subscriber.close();
+			}
+			else
+			{
+				subscriber.drain();
+			}
+		}
+	}
+
+	private synchronized void _remove(Subscriber subscriber)
+	{
+		_subscribers.remove(subscriber);
+	}
+
+	private static byte[] _encode(long id, String eventType, String data)
+	{
+		StringBuilder builder = new StringBuilder();
+		builder.append("id: ").append(id).append('\n');
+		if (null != eventType)
+		{
+			builder.append("event: ").append(eventType).append('\n');
+		}
+		// Each line of the data needs its own "data:" field (the client rejoins them with "\n").
+		for (String line : data.split("\r\n|\r|\n", -1))
+		{
+			builder.append("data: ").append(line).append('\n');
+		}
+		builder.append('\n');
+		return builder.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+
+	private static class Event
+	{
+		public final long id;
+		public final byte[] bytes;
+
+		public Event(long id, byte[] bytes)
+		{
+			this.id = id;
+			this.bytes = bytes;
+		}
+	}
+
+
+	private class Subscriber implements WriteListener, AsyncListener
+	{
+		private final AsyncContext _context;
+
+		// All the variables below are protected by the monitor on this.
+		private final ArrayDeque<byte[]> _queue;
+		private long _queuedBytes;
+		private boolean _needsFlush;
+		private boolean _isListening;
+		private boolean _isDone;
+		private boolean _isEvicted;
+
+		public Subscriber(AsyncContext context)
+		{
+			_context = context;
+			_queue = new ArrayDeque<>();
+			// We always need to flush once to commit the response headers.
+			_needsFlush = true;
+		}
+
+		// Returns false if the bytes would put this subscriber over the limit (in which case they aren't queued).
+		public synchronized boolean enqueue(byte[] bytes)
+		{
+			boolean accepted = (_queuedBytes + bytes.length) <= _maxQueuedBytes;
+			if (accepted && !_isDone)
+			{
+				_queue.addLast(bytes);
+				_queuedBytes += bytes.length;
+			}
+			return accepted;
+		}
+
+		public synchronized void markEvicted()
+		{
+			_isEvicted = true;
+		}
+
+		public synchronized boolean isEvicted()
+		{
+			return _isEvicted;
+		}
+
+		public void drain()
+		{
+			boolean failed = false;
+			synchronized (this)
+			{
+				// Writes are only allowed once the WriteListener is installed and while the stream says it is ready.
+				if (_isListening && !_isDone)
+				{
+					ServletOutputStream out;
+					try
+					{
+						out = _context.getResponse().getOutputStream();
+						while (!_queue.isEmpty() && out.isReady())
+						{
+							byte[] bytes = _queue.removeFirst();
+							_queuedBytes -= bytes.length;
+							out.write(bytes);
+							_needsFlush = true;
+						}
+						if (_queue.isEmpty() && _needsFlush && out.isReady())
+						{
+							out.flush();
+							_needsFlush = false;
+						}
+					}
+					catch (IOException | IllegalStateException e)
+					{
+						// The client is gone.
+						failed = true;
+					}
+				}
+			}
+			if (failed)
+			{
+				_remove(this);
+				close();
+			}
+		}
+
+		public void close()
+		{
+			boolean shouldComplete;
+			synchronized (this)
+			{
+				shouldComplete = !_isDone;
+				_isDone = true;
+				_queue.clear();
+				_queuedBytes = 0L;
+			}
+			if (shouldComplete)
+			{
+				try
+				{
+					_context.complete();
+				}
+				catch (IllegalStateException e)
+				{
+					// This means that the container already completed the request.
+				}
+			}
+		}
+
+		@Override
+		public void onWritePossible() throws IOException
+		{
+			synchronized (this)
+			{
+				_isListening = true;
+			}
+			drain();
+		}
+
+		@Override
+		public void onError(Throwable t)
+		{
+			_remove(this);
+			close();
+		}
+
+		@Override
+		public void onComplete(AsyncEvent event) throws IOException
+		{
+			synchronized (this)
+			{
+				_isDone = true;
+			}
+			_remove(this);
+		}
+
+		@Override
+		public void onTimeout(AsyncEvent event) throws IOException
+		{
+			_remove(this);
+			close();
+		}
+
+		@Override
+		public void onError(AsyncEvent event) throws IOException
+		{
+			_remove(this);
+			close();
+		}
+
+		@Override
+		public void onStartAsync(AsyncEvent event) throws IOException
+		{
+		}
+	}
+}
@@ -0,0 +1,63 @@
+package com.jeffdisher.breakwater;
+
+import java.nio.file.Path;
+
+import com.jeffdisher.breakwater.utilities.Assert;
+
+
+/**
+ * Describes how a RestServer should offer HTTP/2, in addition to HTTP/1.1, on its connector.
+ * Without a key store, the connector is cleartext and accepts both "h2c" upgrades and prior-knowledge HTTP/2
+ * connections.  With a key store, the connector uses TLS and negotiates "h2" (falling back to "http/1.1") via ALPN.
+ *
+ * The multiplexing limits bound how much work a single client connection can put on the server at once.
+ */
+public class Http2Configuration
+{
+	/**
+	 * Cleartext HTTP/2 with the limits Jetty uses by default:  128 concurrent streams per connection, a 512 KiB flow
+	 * control window for each stream, and a 1 MiB window for each session.
+	 */
+	public static final Http2Configuration CLEARTEXT_DEFAULT = new Http2Configuration(128, 512 * 1024, 1024 * 1024, null, null);
+
+	public final int maxConcurrentStreams;
+	public final int initialStreamWindowBytes;
+	public final int initialSessionWindowBytes;
+	public final Path keyStorePath;
+	public final String keyStorePassword;
+
+	/**
+	 * Creates a new HTTP/2 configuration.
+	 *
+	 * @param maxConcurrentStreams The maximum number of streams a client may have open on a single connection.
+	 * @param initialStreamWindowBytes The flow control window of each stream (how much the client may send before the
+	 * server has read it).
+	 * @param initialSessionWindowBytes The flow control window of the whole connection, across all of its streams.
+	 * @param keyStorePath The key store containing the server's certificate (null for cleartext h2c).
+	 * @param keyStorePassword The password of the key store (ignored if keyStorePath is null).
+	 */
+	public Http2Configuration(int maxConcurrentStreams
+			, int initialStreamWindowBytes
+			, int initialSessionWindowBytes
+			, Path keyStorePath
+			, String keyStorePassword
+	)
+	{
+		Assert.assertTrue(maxConcurrentStreams > 0);
+		Assert.assertTrue(initialStreamWindowBytes > 0);
+		Assert.assertTrue(initialSessionWindowBytes > 0);
+		this.maxConcurrentStreams = maxConcurrentStreams;
+		this.initialStreamWindowBytes = initialStreamWindowBytes;
+		this.initialSessionWindowBytes = initialSessionWindowBytes;
+		this.keyStorePath = keyStorePath;
+		this.keyStorePassword = keyStorePassword;
+	}
+
+	/**
+	 * @return True if this configuration uses TLS (with ALPN) instead of cleartext.
+	 */
+	public boolean isSecure()
+	{
+		return (null != this.keyStorePath);
+	}
+}
@@ -0,0 +1,28 @@
+package com.jeffdisher.breakwater;
+
+import java.io.IOException;
+
+import jakarta.servlet.http.HttpServletRequest;
+
+
+/**
+ * An extension of IGetHandler for resources which can cheaply describe their current version.  When registered as a
+ * GET handler, the server first asks for the validator and, if the client's "If-None-Match" or "If-Modified-Since"
+ * shows it already has that version, responds with 304 without ever calling handle().
+ * Otherwise, the validator's "ETag" and "Last-Modified" headers are set on the response before handle() is called.
+ */
+public interface IConditionalGetHandler extends IGetHandler
+{
+	/**
+	 * Returns the validator for the current version of the resource at the given path.  This is called before handle()
+	 * so it should be much cheaper than generating the response.
+	 *
+	 * @param request The HTTP request.
+	 * @param path The path components of the invocation, exposed as the types created by the corresponding IPathParser
+	 * instances provided when registering the handler.
+	 * @return The validator for the resource, or null if it can't be validated (in which case handle() is always
+	 * called).
+	 * @throws IOException There was an IO error during invocation.
+	 */
+	ResponseValidator getValidator(HttpServletRequest request, Object[] path) throws IOException;
+}
@@ -0,0 +1,26 @@
+package com.jeffdisher.breakwater;
+
+import java.io.IOException;
+
+import jakarta.servlet.http.HttpServletRequest;
+
+
+/**
+ * Selects the EventStream a Server-Sent Events client should be subscribed to, when it connects to a route registered
+ * with RestServer.addEventStreamHandler().
+ * The same EventStream is typically returned for many clients, since that is what allows each event to be encoded once
+ * for all of them.
+ */
+public interface IEventStreamHandler
+{
+	/**
+	 * Called when a client connects, before anything is written to the response.
+	 *
+	 * @param request The HTTP request.
+	 * @param path The path components of the invocation, exposed as the types created by the corresponding IPathParser
+	 * instances provided when registering the handler.
+	 * @return The stream to subscribe the client to, or null to reject it with a 404.
+	 * @throws IOException There was an IO error during invocation.
+	 */
+	EventStream selectStream(HttpServletRequest request, Object[] path) throws IOException;
+}
@@ -9,6 +9,8 @@ import jakarta.servlet.http.HttpServletResponse;
 /**
  * The interface defining an implementor of a POST REST invocation, where the POST data MIME type wasn't a form or
  * multi-part.  This is the common case for large data uploads as they can be read from the request, directly.
+ * If the client sent the body with "Content-Encoding: gzip" (or "deflate"), the request's stream is inflated as it is
+ * read, so the handler always sees the decoded data.
  */
 public interface IPostRawHandler
 {
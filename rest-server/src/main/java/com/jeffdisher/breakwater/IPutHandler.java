@@ -10,6 +10,8 @@ import jakarta.servlet.http.HttpServletResponse;
 /**
  * The interface defining an implementor of a PUT REST invocation.  Much like the raw POST type, this is another method
  * which is appropriate for uploading large streams of raw data.
+ * If the client sent the body with "Content-Encoding: gzip" (or "deflate"), the stream is inflated as it is read, so the
+ * handler always sees the decoded data.
  */
 public interface IPutHandler
 {
@@ -0,0 +1,53 @@
+package com.jeffdisher.breakwater;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import jakarta.servlet.http.HttpServletRequest;
+
+
+/**
+ * An extension of IGetHandler for resources of known length which can be read from an arbitrary offset, allowing
+ * clients to resume downloads or fetch segments in parallel with the "Range" header.
+ * When registered as a GET handler, requests without a (usable) "Range" header are still sent to handle(), which must
+ * send the entire resource.  Satisfiable ranges are sent as a 206, using openRange() (as "multipart/byteranges" if
+ * there are several), while unsatisfiable ranges get a 416.
+ *
+ * If the handler also implements IConditionalGetHandler, its validator is used to evaluate "If-Range".  Otherwise, any
+ * request with "If-Range" gets the entire resource.
+ */
+public interface IRangeGetHandler extends IGetHandler
+{
+	/**
+	 * Returns the total length of the resource at the given path.  This is called before anything else is written to
+	 * the response so it should be cheap.
+	 *
+	 * @param request The HTTP request.
+	 * @param path The path components of the invocation, exposed as the types created by the corresponding IPathParser
+	 * instances provided when registering the handler.
+	 * @return The length of the resource, in bytes, or -1 if it isn't known (in which case handle() is always called).
+	 * @throws IOException There was an IO error during invocation.
+	 */
+	long getLength(HttpServletRequest request, Object[] path) throws IOException;
+
+	/**
+	 * @param request The HTTP request.
+	 * @param path The path components of the invocation.
+	 * @return The MIME type of the resource (used for the 206 response or each of its parts).
+	 * @throws IOException There was an IO error during invocation.
+	 */
+	String getContentType(HttpServletRequest request, Object[] path) throws IOException;
+
+	/**
+	 * Opens a stream over part of the resource.  The caller will close the stream.
+	 *
+	 * @param request The HTTP request.
+	 * @param path The path components of the invocation.
+	 * @param offset The offset of the first byte to read.
+	 * @param length The number of bytes which will be read from the returned stream (never past the end of the
+	 * resource).
+	 * @return A stream positioned at offset, with at least length bytes remaining.
+	 * @throws IOException There was an IO error during invocation.
+	 */
+	InputStream openRange(HttpServletRequest request, Object[] path, long offset, long length) throws IOException;
+}
@@ -15,7 +15,8 @@ public interface IWebSocketFactory {
 	 * 
 	 * @param upgradeRequest The actual HTTP protocol upgrade request.
 	 * @param path The requested path of the web socket, parsed as an array of types.
-	 * @return A Jetty WebSocketListener, or null if the upgrade request should be rejected.
+	 * @return A Jetty WebSocketListener (or an IWebSocketStreamListener, to receive binary messages in fragments), or
+	 * null if the upgrade request should be rejected.
 	 */
 	WebSocketListener create(JettyServerUpgradeRequest upgradeRequest, Object[] path);
 }
@@ -0,0 +1,24 @@
+package com.jeffdisher.breakwater;
+
+import org.eclipse.jetty.websocket.api.WebSocketListener;
+
+
+/**
+ * A WebSocketListener which receives binary messages as they arrive from the network, one fragment at a time, instead
+ * of once they have been assembled into an array.  This allows large binary streams to be handled in constant memory
+ * and without copying.  Return one of these from an IWebSocketFactory to use it.
+ *
+ * onWebSocketBinary() is never called for these listeners, and maxBinaryMessageSize doesn't apply since the message
+ * is never assembled.  Text messages are still delivered whole, to onWebSocketText().
+ */
+public interface IWebSocketStreamListener extends WebSocketListener
+{
+	/**
+	 * Called with each piece of a binary message, in order.  The fragment's payload is a view of Jetty's network
+	 * buffer so it is only valid until this returns unless retain() is called on it.
+	 *
+	 * @param fragment The next piece of the message (may be empty).
+	 * @param isLast True if this is the end of the message.
+	 */
+	void onWebSocketBinaryFragment(WebSocketFragment fragment, boolean isLast);
+}
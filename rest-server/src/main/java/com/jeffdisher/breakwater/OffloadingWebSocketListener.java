@@ -0,0 +1,381 @@
+package com.jeffdisher.breakwater;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.StatusCode;
+import org.eclipse.jetty.websocket.api.WebSocketListener;
+import org.eclipse.jetty.websocket.server.JettyServerUpgradeRequest;
+
+import com.jeffdisher.breakwater.utilities.Assert;
+
+
+/**
+ * Runs the callbacks of another WebSocketListener on an Executor, instead of on Jetty's threads, so that a listener
+ * doing slow work doesn't stall other connections.
+ *
+ * Each connection has its own queue, which is drained by at most one executor task at a time, so its callbacks are
+ * still delivered one at a time and in order (connect, each message, then close).  When the number of queued messages
+ * reaches the limit, Jetty's thread waits for space before returning the message, which stops reads from that
+ * connection, so a fast client can't grow the queue without bound (it is pushed back through TCP flow control
+ * instead).  That wait is bounded so a listener which stops making progress can't hold Jetty's threads:  once it
+ * expires, the connection is closed with TRY_AGAIN_LATER and the message is dropped.
+ * Note that we don't use Session.suspend() for this since, in Jetty 11, resuming from another thread can deliver the
+ * next text message before the previous one has been cleared from Jetty's message buffer, merging the two.
+ *
+ * A callback which throws closes the connection with SERVER_ERROR (as Jetty does when a listener throws on its own
+ * thread), but the connection's remaining callbacks, including the close, are still delivered.
+ */
+public class OffloadingWebSocketListener implements WebSocketListener
+{
+	// The most callbacks a task runs before giving the executor's thread back to other connections.
+	private static final int MAX_CALLBACKS_PER_TASK = 32;
+
+	/**
+	 * The default limit on how long Jetty's thread waits for space in a full queue before closing the connection.
+	 */
+	public static final long DEFAULT_MAX_BLOCK_MILLIS = 10_000L;
+
+	/**
+	 * Wraps a factory so that every listener it creates is offloaded.
+	 *
+	 * @param factory The factory creating the real listeners.
+	 * @param executor The executor to run the listeners' callbacks.
+	 * @param maxQueuedMessages The number of messages which can be queued for a connection before its reads are
+	 * suspended.
+	 * @return A factory to pass to RestServer.addWebSocketFactory().
+	 */
+	public static IWebSocketFactory offload(IWebSocketFactory factory, Executor executor, int maxQueuedMessages)
+	{
+		return offload(factory, executor, maxQueuedMessages, DEFAULT_MAX_BLOCK_MILLIS);
+	}
+
+	/**
+	 * Wraps a factory so that every listener it creates is offloaded.
+	 *
+	 * @param factory The factory creating the real listeners.
+	 * @param executor The executor to run the listeners' callbacks.
+	 * @param maxQueuedMessages The number of messages which can be queued for a connection before its reads are
+	 * suspended.
+	 * @param maxBlockMillis How long reads can be suspended before the connection is closed.
+	 * @return A factory to pass to RestServer.addWebSocketFactory().
+	 */
+	public static IWebSocketFactory offload(IWebSocketFactory factory, Executor executor, int maxQueuedMessages, long maxBlockMillis)
+	{
+		Assert.assertTrue(null != factory);
+		return (JettyServerUpgradeRequest upgradeRequest, Object[] path) -> {
+			WebSocketListener listener = factory.create(upgradeRequest, path);
+			return (null != listener)
+					? new OffloadingWebSocketListener(listener, executor, maxQueuedMessages, maxBlockMillis)
+					: null
+			;
+		};
+	}
+
+	private final WebSocketListener _listener;
+	private final Executor _executor;
+	private final int _maxQueuedMessages;
+	private final long _maxBlockMillis;
+
+	// All the variables below are protected by the monitor on this.
+	private final ArrayDeque<Runnable> _queue;
+	private Session _session;
+	private int _queuedMessages;
+	private boolean _isScheduled;
+	private long _suspendCount;
+	private long _blockTimeoutCount;
+	private long _callbackFailureCount;
+
+	/**
+	 * Creates the wrapper for one connection.
+	 *
+	 * @param listener The listener to call on the executor.
+	 * @param executor The executor to run the listener's callbacks.
+	 * @param maxQueuedMessages The number of messages which can be queued before reads are suspended.
+	 */
+	public OffloadingWebSocketListener(WebSocketListener listener, Executor executor, int maxQueuedMessages)
+	{
+		this(listener, executor, maxQueuedMessages, DEFAULT_MAX_BLOCK_MILLIS);
+	}
+
+	/**
+	 * Creates the wrapper for one connection.
+	 *
+	 * @param listener The listener to call on the executor.
+	 * @param executor The executor to run the listener's callbacks.
+	 * @param maxQueuedMessages The number of messages which can be queued before reads are suspended.
+	 * @param maxBlockMillis How long reads can be suspended before the connection is closed.
+	 */
+	public OffloadingWebSocketListener(WebSocketListener listener, Executor executor, int maxQueuedMessages, long maxBlockMillis)
+	{
+		Assert.assertTrue(null != listener);
+		Assert.assertTrue(null != executor);
+		Assert.assertTrue(maxQueuedMessages > 0);
+		Assert.assertTrue(maxBlockMillis > 0L);
+		_listener = listener;
+		_executor = executor;
+		_maxQueuedMessages = maxQueuedMessages;
+		_maxBlockMillis = maxBlockMillis;
+		_queue = new ArrayDeque<>();
+	}
+
+	/**
+	 * @return The number of messages waiting for the listener.
+	 */
+	public synchronized int getQueuedMessageCount()
+	{
+		return _queuedMessages;
+	}
+
+	/**
+	 * @return The number of times reads were suspended (Jetty's thread waited) because the queue was full.
+	 */
+	public synchronized long getSuspendCount()
+	{
+		return _suspendCount;
+	}
+
+	/**
+	 * @return The number of times the connection was closed since the queue stayed full for too long.
+	 */
+	public synchronized long getBlockTimeoutCount()
+	{
+		return _blockTimeoutCount;
+	}
+
+	/**
+	 * @return The number of callbacks which threw (each closing the connection).
+	 */
+	public synchronized long getCallbackFailureCount()
+	{
+		return _callbackFailureCount;
+	}
+
+	@Override
+	public void onWebSocketConnect(Session session)
+	{
+		synchronized (this)
+		{
+			_session = session;
+		}
+		_enqueue(() -> _listener.onWebSocketConnect(session), false);
+	}
+
+	@Override
+	public void onWebSocketText(String message)
+	{
+		_enqueue(() -> _listener.onWebSocketText(message), true);
+	}
+
+	@Override
+	public void onWebSocketBinary(byte[] payload, int offset, int len)
+	{
+		// The array is only ours for the duration of this call so copy what we need.
+		byte[] copy = Arrays.copyOfRange(payload, offset, offset + len);
+		_enqueue(() -> _listener.onWebSocketBinary(copy, 0, copy.length), true);
+	}
+
+	@Override
+	public void onWebSocketClose(int statusCode, String reason)
+	{
+		_enqueue(() -> _listener.onWebSocketClose(statusCode, reason), false);
+	}
+
+	@Override
+	public void onWebSocketError(Throwable cause)
+	{
+		_enqueue(() -> _listener.onWebSocketError(cause), false);
+	}
+
+
+	private void _enqueue(Runnable callback, boolean isMessage)
+	{
+		boolean shouldSchedule = false;
+		Session toClose = null;
+		synchronized (this)
+		{
+			boolean hasSpace = true;
+			if (isMessage)
+			{
+				if (_queuedMessages >= _maxQueuedMessages)
+				{
+					// Jetty doesn't read the next frame until this returns so waiting here suspends the connection's reads.
+					_suspendCount += 1;
+					hasSpace = _awaitSpace();
+				}
+				if (hasSpace)
+				{
+					_queuedMessages += 1;
+				}
+				else
+				{
+					_blockTimeoutCount += 1;
+					toClose = _session;
+				}
+			}
+			if (hasSpace)
+			{
+				_queue.addLast(isMessage ? new Message(callback) : callback);
+				shouldSchedule = !_isScheduled;
+				_isScheduled = true;
+			}
+		}
+		if (null != toClose)
+		{
+			// The listener isn't keeping up so we drop this message and let the client know to come back later.
+			toClose.close(StatusCode.TRY_AGAIN_LATER, "Listener too slow");
+		}
+		if (shouldSchedule)
+		{
+			_schedule();
+		}
+	}
+
+	// Must be called with the monitor held.  Returns true if there is space in the queue, false if the time expired.
+	private boolean _awaitSpace()
+	{
+		long deadline = System.currentTimeMillis() + _maxBlockMillis;
+		long remaining = _maxBlockMillis;
+		boolean isInterrupted = false;
+		while ((_queuedMessages >= _maxQueuedMessages) && (remaining > 0L) && !isInterrupted)
+		{
+			try
+			{
+				this.wait(remaining);
+			}
+			catch (InterruptedException e)
+			{
+				// Jetty is stopping so treat this as though we ran out of time (but preserve the interrupt).
+				Thread.currentThread().interrupt();
+				isInterrupted = true;
+			}
+			remaining = deadline - System.currentTimeMillis();
+		}
+		return (_queuedMessages < _maxQueuedMessages);
+	}
+
+	private void _schedule()
+	{
+		boolean didSchedule = false;
+		try
+		{
+			_executor.execute(() -> _drain());
+			didSchedule = true;
+		}
+		finally
+		{
+			if (!didSchedule)
+			{
+				// The executor rejected us so let the next callback try again, rather than leaving the queue stranded.
+				synchronized (this)
+				{
+					_isScheduled = false;
+				}
+			}
+		}
+	}
+
+	private void _drain()
+	{
+		boolean isIdle = false;
+		try
+		{
+			int remaining = MAX_CALLBACKS_PER_TASK;
+			Runnable next = _dequeue();
+			while (null != next)
+			{
+				_run(next);
+				remaining -= 1;
+				next = (remaining > 0)
+						? _dequeue()
+						: null
+				;
+			}
+			// We can only reach here with remaining callbacks if we used up our budget.
+			isIdle = (remaining > 0);
+		}
+		finally
+		{
+			if (!isIdle)
+			{
+				// We either used up our budget or something unexpected escaped so we need to reschedule if there is more.
+				boolean shouldReschedule;
+				synchronized (this)
+				{
+					shouldReschedule = !_queue.isEmpty();
+					_isScheduled = shouldReschedule;
+				}
+				if (shouldReschedule)
+				{
+					_schedule();
+				}
+			}
+		}
+	}
+
+	private void _run(Runnable callback)
+	{
+		try
+		{
+			callback.run();
+		}
+		catch (RuntimeException e)
+		{
+			Session toClose;
+			synchronized (this)
+			{
+				_callbackFailureCount += 1;
+				toClose = _session;
+			}
+			System.err.println("WebSocket listener callback failed: " + e);
+			if (null != toClose)
+			{
+				toClose.close(StatusCode.SERVER_ERROR, "Listener failed");
+			}
+		}
+	}
+
+	// Returns the next callback to run, or null if the queue is empty (in which case this task is no longer scheduled).
+	private Runnable _dequeue()
+	{
+		Runnable next;
+		synchronized (this)
+		{
+			next = _queue.pollFirst();
+			if (null == next)
+			{
+				_isScheduled = false;
+			}
+			else if (next instanceof Message)
+			{
+				if (_queuedMessages == _maxQueuedMessages)
+				{
+					// Jetty's thread may be waiting for space.
+					this.notifyAll();
+				}
+				_queuedMessages -= 1;
+			}
+		}
+		return next;
+	}
+
+
+	// Marks the callbacks which count against the queue limit.
+	private static class Message implements Runnable
+	{
+		private final Runnable _callback;
+
+		public Message(Runnable callback)
+		{
+			_callback = callback;
+		}
+
+		@Override
+		public void run()
+		{
+			_callback.run();
+		}
+	}
+}
@@ -0,0 +1,427 @@
+package com.jeffdisher.breakwater;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.jeffdisher.breakwater.utilities.Assert;
+
+import jakarta.servlet.ServletRequest;
+import jakarta.servlet.ServletRequestWrapper;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
+
+/**
+ * An opt-in, in-memory cache of GET responses, installed per-route via RestServer.addGetHandler().
+ * Responses are keyed by the parsed path components of the request plus the values of any request headers or query
+ * parameters named when creating the cache (so anything the handler's response depends on, like "Accept" or a user
+ * cookie, must be named).  Only 200 responses without cookies or "Cache-Control: private/no-store" are cached (nor any
+ * response to a request which has a session:  a cookie session the handler used, or a server-side session the client
+ * named or the handler created).
+ *
+ * Entries expire after a fixed TTL and the least-recently used entries are evicted to keep the estimated memory under
+ * the given limit.  Concurrent misses on the same key are coalesced:  only one request invokes the handler while the
+ * others wait for, and replay, its result.  A request only waits a bounded time for another's handler (so a hung handler
+ * can't hold every thread requesting the same key), after which it invokes the handler itself.
+ *
+ * The same instance can be shared by multiple routes, although the keys don't include the route so the paths must not
+ * overlap in a way where 2 routes could produce the same key.
+ */
+public class ResponseCache
+{
+	/**
+	 * The default limit on how long a request waits for a concurrent miss on the same key.
+	 */
+	public static final long DEFAULT_MAX_COALESCE_WAIT_MILLIS = 10_000L;
+
+	private final long _ttlMillis;
+	private final long _maxBytes;
+	private final List<String> _keyHeaders;
+	private final List<String> _keyParameters;
+	private final long _maxCoalesceWaitMillis;
+
+	// All the variables below are protected by the monitor on this.
+	private final LinkedHashMap<List<Object>, Entry> _entries;
+	private final Map<List<Object>, Flight> _inFlight;
+	private long _cachedBytes;
+	private long _hits;
+	private long _misses;
+	private long _coalesced;
+	private long _evictions;
+	private long _coalesceTimeouts;
+	private long _nextSweepMillis;
+
+	/**
+	 * Creates a new cache.
+	 *
+	 * @param ttlMillis How long an entry can be served before it must be regenerated.
+	 * @param maxBytes The limit on the estimated memory consumed by cached responses.
+	 * @param keyHeaders The request headers which vary the response (can be empty).
+	 * @param keyParameters The query parameters which vary the response (can be empty).
+	 */
+	public ResponseCache(long ttlMillis, long maxBytes, List<String> keyHeaders, List<String> keyParameters)
+	{
+		this(ttlMillis, maxBytes, keyHeaders, keyParameters, DEFAULT_MAX_COALESCE_WAIT_MILLIS);
+	}
+
+	/**
+	 * Creates a new cache.
+	 *
+	 * @param ttlMillis How long an entry can be served before it must be regenerated.
+	 * @param maxBytes The limit on the estimated memory consumed by cached responses.
+	 * @param keyHeaders The request headers which vary the response (can be empty).
+	 * @param keyParameters The query parameters which vary the response (can be empty).
+	 * @param maxCoalesceWaitMillis How long a request waits for a concurrent miss on the same key before invoking the
+	 * handler itself.
+	 */
+	public ResponseCache(long ttlMillis, long maxBytes, List<String> keyHeaders, List<String> keyParameters, long maxCoalesceWaitMillis)
+	{
+		Assert.assertTrue(ttlMillis > 0L);
+		Assert.assertTrue(maxBytes > 0L);
+		Assert.assertTrue(maxCoalesceWaitMillis > 0L);
+		_ttlMillis = ttlMillis;
+		_maxCoalesceWaitMillis = maxCoalesceWaitMillis;
+		_maxBytes = maxBytes;
+		_keyHeaders = Collections.unmodifiableList(new ArrayList<>(keyHeaders));
+		_keyParameters = Collections.unmodifiableList(new ArrayList<>(keyParameters));
+		// Access-ordered so that the eldest entry is the least-recently used.
+		_entries = new LinkedHashMap<>(16, 0.75f, true);
+		_inFlight = new HashMap<>();
+	}
+
+	/**
+	 * @return The number of requests served from the cache (including those which waited for a concurrent miss).
+	 */
+	public synchronized long getHitCount()
+	{
+		return _hits + _coalesced;
+	}
+
+	/**
+	 * @return The number of requests which had to invoke the handler.
+	 */
+	public synchronized long getMissCount()
+	{
+		return _misses;
+	}
+
+	/**
+	 * @return The number of requests which waited for another request's handler invocation, instead of running their own.
+	 */
+	public synchronized long getCoalescedCount()
+	{
+		return _coalesced;
+	}
+
+	/**
+	 * @return The number of entries evicted to stay within the memory limit (expired entries are not counted).
+	 */
+	public synchronized long getEvictionCount()
+	{
+		return _evictions;
+	}
+
+	/**
+	 * @return The number of requests which gave up waiting for a concurrent miss and invoked the handler themselves.
+	 */
+	public synchronized long getCoalesceTimeoutCount()
+	{
+		return _coalesceTimeouts;
+	}
+
+	/**
+	 * @return The fraction of requests served without invoking the handler (0.0 if there have been no requests).
+	 */
+	public synchronized double getHitRatio()
+	{
+		long hits = _hits + _coalesced;
+		long total = hits + _misses;
+		return (total > 0L)
+				? ((double)hits / (double)total)
+				: 0.0
+		;
+	}
+
+	/**
+	 * @return The estimated number of bytes of heap consumed by cached responses.
+	 */
+	public synchronized long getCachedBytes()
+	{
+		return _cachedBytes;
+	}
+
+	/**
+	 * @return The number of responses currently cached.
+	 */
+	public synchronized int getEntryCount()
+	{
+		return _entries.size();
+	}
+
+	/**
+	 * Drops all cached entries (requests currently in-flight are unaffected).
+	 */
+	public synchronized void clear()
+	{
+		_entries.clear();
+		_cachedBytes = 0L;
+	}
+
+	/**
+	 * Serves the request from the cache or, on a miss, invokes the handler and caches its response.
+	 *
+	 * @param request The request.
+	 * @param response The response to populate.
+	 * @param path The parsed path components.
+	 * @param handler The handler to invoke on a miss.
+	 * @throws IOException There was an error writing the response or invoking the handler.
+	 */
+	void serve(HttpServletRequest request, HttpServletResponse response, Object[] path, IGetHandler handler) throws IOException
+	{
+		List<Object> key = _buildKey(request, path);
+		long now = System.currentTimeMillis();
+		CapturingResponse.Captured cached = null;
+		Flight toWait = null;
+		Flight toRun = null;
+		synchronized (this)
+		{
+			Entry entry = _entries.get(key);
+			if ((null != entry) && (entry.expiresMillis <= now))
+			{
+				_entries.remove(key);
+				_cachedBytes -= entry.bytes;
+				entry = null;
+			}
+			if (null != entry)
+			{
+				cached = entry.response;
+				_hits += 1;
+			}
+			else
+			{
+				toWait = _inFlight.get(key);
+				if (null == toWait)
+				{
+					toRun = new Flight();
+					_inFlight.put(key, toRun);
+					_misses += 1;
+				}
+			}
+		}
+
+		if (null != toWait)
+		{
+			boolean isDone = toWait.await(_maxCoalesceWaitMillis);
+			cached = toWait.getResult();
+			if (null != cached)
+			{
+				synchronized (this)
+				{
+					_coalesced += 1;
+				}
+			}
+			else
+			{
+				// The leader failed, got something which can't be shared, or is taking too long so we need to run the
+				// handler ourselves (without coalescing, to keep this simple).
+				synchronized (this)
+				{
+					_misses += 1;
+					if (!isDone)
+					{
+						_coalesceTimeouts += 1;
+					}
+				}
+				handler.handle(request, response, path);
+			}
+		}
+		else if (null != toRun)
+		{
+			cached = _runAndCache(key, toRun, request, response, path, handler);
+		}
+
+		if (null != cached)
+		{
+			cached.replay(response);
+		}
+	}
+
+
+	private CapturingResponse.Captured _runAndCache(List<Object> key, Flight flight, HttpServletRequest request, HttpServletResponse response, Object[] path, IGetHandler handler) throws IOException
+	{
+		// Anything larger than the whole cache can't be cached, so there is no point holding more than that.
+		CapturingResponse capture = new CapturingResponse(response, _maxBytes);
+		CapturingResponse.Captured result = null;
+		// A cookie session would otherwise write its cookie around the capture, so we couldn't see not to share it.
+		HttpServletResponse previous = CookieSessionRequest.bindResponse(request, capture);
+		try
+		{
+			handler.handle(request, capture, path);
+			result = capture.finish();
+			if (_hasServerSession(request))
+			{
+				capture.markPrivate();
+			}
+		}
+		finally
+		{
+			if (null != previous)
+			{
+				CookieSessionRequest.bindResponse(request, previous);
+			}
+			boolean cacheable = (null != result) && capture.isCacheable();
+			synchronized (this)
+			{
+				_inFlight.remove(key);
+				if (cacheable)
+				{
+					_insert(key, new Entry(result, System.currentTimeMillis() + _ttlMillis));
+				}
+			}
+			// Anyone waiting on us can only share our result if it was cacheable (it could contain our cookies, otherwise).
+			flight.complete(cacheable ? result : null);
+		}
+		// An error or an oversized body was already sent through the capture so there is nothing to replay.
+		return capture.isPassedThrough()
+				? null
+				: result
+		;
+	}
+
+	private void _insert(List<Object> key, Entry entry)
+	{
+		long bytes = entry.bytes;
+		if (bytes <= _maxBytes)
+		{
+			Entry old = _entries.put(key, entry);
+			if (null != old)
+			{
+				_cachedBytes -= old.bytes;
+			}
+			_cachedBytes += bytes;
+			// Expired entries are otherwise only dropped when requested again so we sweep them out, at most once per TTL
+			// (so they linger for at most another TTL), or whenever they would cost us a live entry.
+			long now = System.currentTimeMillis();
+			if ((now >= _nextSweepMillis) || (_cachedBytes > _maxBytes))
+			{
+				_removeExpired(now);
+				_nextSweepMillis = now + _ttlMillis;
+			}
+			Iterator<Map.Entry<List<Object>, Entry>> iterator = _entries.entrySet().iterator();
+			while ((_cachedBytes > _maxBytes) && iterator.hasNext())
+			{
+				Map.Entry<List<Object>, Entry> eldest = iterator.next();
+				_cachedBytes -= eldest.getValue().bytes;
+				iterator.remove();
+				_evictions += 1;
+			}
+		}
+	}
+
+	private void _removeExpired(long now)
+	{
+		Iterator<Entry> iterator = _entries.values().iterator();
+		while (iterator.hasNext())
+		{
+			Entry entry = iterator.next();
+			if (entry.expiresMillis <= now)
+			{
+				_cachedBytes -= entry.bytes;
+				iterator.remove();
+			}
+		}
+	}
+
+	private static boolean _hasServerSession(HttpServletRequest request)
+	{
+		// Cookie sessions mark the capture themselves, when used, so we check the container's request, under any wrappers.
+		// Its session cookie is written around the capture so we need to check for the session, itself.
+		ServletRequest base = request;
+		while (base instanceof ServletRequestWrapper)
+		{
+			base = ((ServletRequestWrapper)base).getRequest();
+		}
+		HttpServletRequest container = (HttpServletRequest)base;
+		return (null != container.getRequestedSessionId()) || (null != container.getSession(false));
+	}
+
+	private List<Object> _buildKey(HttpServletRequest request, Object[] path)
+	{
+		List<Object> key = new ArrayList<>(path.length + _keyHeaders.size() + _keyParameters.size());
+		key.addAll(Arrays.asList(path));
+		for (String header : _keyHeaders)
+		{
+			// We need to keep the header values as a list since both order and count matter.
+			key.add(Collections.list(request.getHeaders(header)));
+		}
+		for (String parameter : _keyParameters)
+		{
+			String[] values = request.getParameterValues(parameter);
+			key.add((null != values) ? Arrays.asList(values) : Collections.emptyList());
+		}
+		return key;
+	}
+
+
+	private static class Entry
+	{
+		public final CapturingResponse.Captured response;
+		public final long expiresMillis;
+		public final long bytes;
+
+		public Entry(CapturingResponse.Captured response, long expiresMillis)
+		{
+			this.response = response;
+			this.expiresMillis = expiresMillis;
+			this.bytes = response.estimateBytes();
+		}
+	}
+
+
+	private static class Flight
+	{
+		private boolean _isDone;
+		private CapturingResponse.Captured _result;
+
+		public synchronized void complete(CapturingResponse.Captured result)
+		{
+			_result = result;
+			_isDone = true;
+			this.notifyAll();
+		}
+
+		// Returns true if the flight completed within the time.
+		public synchronized boolean await(long maxWaitMillis)
+		{
+			long deadline = System.currentTimeMillis() + maxWaitMillis;
+			long remaining = maxWaitMillis;
+			while (!_isDone && (remaining > 0L))
+			{
+				try
+				{
+					this.wait(remaining);
+				}
+				catch (InterruptedException e)
+				{
+					// We don't use interruption.
+					throw Assert.unexpected(e);
+				}
+				remaining = deadline - System.currentTimeMillis();
+			}
+			return _isDone;
+		}
+
+		// Null if the flight isn't done or its result can't be shared.
+		public synchronized CapturingResponse.Captured getResult()
+		{
+			return _result;
+		}
+	}
+}
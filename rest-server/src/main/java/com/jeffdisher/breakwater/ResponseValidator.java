@@ -0,0 +1,172 @@
+package com.jeffdisher.breakwater;
+
+import com.jeffdisher.breakwater.utilities.Assert;
+
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
+
+/**
+ * The cheap description of the current version of a resource, used to answer conditional requests ("If-None-Match"
+ * and "If-Modified-Since") without generating the response body.
+ * At least one of the entity tag or the last-modified time must be provided.
+ */
+public class ResponseValidator
+{
+	private final String _opaqueTag;
+	private final boolean _isWeak;
+	private final long _lastModifiedMillis;
+
+	/**
+	 * Creates a validator.
+	 *
+	 * @param opaqueTag The entity tag, without quotes or weak prefix (null if there is no tag).
+	 * @param isWeak True if the tag is only a weak validator (semantically equivalent, not byte-identical, responses).
+	 * @param lastModifiedMillis The last-modified time, in milliseconds since the epoch (-1 if unknown).
+	 */
+	public ResponseValidator(String opaqueTag, boolean isWeak, long lastModifiedMillis)
+	{
+		Assert.assertTrue((null != opaqueTag) || (lastModifiedMillis >= 0L));
+		Assert.assertTrue((null == opaqueTag) || (-1 == opaqueTag.indexOf('"')));
+		_opaqueTag = opaqueTag;
+		_isWeak = isWeak;
+		_lastModifiedMillis = lastModifiedMillis;
+	}
+
+	/**
+	 * @return The entity tag, as it should appear in an "ETag" header (null if there is no tag).
+	 */
+	public String getEntityTag()
+	{
+		String tag = null;
+		if (null != _opaqueTag)
+		{
+			tag = (_isWeak ? "W/\"" : "\"") + _opaqueTag + "\"";
+		}
+		return tag;
+	}
+
+	/**
+	 * @return The last-modified time, in milliseconds since the epoch (-1 if unknown).
+	 */
+	public long getLastModifiedMillis()
+	{
+		return _lastModifiedMillis;
+	}
+
+	/**
+	 * Returns a weak version of this validator.  This is needed when the bytes of the response may vary (for example,
+	 * due to content encoding) even though the underlying resource is the same.
+	 *
+	 * @return A weak version of this validator (could be this instance if it is already weak).
+	 */
+	public ResponseValidator asWeak()
+	{
+		return (_isWeak || (null == _opaqueTag))
+				? this
+				: new ResponseValidator(_opaqueTag, true, _lastModifiedMillis)
+		;
+	}
+
+	/**
+	 * Sets the "ETag" and "Last-Modified" headers on the response, for whichever of them this validator has.
+	 *
+	 * @param response The response.
+	 */
+	public void applyHeaders(HttpServletResponse response)
+	{
+		String tag = getEntityTag();
+		if (null != tag)
+		{
+			response.setHeader("ETag", tag);
+		}
+		if (_lastModifiedMillis >= 0L)
+		{
+			response.setDateHeader("Last-Modified", _lastModifiedMillis);
+		}
+	}
+
+	/**
+	 * Checks the conditional headers of the request against this validator, following RFC 9110:  "If-None-Match" uses
+	 * weak comparison and, if present, "If-Modified-Since" is ignored.
+	 *
+	 * @param request The request.
+	 * @return True if the client's copy is current, meaning a 304 should be sent instead of the body.
+	 */
+	public boolean isNotModified(HttpServletRequest request)
+	{
+		boolean notModified = false;
+		String ifNoneMatch = request.getHeader("If-None-Match");
+		if (null != ifNoneMatch)
+		{
+			if (null != _opaqueTag)
+			{
+				for (String candidate : ifNoneMatch.split(","))
+				{
+					String trimmed = candidate.trim();
+					if (trimmed.startsWith("W/"))
+					{
+						trimmed = trimmed.substring(2);
+					}
+					if ("*".equals(trimmed) || trimmed.equals("\"" + _opaqueTag + "\""))
+					{
+						notModified = true;
+					}
+				}
+			}
+		}
+		else if (_lastModifiedMillis >= 0L)
+		{
+			long ifModifiedSince;
+			try
+			{
+				ifModifiedSince = request.getDateHeader("If-Modified-Since");
+			}
+			catch (IllegalArgumentException e)
+			{
+				// A malformed date is just ignored.
+				ifModifiedSince = -1L;
+			}
+			// HTTP dates only have second granularity.
+			notModified = (ifModifiedSince >= 0L) && ((_lastModifiedMillis / 1000L) <= (ifModifiedSince / 1000L));
+		}
+		return notModified;
+	}
+
+	/**
+	 * Checks the "If-Range" header of the request against this validator, following RFC 9110:  an entity tag only
+	 * matches using strong comparison (so never if this validator is weak) and a date only matches the last-modified
+	 * time exactly.
+	 *
+	 * @param request The request.
+	 * @return True if there is no "If-Range" header or it matches, meaning the "Range" header can be honoured.
+	 */
+	public boolean isRangeCurrent(HttpServletRequest request)
+	{
+		boolean current = true;
+		String ifRange = request.getHeader("If-Range");
+		if (null != ifRange)
+		{
+			String trimmed = ifRange.trim();
+			if (trimmed.startsWith("\"") || trimmed.startsWith("W/"))
+			{
+				current = !_isWeak && (null != _opaqueTag) && trimmed.equals("\"" + _opaqueTag + "\"");
+			}
+			else
+			{
+				long ifRangeDate;
+				try
+				{
+					ifRangeDate = request.getDateHeader("If-Range");
+				}
+				catch (IllegalArgumentException e)
+				{
+					// A malformed date can't match.
+					ifRangeDate = -1L;
+				}
+				current = (ifRangeDate >= 0L) && (_lastModifiedMillis >= 0L) && ((_lastModifiedMillis / 1000L) == (ifRangeDate / 1000L));
+			}
+		}
+		return current;
+	}
+}
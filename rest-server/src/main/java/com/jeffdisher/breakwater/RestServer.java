@@ -1,26 +1,54 @@
 package com.jeffdisher.breakwater;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.InetSocketAddress;
 import java.net.URLDecoder;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.zip.Deflater;
 
+import org.eclipse.jetty.alpn.server.ALPNServerConnectionFactory;
+import org.eclipse.jetty.http2.HTTP2Cipher;
+import org.eclipse.jetty.http2.server.AbstractHTTP2ServerConnectionFactory;
+import org.eclipse.jetty.http2.server.HTTP2CServerConnectionFactory;
+import org.eclipse.jetty.http2.server.HTTP2ServerConnectionFactory;
+import org.eclipse.jetty.io.ArrayByteBufferPool;
+import org.eclipse.jetty.io.ByteBufferPool;
+import org.eclipse.jetty.server.AbstractConnector;
+import org.eclipse.jetty.server.ConnectionFactory;
+import org.eclipse.jetty.server.Connector;
+import org.eclipse.jetty.server.HttpConfiguration;
+import org.eclipse.jetty.server.HttpConnectionFactory;
+import org.eclipse.jetty.server.MultiPartFormInputStream;
 import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.SecureRequestCustomizer;
 import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.SslConnectionFactory;
 import org.eclipse.jetty.server.handler.HandlerList;
 import org.eclipse.jetty.server.handler.ResourceHandler;
+import org.eclipse.jetty.server.session.FileSessionDataStore;
+import org.eclipse.jetty.server.session.SessionHandler;
 import org.eclipse.jetty.servlet.ServletContextHandler;
 import org.eclipse.jetty.servlet.ServletHolder;
+import org.eclipse.jetty.unixdomain.server.UnixDomainServerConnector;
 import org.eclipse.jetty.util.MultiMap;
 import org.eclipse.jetty.util.UrlEncoded;
+import org.eclipse.jetty.util.compression.CompressionPool;
+import org.eclipse.jetty.util.compression.DeflaterPool;
 import org.eclipse.jetty.util.resource.Resource;
+import org.eclipse.jetty.util.ssl.SslContextFactory;
+import org.eclipse.jetty.websocket.api.ExtensionConfig;
 import org.eclipse.jetty.websocket.api.WebSocketListener;
+import org.eclipse.jetty.websocket.core.server.WebSocketServerComponents;
 import org.eclipse.jetty.websocket.server.JettyServerUpgradeRequest;
 import org.eclipse.jetty.websocket.server.JettyServerUpgradeResponse;
 import org.eclipse.jetty.websocket.server.JettyWebSocketCreator;
@@ -33,6 +61,7 @@ import com.jeffdisher.breakwater.paths.IPathParser;
 import com.jeffdisher.breakwater.paths.StringPathParser;
 import com.jeffdisher.breakwater.utilities.Assert;
 
+import jakarta.servlet.AsyncContext;
 import jakarta.servlet.MultipartConfigElement;
 import jakarta.servlet.ServletException;
 import jakarta.servlet.http.HttpServletRequest;
@@ -43,9 +72,14 @@ import jakarta.servlet.http.Part;
 public class RestServer {
 	private final static int MAX_POST_SIZE = 64 * 1024;
 	private final static int MAX_VARIABLES = 16;
+	private final static long DEFAULT_MAX_DECOMPRESSED_BYTES = 64L * 1024L * 1024L;
+	private final static String PERMESSAGE_DEFLATE = "permessage-deflate";
 
 	private final EntryPoint _entryPoint;
 	private final Server _server;
+	private final ServletContextHandler _context;
+	// The HTTP/2 configuration given to the legacy single-address constructor, reused by addUnixDomainSocket().
+	private final Http2Configuration _http2;
 	private final List<HandlerTuple<IDeleteHandler>> _deleteHandlers;
 	private final List<HandlerTuple<IGetHandler>> _getHandlers;
 	private final List<HandlerTuple<IPostFormHandler>> _postFormHandlers;
@@ -53,8 +87,17 @@ public class RestServer {
 	private final List<HandlerTuple<IPostRawHandler>> _postRawHandlers;
 	private final List<HandlerTuple<IPutHandler>> _putHandlers;
 	private final List<WebSocketFactoryTuple> _webSocketFactories;
+	private final WebSocketRegistry _webSocketRegistry;
+	// The buffers used when an IWebSocketStreamListener retains a fragment.
+	private final ByteBufferPool _fragmentPool;
+	private final List<HandlerTuple<IEventStreamHandler>> _eventStreamHandlers;
 	
 	private final Map<String, IPathParser> _pathParsers;
+	private volatile long _maxDecompressedBytes;
+	// Null unless setSessionCache() was called.
+	private BoundedSessionCache _sessionCache;
+	// Null unless setCookieSessions() was called.
+	private CookieSessionCodec _cookieSessions;
 
 	/**
 	 * Creates a new RestServer, ready to be started with start() once handlers have been installed.
@@ -70,8 +113,93 @@ public class RestServer {
 			, String cacheControl
 	)
 	{
+		this(bindAddress, staticContentResource, cacheControl, 0L);
+	}
+
+	/**
+	 * Creates a new RestServer, ready to be started with start() once handlers have been installed.
+	 * If staticCacheBytes is positive, static files are served from an in-memory LRU cache of up to that many bytes
+	 * (including any precompressed ".gz" siblings, which are sent to clients accepting gzip).  Anything which can't be
+	 * served from the cache falls back to the normal static resource handling.
+	 * 
+	 * @param bindAddress The interface to bind.
+	 * @param staticContentResource The description of how to handle static resources (no static if null).
+	 * @param cacheControl The cache control string for the static resources (default if null - 
+	 * "no-store,no-cache,must-revalidate" is good for disabling).
+	 * @param staticCacheBytes The maximum number of bytes of static content to cache in memory (0 to disable caching).
+	 */
+	public RestServer(InetSocketAddress bindAddress
+			, Resource staticContentResource
+			, String cacheControl
+			, long staticCacheBytes
+	)
+	{
+		this(bindAddress, staticContentResource, cacheControl, staticCacheBytes, null);
+	}
+
+	/**
+	 * Creates a new RestServer, ready to be started with start() once handlers have been installed.
+	 * If http2 is non-null, the connector also offers HTTP/2:  cleartext (h2c upgrade or prior knowledge) if it has no
+	 * key store, or over TLS (negotiated via ALPN) if it does.  HTTP/1.1 clients are always supported.
+	 * 
+	 * @param bindAddress The interface to bind (null if the server will only listen on Unix domain sockets).
+	 * @param staticContentResource The description of how to handle static resources (no static if null).
+	 * @param cacheControl The cache control string for the static resources (default if null - 
+	 * "no-store,no-cache,must-revalidate" is good for disabling).
+	 * @param staticCacheBytes The maximum number of bytes of static content to cache in memory (0 to disable caching).
+	 * @param http2 The HTTP/2 configuration (null if only HTTP/1.1 should be offered).
+	 */
+	public RestServer(InetSocketAddress bindAddress
+			, Resource staticContentResource
+			, String cacheControl
+			, long staticCacheBytes
+			, Http2Configuration http2
+	)
+	{
+		// A null bindAddress means that the server will only listen on Unix domain sockets (see addUnixDomainSocket()).
+		this((null != bindAddress) ? List.of(ConnectorConfiguration.tcp(bindAddress).http2(http2).build()) : List.of()
+				, staticContentResource
+				, cacheControl
+				, staticCacheBytes
+				, http2
+		);
+	}
+
+	/**
+	 * Creates a new RestServer, ready to be started with start() once handlers have been installed.
+	 * The server listens on each of the given connectors, all of which serve the same handlers.  More can be added with
+	 * addConnector(), before start().
+	 * 
+	 * @param connectors The listeners to create (can be empty if they will all be added with addConnector()).
+	 * @param staticContentResource The description of how to handle static resources (no static if null).
+	 * @param cacheControl The cache control string for the static resources (default if null - 
+	 * "no-store,no-cache,must-revalidate" is good for disabling).
+	 * @param staticCacheBytes The maximum number of bytes of static content to cache in memory (0 to disable caching).
+	 */
+	public RestServer(List<ConnectorConfiguration> connectors
+			, Resource staticContentResource
+			, String cacheControl
+			, long staticCacheBytes
+	)
+	{
+		this(connectors, staticContentResource, cacheControl, staticCacheBytes, null);
+	}
+
+	private RestServer(List<ConnectorConfiguration> connectors
+			, Resource staticContentResource
+			, String cacheControl
+			, long staticCacheBytes
+			, Http2Configuration http2
+	)
+	{
+		Assert.assertTrue(staticCacheBytes >= 0L);
 		_entryPoint = new EntryPoint();
-		_server = new Server(bindAddress);
+		_server = new Server();
+		_http2 = http2;
+		for (ConnectorConfiguration connector : connectors)
+		{
+			_server.addConnector(_createConnector(_server, connector));
+		}
 		
 		// Create the static resource handler.
 		ResourceHandler staticResources = null;
@@ -86,13 +214,22 @@ public class RestServer {
 		
 		// We need to create a ServletContextHandler in order to check the request path in web socket connections and we will request that it enables session management.
 		ServletContextHandler context = new ServletContextHandler(ServletContextHandler.SESSIONS);
-		context.addServlet(new ServletHolder(_entryPoint), "/*");
+		_context = context;
+		ServletHolder holder = new ServletHolder(_entryPoint);
+		// Event streams need async support in order to stay open without holding a thread.
+		holder.setAsyncSupported(true);
+		context.addServlet(holder, "/*");
 		
 		// We also want to enable WebSockets.
 		JettyWebSocketServletContainerInitializer.configure(context, null);
 		
 		if (null != staticResources) {
 			HandlerList list = new HandlerList();
+			if (staticCacheBytes > 0L)
+			{
+				// The cache goes first, falling back to the ResourceHandler for anything it can't serve from memory.
+				list.addHandler(new StaticContentCache(staticContentResource, cacheControl, staticCacheBytes));
+			}
 			list.addHandler(staticResources);
 			list.addHandler(context);
 			_server.setHandler(list);
@@ -107,11 +244,16 @@ public class RestServer {
 		_postRawHandlers = new ArrayList<>();
 		_putHandlers = new ArrayList<>();
 		_webSocketFactories = new ArrayList<>();
+		_webSocketRegistry = new WebSocketRegistry();
+		_fragmentPool = new ArrayByteBufferPool();
+		_eventStreamHandlers = new ArrayList<>();
 		
 		// Setup the path parsers with the built-in types.
 		_pathParsers = new HashMap<>();
 		// "string" matches on any string path component.
 		_pathParsers.put("string", new StringPathParser());
+		
+		_maxDecompressedBytes = DEFAULT_MAX_DECOMPRESSED_BYTES;
 	}
 
 	/**
@@ -129,6 +271,20 @@ public class RestServer {
 		_pathParsers.put(name, parser);
 	}
 
+	/**
+	 * Sets the limit on how large a compressed ("Content-Encoding: gzip" or "deflate") POST or PUT body may become once
+	 * inflated.  Handlers reading past this limit will see an IOException and the client will be sent a 413, if the
+	 * response wasn't yet committed.
+	 * The default is 64 MiB.
+	 * 
+	 * @param maxBytes The maximum number of bytes an encoded request body may inflate to.
+	 */
+	public void setMaxDecompressedRequestSize(long maxBytes)
+	{
+		Assert.assertTrue(maxBytes > 0L);
+		_maxDecompressedBytes = maxBytes;
+	}
+
 	public void addDeleteHandler(String path, IDeleteHandler handler)
 	{
 		_deleteHandlers.add(0, new HandlerTuple<>(_parsePath(path), handler));
@@ -136,7 +292,37 @@ public class RestServer {
 
 	public void addGetHandler(String path, IGetHandler handler)
 	{
-		_getHandlers.add(0, new HandlerTuple<>(_parsePath(path), handler));
+		addGetHandler(path, handler, null);
+	}
+
+	/**
+	 * Adds a GET handler whose responses will be compressed, according to the given policy, when the client accepts
+	 * gzip or deflate encoding.
+	 * A handler which writes asynchronously (setting a WriteListener before writing its response) is sent uncompressed.
+	 * 
+	 * @param path The path to handle.
+	 * @param handler The handler.
+	 * @param compression The compression policy for this route (null if responses should never be compressed).
+	 */
+	public void addGetHandler(String path, IGetHandler handler, CompressionPolicy compression)
+	{
+		addGetHandler(path, handler, compression, null);
+	}
+
+	/**
+	 * Adds a GET handler whose responses may be compressed and/or cached.
+	 * When a cache is provided, the handler is only invoked on a cache miss (and only once for concurrent misses on the
+	 * same key).  Compression is applied when sending the response, so the cache holds the uncompressed response.
+	 * A handler which writes asynchronously (setting a WriteListener) is never cached, nor compressed.
+	 * 
+	 * @param path The path to handle.
+	 * @param handler The handler.
+	 * @param compression The compression policy for this route (null if responses should never be compressed).
+	 * @param cache The response cache for this route (null if responses should never be cached).
+	 */
+	public void addGetHandler(String path, IGetHandler handler, CompressionPolicy compression, ResponseCache cache)
+	{
+		_getHandlers.add(0, new HandlerTuple<>(_parsePath(path), handler, compression, cache));
 	}
 
 	public void addPostFormHandler(String path, IPostFormHandler handler)
@@ -161,7 +347,149 @@ public class RestServer {
 
 	public void addWebSocketFactory(String path, String protocolName, IWebSocketFactory factory)
 	{
-		_webSocketFactories.add(0, new WebSocketFactoryTuple(_parsePath(path), protocolName, factory));
+		addWebSocketFactory(path, protocolName, factory, null);
+	}
+
+	/**
+	 * Adds a WebSocket route whose sessions are configured with the given settings (idle timeout, message size limits,
+	 * etc), instead of the defaults.
+	 * 
+	 * @param path The path to handle.
+	 * @param protocolName The sub-protocol the client must request.
+	 * @param factory The factory which creates the listener for each connection.
+	 * @param settings The settings to apply to each session when it connects (null to use WebSocketSettings.DEFAULT).
+	 */
+	public void addWebSocketFactory(String path, String protocolName, IWebSocketFactory factory, WebSocketSettings settings)
+	{
+		_webSocketFactories.add(0, new WebSocketFactoryTuple(path, _parsePath(path), protocolName, factory, settings));
+	}
+
+	/**
+	 * @return The registry of open WebSocket connections, for their counts and estimated memory use.
+	 */
+	public WebSocketRegistry getWebSocketRegistry()
+	{
+		return _webSocketRegistry;
+	}
+
+	/**
+	 * Sets the zlib compression level used by permessage-deflate on all WebSocket routes which negotiate it (see
+	 * WebSocketSettings.Builder.compression()).  Jetty shares one pool of deflaters across the server, so the level
+	 * can't differ between routes.  Must be called before start().
+	 * The default is Deflater.DEFAULT_COMPRESSION.
+	 * 
+	 * @param level The compression level (Deflater.DEFAULT_COMPRESSION or 0-9).
+	 */
+	public void setWebSocketCompressionLevel(int level)
+	{
+		Assert.assertTrue((Deflater.DEFAULT_COMPRESSION == level) || ((level >= Deflater.NO_COMPRESSION) && (level <= Deflater.BEST_COMPRESSION)));
+		Assert.assertTrue(!_server.isStarted());
+		// WebSocket deflate streams are raw (no zlib header), hence "nowrap".
+		DeflaterPool pool = new DeflaterPool(CompressionPool.DEFAULT_CAPACITY, level, true);
+		// Jetty doesn't manage a pool it is given, so the server starts and stops it.
+		_server.addBean(pool);
+		_context.setAttribute(WebSocketServerComponents.WEBSOCKET_DEFLATER_POOL_ATTRIBUTE, pool);
+	}
+
+	/**
+	 * Adds a Server-Sent Events ("text/event-stream") route.  Each GET to the path is subscribed to the EventStream
+	 * selected by the handler and is held open asynchronously (without occupying a thread) until the client disconnects,
+	 * falls too far behind, or the stream is closed.
+	 * These routes take precedence over GET handlers with the same path.
+	 * 
+	 * @param path The path to handle.
+	 * @param handler The handler which selects the stream for each connecting client.
+	 */
+	public void addEventStreamHandler(String path, IEventStreamHandler handler)
+	{
+		_eventStreamHandlers.add(0, new HandlerTuple<>(_parsePath(path), handler));
+	}
+
+	/**
+	 * Replaces Jetty's default session cache (which keeps every session in memory until it expires) with one which
+	 * evicts sessions to files in the settings' store directory, either when there are too many of them or when they
+	 * have been idle for too long, reloading them when they are next used.  Must be called before start().
+	 * 
+	 * @param settings The limits of the cache and where to store evicted sessions.
+	 */
+	public void setSessionCache(SessionCacheSettings settings)
+	{
+		Assert.assertTrue(null != settings);
+		Assert.assertTrue(!_server.isStarted());
+		Assert.assertTrue(null == _cookieSessions);
+		SessionHandler handler = _context.getSessionHandler();
+		FileSessionDataStore store = new FileSessionDataStore();
+		store.setStoreDir(settings.storeDirectory.toFile());
+		// A file we can't read back (its attributes' classes changed, for example) is treated as a lost session.
+		store.setDeleteUnrestorableFiles(true);
+		BoundedSessionCache cache = new BoundedSessionCache(handler, settings.maxSessions);
+		cache.setSessionDataStore(store);
+		cache.setRemoveUnloadableSessions(true);
+		cache.setSaveOnInactiveEviction(true);
+		if (settings.idleEvictionSeconds > 0)
+		{
+			cache.setEvictionPolicy(settings.idleEvictionSeconds);
+		}
+		handler.setSessionCache(cache);
+		_sessionCache = cache;
+	}
+
+	/**
+	 * @return The session cache installed by setSessionCache(), for its hit, miss, and eviction counts (null if
+	 * setSessionCache() wasn't called).
+	 */
+	public BoundedSessionCache getSessionCache()
+	{
+		return _sessionCache;
+	}
+
+	/**
+	 * Makes request.getSession() return stateless sessions, whose attributes are kept in a signed (and optionally
+	 * encrypted) cookie instead of in server memory, so that any server sharing the same keys can handle any request
+	 * without sticky load balancing.  Attributes are limited to String, Integer, Long, Boolean, and Double values and
+	 * must be set before the response is committed.  Can't be combined with setSessionCache().  Must be called before
+	 * start().
+	 * 
+	 * @param settings The keys and limits of the session cookie.
+	 */
+	public void setCookieSessions(CookieSessionSettings settings)
+	{
+		Assert.assertTrue(null != settings);
+		Assert.assertTrue(!_server.isStarted());
+		Assert.assertTrue(null == _sessionCache);
+		_cookieSessions = new CookieSessionCodec(settings);
+	}
+
+	/**
+	 * Adds a listener on a Unix domain socket, in addition to (or, if the server was created without a bindAddress,
+	 * instead of) the TCP listener.  This is useful for a proxy on the same host, since it avoids the overhead of the
+	 * loopback TCP stack.  The socket speaks the same protocols as the TCP listener, except that it never uses TLS.
+	 * Must be called before start() and requires a JDK with Unix domain socket support (16+).
+	 * Use addConnector() with ConnectorConfiguration.unixDomain() to tune the listener.
+	 * 
+	 * @param socketPath The path where the socket file will be created (must not already exist).
+	 */
+	public void addUnixDomainSocket(Path socketPath)
+	{
+		Assert.assertTrue(null != socketPath);
+		Assert.assertTrue(!_server.isStarted());
+		Http2Configuration cleartext = ((null != _http2) && _http2.isSecure())
+				? new Http2Configuration(_http2.maxConcurrentStreams, _http2.initialStreamWindowBytes, _http2.initialSessionWindowBytes, null, null)
+				: _http2
+		;
+		addConnector(ConnectorConfiguration.unixDomain(socketPath).http2(cleartext).build());
+	}
+
+	/**
+	 * Adds another listener to the server.  Must be called before start().
+	 * 
+	 * @param connector The description of the listener.
+	 */
+	public void addConnector(ConnectorConfiguration connector)
+	{
+		Assert.assertTrue(null != connector);
+		Assert.assertTrue(!_server.isStarted());
+		_server.addConnector(_createConnector(_server, connector));
 	}
 
 	public void start() {
@@ -184,11 +512,52 @@ public class RestServer {
 	}
 
 	/**
-	 * @return The port the server bound for listening (undefined before start()).
+	 * @return The port the server bound for listening (undefined before start(), -1 if only listening on Unix domain
+	 * sockets).
 	 */
 	public int getPort()
 	{
-		return _server.getURI().getPort();
+		int port = -1;
+		for (Connector connector : _server.getConnectors())
+		{
+			if ((-1 == port) && (connector instanceof ServerConnector))
+			{
+				port = ((ServerConnector)connector).getLocalPort();
+			}
+		}
+		return port;
+	}
+
+	/**
+	 * @return The ports bound by each of the TCP listeners, in the order they were added (undefined before start()).
+	 */
+	public List<Integer> getPorts()
+	{
+		List<Integer> ports = new ArrayList<>();
+		for (Connector connector : _server.getConnectors())
+		{
+			if (connector instanceof ServerConnector)
+			{
+				ports.add(((ServerConnector)connector).getLocalPort());
+			}
+		}
+		return ports;
+	}
+
+	/**
+	 * @return The paths of the Unix domain sockets the server is listening on (empty if there are none).
+	 */
+	public List<Path> getUnixDomainSocketPaths()
+	{
+		List<Path> paths = new ArrayList<>();
+		for (Connector connector : _server.getConnectors())
+		{
+			if (connector instanceof UnixDomainServerConnector)
+			{
+				paths.add(((UnixDomainServerConnector)connector).getUnixDomainPath());
+			}
+		}
+		return paths;
 	}
 
 
@@ -196,10 +565,15 @@ public class RestServer {
 		private static final long serialVersionUID = 1L;
 		
 		@Override
-		protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException
+		protected void doGet(HttpServletRequest original, HttpServletResponse response) throws ServletException, IOException
 		{
+			HttpServletRequest request = _wrapSession(original, response);
 			String target = request.getPathInfo();
-			boolean found = _handleGet(target, request, response);
+			boolean found = _handleEventStream(target, request, response);
+			if (!found)
+			{
+				found = _handleGet(target, request, response);
+			}
 			if (!found)
 			{
 				// We will use 404 since calling super gives 405, which isn't generally what we want (since GET is clearly 404).
@@ -207,30 +581,67 @@ public class RestServer {
 			}
 		}
 		@Override
-		protected void doPost(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException
+		protected void doPost(HttpServletRequest original, HttpServletResponse response) throws ServletException, IOException
 		{
+			HttpServletRequest request = _wrapSession(original, response);
 			String target = request.getPathInfo();
-			boolean found = _handlePost(target, request, response);
-			if (!found)
+			// If the body was sent compressed, the handler will see the inflated stream.
+			HttpServletRequest decoded = DecompressingRequest.wrapIfEncoded(request, _maxDecompressedBytes);
+			if (null != decoded)
 			{
-				// We will use 404 since calling super gives 405, which isn't generally what we want (since GET is clearly 404).
-				response.sendError(HttpServletResponse.SC_NOT_FOUND);
+				boolean found;
+				try
+				{
+					found = _handlePost(target, decoded, response);
+				}
+				catch (IOException e)
+				{
+					found = _handleDecompressionFailure(e, response);
+				}
+				if (!found)
+				{
+					// We will use 404 since calling super gives 405, which isn't generally what we want (since GET is clearly 404).
+					response.sendError(HttpServletResponse.SC_NOT_FOUND);
+				}
+			}
+			else
+			{
+				response.sendError(HttpServletResponse.SC_UNSUPPORTED_MEDIA_TYPE);
 			}
 		}
 		@Override
-		protected void doPut(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException
+		protected void doPut(HttpServletRequest original, HttpServletResponse response) throws ServletException, IOException
 		{
+			HttpServletRequest request = _wrapSession(original, response);
 			String target = request.getPathInfo();
-			boolean found = _handlePut(target, request, response);
-			if (!found)
+			// If the body was sent compressed, the handler will see the inflated stream.
+			HttpServletRequest decoded = DecompressingRequest.wrapIfEncoded(request, _maxDecompressedBytes);
+			if (null != decoded)
 			{
-				// We will use 404 since calling super gives 405, which isn't generally what we want (since GET is clearly 404).
-				response.sendError(HttpServletResponse.SC_NOT_FOUND);
+				boolean found;
+				try
+				{
+					found = _handlePut(target, decoded, response);
+				}
+				catch (IOException e)
+				{
+					found = _handleDecompressionFailure(e, response);
+				}
+				if (!found)
+				{
+					// We will use 404 since calling super gives 405, which isn't generally what we want (since GET is clearly 404).
+					response.sendError(HttpServletResponse.SC_NOT_FOUND);
+				}
+			}
+			else
+			{
+				response.sendError(HttpServletResponse.SC_UNSUPPORTED_MEDIA_TYPE);
 			}
 		}
 		@Override
-		protected void doDelete(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException
+		protected void doDelete(HttpServletRequest original, HttpServletResponse response) throws ServletException, IOException
 		{
+			HttpServletRequest request = _wrapSession(original, response);
 			String target = request.getPathInfo();
 			boolean found = _handleDelete(target, request, response);
 			if (!found)
@@ -243,7 +654,8 @@ public class RestServer {
 		protected void configure(JettyWebSocketServletFactory factory)
 		{
 			// Note:  This is called once during startup.
-			factory.setIdleTimeout(Duration.ofMillis(10_000L));
+			// These are the defaults, which routes with WebSocketSettings override when each session connects.
+			factory.setIdleTimeout(Duration.ofMillis(WebSocketSettings.DEFAULT.idleTimeoutMillis));
 			factory.setCreator(new JettyWebSocketCreator() {
 				@Override
 				public Object createWebSocket(JettyServerUpgradeRequest req, JettyServerUpgradeResponse resp)
@@ -253,17 +665,158 @@ public class RestServer {
 			});
 		}
 		
+		private HttpServletRequest _wrapSession(HttpServletRequest request, HttpServletResponse response)
+		{
+			return (null != _cookieSessions)
+					? new CookieSessionRequest(request, response, _cookieSessions)
+					: request
+			;
+		}
+		private boolean _handleEventStream(String target, HttpServletRequest request, HttpServletResponse response) throws IOException
+		{
+			boolean found = false;
+			OneMatch<IEventStreamHandler> matched = _findMatch(_eventStreamHandlers, target);
+			EventStream stream = (null != matched)
+					? matched.handler.selectStream(request, matched.matched)
+					: null
+			;
+			if (null != stream)
+			{
+				long lastEventId;
+				try
+				{
+					String header = request.getHeader("Last-Event-ID");
+					lastEventId = (null != header)
+							? Long.parseLong(header.trim())
+							: -1L
+					;
+				}
+				catch (NumberFormatException e)
+				{
+					// We only issue numeric IDs so anything else can't be resumed.
+					lastEventId = -1L;
+				}
+				response.setContentType("text/event-stream;charset=utf-8");
+				response.setHeader("Cache-Control", "no-cache");
+				response.setStatus(HttpServletResponse.SC_OK);
+				AsyncContext async = request.startAsync();
+				// The connection stays open until the client or the stream closes it.
+				async.setTimeout(0L);
+				stream.subscribe(async, lastEventId);
+				found = true;
+			}
+			return found;
+		}
 		private boolean _handleGet(String target, HttpServletRequest request, HttpServletResponse response) throws IOException
 		{
 			boolean found = false;
 			OneMatch<IGetHandler> matched = _findMatch(_getHandlers, target);
 			if (null != matched)
 			{
-				matched.handler.handle(request, response, matched.matched);
+				ResponseValidator validator = null;
+				if (matched.handler instanceof IConditionalGetHandler)
+				{
+					validator = ((IConditionalGetHandler)matched.handler).getValidator(request, matched.matched);
+					if ((null != validator) && (null != matched.compression))
+					{
+						// The bytes of a compressed response depend on the encoding so the tag can only be weak.
+						validator = validator.asWeak();
+					}
+				}
+				if (null != matched.compression)
+				{
+					// The representation depends on Accept-Encoding, whether or not we compress this specific response.
+					response.addHeader("Vary", "Accept-Encoding");
+				}
+				if (null != validator)
+				{
+					validator.applyHeaders(response);
+				}
+				boolean isRangeHandler = (matched.handler instanceof IRangeGetHandler);
+				if (isRangeHandler)
+				{
+					response.setHeader("Accept-Ranges", "bytes");
+				}
+				if ((null != validator) && validator.isNotModified(request))
+				{
+					// The client already has this version so we don't even ask the handler to generate the body.
+					response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+				}
+				else if (isRangeHandler && (null != request.getHeader("Range")))
+				{
+					_invokeRangeGet(matched, validator, request, response);
+				}
+				else
+				{
+					_invokeGet(matched, request, response);
+				}
 				found = true;
 			}
 			return found;
 		}
+		private void _invokeRangeGet(OneMatch<IGetHandler> matched, ResponseValidator validator, HttpServletRequest request, HttpServletResponse response) throws IOException
+		{
+			IRangeGetHandler handler = (IRangeGetHandler)matched.handler;
+			long length = handler.getLength(request, matched.matched);
+			// If-Range means "only send the range if it is still the version I have" so, without a validator, we can't.
+			boolean isRangeCurrent = (null != validator)
+					? validator.isRangeCurrent(request)
+					: (null == request.getHeader("If-Range"))
+			;
+			List<long[]> ranges = ((length >= 0L) && isRangeCurrent)
+					? ByteRanges.parse(request.getHeader("Range"), length)
+					: null
+			;
+			if (null == ranges)
+			{
+				_invokeGet(matched, request, response);
+			}
+			else if (ranges.isEmpty())
+			{
+				ByteRanges.sendUnsatisfiable(response, length);
+			}
+			else
+			{
+				// Partial responses are never compressed or cached:  they are meant to be byte offsets into the identity.
+				ByteRanges.sendRanges(handler, request, response, matched.matched, ranges, length);
+			}
+		}
+		private void _invokeGet(OneMatch<IGetHandler> matched, HttpServletRequest request, HttpServletResponse response) throws IOException
+		{
+			CompressionPolicy.Encoding encoding = (null != matched.compression)
+					? CompressionPolicy.selectEncoding(request.getHeader("Accept-Encoding"))
+					: null
+			;
+			if (null != encoding)
+			{
+				CompressingResponse compressing = new CompressingResponse(response, matched.compression, encoding);
+				boolean success = false;
+				try
+				{
+					_invokeOrServeCached(matched, request, compressing);
+					success = true;
+				}
+				finally
+				{
+					compressing.finish(success);
+				}
+			}
+			else
+			{
+				_invokeOrServeCached(matched, request, response);
+			}
+		}
+		private void _invokeOrServeCached(OneMatch<IGetHandler> matched, HttpServletRequest request, HttpServletResponse response) throws IOException
+		{
+			if (null != matched.cache)
+			{
+				matched.cache.serve(request, response, matched.matched, matched.handler);
+			}
+			else
+			{
+				matched.handler.handle(request, response, matched.matched);
+			}
+		}
 		private boolean _handlePost(String target, HttpServletRequest request, HttpServletResponse response) throws IOException, ServletException
 		{
 			boolean found = false;
@@ -279,23 +832,49 @@ public class RestServer {
 				if (null != matched)
 				{
 					StringMultiMap<byte[]> parts = new StringMultiMap<>();
-					request.setAttribute(Request.__MULTIPART_CONFIG_ELEMENT, new MultipartConfigElement(System.getProperty("java.io.tmpdir"), MAX_POST_SIZE, MAX_POST_SIZE, MAX_POST_SIZE + 1));
-					for (Part part : request.getParts()) {
-						String name = part.getName();
-						Assert.assertTrue(part.getSize() <= (long)MAX_POST_SIZE);
-						byte[] data = new byte[(int)part.getSize()];
-						if (data.length > 0) {
-							InputStream stream = part.getInputStream();
-							int didRead = stream.read(data);
-							while (didRead < data.length) {
-								didRead += stream.read(data, didRead, data.length - didRead);
+					String tempDirectory = System.getProperty("java.io.tmpdir");
+					MultipartConfigElement config = new MultipartConfigElement(tempDirectory, MAX_POST_SIZE, MAX_POST_SIZE, MAX_POST_SIZE + 1);
+					// We only own the parser (and so its temporary files) when parsing from our inflated stream.
+					MultiPartFormInputStream inflatedParser = null;
+					try
+					{
+						Collection<Part> requestParts;
+						if (request instanceof DecompressingRequest)
+						{
+							// Jetty's own getParts() would read the raw (still compressed) stream so we need to parse from our inflated stream.
+							inflatedParser = new MultiPartFormInputStream(request.getInputStream(), contentType, config, new File(tempDirectory));
+							requestParts = inflatedParser.getParts();
+						}
+						else
+						{
+							request.setAttribute(Request.__MULTIPART_CONFIG_ELEMENT, config);
+							requestParts = request.getParts();
+						}
+						for (Part part : requestParts) {
+							String name = part.getName();
+							Assert.assertTrue(part.getSize() <= (long)MAX_POST_SIZE);
+							byte[] data = new byte[(int)part.getSize()];
+							if (data.length > 0) {
+								InputStream stream = part.getInputStream();
+								int didRead = stream.read(data);
+								while (didRead < data.length) {
+									didRead += stream.read(data, didRead, data.length - didRead);
+								}
+							}
+							parts.append(name, data);
+							part.delete();
+							if (parts.valueCount() > MAX_VARIABLES) {
+								// We will only read the first MAX_VARIABLES, much like the form-encoded.
+								break;
 							}
 						}
-						parts.append(name, data);
-						part.delete();
-						if (parts.valueCount() > MAX_VARIABLES) {
-							// We will only read the first MAX_VARIABLES, much like the form-encoded.
-							break;
+					}
+					finally
+					{
+						if (null != inflatedParser)
+						{
+							// This removes any parts we didn't read (or didn't get to, if parsing failed).
+							inflatedParser.deleteParts();
 						}
 					}
 					matched.handler.handle(request, response, matched.matched, parts);
@@ -354,10 +933,34 @@ public class RestServer {
 			}
 			return found;
 		}
-		private WebSocketListener _handleWebSocketUpgrade(JettyServerUpgradeRequest req, JettyServerUpgradeResponse resp)
+		private boolean _handleDecompressionFailure(IOException e, HttpServletResponse response) throws IOException
+		{
+			int status;
+			if (DecompressingRequest.isLimitExceeded(e))
+			{
+				status = HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE;
+			}
+			else if (DecompressingRequest.isMalformed(e))
+			{
+				status = HttpServletResponse.SC_BAD_REQUEST;
+			}
+			else
+			{
+				throw e;
+			}
+			if (!response.isCommitted())
+			{
+				response.sendError(status);
+			}
+			// We did find the handler, it just didn't complete.
+			return true;
+		}
+		private Object _handleWebSocketUpgrade(JettyServerUpgradeRequest req, JettyServerUpgradeResponse resp)
 		{
 			String target = req.getRequestPath();
 			IWebSocketFactory matchedFactory = null;
+			WebSocketSettings matchedSettings = null;
+			String matchedPath = null;
 			Object[] matchedComponents = null;
 			for (WebSocketFactoryTuple tuple : _webSocketFactories) {
 				Object[] possible = tuple.matcher.handle(target);
@@ -379,12 +982,16 @@ public class RestServer {
 							// This is a static configuration error but we just log it and fail to interpret.
 							System.err.println("Ambiguous parse for WebSocket target: \"" + target + "\"");
 							matchedFactory = null;
+							matchedSettings = null;
+							matchedPath = null;
 							matchedComponents = null;
 							break;
 						}
 						else
 						{
 							matchedFactory = tuple.factory;
+							matchedSettings = tuple.settings;
+							matchedPath = tuple.path;
 							matchedComponents = possible;
 							// Be sure to set the accepted sub-protocol.
 							// Without this, we see "Sent non-empty 'Sec-WebSocket-Protocol' header" error on Chromium (not sure why not other browsers since this appears to be required).
@@ -394,11 +1001,86 @@ public class RestServer {
 				}
 			}
 			
-			// Create the factory if we had a single match.
-			return (null != matchedFactory)
-					? matchedFactory.create(req, matchedComponents)
-					: null
-			;
+			Object endpoint = null;
+			if (null != matchedFactory)
+			{
+				if (null != matchedSettings)
+				{
+					_applyCompressionSettings(resp, matchedSettings);
+				}
+				// The connection limits are checked before creating the listener, so rejected clients cost us nothing more.
+				boolean isCompressed = false;
+				for (ExtensionConfig extension : resp.getExtensions())
+				{
+					if (PERMESSAGE_DEFLATE.equals(extension.getName()))
+					{
+						isCompressed = true;
+					}
+				}
+				WebSocketSettings limits = (null != matchedSettings) ? matchedSettings : WebSocketSettings.DEFAULT;
+				WebSocketRegistry.Registration registration = _webSocketRegistry.register(matchedPath, req.getHttpServletRequest().getRemoteAddr(), limits, isCompressed);
+				if (null != registration)
+				{
+					try
+					{
+						WebSocketListener listener = matchedFactory.create(req, matchedComponents);
+						if (null != listener)
+						{
+							endpoint = ConfiguringWebSocketListener.wrap(listener, matchedSettings, registration, _fragmentPool);
+						}
+					}
+					finally
+					{
+						// If the factory declined (or threw), there is no listener to release the registration on close.
+						if (null == endpoint)
+						{
+							registration.release();
+						}
+					}
+				}
+				else
+				{
+					try
+					{
+						resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Too many connections");
+					}
+					catch (IOException e)
+					{
+						// The client is already gone.
+					}
+				}
+			}
+			return endpoint;
+		}
+		private void _applyCompressionSettings(JettyServerUpgradeResponse resp, WebSocketSettings settings)
+		{
+			// By this point, Jetty has already negotiated the extensions the client offered, so we just rewrite (or drop)
+			// permessage-deflate according to the route's settings.
+			List<ExtensionConfig> extensions = new ArrayList<>();
+			for (ExtensionConfig extension : resp.getExtensions())
+			{
+				if (PERMESSAGE_DEFLATE.equals(extension.getName()))
+				{
+					if (settings.compression)
+					{
+						String config = PERMESSAGE_DEFLATE;
+						if (!settings.serverContextTakeover)
+						{
+							config += "; server_no_context_takeover";
+						}
+						if (!settings.clientContextTakeover)
+						{
+							config += "; client_no_context_takeover";
+						}
+						extensions.add(ExtensionConfig.parse(config));
+					}
+				}
+				else
+				{
+					extensions.add(extension);
+				}
+			}
+			resp.setExtensions(extensions);
 		}
 	}
 
@@ -433,6 +1115,75 @@ public class RestServer {
 		return parsers;
 	}
 
+	private static Connector _createConnector(Server server, ConnectorConfiguration config)
+	{
+		ConnectionFactory[] factories = _createConnectionFactories(config);
+		AbstractConnector connector;
+		if (config.isUnixDomain())
+		{
+			UnixDomainServerConnector unix = new UnixDomainServerConnector(server, config.acceptors, config.selectors, factories);
+			unix.setUnixDomainPath(config.socketPath);
+			unix.setAcceptQueueSize(config.acceptQueueSize);
+			connector = unix;
+		}
+		else
+		{
+			ServerConnector tcp = new ServerConnector(server, config.acceptors, config.selectors, factories);
+			tcp.setHost(config.bindAddress.getHostString());
+			tcp.setPort(config.bindAddress.getPort());
+			tcp.setAcceptQueueSize(config.acceptQueueSize);
+			tcp.setAcceptedTcpNoDelay(config.tcpNoDelay);
+			connector = tcp;
+		}
+		connector.setIdleTimeout(config.idleTimeoutMillis);
+		return connector;
+	}
+
+	private static ConnectionFactory[] _createConnectionFactories(ConnectorConfiguration config)
+	{
+		Http2Configuration http2 = config.http2;
+		HttpConfiguration httpConfig = new HttpConfiguration();
+		httpConfig.setOutputBufferSize(config.outputBufferSize);
+		ConnectionFactory[] factories;
+		if (null == http2)
+		{
+			factories = new ConnectionFactory[] { new HttpConnectionFactory(httpConfig) };
+		}
+		else
+		{
+			if (http2.isSecure())
+			{
+				httpConfig.addCustomizer(new SecureRequestCustomizer());
+			}
+			HttpConnectionFactory http1 = new HttpConnectionFactory(httpConfig);
+			AbstractHTTP2ServerConnectionFactory h2 = http2.isSecure()
+					? new HTTP2ServerConnectionFactory(httpConfig)
+					: new HTTP2CServerConnectionFactory(httpConfig)
+			;
+			h2.setMaxConcurrentStreams(http2.maxConcurrentStreams);
+			h2.setInitialStreamRecvWindow(http2.initialStreamWindowBytes);
+			h2.setInitialSessionRecvWindow(http2.initialSessionWindowBytes);
+			if (http2.isSecure())
+			{
+				SslContextFactory.Server ssl = new SslContextFactory.Server();
+				ssl.setKeyStorePath(http2.keyStorePath.toString());
+				ssl.setKeyStorePassword(http2.keyStorePassword);
+				// HTTP/2 forbids many of the older cipher suites so make sure that they are ordered behind the allowed ones.
+				ssl.setCipherComparator(HTTP2Cipher.COMPARATOR);
+				ALPNServerConnectionFactory alpn = new ALPNServerConnectionFactory(h2.getProtocol(), http1.getProtocol());
+				alpn.setDefaultProtocol(http1.getProtocol());
+				SslConnectionFactory tls = new SslConnectionFactory(ssl, alpn.getProtocol());
+				factories = new ConnectionFactory[] { tls, alpn, h2, http1 };
+			}
+			else
+			{
+				// HTTP/1.1 goes first so that it is the default, with "h2c" handling both upgrades and prior knowledge.
+				factories = new ConnectionFactory[] { http1, h2 };
+			}
+		}
+		return factories;
+	}
+
 	private static <T> OneMatch<T> _findMatch(List<HandlerTuple<T>> handlers, String target)
 	{
 		OneMatch<T> matched = null;
@@ -449,7 +1200,7 @@ public class RestServer {
 				}
 				else
 				{
-					matched = new OneMatch<T>(tuple.handler, possible);
+					matched = new OneMatch<T>(tuple.handler, possible, tuple.compression, tuple.cache);
 				}
 			}
 		}
@@ -460,23 +1211,35 @@ public class RestServer {
 	private static class HandlerTuple<T> {
 		public final PathMatcher matcher;
 		public final T handler;
+		public final CompressionPolicy compression;
+		public final ResponseCache cache;
 		
 		public HandlerTuple(IPathParser[] parsers, T handler) {
+			this(parsers, handler, null, null);
+		}
+		
+		public HandlerTuple(IPathParser[] parsers, T handler, CompressionPolicy compression, ResponseCache cache) {
 			this.matcher = new PathMatcher(parsers);
 			this.handler = handler;
+			this.compression = compression;
+			this.cache = cache;
 		}
 	}
 
 
 	private static class WebSocketFactoryTuple {
+		public final String path;
 		public final PathMatcher matcher;
 		public final String protocolName;
 		public final IWebSocketFactory factory;
+		public final WebSocketSettings settings;
 		
-		public WebSocketFactoryTuple(IPathParser[] parsers, String protocolName, IWebSocketFactory factory) {
+		public WebSocketFactoryTuple(String path, IPathParser[] parsers, String protocolName, IWebSocketFactory factory, WebSocketSettings settings) {
+			this.path = path;
 			this.matcher = new PathMatcher(parsers);
 			this.protocolName = protocolName;
 			this.factory = factory;
+			this.settings = settings;
 		}
 	}
 
@@ -523,10 +1286,14 @@ public class RestServer {
 	{
 		private final T handler;
 		private final Object[] matched;
-		public OneMatch(T handler, Object[] matched)
+		private final CompressionPolicy compression;
+		private final ResponseCache cache;
+		public OneMatch(T handler, Object[] matched, CompressionPolicy compression, ResponseCache cache)
 		{
 			this.handler = handler;
 			this.matched = matched;
+			this.compression = compression;
+			this.cache = cache;
 		}
 	}
 }
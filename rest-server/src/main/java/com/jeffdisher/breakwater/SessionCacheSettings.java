@@ -0,0 +1,94 @@
+package com.jeffdisher.breakwater;
+
+import java.nio.file.Path;
+
+import com.jeffdisher.breakwater.utilities.Assert;
+
+
+/**
+ * The settings of the HTTP session cache, passed to RestServer.setSessionCache().  Sessions which are evicted from the
+ * cache (because there are too many, or they have been idle for too long) are kept in files under the store directory
+ * and reloaded the next time a request uses them.
+ * Instances are created with the Builder returned by builder().  By default, there is no limit on the number of
+ * sessions in memory and idle sessions are never evicted, so the files only act as a backup.
+ */
+public class SessionCacheSettings
+{
+	/**
+	 * @param storeDirectory The directory where sessions are written (it must exist and is never cleaned, except for
+	 * expired sessions).
+	 * @return A new builder, starting from the default settings.
+	 */
+	public static Builder builder(Path storeDirectory)
+	{
+		Assert.assertTrue(null != storeDirectory);
+		return new Builder(storeDirectory);
+	}
+
+	public final Path storeDirectory;
+	public final int maxSessions;
+	public final int idleEvictionSeconds;
+
+	private SessionCacheSettings(Path storeDirectory
+			, int maxSessions
+			, int idleEvictionSeconds
+	)
+	{
+		this.storeDirectory = storeDirectory;
+		this.maxSessions = maxSessions;
+		this.idleEvictionSeconds = idleEvictionSeconds;
+	}
+
+
+	/**
+	 * Accumulates the settings of a SessionCacheSettings.  Each setter returns the builder, for chaining.
+	 */
+	public static class Builder
+	{
+		private final Path _storeDirectory;
+		private int _maxSessions;
+		private int _idleEvictionSeconds;
+
+		private Builder(Path storeDirectory)
+		{
+			_storeDirectory = storeDirectory;
+			_maxSessions = Integer.MAX_VALUE;
+			_idleEvictionSeconds = 0;
+		}
+
+		/**
+		 * @param maxSessions The most sessions to keep in memory.  Beyond this, the least recently used sessions which
+		 * aren't in use by a request are evicted.
+		 * @return This builder.
+		 */
+		public Builder maxSessions(int maxSessions)
+		{
+			Assert.assertTrue(maxSessions > 0);
+			_maxSessions = maxSessions;
+			return this;
+		}
+
+		/**
+		 * @param idleEvictionSeconds How long a session can go without a request before it is evicted (0 to never
+		 * evict idle sessions).
+		 * @return This builder.
+		 */
+		public Builder idleEvictionSeconds(int idleEvictionSeconds)
+		{
+			Assert.assertTrue(idleEvictionSeconds >= 0);
+			_idleEvictionSeconds = idleEvictionSeconds;
+			return this;
+		}
+
+		/**
+		 * @return The settings.
+		 */
+		public SessionCacheSettings build()
+		{
+			return new SessionCacheSettings(_storeDirectory
+					, _maxSessions
+					, _idleEvictionSeconds
+			);
+		}
+	}
+}
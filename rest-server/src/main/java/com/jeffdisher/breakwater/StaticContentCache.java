@@ -0,0 +1,241 @@
+package com.jeffdisher.breakwater;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.eclipse.jetty.http.MimeTypes;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.eclipse.jetty.util.URIUtil;
+import org.eclipse.jetty.util.resource.Resource;
+
+import com.jeffdisher.breakwater.utilities.Assert;
+
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
+
+/**
+ * A handler which serves static files from an in-memory LRU cache, bounded by the total number of bytes cached.
+ * Entries hold the file contents along with the Content-Type, ETag, and Last-Modified headers so a hit does no file
+ * I/O.  If a sibling ".gz" file exists (for example, "app.js.gz" next to "app.js"), it is cached with the entry and
+ * served, with "Content-Encoding: gzip", to clients which accept gzip.
+ * Entries are only re-checked against the filesystem once every REVALIDATE_MILLIS, so changes to files are noticed
+ * without a stat on every request.
+ *
+ * Anything this handler doesn't want to serve (directories, missing files, files too large to cache, range requests)
+ * is left unhandled so that the ResourceHandler after it in the chain can handle it normally.
+ */
+class StaticContentCache extends AbstractHandler
+{
+	private static final long REVALIDATE_MILLIS = 1_000L;
+	// A single file may not consume more than this fraction of the cache, or it would just evict everything else.
+	private static final int MAX_ENTRY_FRACTION = 4;
+
+	private final Resource _base;
+	private final String _cacheControl;
+	private final long _maxBytes;
+	private final LinkedHashMap<String, Entry> _entries;
+	private long _cachedBytes;
+
+	/**
+	 * Creates the cache.
+	 *
+	 * @param base The root of the static content.
+	 * @param cacheControl The Cache-Control header to send (null to send none).
+	 * @param maxBytes The maximum number of bytes of file content to hold in memory.
+	 */
+	public StaticContentCache(Resource base, String cacheControl, long maxBytes)
+	{
+		Assert.assertTrue(maxBytes > 0L);
+		_base = base;
+		_cacheControl = cacheControl;
+		_maxBytes = maxBytes;
+		// Access-ordered so that the eldest entry is the least-recently used.
+		_entries = new LinkedHashMap<>(16, 0.75f, true);
+	}
+
+	@Override
+	public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws IOException
+	{
+		String method = request.getMethod();
+		boolean isGet = "GET".equals(method);
+		boolean isHead = "HEAD".equals(method);
+		// We leave range requests to the ResourceHandler since they are rare for the small assets we cache.
+		if ((isGet || isHead) && (null == request.getHeader("Range")))
+		{
+			String path = URIUtil.canonicalPath(target);
+			Entry entry = (null != path)
+					? _lookup(path)
+					: null
+			;
+			if (null != entry)
+			{
+				boolean useGzip = (null != entry.gzipContent) && _acceptsGzip(request);
+				ResponseValidator validator = useGzip ? entry.gzipValidator : entry.validator;
+				if (null != entry.gzipContent)
+				{
+					response.addHeader("Vary", "Accept-Encoding");
+				}
+				if (null != _cacheControl)
+				{
+					response.setHeader("Cache-Control", _cacheControl);
+				}
+				validator.applyHeaders(response);
+				if (validator.isNotModified(request))
+				{
+					response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+				}
+				else
+				{
+					byte[] content = useGzip ? entry.gzipContent : entry.content;
+					if (null != entry.contentType)
+					{
+						response.setContentType(entry.contentType);
+					}
+					if (useGzip)
+					{
+						response.setHeader("Content-Encoding", "gzip");
+					}
+					response.setStatus(HttpServletResponse.SC_OK);
+					response.setContentLength(content.length);
+					if (isGet)
+					{
+						response.getOutputStream().write(content);
+					}
+				}
+				baseRequest.setHandled(true);
+			}
+		}
+	}
+
+
+	private Entry _lookup(String path) throws IOException
+	{
+		long now = System.currentTimeMillis();
+		Entry entry;
+		synchronized (this)
+		{
+			entry = _entries.get(path);
+		}
+		if ((null != entry) && ((now - entry.checkedMillis) >= REVALIDATE_MILLIS))
+		{
+			// Time to make sure the file didn't change.
+			Resource resource = _base.addPath(path);
+			if (resource.exists() && (resource.lastModified() == entry.lastModified) && (resource.length() == entry.content.length))
+			{
+				entry.checkedMillis = now;
+			}
+			else
+			{
+				_remove(path, entry);
+				entry = null;
+			}
+		}
+		if (null == entry)
+		{
+			entry = _load(path, now);
+			if (null != entry)
+			{
+				_insert(path, entry);
+			}
+		}
+		return entry;
+	}
+
+	private Entry _load(String path, long now) throws IOException
+	{
+		Entry entry = null;
+		Resource resource = _base.addPath(path);
+		long maxEntryBytes = _maxBytes / MAX_ENTRY_FRACTION;
+		// Aliases (symlinks, etc) are left to the ResourceHandler, so it can apply its normal policy to them.
+		if (resource.exists() && !resource.isDirectory() && !resource.isAlias() && (resource.length() <= maxEntryBytes))
+		{
+			byte[] content = _readAll(resource);
+			long lastModified = resource.lastModified();
+			byte[] gzipContent = null;
+			Resource gzipResource = _base.addPath(path + ".gz");
+			// We only trust the compressed sibling if it isn't older than the original.
+			if (gzipResource.exists() && !gzipResource.isDirectory() && !gzipResource.isAlias() && (gzipResource.lastModified() >= lastModified) && ((content.length + gzipResource.length()) <= maxEntryBytes))
+			{
+				gzipContent = _readAll(gzipResource);
+			}
+			String contentType = MimeTypes.getDefaultMimeByExtension(path);
+			String tag = Long.toHexString(lastModified) + "-" + Long.toHexString(content.length);
+			ResponseValidator validator = new ResponseValidator(tag, true, lastModified);
+			ResponseValidator gzipValidator = new ResponseValidator(tag + "--gzip", true, lastModified);
+			entry = new Entry(content, gzipContent, contentType, validator, gzipValidator, lastModified, now);
+		}
+		return entry;
+	}
+
+	private synchronized void _insert(String path, Entry entry)
+	{
+		Entry old = _entries.put(path, entry);
+		if (null != old)
+		{
+			_cachedBytes -= old.size();
+		}
+		_cachedBytes += entry.size();
+		Iterator<Map.Entry<String, Entry>> iterator = _entries.entrySet().iterator();
+		while ((_cachedBytes > _maxBytes) && iterator.hasNext())
+		{
+			Map.Entry<String, Entry> eldest = iterator.next();
+			_cachedBytes -= eldest.getValue().size();
+			iterator.remove();
+		}
+	}
+
+	private synchronized void _remove(String path, Entry entry)
+	{
+		// Only remove it if another thread didn't already replace it.
+		if (_entries.remove(path, entry))
+		{
+			_cachedBytes -= entry.size();
+		}
+	}
+
+	private static byte[] _readAll(Resource resource) throws IOException
+	{
+		try (InputStream stream = resource.getInputStream())
+		{
+			return stream.readAllBytes();
+		}
+	}
+
+	private static boolean _acceptsGzip(HttpServletRequest request)
+	{
+		return CompressionPolicy.Encoding.GZIP == CompressionPolicy.selectEncoding(request.getHeader("Accept-Encoding"));
+	}
+
+
+	private static class Entry
+	{
+		public final byte[] content;
+		public final byte[] gzipContent;
+		public final String contentType;
+		public final ResponseValidator validator;
+		public final ResponseValidator gzipValidator;
+		public final long lastModified;
+		public volatile long checkedMillis;
+
+		public Entry(byte[] content, byte[] gzipContent, String contentType, ResponseValidator validator, ResponseValidator gzipValidator, long lastModified, long checkedMillis)
+		{
+			this.content = content;
+			this.gzipContent = gzipContent;
+			this.contentType = contentType;
+			this.validator = validator;
+			this.gzipValidator = gzipValidator;
+			this.lastModified = lastModified;
+			this.checkedMillis = checkedMillis;
+		}
+
+		public long size()
+		{
+			return content.length + ((null != gzipContent) ? gzipContent.length : 0);
+		}
+	}
+}
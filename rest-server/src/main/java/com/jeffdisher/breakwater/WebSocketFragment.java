@@ -0,0 +1,88 @@
+package com.jeffdisher.breakwater;
+
+import java.nio.ByteBuffer;
+
+import org.eclipse.jetty.io.ByteBufferPool;
+
+import com.jeffdisher.breakwater.utilities.Assert;
+
+
+/**
+ * A piece of a binary WebSocket message, passed to IWebSocketStreamListener.onWebSocketBinaryFragment().
+ * The fragment passed to the listener is a view of Jetty's network buffer, and is only valid during the call.  If the
+ * data is needed after that (to hand it to another thread, for example), retain() copies it into a pooled buffer,
+ * which must then be explicitly released.
+ */
+public class WebSocketFragment
+{
+	private final ByteBuffer _payload;
+	private final ByteBufferPool _pool;
+	private final boolean _isRetained;
+
+	// All the variables below are protected by the monitor on this.
+	private boolean _isValid;
+
+	WebSocketFragment(ByteBuffer payload, ByteBufferPool pool, boolean isRetained)
+	{
+		_payload = payload;
+		_pool = pool;
+		_isRetained = isRetained;
+		_isValid = true;
+	}
+
+	/**
+	 * @return A read-only view of the fragment's bytes.
+	 */
+	public synchronized ByteBuffer getPayload()
+	{
+		Assert.assertTrue(_isValid);
+		return _payload.asReadOnlyBuffer();
+	}
+
+	/**
+	 * @return The number of bytes in the fragment.
+	 */
+	public synchronized int getLength()
+	{
+		Assert.assertTrue(_isValid);
+		return _payload.remaining();
+	}
+
+	/**
+	 * Copies the fragment into a buffer from the server's pool, so it can be used after the listener callback returns.
+	 *
+	 * @return The new fragment, which must be released with release().
+	 */
+	public synchronized WebSocketFragment retain()
+	{
+		Assert.assertTrue(_isValid);
+		ByteBuffer copy = _pool.acquire(_payload.remaining(), false);
+		copy.clear();
+		copy.put(_payload.duplicate());
+		copy.flip();
+		return new WebSocketFragment(copy, _pool, true);
+	}
+
+	/**
+	 * Returns a retained fragment's buffer to the pool.  The fragment can't be used after this.
+	 */
+	public void release()
+	{
+		synchronized (this)
+		{
+			// Only retained fragments own their buffer and each can only be released once.
+			Assert.assertTrue(_isRetained);
+			Assert.assertTrue(_isValid);
+			_isValid = false;
+		}
+		_pool.release(_payload);
+	}
+
+	/**
+	 * Called when the listener callback returns, for fragments which are views of Jetty's buffer.
+	 */
+	synchronized void expire()
+	{
+		_isValid = false;
+	}
+}
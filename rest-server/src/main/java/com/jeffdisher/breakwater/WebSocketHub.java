@@ -0,0 +1,323 @@
+package com.jeffdisher.breakwater;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.StatusCode;
+import org.eclipse.jetty.websocket.common.WebSocketSession;
+import org.eclipse.jetty.websocket.core.OpCode;
+
+import com.jeffdisher.breakwater.utilities.Assert;
+
+
+/**
+ * A publish/subscribe hub for WebSocket sessions.  Sessions subscribe to named topics (typically from the listener's
+ * onWebSocketConnect()) and each publish is encoded once, with the same payload bytes written asynchronously to every
+ * subscriber of the topic.
+ *
+ * Each subscribed session has a bounded queue of outgoing messages (a WebSocketSender) so that a slow client can never
+ * block the publisher or the other subscribers.  When a message would exceed a session's limits, the hub's SlowConsumerPolicy decides
+ * whether that message is dropped for that session or the session is disconnected.
+ *
+ * Listeners should call unsubscribeAll() from onWebSocketClose() (sessions whose writes fail are also removed
+ * automatically).
+ */
+public class WebSocketHub
+{
+	/**
+	 * What to do with a session whose queue is full when a message is published to it.
+	 */
+	public static enum SlowConsumerPolicy
+	{
+		/**
+		 * The new message is not sent to that session (it is counted in getDroppedCount()).
+		 */
+		DROP,
+		/**
+		 * The session is closed with POLICY_VIOLATION and unsubscribed from everything.
+		 */
+		DISCONNECT,
+	}
+
+	private final int _maxQueuedMessages;
+	private final long _maxQueuedBytes;
+	private final SlowConsumerPolicy _policy;
+
+	// All the variables below are protected by the monitor on this.
+	private final Map<String, Topic> _topics;
+	private final Map<Session, Subscriber> _subscribers;
+	private long _dropped;
+	private long _disconnected;
+
+	/**
+	 * Creates a new hub.
+	 *
+	 * @param maxQueuedMessages The number of messages which can be waiting to be written to a single session.
+	 * @param maxQueuedBytes The number of payload bytes which can be waiting to be written to a single session.
+	 * @param policy What to do when a publish would exceed either of these limits for a session.
+	 */
+	public WebSocketHub(int maxQueuedMessages, long maxQueuedBytes, SlowConsumerPolicy policy)
+	{
+		Assert.assertTrue(maxQueuedMessages > 0);
+		Assert.assertTrue(maxQueuedBytes > 0L);
+		Assert.assertTrue(null != policy);
+		_maxQueuedMessages = maxQueuedMessages;
+		_maxQueuedBytes = maxQueuedBytes;
+		_policy = policy;
+		_topics = new HashMap<>();
+		_subscribers = new HashMap<>();
+	}
+
+	/**
+	 * Subscribes the session to the topic (does nothing if it is already subscribed).
+	 *
+	 * @param topic The topic name.
+	 * @param session The server-side session (as passed to onWebSocketConnect()).
+	 */
+	public synchronized void subscribe(String topic, Session session)
+	{
+		Assert.assertTrue(session instanceof WebSocketSession);
+		Subscriber subscriber = _subscribers.get(session);
+		if (null == subscriber)
+		{
+			subscriber = new Subscriber(session);
+			_subscribers.put(session, subscriber);
+		}
+		Topic container = _topics.get(topic);
+		if (null == container)
+		{
+			container = new Topic();
+			_topics.put(topic, container);
+		}
+		if (container.members.add(subscriber))
+		{
+			container.snapshot = null;
+			subscriber.topics.add(topic);
+		}
+	}
+
+	/**
+	 * Unsubscribes the session from the topic (does nothing if it wasn't subscribed).
+	 *
+	 * @param topic The topic name.
+	 * @param session The session.
+	 */
+	public synchronized void unsubscribe(String topic, Session session)
+	{
+		Subscriber subscriber = _subscribers.get(session);
+		if ((null != subscriber) && subscriber.topics.remove(topic))
+		{
+			_removeFromTopic(topic, subscriber);
+			if (subscriber.topics.isEmpty())
+			{
+				_subscribers.remove(session);
+			}
+		}
+	}
+
+	/**
+	 * Unsubscribes the session from every topic and drops anything still queued for it.
+	 *
+	 * @param session The session.
+	 */
+	public void unsubscribeAll(Session session)
+	{
+		Subscriber subscriber;
+		synchronized (this)
+		{
+			subscriber = _removeSubscriber(session);
+		}
+		if (null != subscriber)
+		{
+			subscriber.sender.discard();
+		}
+	}
+
+	/**
+	 * Publishes a text message to every subscriber of the topic.
+	 *
+	 * @param topic The topic name.
+	 * @param message The message.
+	 * @return The number of sessions the message was queued for (excluding any which dropped it).
+	 */
+	public int publishText(String topic, String message)
+	{
+		ByteBuffer payload = ByteBuffer.wrap(message.getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer();
+		return _publish(topic, OpCode.TEXT, payload);
+	}
+
+	/**
+	 * Publishes a binary message to every subscriber of the topic.  The bytes are not copied, so the caller must not
+	 * modify them after this call.
+	 *
+	 * @param topic The topic name.
+	 * @param message The message.
+	 * @return The number of sessions the message was queued for (excluding any which dropped it).
+	 */
+	public int publishBinary(String topic, byte[] message)
+	{
+		ByteBuffer payload = ByteBuffer.wrap(message).asReadOnlyBuffer();
+		return _publish(topic, OpCode.BINARY, payload);
+	}
+
+	/**
+	 * @param topic The topic name.
+	 * @return The number of sessions currently subscribed to the topic.
+	 */
+	public synchronized int getSubscriberCount(String topic)
+	{
+		Topic container = _topics.get(topic);
+		return (null != container)
+				? container.members.size()
+				: 0
+		;
+	}
+
+	/**
+	 * @return The number of messages not sent to a session because its queue was full (with the DROP policy).
+	 */
+	public synchronized long getDroppedCount()
+	{
+		return _dropped;
+	}
+
+	/**
+	 * @return The number of sessions disconnected because their queue was full (with the DISCONNECT policy).
+	 */
+	public synchronized long getDisconnectedCount()
+	{
+		return _disconnected;
+	}
+
+
+	private int _publish(String topic, byte opCode, ByteBuffer payload)
+	{
+		Subscriber[] targets;
+		synchronized (this)
+		{
+			Topic container = _topics.get(topic);
+			if (null != container)
+			{
+				// We cache the array between changes so that a steady-state publish doesn't need to copy the set.
+				if (null == container.snapshot)
+				{
+					container.snapshot = container.members.toArray(new Subscriber[container.members.size()]);
+				}
+				targets = container.snapshot;
+			}
+			else
+			{
+				targets = new Subscriber[0];
+			}
+		}
+		int queued = 0;
+		for (Subscriber subscriber : targets)
+		{
+			// Each send gets its own view of the shared bytes, since the frame's buffer position is consumed as it is written.
+			boolean accepted = subscriber.sender.sendPayload(opCode, payload.slice());
+			if (accepted)
+			{
+				queued += 1;
+			}
+			else
+			{
+				_handleSlowConsumer(subscriber);
+			}
+		}
+		return queued;
+	}
+
+	private void _handleSlowConsumer(Subscriber subscriber)
+	{
+		boolean shouldClose = false;
+		synchronized (this)
+		{
+			if (subscriber != _subscribers.get(subscriber.session))
+			{
+				// The session was removed (and its sender discarded) since we took the snapshot so it isn't slow.
+			}
+			else if (SlowConsumerPolicy.DROP == _policy)
+			{
+				_dropped += 1;
+			}
+			else
+			{
+				_removeSubscriber(subscriber.session);
+				_disconnected += 1;
+				shouldClose = true;
+			}
+		}
+		if (shouldClose)
+		{
+			subscriber.sender.discard();
+			subscriber.session.close(StatusCode.POLICY_VIOLATION, "Slow consumer");
+		}
+	}
+
+	private void _handleFailedWrite(Subscriber subscriber)
+	{
+		synchronized (this)
+		{
+			if (subscriber == _subscribers.get(subscriber.session))
+			{
+				_removeSubscriber(subscriber.session);
+			}
+		}
+		subscriber.sender.discard();
+	}
+
+	// Must be called under the monitor.
+	private Subscriber _removeSubscriber(Session session)
+	{
+		Subscriber subscriber = _subscribers.remove(session);
+		if (null != subscriber)
+		{
+			for (String topic : subscriber.topics)
+			{
+				_removeFromTopic(topic, subscriber);
+			}
+			subscriber.topics.clear();
+		}
+		return subscriber;
+	}
+
+	// Must be called under the monitor.
+	private void _removeFromTopic(String topic, Subscriber subscriber)
+	{
+		Topic container = _topics.get(topic);
+		container.members.remove(subscriber);
+		container.snapshot = null;
+		if (container.members.isEmpty())
+		{
+			_topics.remove(topic);
+		}
+	}
+
+
+	private static class Topic
+	{
+		public final Set<Subscriber> members = new HashSet<>();
+		public Subscriber[] snapshot;
+	}
+
+
+	private class Subscriber
+	{
+		public final Session session;
+		public final WebSocketSender sender;
+		// Protected by the hub's monitor.
+		public final Set<String> topics;
+
+		public Subscriber(Session session)
+		{
+			this.session = session;
+			this.sender = new WebSocketSender(session, _maxQueuedMessages, _maxQueuedBytes, () -> _handleFailedWrite(this));
+			this.topics = new HashSet<>();
+		}
+	}
+}
@@ -0,0 +1,233 @@
+package com.jeffdisher.breakwater;
+
+import java.util.HashMap;
+import java.util.Map;
+
+
+/**
+ * Tracks the open WebSocket connections of a RestServer, by route (the path given to addWebSocketFactory()) and by
+ * remote address, and enforces the connection limits of each route's WebSocketSettings when a client upgrades.
+ * Obtained from RestServer.getWebSocketRegistry().
+ *
+ * The memory figures are estimates, not measurements:  each connection is charged a fixed overhead for its Jetty
+ * objects, its input buffer, and (if it negotiated permessage-deflate) the zlib state of its compressor and
+ * decompressor.  Messages being assembled or queued are not included.
+ */
+public class WebSocketRegistry
+{
+	/**
+	 * The estimated size of the objects behind each connection (endpoint, connection, session, frame handler, etc).
+	 */
+	public static final long CONNECTION_OVERHEAD_BYTES = 8 * 1024;
+	/**
+	 * The estimated size of the zlib state for a permessage-deflate connection:  a deflater with a 32 KiB window and
+	 * default memory level (about 256 KiB) and an inflater with a 32 KiB window (about 44 KiB).
+	 */
+	public static final long DEFLATE_STATE_BYTES = 300 * 1024;
+
+	// All the variables below are protected by the monitor on this.
+	private final Map<String, Route> _routes;
+	private final Map<String, Integer> _addresses;
+	private int _connections;
+	private long _estimatedBytes;
+	private long _rejected;
+
+	WebSocketRegistry()
+	{
+		_routes = new HashMap<>();
+		_addresses = new HashMap<>();
+	}
+
+	/**
+	 * @return The number of open WebSocket connections, across all routes.
+	 */
+	public synchronized int getConnectionCount()
+	{
+		return _connections;
+	}
+
+	/**
+	 * @param route The path the route was registered with.
+	 * @return The number of open connections on that route.
+	 */
+	public synchronized int getConnectionCount(String route)
+	{
+		Route entry = _routes.get(route);
+		return (null != entry)
+				? entry.connections
+				: 0
+		;
+	}
+
+	/**
+	 * @param address The remote address, as reported by HttpServletRequest.getRemoteAddr().
+	 * @return The number of open connections from that address, across all routes.
+	 */
+	public synchronized int getConnectionCountForAddress(String address)
+	{
+		Integer count = _addresses.get(address);
+		return (null != count)
+				? count
+				: 0
+		;
+	}
+
+	/**
+	 * @return The estimated memory held by all open connections, in bytes.
+	 */
+	public synchronized long getEstimatedMemoryBytes()
+	{
+		return _estimatedBytes;
+	}
+
+	/**
+	 * @param route The path the route was registered with.
+	 * @return The estimated memory held by the open connections on that route, in bytes.
+	 */
+	public synchronized long getEstimatedMemoryBytes(String route)
+	{
+		Route entry = _routes.get(route);
+		return (null != entry)
+				? entry.estimatedBytes
+				: 0L
+		;
+	}
+
+	/**
+	 * @return The number of upgrades rejected because they would have exceeded a connection limit.
+	 */
+	public synchronized long getRejectedCount()
+	{
+		return _rejected;
+	}
+
+	/**
+	 * Estimates the memory held by one connection with the given settings.
+	 *
+	 * @param settings The settings of the route.
+	 * @param isCompressed True if the connection negotiated permessage-deflate.
+	 * @return The estimated size of the connection, in bytes.
+	 */
+	public static long estimateConnectionBytes(WebSocketSettings settings, boolean isCompressed)
+	{
+		return CONNECTION_OVERHEAD_BYTES
+				+ settings.inputBufferSize
+				+ (isCompressed ? DEFLATE_STATE_BYTES : 0L)
+		;
+	}
+
+	/**
+	 * Accounts for a new connection, if it fits within the limits of its route.  The registration must be released
+	 * when the connection closes.
+	 *
+	 * @param route The path the route was registered with.
+	 * @param address The remote address of the client.
+	 * @param settings The settings of the route (for its limits and memory estimate).
+	 * @param isCompressed True if the connection negotiated permessage-deflate.
+	 * @return The registration to release on close, or null if the connection would exceed a limit.
+	 */
+	synchronized Registration register(String route, String address, WebSocketSettings settings, boolean isCompressed)
+	{
+		Route entry = _routes.get(route);
+		if (null == entry)
+		{
+			entry = new Route();
+			_routes.put(route, entry);
+		}
+		Integer fromAddress = entry.addresses.get(address);
+		int addressCount = (null != fromAddress) ? fromAddress : 0;
+		Registration registration = null;
+		if ((entry.connections < settings.maxConnections) && (addressCount < settings.maxConnectionsPerAddress))
+		{
+			long bytes = estimateConnectionBytes(settings, isCompressed);
+			entry.connections += 1;
+			entry.estimatedBytes += bytes;
+			entry.addresses.put(address, addressCount + 1);
+			_addresses.merge(address, 1, Integer::sum);
+			_connections += 1;
+			_estimatedBytes += bytes;
+			registration = new Registration(route, address, bytes);
+		}
+		else
+		{
+			_rejected += 1;
+			if (0 == entry.connections)
+			{
+				_routes.remove(route);
+			}
+		}
+		return registration;
+	}
+
+	private synchronized void _release(Registration registration)
+	{
+		Route entry = _routes.get(registration.route);
+		entry.connections -= 1;
+		entry.estimatedBytes -= registration.bytes;
+		_decrement(entry.addresses, registration.address);
+		if (0 == entry.connections)
+		{
+			_routes.remove(registration.route);
+		}
+		_decrement(_addresses, registration.address);
+		_connections -= 1;
+		_estimatedBytes -= registration.bytes;
+	}
+
+	private static void _decrement(Map<String, Integer> counts, String key)
+	{
+		int count = counts.get(key);
+		if (1 == count)
+		{
+			counts.remove(key);
+		}
+		else
+		{
+			counts.put(key, count - 1);
+		}
+	}
+
+
+	/**
+	 * The accounting for one open connection.
+	 */
+	class Registration
+	{
+		public final String route;
+		public final String address;
+		public final long bytes;
+		private boolean _isReleased;
+
+		private Registration(String route, String address, long bytes)
+		{
+			this.route = route;
+			this.address = address;
+			this.bytes = bytes;
+		}
+
+		/**
+		 * Removes the connection from the registry.  Does nothing if it was already released.
+		 */
+		public void release()
+		{
+			boolean shouldRelease;
+			synchronized (this)
+			{
+				shouldRelease = !_isReleased;
+				_isReleased = true;
+			}
+			if (shouldRelease)
+			{
+				_release(this);
+			}
+		}
+	}
+
+
+	private static class Route
+	{
+		public final Map<String, Integer> addresses = new HashMap<>();
+		public int connections;
+		public long estimatedBytes;
+	}
+}
@@ -0,0 +1,306 @@
+package com.jeffdisher.breakwater;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+
+import org.eclipse.jetty.util.Callback;
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.common.WebSocketSession;
+import org.eclipse.jetty.websocket.core.CoreSession;
+import org.eclipse.jetty.websocket.core.Frame;
+import org.eclipse.jetty.websocket.core.OpCode;
+
+import com.jeffdisher.breakwater.utilities.Assert;
+
+
+/**
+ * An asynchronous, batching alternative to sending through the session's RemoteEndpoint.  Messages are queued and
+ * written in order without blocking the caller.  While more messages are waiting behind the one being written, frames
+ * are sent in Jetty's batch mode, so a burst of small messages is coalesced into a few large writes, and the
+ * connection is flushed once the queue drains.
+ *
+ * The bytes (and, optionally, the number of messages) queued for the session are capped:  a message which would exceed
+ * either cap is rejected, so the caller can decide whether to drop it or close the session.  Typically created in the
+ * listener's onWebSocketConnect().
+ */
+public class WebSocketSender
+{
+	private final CoreSession _coreSession;
+	private final int _maxQueuedMessages;
+	private final long _maxQueuedBytes;
+	private final Runnable _failureHandler;
+	private final Callback _callback;
+
+	// All the variables below are protected by the monitor on this.
+	private final ArrayDeque<Pending> _queue;
+	private long _queuedBytes;
+	private long _peakQueuedBytes;
+	private Pending _inFlight;
+	private boolean _isPumping;
+	// Set once a write fails or the sender is discarded, after which every send is rejected.
+	private boolean _isClosed;
+	private long _sentCount;
+	private long _rejectedCount;
+	private long _totalLatencyNanos;
+	private long _maxLatencyNanos;
+
+	/**
+	 * Creates a sender for the session.
+	 *
+	 * @param session The server-side session (as passed to onWebSocketConnect()).
+	 * @param maxQueuedBytes The number of payload bytes which can be waiting to be written before sends are rejected.
+	 */
+	public WebSocketSender(Session session, long maxQueuedBytes)
+	{
+		this(session, Integer.MAX_VALUE, maxQueuedBytes);
+	}
+
+	/**
+	 * Creates a sender for the session which also caps the number of queued messages.
+	 *
+	 * @param session The server-side session (as passed to onWebSocketConnect()).
+	 * @param maxQueuedMessages The number of messages which can be waiting to be written before sends are rejected.
+	 * @param maxQueuedBytes The number of payload bytes which can be waiting to be written before sends are rejected.
+	 */
+	public WebSocketSender(Session session, int maxQueuedMessages, long maxQueuedBytes)
+	{
+		this(session, maxQueuedMessages, maxQueuedBytes, null);
+	}
+
+	// Used by WebSocketHub, which needs to know when a write fails so it can drop the session.
+	WebSocketSender(Session session, int maxQueuedMessages, long maxQueuedBytes, Runnable failureHandler)
+	{
+		Assert.assertTrue(session instanceof WebSocketSession);
+		Assert.assertTrue(maxQueuedMessages > 0);
+		Assert.assertTrue(maxQueuedBytes > 0L);
+		_coreSession = ((WebSocketSession)session).getCoreSession();
+		_maxQueuedMessages = maxQueuedMessages;
+		_maxQueuedBytes = maxQueuedBytes;
+		_failureHandler = failureHandler;
+		_callback = Callback.from(this::_succeeded, this::_failed);
+		_queue = new ArrayDeque<>();
+	}
+
+	/**
+	 * Queues a text message.
+	 *
+	 * @param message The message.
+	 * @return True if the message was queued, false if it would exceed a cap (or an earlier write failed).
+	 */
+	public boolean sendText(String message)
+	{
+		return _enqueue(OpCode.TEXT, ByteBuffer.wrap(message.getBytes(StandardCharsets.UTF_8)));
+	}
+
+	/**
+	 * Queues a binary message.  The bytes are not copied, so the caller must not modify them after this call.
+	 *
+	 * @param message The message.
+	 * @return True if the message was queued, false if it would exceed a cap (or an earlier write failed).
+	 */
+	public boolean sendBinary(byte[] message)
+	{
+		return _enqueue(OpCode.BINARY, ByteBuffer.wrap(message));
+	}
+
+	/**
+	 * Queues a message whose payload is already encoded (used by WebSocketHub to share one encoding between sessions).
+	 * The buffer's position is consumed as it is written, so each sender needs its own view of shared bytes.
+	 *
+	 * @param opCode The frame's op code (TEXT or BINARY).
+	 * @param payload The payload.
+	 * @return True if the message was queued, false if it would exceed a cap (or the sender is closed).
+	 */
+	boolean sendPayload(byte opCode, ByteBuffer payload)
+	{
+		return _enqueue(opCode, payload);
+	}
+
+	/**
+	 * Drops everything still queued and rejects any further sends (used by WebSocketHub when a session is removed).
+	 */
+	synchronized void discard()
+	{
+		_isClosed = true;
+		_queue.clear();
+		// The message being written still completes (or fails) normally.
+		_queuedBytes = (null != _inFlight)
+				? _inFlight.size
+				: 0L
+		;
+	}
+
+	/**
+	 * @return The number of messages waiting to be written (including the one being written).
+	 */
+	public synchronized int getQueuedMessageCount()
+	{
+		return _queue.size() + ((null != _inFlight) ? 1 : 0);
+	}
+
+	/**
+	 * @return The number of payload bytes waiting to be written (including the message being written).
+	 */
+	public synchronized long getQueuedBytes()
+	{
+		return _queuedBytes;
+	}
+
+	/**
+	 * @return The largest value getQueuedBytes() has reached.
+	 */
+	public synchronized long getPeakQueuedBytes()
+	{
+		return _peakQueuedBytes;
+	}
+
+	/**
+	 * @return The number of messages handed off to Jetty.
+	 */
+	public synchronized long getSentCount()
+	{
+		return _sentCount;
+	}
+
+	/**
+	 * @return The number of messages rejected because they would have exceeded a cap.
+	 */
+	public synchronized long getRejectedCount()
+	{
+		return _rejectedCount;
+	}
+
+	/**
+	 * The latency of a message is the time from its send call until Jetty accepted it (written to the network or,
+	 * if batched, copied into the batch buffer which is written with a later frame).
+	 *
+	 * @return The mean latency of the sent messages, in nanoseconds (0 if none have been sent).
+	 */
+	public synchronized long getAverageLatencyNanos()
+	{
+		return (_sentCount > 0L)
+				? (_totalLatencyNanos / _sentCount)
+				: 0L
+		;
+	}
+
+	/**
+	 * @return The largest latency of any sent message, in nanoseconds.
+	 */
+	public synchronized long getMaxLatencyNanos()
+	{
+		return _maxLatencyNanos;
+	}
+
+	private void _succeeded()
+	{
+		synchronized (this)
+		{
+			long latency = System.nanoTime() - _inFlight.enqueuedNanos;
+			_sentCount += 1;
+			_totalLatencyNanos += latency;
+			_maxLatencyNanos = Math.max(_maxLatencyNanos, latency);
+			_queuedBytes -= _inFlight.size;
+			_inFlight = null;
+		}
+		_pump();
+	}
+
+	private void _failed(Throwable x)
+	{
+		// The session is broken so drop everything and reject any further sends.
+		synchronized (this)
+		{
+			_isClosed = true;
+			_inFlight = null;
+			_queue.clear();
+			_queuedBytes = 0L;
+		}
+		if (null != _failureHandler)
+		{
+			_failureHandler.run();
+		}
+	}
+
+	private boolean _enqueue(byte opCode, ByteBuffer payload)
+	{
+		boolean accepted;
+		synchronized (this)
+		{
+			int size = payload.remaining();
+			accepted = !_isClosed
+					&& (getQueuedMessageCount() < _maxQueuedMessages)
+					&& ((_queuedBytes + size) <= _maxQueuedBytes)
+			;
+			if (accepted)
+			{
+				_queue.addLast(new Pending(new Frame(opCode, payload), size, System.nanoTime()));
+				_queuedBytes += size;
+				_peakQueuedBytes = Math.max(_peakQueuedBytes, _queuedBytes);
+			}
+			else
+			{
+				_rejectedCount += 1;
+			}
+		}
+		if (accepted)
+		{
+			_pump();
+		}
+		return accepted;
+	}
+
+	// Sends queued frames one at a time.  A write which completes synchronously (including any batched frame, which is
+	// just copied into the batch buffer) calls _succeeded() on this thread so we only let one thread loop here, at a
+	// time, to avoid recursing once per queued frame.
+	private void _pump()
+	{
+		boolean shouldLoop;
+		synchronized (this)
+		{
+			shouldLoop = !_isPumping;
+			_isPumping = true;
+		}
+		while (shouldLoop)
+		{
+			Frame next = null;
+			boolean batch = false;
+			synchronized (this)
+			{
+				if ((null == _inFlight) && !_isClosed && !_queue.isEmpty())
+				{
+					_inFlight = _queue.removeFirst();
+					next = _inFlight.frame;
+					// We only batch while more frames are waiting, so the last frame of a burst flushes all of them.
+					batch = !_queue.isEmpty();
+				}
+				else
+				{
+					_isPumping = false;
+					shouldLoop = false;
+				}
+			}
+			if (null != next)
+			{
+				_coreSession.sendFrame(next, _callback, batch);
+			}
+		}
+	}
+
+
+	private static class Pending
+	{
+		public final Frame frame;
+		// We record the size since the payload buffer is consumed as the frame is written.
+		public final int size;
+		public final long enqueuedNanos;
+
+		public Pending(Frame frame, int size, long enqueuedNanos)
+		{
+			this.frame = frame;
+			this.size = size;
+			this.enqueuedNanos = enqueuedNanos;
+		}
+	}
+}
@@ -0,0 +1,226 @@
+package com.jeffdisher.breakwater;
+
+import com.jeffdisher.breakwater.utilities.Assert;
+
+
+/**
+ * The per-route settings of a WebSocket endpoint, passed to RestServer.addWebSocketFactory().  They are applied to
+ * each session when it connects, before any messages are delivered.
+ * Instances are created with the Builder returned by builder().  Anything not explicitly set uses the same values as
+ * routes registered without settings:  a 10 second idle timeout, 64 KiB maximum text and binary messages, a 4 KiB
+ * input buffer, auto-fragmentation of large outgoing frames, and permessage-deflate compression (with context takeover
+ * in both directions) whenever the client offers it.  There is no limit on the number of connections, by default.
+ */
+public class WebSocketSettings
+{
+	/**
+	 * The settings used for routes registered without explicit settings.
+	 */
+	public static final WebSocketSettings DEFAULT = builder().build();
+
+	/**
+	 * @return A new builder, starting from the default settings.
+	 */
+	public static Builder builder()
+	{
+		return new Builder();
+	}
+
+	public final long idleTimeoutMillis;
+	public final long maxTextMessageSize;
+	public final long maxBinaryMessageSize;
+	public final int inputBufferSize;
+	public final boolean autoFragment;
+	public final boolean compression;
+	public final boolean serverContextTakeover;
+	public final boolean clientContextTakeover;
+	public final int maxConnections;
+	public final int maxConnectionsPerAddress;
+
+	private WebSocketSettings(long idleTimeoutMillis
+			, long maxTextMessageSize
+			, long maxBinaryMessageSize
+			, int inputBufferSize
+			, boolean autoFragment
+			, boolean compression
+			, boolean serverContextTakeover
+			, boolean clientContextTakeover
+			, int maxConnections
+			, int maxConnectionsPerAddress
+	)
+	{
+		this.idleTimeoutMillis = idleTimeoutMillis;
+		this.maxTextMessageSize = maxTextMessageSize;
+		this.maxBinaryMessageSize = maxBinaryMessageSize;
+		this.inputBufferSize = inputBufferSize;
+		this.autoFragment = autoFragment;
+		this.compression = compression;
+		this.serverContextTakeover = serverContextTakeover;
+		this.clientContextTakeover = clientContextTakeover;
+		this.maxConnections = maxConnections;
+		this.maxConnectionsPerAddress = maxConnectionsPerAddress;
+	}
+
+
+	/**
+	 * Accumulates the settings of a WebSocketSettings.  Each setter returns the builder, for chaining.
+	 */
+	public static class Builder
+	{
+		private long _idleTimeoutMillis;
+		private long _maxTextMessageSize;
+		private long _maxBinaryMessageSize;
+		private int _inputBufferSize;
+		private boolean _autoFragment;
+		private boolean _compression;
+		private boolean _serverContextTakeover;
+		private boolean _clientContextTakeover;
+		private int _maxConnections;
+		private int _maxConnectionsPerAddress;
+
+		private Builder()
+		{
+			_idleTimeoutMillis = 10_000L;
+			_maxTextMessageSize = 64 * 1024;
+			_maxBinaryMessageSize = 64 * 1024;
+			_inputBufferSize = 4 * 1024;
+			_autoFragment = true;
+			_compression = true;
+			_serverContextTakeover = true;
+			_clientContextTakeover = true;
+			_maxConnections = Integer.MAX_VALUE;
+			_maxConnectionsPerAddress = Integer.MAX_VALUE;
+		}
+
+		/**
+		 * @param idleTimeoutMillis How long the connection can go without any traffic before it is closed (0 to never
+		 * time out).
+		 * @return This builder.
+		 */
+		public Builder idleTimeoutMillis(long idleTimeoutMillis)
+		{
+			Assert.assertTrue(idleTimeoutMillis >= 0L);
+			_idleTimeoutMillis = idleTimeoutMillis;
+			return this;
+		}
+
+		/**
+		 * @param maxTextMessageSize The largest text message (in bytes, once reassembled) which will be accepted.
+		 * @return This builder.
+		 */
+		public Builder maxTextMessageSize(long maxTextMessageSize)
+		{
+			Assert.assertTrue(maxTextMessageSize > 0L);
+			_maxTextMessageSize = maxTextMessageSize;
+			return this;
+		}
+
+		/**
+		 * @param maxBinaryMessageSize The largest binary message (once reassembled) which will be accepted.
+		 * @return This builder.
+		 */
+		public Builder maxBinaryMessageSize(long maxBinaryMessageSize)
+		{
+			Assert.assertTrue(maxBinaryMessageSize > 0L);
+			_maxBinaryMessageSize = maxBinaryMessageSize;
+			return this;
+		}
+
+		/**
+		 * @param inputBufferSize The size of the buffer used to read from the network.
+		 * @return This builder.
+		 */
+		public Builder inputBufferSize(int inputBufferSize)
+		{
+			Assert.assertTrue(inputBufferSize > 0);
+			_inputBufferSize = inputBufferSize;
+			return this;
+		}
+
+		/**
+		 * @param autoFragment True if outgoing frames larger than the maximum frame size should be split.
+		 * @return This builder.
+		 */
+		public Builder autoFragment(boolean autoFragment)
+		{
+			_autoFragment = autoFragment;
+			return this;
+		}
+
+		/**
+		 * @param compression True if permessage-deflate should be accepted when the client offers it, false to always
+		 * refuse it (saving the CPU, and the per-connection compression state, at the cost of bandwidth).  The level
+		 * is set server-wide, with RestServer.setWebSocketCompressionLevel().
+		 * @return This builder.
+		 */
+		public Builder compression(boolean compression)
+		{
+			_compression = compression;
+			return this;
+		}
+
+		/**
+		 * @param serverContextTakeover True if the server's compressor keeps its window between messages (better
+		 * compression of similar messages), false to reset it after each message (less memory held per idle session).
+		 * @return This builder.
+		 */
+		public Builder serverContextTakeover(boolean serverContextTakeover)
+		{
+			_serverContextTakeover = serverContextTakeover;
+			return this;
+		}
+
+		/**
+		 * @param clientContextTakeover False to require the client to reset its compressor after each message (so the
+		 * server's decompressor doesn't need to keep the client's window between messages).
+		 * @return This builder.
+		 */
+		public Builder clientContextTakeover(boolean clientContextTakeover)
+		{
+			_clientContextTakeover = clientContextTakeover;
+			return this;
+		}
+
+		/**
+		 * @param maxConnections The number of connections the route can have open at once.  Upgrades beyond this are
+		 * rejected with a 503.
+		 * @return This builder.
+		 */
+		public Builder maxConnections(int maxConnections)
+		{
+			Assert.assertTrue(maxConnections > 0);
+			_maxConnections = maxConnections;
+			return this;
+		}
+
+		/**
+		 * @param maxConnectionsPerAddress The number of connections to the route which a single remote address can have
+		 * open at once.  Upgrades beyond this are rejected with a 503.
+		 * @return This builder.
+		 */
+		public Builder maxConnectionsPerAddress(int maxConnectionsPerAddress)
+		{
+			Assert.assertTrue(maxConnectionsPerAddress > 0);
+			_maxConnectionsPerAddress = maxConnectionsPerAddress;
+			return this;
+		}
+
+		/**
+		 * @return The settings built from the current values.
+		 */
+		public WebSocketSettings build()
+		{
+			return new WebSocketSettings(_idleTimeoutMillis
+					, _maxTextMessageSize
+					, _maxBinaryMessageSize
+					, _inputBufferSize
+					, _autoFragment
+					, _compression
+					, _serverContextTakeover
+					, _clientContextTakeover
+					, _maxConnections
+					, _maxConnectionsPerAddress
+			);
+		}
+	}
+}
@@ -0,0 +1,238 @@
+package com.jeffdisher.breakwater.utilities;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.client.api.Request;
+import org.eclipse.jetty.client.util.BufferingResponseListener;
+import org.eclipse.jetty.http.HttpMethod;
+
+
+/**
+ * A batch of GET requests issued concurrently by RestClient.fanOut(), so the batch takes about as long as its slowest
+ * request, rather than the sum of all of them.  At most the given number of requests are in flight at once:  as each
+ * completes, the next one is started.
+ * Results can be consumed as they complete, with next(), or all at once, in the order of the URLs, with awaitAll().
+ * A request which fails (or times out) doesn't affect the others:  its Result carries the failure instead of a
+ * response.
+ */
+public class FanOut {
+	private final HttpClient _client;
+	private final List<String> _urls;
+	private final int _maxConcurrent;
+	private final long _timeoutMillis;
+	private final int _maxResponseBytes;
+
+	// All the variables below are protected by the monitor on this.
+	private final Result[] _results;
+	private final Request[] _inFlight;
+	private final ArrayDeque<Result> _unreturned;
+	private int _nextToStart;
+	private int _runningCount;
+	private boolean _isStarting;
+	private int _completedCount;
+	private int _failedCount;
+	private boolean _isCancelled;
+
+	FanOut(HttpClient client, List<String> urls, int maxConcurrent, long timeoutMillis, int maxResponseBytes) {
+		Assert.assertTrue(maxConcurrent > 0);
+		_client = client;
+		_urls = Collections.unmodifiableList(List.copyOf(urls));
+		_maxConcurrent = maxConcurrent;
+		_timeoutMillis = timeoutMillis;
+		_maxResponseBytes = maxResponseBytes;
+		_results = new Result[_urls.size()];
+		_inFlight = new Request[_urls.size()];
+		_unreturned = new ArrayDeque<>();
+	}
+
+	/**
+	 * Waits for the next request to complete.
+	 *
+	 * @return The next result, in the order the requests completed, or null once every result has been returned.
+	 */
+	public synchronized Result next() throws InterruptedException {
+		while (_unreturned.isEmpty() && (_completedCount < _results.length)) {
+			this.wait();
+		}
+		return _unreturned.pollFirst();
+	}
+
+	/**
+	 * Waits for every request to complete (including those already returned by next()).
+	 *
+	 * @return The results, in the same order as the URLs.
+	 */
+	public synchronized List<Result> awaitAll() throws InterruptedException {
+		while (_completedCount < _results.length) {
+			this.wait();
+		}
+		return Collections.unmodifiableList(Arrays.asList(_results.clone()));
+	}
+
+	/**
+	 * Aborts the requests in flight and fails those not yet started.  Their results carry a CancellationException.
+	 */
+	public void cancel() {
+		Request[] toAbort;
+		synchronized (this) {
+			_isCancelled = true;
+			toAbort = _inFlight.clone();
+			// Nothing else will be started so we fail these here.
+			while (_nextToStart < _results.length) {
+				_complete(new Result(_nextToStart, _urls.get(_nextToStart), -1, null, new CancellationException("Fan-out cancelled")));
+				_nextToStart += 1;
+			}
+		}
+		CancellationException reason = new CancellationException("Fan-out cancelled");
+		for (Request request : toAbort) {
+			if (null != request) {
+				request.abort(reason);
+			}
+		}
+	}
+
+	/**
+	 * @return The number of requests which have completed, successfully or not.
+	 */
+	public synchronized int getCompletedCount() {
+		return _completedCount;
+	}
+
+	/**
+	 * @return The number of completed requests which weren't successful (see Result.isSuccess()).
+	 */
+	public synchronized int getFailedCount() {
+		return _failedCount;
+	}
+
+	/**
+	 * Starts the first batch of requests.  Called by RestClient once the FanOut is constructed.
+	 */
+	void start() {
+		_startAvailable();
+	}
+
+
+	private void _startAvailable() {
+		// Requests can fail synchronously (a bad URL or an immediate connection failure) so, rather than recursing through
+		// _finish(), only one thread at a time runs this loop and it starts requests until every slot is claimed.  A
+		// request finishing while another thread is in the loop leaves its slot for that thread to reuse.
+		boolean keepStarting;
+		synchronized (this) {
+			keepStarting = !_isStarting;
+			_isStarting = true;
+		}
+		while (keepStarting) {
+			int index = -1;
+			synchronized (this) {
+				if (!_isCancelled && (_nextToStart < _results.length) && (_runningCount < _maxConcurrent)) {
+					index = _nextToStart;
+					_nextToStart += 1;
+					_runningCount += 1;
+				} else {
+					_isStarting = false;
+					keepStarting = false;
+				}
+			}
+			if (index >= 0) {
+				_start(index);
+			}
+		}
+	}
+
+	private void _start(int index) {
+		String url = _urls.get(index);
+		Request request;
+		try {
+			request = _client.newRequest(url).method(HttpMethod.GET);
+		} catch (IllegalArgumentException e) {
+			// The URL couldn't be parsed.
+			request = null;
+			_finish(new Result(index, url, -1, null, e));
+		}
+		if (null != request) {
+			if (_timeoutMillis > 0L) {
+				request.timeout(_timeoutMillis, TimeUnit.MILLISECONDS);
+			}
+			synchronized (this) {
+				_inFlight[index] = request;
+			}
+			// Jetty may call this back before send() returns (if the request fails immediately, for example).
+			request.send(new BufferingResponseListener(_maxResponseBytes) {
+				@Override
+				public void onComplete(org.eclipse.jetty.client.api.Result result) {
+					Result done = result.isFailed()
+							? new Result(index, url, -1, null, result.getFailure())
+							: new Result(index, url, result.getResponse().getStatus(), getContent(), null)
+					;
+					_finish(done);
+				}
+			});
+		}
+	}
+
+	private void _finish(Result result) {
+		synchronized (this) {
+			_inFlight[result.index] = null;
+			_runningCount -= 1;
+			_complete(result);
+		}
+		_startAvailable();
+	}
+
+	// Must be called with the monitor held.
+	private void _complete(Result result) {
+		_results[result.index] = result;
+		_unreturned.addLast(result);
+		_completedCount += 1;
+		if (!result.isSuccess()) {
+			_failedCount += 1;
+		}
+		this.notifyAll();
+	}
+
+
+	/**
+	 * The outcome of one request.
+	 */
+	public static class Result {
+		/**
+		 * The position of the URL in the list given to RestClient.fanOut().
+		 */
+		public final int index;
+		public final String url;
+		/**
+		 * The HTTP status of the response, or -1 if there was no response.
+		 */
+		public final int status;
+		/**
+		 * The response body, or null if there was no response.
+		 */
+		public final byte[] body;
+		/**
+		 * Why there was no response (connection failure, timeout, cancellation, etc), or null if there was one.
+		 */
+		public final Throwable failure;
+
+		public Result(int index, String url, int status, byte[] body, Throwable failure) {
+			this.index = index;
+			this.url = url;
+			this.status = status;
+			this.body = body;
+			this.failure = failure;
+		}
+
+		/**
+		 * @return True if there was a response and its status wasn't an error (400 or higher).
+		 */
+		public boolean isSuccess() {
+			return (null == this.failure) && (this.status < 400);
+		}
+	}
+}
@@ -0,0 +1,53 @@
+package com.jeffdisher.breakwater.utilities;
+
+import java.util.Arrays;
+
+
+/**
+ * The latencies of a RestClient's most recent requests, so it can hedge at an observed percentile rather than a fixed
+ * delay.  Only the most recent samples are kept, so the percentile follows the server's current behaviour.
+ */
+class LatencyWindow {
+	private final int _minSamples;
+
+	// All the variables below are protected by the monitor on this.
+	private final long[] _samples;
+	private int _next;
+	private int _count;
+
+	public LatencyWindow(int size, int minSamples) {
+		Assert.assertTrue(size > 0);
+		Assert.assertTrue((minSamples > 0) && (minSamples <= size));
+		_minSamples = minSamples;
+		_samples = new long[size];
+	}
+
+	public synchronized void record(long millis) {
+		_samples[_next] = millis;
+		_next = (_next + 1) % _samples.length;
+		_count = Math.min(_count + 1, _samples.length);
+	}
+
+	/**
+	 * @param percentile The percentile, between 0 and 100.
+	 * @return The latency at that percentile, or -1 if there aren't enough samples yet for it to be meaningful.
+	 */
+	public long getPercentile(int percentile) {
+		Assert.assertTrue((percentile >= 0) && (percentile <= 100));
+		long[] copy;
+		synchronized (this) {
+			copy = (_count >= _minSamples)
+					? Arrays.copyOf(_samples, _count)
+					: null
+			;
+		}
+		long value = -1L;
+		if (null != copy) {
+			// The window is small so sorting a copy is cheaper than anything which would need to be kept sorted.
+			Arrays.sort(copy);
+			int index = (int)Math.ceil((percentile / 100.0) * copy.length) - 1;
+			value = copy[Math.max(0, index)];
+		}
+		return value;
+	}
+}
@@ -0,0 +1,255 @@
+package com.jeffdisher.breakwater.utilities;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Writes a multipart/form-data body, for RestHelpers.postMultiPart(), streaming each part from where it lives (memory, a
+ * file, or a stream) so large uploads are never held in memory.
+ * The boundary is random (128 bits, so it can't be guessed by whoever supplied the content) and is chosen once all
+ * parts are added:  it is checked against the in-memory parts and re-chosen if any contains it.  Streamed parts can't
+ * be checked without reading them but the chance of them containing a random boundary is negligible.
+ * If every part's size is known, so is the size of the whole body (getContentLength()), so it can be sent with a
+ * Content-Length rather than chunked.
+ * Parts are added, then the body is written once.
+ */
+public class MultiPartEncoder {
+	private static final String DEFAULT_CONTENT_TYPE = "application/octet-stream";
+	private static final byte[] CRLF = "\r\n".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] HYPHENS = "--".getBytes(StandardCharsets.US_ASCII);
+	private static final int BOUNDARY_RANDOM_BYTES = 16;
+	private static final SecureRandom RANDOM = new SecureRandom();
+
+	private final List<Part> _parts;
+	private String _boundary;
+	private boolean _isWritten;
+
+	public MultiPartEncoder() {
+		_parts = new ArrayList<>();
+	}
+
+	/**
+	 * Adds a part held in memory.
+	 *
+	 * @param name The name of the part.
+	 * @param value The content.
+	 * @return This encoder.
+	 */
+	public MultiPartEncoder addBytes(String name, byte[] value) {
+		_add(new Part(name, null, DEFAULT_CONTENT_TYPE, value, null, null, value.length));
+		return this;
+	}
+
+	/**
+	 * Adds a part read from a file when the body is written.
+	 *
+	 * @param name The name of the part.
+	 * @param path The file (its size is read now, so it shouldn't change before the body is written).
+	 * @param contentType The Content-Type of the part (null for application/octet-stream).
+	 * @return This encoder.
+	 */
+	public MultiPartEncoder addFile(String name, Path path, String contentType) throws IOException {
+		String fileName = (null != path.getFileName())
+				? path.getFileName().toString()
+				: null
+		;
+		_add(new Part(name, fileName, _orDefault(contentType), null, path, null, Files.size(path)));
+		return this;
+	}
+
+	/**
+	 * Adds a part read from a stream when the body is written.
+	 *
+	 * @param name The name of the part.
+	 * @param fileName The file name sent with the part (null to send none).
+	 * @param contentType The Content-Type of the part (null for application/octet-stream).
+	 * @param input The content, read to its end (closed once written).
+	 * @param length The length of the content, or -1 if unknown (in which case the body is sent chunked).
+	 * @return This encoder.
+	 */
+	public MultiPartEncoder addStream(String name, String fileName, String contentType, InputStream input, long length) {
+		Assert.assertTrue(length >= -1L);
+		_add(new Part(name, fileName, _orDefault(contentType), null, null, input, length));
+		return this;
+	}
+
+	/**
+	 * Chooses the boundary, if not already chosen, after which no more parts can be added.
+	 *
+	 * @return The value of the Content-Type header for the body.
+	 */
+	public String getContentType() {
+		return "multipart/form-data; boundary=" + _getBoundary();
+	}
+
+	/**
+	 * Chooses the boundary, if not already chosen, after which no more parts can be added.
+	 *
+	 * @return The size of the body, in bytes, or -1 if any part's size is unknown.
+	 */
+	public long getContentLength() {
+		String boundary = _getBoundary();
+		long total = 0L;
+		for (Part part : _parts) {
+			if ((total >= 0L) && (part.length >= 0L)) {
+				total += _partHeader(boundary, part).length + part.length + CRLF.length;
+			} else {
+				total = -1L;
+			}
+		}
+		if (total >= 0L) {
+			total += _closingDelimiter(boundary).length;
+		}
+		return total;
+	}
+
+	/**
+	 * Writes the body.  The headers of each part are written with its content, rather than flushed separately, so the
+	 * body goes out in as few writes as the underlying stream makes.
+	 *
+	 * @param output The stream to write (not flushed or closed).
+	 * @throws IOException If writing fails or a part's content wasn't the size it was declared to be.
+	 */
+	public void writeTo(OutputStream output) throws IOException {
+		Assert.assertTrue(!_isWritten);
+		_isWritten = true;
+		String boundary = _getBoundary();
+		for (Part part : _parts) {
+			output.write(_partHeader(boundary, part));
+			long written;
+			if (null != part.bytes) {
+				output.write(part.bytes);
+				written = part.bytes.length;
+			} else if (null != part.path) {
+				try (InputStream input = Files.newInputStream(part.path)) {
+					written = input.transferTo(output);
+				}
+			} else {
+				try (InputStream input = part.stream) {
+					written = input.transferTo(output);
+				}
+			}
+			// A wrong declared length would corrupt the body (or make the Content-Length wrong) so we fail it here.
+			if ((part.length >= 0L) && (written != part.length)) {
+				throw new IOException("Part \"" + part.name + "\" was " + written + " bytes but declared as " + part.length);
+			}
+			output.write(CRLF);
+		}
+		output.write(_closingDelimiter(boundary));
+	}
+
+
+	private void _add(Part part) {
+		// The boundary was chosen against the parts added so far.
+		Assert.assertTrue(null == _boundary);
+		_parts.add(part);
+	}
+
+	private String _getBoundary() {
+		if (null == _boundary) {
+			String candidate = _newBoundary();
+			while (_appearsInParts(candidate)) {
+				candidate = _newBoundary();
+			}
+			_boundary = candidate;
+		}
+		return _boundary;
+	}
+
+	private boolean _appearsInParts(String boundary) {
+		byte[] delimiter = ("--" + boundary).getBytes(StandardCharsets.US_ASCII);
+		boolean appears = false;
+		for (Part part : _parts) {
+			if ((null != part.bytes) && _contains(part.bytes, delimiter)) {
+				appears = true;
+			}
+		}
+		return appears;
+	}
+
+	private static String _newBoundary() {
+		byte[] random = new byte[BOUNDARY_RANDOM_BYTES];
+		RANDOM.nextBytes(random);
+		StringBuilder builder = new StringBuilder("breakwater-");
+		for (byte b : random) {
+			builder.append(String.format("%02x", b));
+		}
+		return builder.toString();
+	}
+
+	private static boolean _contains(byte[] data, byte[] pattern) {
+		boolean found = false;
+		for (int i = 0; !found && (i <= (data.length - pattern.length)); ++i) {
+			int matched = 0;
+			while ((matched < pattern.length) && (data[i + matched] == pattern[matched])) {
+				matched += 1;
+			}
+			found = (matched == pattern.length);
+		}
+		return found;
+	}
+
+	private static byte[] _partHeader(String boundary, Part part) {
+		StringBuilder builder = new StringBuilder();
+		builder.append("--").append(boundary).append("\r\n");
+		builder.append("Content-Disposition: form-data; name=\"").append(_quote(part.name)).append("\"");
+		if (null != part.fileName) {
+			builder.append("; filename=\"").append(_quote(part.fileName)).append("\"");
+		}
+		builder.append("\r\n");
+		builder.append("Content-Type: ").append(part.contentType).append("\r\n");
+		builder.append("\r\n");
+		return builder.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static byte[] _closingDelimiter(String boundary) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		bytes.writeBytes(HYPHENS);
+		bytes.writeBytes(boundary.getBytes(StandardCharsets.US_ASCII));
+		bytes.writeBytes(HYPHENS);
+		bytes.writeBytes(CRLF);
+		return bytes.toByteArray();
+	}
+
+	private static String _quote(String value) {
+		// Quotes and line breaks would end the header value early, so we percent-encode them (as browsers do).
+		return value.replace("\"", "%22").replace("\r", "%0D").replace("\n", "%0A");
+	}
+
+	private static String _orDefault(String contentType) {
+		return (null != contentType)
+				? contentType
+				: DEFAULT_CONTENT_TYPE
+		;
+	}
+
+
+	private static class Part {
+		public final String name;
+		public final String fileName;
+		public final String contentType;
+		public final byte[] bytes;
+		public final Path path;
+		public final InputStream stream;
+		public final long length;
+
+		public Part(String name, String fileName, String contentType, byte[] bytes, Path path, InputStream stream, long length) {
+			this.name = name;
+			this.fileName = fileName;
+			this.contentType = contentType;
+			this.bytes = bytes;
+			this.path = path;
+			this.stream = stream;
+			this.length = length;
+		}
+	}
+}
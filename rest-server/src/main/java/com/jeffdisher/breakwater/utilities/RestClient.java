@@ -0,0 +1,739 @@
+package com.jeffdisher.breakwater.utilities;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.client.api.ContentResponse;
+import org.eclipse.jetty.client.api.Request;
+import org.eclipse.jetty.client.api.Response;
+import org.eclipse.jetty.client.api.Result;
+import org.eclipse.jetty.client.util.BufferingResponseListener;
+import org.eclipse.jetty.client.util.BytesRequestContent;
+import org.eclipse.jetty.client.util.FormRequestContent;
+import org.eclipse.jetty.client.util.FutureResponseListener;
+import org.eclipse.jetty.client.util.InputStreamRequestContent;
+import org.eclipse.jetty.client.util.InputStreamResponseListener;
+import org.eclipse.jetty.client.util.MultiPartRequestContent;
+import org.eclipse.jetty.client.util.PathRequestContent;
+import org.eclipse.jetty.http.HttpMethod;
+import org.eclipse.jetty.http.HttpStatus;
+import org.eclipse.jetty.util.Fields;
+
+import com.jeffdisher.breakwater.StringMultiMap;
+
+
+/**
+ * A reusable client with the same calls as RestHelpers, for service-to-service traffic.  Where RestHelpers opens a
+ * connection per call, this keeps a pool of keep-alive connections to each server (backed by Jetty's HttpClient), with
+ * limits on how many connections are opened and how many requests can wait for one, and timeouts on connecting and on
+ * each request as a whole.
+ * Response bodies are read to the end, whether or not the server sends their length (as with chunked responses), up
+ * to a configured limit.
+ * As with HttpURLConnection (and so RestHelpers), an error status is reported as an IOException (FileNotFoundException
+ * for 404 and 410), except that get() returns null for those.
+ * The idempotent calls with in-memory bodies (get(), put(), and delete()) can opt in to hedging (sending a duplicate
+ * of a slow request and taking the first response) and to retries with jittered backoff.  Both are paid for from a
+ * retry budget, so they add at most a fixed fraction of extra load, even when every request is failing.
+ * Instances are thread-safe and should be shared, then closed once no longer needed.
+ */
+public class RestClient implements AutoCloseable {
+	private static final int LATENCY_WINDOW_SIZE = 1024;
+	private static final int LATENCY_MIN_SAMPLES = 20;
+	private static final long MAX_RETRY_BACKOFF_MILLIS = 10_000L;
+
+	/**
+	 * @return A new builder, starting from the default settings.
+	 */
+	public static Builder builder() {
+		return new Builder();
+	}
+
+	private final HttpClient _client;
+	private final long _requestTimeoutMillis;
+	private final int _maxResponseBytes;
+	private final long _hedgeDelayMillis;
+	private final boolean _hedgeAtObservedP95;
+	private final int _maxRetries;
+	private final long _retryBackoffMillis;
+	private final RetryBudget _budget;
+	private final LatencyWindow _latencies;
+
+	// All the variables below are protected by the monitor on this.
+	private long _hedgeCount;
+	private long _retryCount;
+
+	private RestClient(HttpClient client
+			, long requestTimeoutMillis
+			, int maxResponseBytes
+			, long hedgeDelayMillis
+			, boolean hedgeAtObservedP95
+			, int maxRetries
+			, long retryBackoffMillis
+			, RetryBudget budget
+	) {
+		_client = client;
+		_requestTimeoutMillis = requestTimeoutMillis;
+		_maxResponseBytes = maxResponseBytes;
+		_hedgeDelayMillis = hedgeDelayMillis;
+		_hedgeAtObservedP95 = hedgeAtObservedP95;
+		_maxRetries = maxRetries;
+		_retryBackoffMillis = retryBackoffMillis;
+		_budget = budget;
+		_latencies = new LatencyWindow(LATENCY_WINDOW_SIZE, LATENCY_MIN_SAMPLES);
+	}
+
+	/**
+	 * GETs the URL, hedging and retrying it if configured (GET is idempotent).
+	 * 
+	 * @param url The URL to GET.
+	 * @return The response body, or null if the resource wasn't found.
+	 */
+	public byte[] get(String url) throws IOException {
+		byte[] body;
+		try {
+			body = _sendIdempotent(() -> _client.newRequest(url).method(HttpMethod.GET));
+		} catch (FileNotFoundException e) {
+			// 404-ed!
+			body = null;
+		}
+		return body;
+	}
+
+	/**
+	 * Downloads the response directly into the given stream, so it is never held in memory (and isn't subject to the
+	 * response size limit).
+	 * 
+	 * @param url The URL to GET.
+	 * @param output The stream where the body is written (not closed).
+	 * @return The number of bytes written, or -1 if the resource wasn't found (in which case nothing is written).
+	 */
+	public long getToStream(String url, OutputStream output) throws IOException {
+		InputStream stream = _openStream(_client.newRequest(url).method(HttpMethod.GET));
+		long copied = -1L;
+		if (null != stream) {
+			try (stream) {
+				copied = stream.transferTo(output);
+			}
+		}
+		return copied;
+	}
+
+	/**
+	 * Downloads the response directly into a file, through a FileChannel, so it is never held in memory (and isn't
+	 * subject to the response size limit).
+	 * 
+	 * @param url The URL to GET.
+	 * @param path The file to write (replaced if it exists).
+	 * @return The number of bytes written, or -1 if the resource wasn't found (in which case the file isn't touched).
+	 */
+	public long getToFile(String url, Path path) throws IOException {
+		InputStream stream = _openStream(_client.newRequest(url).method(HttpMethod.GET));
+		long copied = -1L;
+		if (null != stream) {
+			try (stream) {
+				copied = RestHelpers.copyToFile(stream, path);
+			}
+		}
+		return copied;
+	}
+
+	/**
+	 * PUTs the bytes, hedging and retrying it if configured (PUT is idempotent).
+	 * 
+	 * @param url The URL to PUT.
+	 * @param toSend The body.
+	 * @return The response body.
+	 */
+	public byte[] put(String url, byte[] toSend) throws IOException {
+		return _sendIdempotent(() -> _client.newRequest(url)
+				.method(HttpMethod.PUT)
+				.body(new BytesRequestContent(toSend))
+		);
+	}
+
+	/**
+	 * Uploads the stream with chunked transfer encoding, so it doesn't need to be held in memory (or have a known size).
+	 * 
+	 * @param url The URL to PUT.
+	 * @param input The body to send, read until its end (closed once sent).
+	 * @return The response body.
+	 */
+	public byte[] putFromStream(String url, InputStream input) throws IOException {
+		return _send(_client.newRequest(url)
+				.method(HttpMethod.PUT)
+				.body(new InputStreamRequestContent("application/octet-stream", input))
+		);
+	}
+
+	/**
+	 * Uploads the file, streaming it with its known length, so it doesn't need to be held in memory.
+	 * 
+	 * @param url The URL to PUT.
+	 * @param path The file to send.
+	 * @return The response body.
+	 */
+	public byte[] putFromFile(String url, Path path) throws IOException {
+		return _send(_client.newRequest(url)
+				.method(HttpMethod.PUT)
+				.body(new PathRequestContent("application/octet-stream", path))
+		);
+	}
+
+	public byte[] postParts(String url, StringMultiMap<byte[]> toSend) throws IOException {
+		// Jetty picks a random boundary.
+		MultiPartRequestContent parts = new MultiPartRequestContent();
+		for (Map.Entry<String, List<byte[]>> entry : toSend.entrySet()) {
+			for (byte[] value : entry.getValue()) {
+				parts.addFieldPart(entry.getKey(), new BytesRequestContent("application/octet-stream", value), null);
+			}
+		}
+		parts.close();
+		return _send(_client.newRequest(url)
+				.method(HttpMethod.POST)
+				.body(parts)
+		);
+	}
+
+	public byte[] postForm(String url, StringMultiMap<String> toSend) throws IOException {
+		Fields fields = new Fields();
+		for (Map.Entry<String, List<String>> entry : toSend.entrySet()) {
+			for (String value : entry.getValue()) {
+				fields.add(entry.getKey(), value);
+			}
+		}
+		return _send(_client.newRequest(url)
+				.method(HttpMethod.POST)
+				.body(new FormRequestContent(fields, StandardCharsets.UTF_8))
+		);
+	}
+
+	public byte[] postBinary(String url, byte[] raw) throws IOException {
+		return _send(_client.newRequest(url)
+				.method(HttpMethod.POST)
+				.body(new BytesRequestContent("application/octet-stream", raw))
+		);
+	}
+
+	/**
+	 * Posts the stream with chunked transfer encoding, so it doesn't need to be held in memory (or have a known size).
+	 * 
+	 * @param url The URL to POST.
+	 * @param input The body to send, read until its end (closed once sent).
+	 * @return The response body.
+	 */
+	public byte[] postBinaryFromStream(String url, InputStream input) throws IOException {
+		return _send(_client.newRequest(url)
+				.method(HttpMethod.POST)
+				.body(new InputStreamRequestContent("application/octet-stream", input))
+		);
+	}
+
+	/**
+	 * Posts the file, streaming it with its known length, so it doesn't need to be held in memory.
+	 * 
+	 * @param url The URL to POST.
+	 * @param path The file to send.
+	 * @return The response body.
+	 */
+	public byte[] postBinaryFromFile(String url, Path path) throws IOException {
+		return _send(_client.newRequest(url)
+				.method(HttpMethod.POST)
+				.body(new PathRequestContent("application/octet-stream", path))
+		);
+	}
+
+	/**
+	 * DELETEs the URL, hedging and retrying it if configured (DELETE is idempotent).
+	 * 
+	 * @param url The URL to DELETE.
+	 * @return The response body.
+	 */
+	public byte[] delete(String url) throws IOException {
+		return _sendIdempotent(() -> _client.newRequest(url).method(HttpMethod.DELETE));
+	}
+
+	/**
+	 * Starts a GET of each of the URLs, concurrently, returning immediately.  Use this instead of calling get() in a
+	 * loop, so a batch takes about as long as its slowest request instead of the sum of them.
+	 * Note that the client's maxConnectionsPerDestination still applies:  requests to one server beyond that wait for a
+	 * pooled connection (which counts against their timeout).
+	 *
+	 * @param urls The URLs to GET.
+	 * @param maxConcurrent The most requests of this batch in flight at once.
+	 * @param timeoutMillis The timeout of each request, from when it is started (0 for the client's request timeout).
+	 * @return The FanOut, to consume the results as they complete or all at once.
+	 */
+	public FanOut fanOut(List<String> urls, int maxConcurrent, long timeoutMillis) {
+		Assert.assertTrue(timeoutMillis >= 0L);
+		long effectiveTimeout = (timeoutMillis > 0L)
+				? timeoutMillis
+				: _requestTimeoutMillis
+		;
+		FanOut fanOut = new FanOut(_client, urls, maxConcurrent, effectiveTimeout, _maxResponseBytes);
+		fanOut.start();
+		return fanOut;
+	}
+
+	/**
+	 * @return The number of hedge requests sent (each one a duplicate of a request which was slower than the hedge
+	 * delay).
+	 */
+	public synchronized long getHedgeCount() {
+		return _hedgeCount;
+	}
+
+	/**
+	 * @return The number of retries sent (after a failure or a 502, 503, or 504 response).
+	 */
+	public synchronized long getRetryCount() {
+		return _retryCount;
+	}
+
+	/**
+	 * @return The number of hedges and retries which weren't sent since they would have exceeded the retry budget.
+	 */
+	public long getBudgetRejectedCount() {
+		return _budget.getRejectedCount();
+	}
+
+	/**
+	 * Closes all pooled connections and stops the client's threads.  Requests still in progress fail.
+	 */
+	@Override
+	public void close() {
+		try {
+			_client.stop();
+		} catch (Exception e) {
+			// Stopping a client doesn't fail unless something is badly broken.
+			throw Assert.unexpected(e);
+		}
+	}
+
+
+	private byte[] _send(Request request) throws IOException {
+		_applyTimeout(request);
+		// This buffers the body as it arrives, regardless of how it is framed, failing if it is larger than the limit.
+		FutureResponseListener listener = new FutureResponseListener(request, _maxResponseBytes);
+		request.send(listener);
+		ContentResponse response;
+		try {
+			response = listener.get();
+		} catch (InterruptedException e) {
+			throw _interrupted(request, e);
+		} catch (ExecutionException e) {
+			throw _failed(request, e.getCause());
+		}
+		_checkStatus(request, response.getStatus());
+		return response.getContent();
+	}
+
+	// Sends the request (made by the factory, since each attempt needs a new one), hedging and retrying it as configured.
+	private byte[] _sendIdempotent(Supplier<Request> factory) throws IOException {
+		_budget.deposit();
+		Race race = _race(factory);
+		int retries = 0;
+		while (race.isRetryable() && (retries < _maxRetries) && _budget.tryWithdraw()) {
+			_sleepBackoff(retries);
+			synchronized (this) {
+				_retryCount += 1;
+			}
+			retries += 1;
+			race = _race(factory);
+		}
+		if (null != race.failure) {
+			throw _failed(race.failedRequest, race.failure);
+		}
+		_checkStatus(race.response.getRequest(), race.response.getStatus());
+		return race.body;
+	}
+
+	// Sends one attempt, plus a hedge if it isn't done by the hedge delay, returning once either has a response (or both
+	// have failed).  The slower one is aborted.
+	private Race _race(Supplier<Request> factory) throws InterruptedIOException {
+		Race race = new Race();
+		long startNanos = System.nanoTime();
+		Request primary = factory.get();
+		_applyTimeout(primary);
+		race.start(primary, _maxResponseBytes);
+		long hedgeDelayMillis = _getHedgeDelayMillis();
+		try {
+			if ((hedgeDelayMillis > 0L) && !race.awaitFor(hedgeDelayMillis) && _budget.tryWithdraw()) {
+				Request hedge = factory.get();
+				_applyTimeout(hedge);
+				synchronized (this) {
+					_hedgeCount += 1;
+				}
+				race.start(hedge, _maxResponseBytes);
+			}
+			race.await();
+		} catch (InterruptedException e) {
+			race.abortAll(e);
+			throw _interrupted(primary, e);
+		}
+		race.abortAll(new CancellationException("Hedged request lost"));
+		if (null != race.response) {
+			_latencies.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+		}
+		return race;
+	}
+
+	private long _getHedgeDelayMillis() {
+		long observed = _hedgeAtObservedP95
+				? _latencies.getPercentile(95)
+				: -1L
+		;
+		// Until there are enough samples, we use the fixed delay.
+		return (observed >= 0L)
+				? Math.max(1L, observed)
+				: _hedgeDelayMillis
+		;
+	}
+
+	private void _sleepBackoff(int retries) throws InterruptedIOException {
+		// "Full jitter":  a random delay up to the exponential backoff, so clients which failed together spread out.
+		long ceiling = Math.min(MAX_RETRY_BACKOFF_MILLIS, _retryBackoffMillis << Math.min(retries, 20));
+		long millis = ThreadLocalRandom.current().nextLong(ceiling + 1L);
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted waiting to retry");
+		}
+	}
+
+	// Returns the stream of the response body, as it arrives, or null if the resource wasn't found.
+	private InputStream _openStream(Request request) throws IOException {
+		_applyTimeout(request);
+		InputStreamResponseListener listener = new InputStreamResponseListener();
+		request.send(listener);
+		Response response;
+		try {
+			// The request's own timeout (if any) fails this, too.
+			response = listener.get(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			throw _interrupted(request, e);
+		} catch (ExecutionException e) {
+			throw _failed(request, e.getCause());
+		} catch (TimeoutException e) {
+			throw _failed(request, e);
+		}
+		InputStream stream = listener.getInputStream();
+		try {
+			_checkStatus(request, response.getStatus());
+		} catch (FileNotFoundException e) {
+			// Closing the stream discards the rest of the body.
+			stream.close();
+			stream = null;
+		} catch (IOException e) {
+			stream.close();
+			throw e;
+		}
+		return stream;
+	}
+
+	private void _applyTimeout(Request request) {
+		if (_requestTimeoutMillis > 0L) {
+			request.timeout(_requestTimeoutMillis, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	private static InterruptedIOException _interrupted(Request request, InterruptedException e) {
+		request.abort(e);
+		Thread.currentThread().interrupt();
+		return new InterruptedIOException("Interrupted waiting for " + request.getURI());
+	}
+
+	private static IOException _failed(Request request, Throwable cause) {
+		return (cause instanceof IOException)
+				? (IOException)cause
+				: new IOException("Request failed: " + request.getURI(), cause)
+		;
+	}
+
+	private static void _checkStatus(Request request, int status) throws IOException {
+		if ((HttpStatus.NOT_FOUND_404 == status) || (HttpStatus.GONE_410 == status)) {
+			throw new FileNotFoundException(request.getURI().toString());
+		} else if (status >= HttpStatus.BAD_REQUEST_400) {
+			throw new IOException("Server returned HTTP response code: " + status + " for URL: " + request.getURI());
+		}
+	}
+
+
+	// The outcome of an attempt and its hedge (if any):  the first response wins, but a failure only counts once both
+	// have failed, since the other may still succeed.
+	private static class Race {
+		// All the variables below are protected by the monitor on this.
+		private final List<Request> _started = new ArrayList<>();
+		private int _outstanding;
+		public Response response;
+		public byte[] body;
+		public Throwable failure;
+		public Request failedRequest;
+
+		public void start(Request request, int maxResponseBytes) {
+			synchronized (this) {
+				_started.add(request);
+				_outstanding += 1;
+			}
+			// This may complete before send() returns.
+			request.send(new BufferingResponseListener(maxResponseBytes) {
+				@Override
+				public void onComplete(Result result) {
+					_complete(result, getContent());
+				}
+			});
+		}
+
+		// Returns true if the race was decided within the time.
+		public synchronized boolean awaitFor(long millis) throws InterruptedException {
+			long deadline = System.currentTimeMillis() + millis;
+			long remaining = millis;
+			while (!_isDecided() && (remaining > 0L)) {
+				this.wait(remaining);
+				remaining = deadline - System.currentTimeMillis();
+			}
+			return _isDecided();
+		}
+
+		public synchronized void await() throws InterruptedException {
+			while (!_isDecided()) {
+				this.wait();
+			}
+		}
+
+		public synchronized boolean isRetryable() {
+			// Gateway errors and overload mean the request wasn't handled, so it is worth trying again.
+			return (null == this.response)
+					|| (HttpStatus.BAD_GATEWAY_502 == this.response.getStatus())
+					|| (HttpStatus.SERVICE_UNAVAILABLE_503 == this.response.getStatus())
+					|| (HttpStatus.GATEWAY_TIMEOUT_504 == this.response.getStatus())
+			;
+		}
+
+		public void abortAll(Throwable reason) {
+			List<Request> started;
+			synchronized (this) {
+				started = new ArrayList<>(_started);
+			}
+			// Aborting a request which already completed does nothing.
+			for (Request request : started) {
+				request.abort(reason);
+			}
+		}
+
+		private synchronized void _complete(Result result, byte[] content) {
+			_outstanding -= 1;
+			if (null == this.response) {
+				if (result.isFailed()) {
+					this.failure = result.getFailure();
+					this.failedRequest = result.getRequest();
+				} else {
+					this.response = result.getResponse();
+					this.body = content;
+					this.failure = null;
+					this.failedRequest = null;
+				}
+			}
+			this.notifyAll();
+		}
+
+		private boolean _isDecided() {
+			return (null != this.response) || (0 == _outstanding);
+		}
+	}
+
+
+	/**
+	 * Accumulates the settings of a RestClient.  Each setter returns the builder, for chaining.
+	 */
+	public static class Builder {
+		private long _connectTimeoutMillis;
+		private long _idleTimeoutMillis;
+		private long _requestTimeoutMillis;
+		private int _maxConnectionsPerDestination;
+		private int _maxRequestsQueuedPerDestination;
+		private int _maxResponseBytes;
+		private long _hedgeDelayMillis;
+		private boolean _hedgeAtObservedP95;
+		private int _maxRetries;
+		private long _retryBackoffMillis;
+		private double _retryBudgetRatio;
+		private int _retryBudgetBurst;
+
+		private Builder() {
+			_connectTimeoutMillis = 15_000L;
+			_idleTimeoutMillis = 30_000L;
+			_requestTimeoutMillis = 0L;
+			_maxConnectionsPerDestination = 64;
+			_maxRequestsQueuedPerDestination = 1024;
+			_maxResponseBytes = 64 * 1024 * 1024;
+			_hedgeDelayMillis = 0L;
+			_hedgeAtObservedP95 = false;
+			_maxRetries = 0;
+			_retryBackoffMillis = 50L;
+			_retryBudgetRatio = 0.1;
+			_retryBudgetBurst = 10;
+		}
+
+		/**
+		 * @param connectTimeoutMillis How long to wait for a new connection to be established.
+		 * @return This builder.
+		 */
+		public Builder connectTimeoutMillis(long connectTimeoutMillis) {
+			Assert.assertTrue(connectTimeoutMillis > 0L);
+			_connectTimeoutMillis = connectTimeoutMillis;
+			return this;
+		}
+
+		/**
+		 * @param idleTimeoutMillis How long a pooled connection can go unused before it is closed.
+		 * @return This builder.
+		 */
+		public Builder idleTimeoutMillis(long idleTimeoutMillis) {
+			Assert.assertTrue(idleTimeoutMillis > 0L);
+			_idleTimeoutMillis = idleTimeoutMillis;
+			return this;
+		}
+
+		/**
+		 * @param requestTimeoutMillis How long a whole request (including waiting for a connection and reading the
+		 * response) can take before it fails (0 for no limit).
+		 * @return This builder.
+		 */
+		public Builder requestTimeoutMillis(long requestTimeoutMillis) {
+			Assert.assertTrue(requestTimeoutMillis >= 0L);
+			_requestTimeoutMillis = requestTimeoutMillis;
+			return this;
+		}
+
+		/**
+		 * @param maxConnectionsPerDestination The most connections to open to a single server (scheme, host, and port).
+		 * @return This builder.
+		 */
+		public Builder maxConnectionsPerDestination(int maxConnectionsPerDestination) {
+			Assert.assertTrue(maxConnectionsPerDestination > 0);
+			_maxConnectionsPerDestination = maxConnectionsPerDestination;
+			return this;
+		}
+
+		/**
+		 * @param maxRequestsQueuedPerDestination The most requests which can wait for a connection to a single server,
+		 * once all of its connections are busy.  Requests beyond this fail immediately.
+		 * @return This builder.
+		 */
+		public Builder maxRequestsQueuedPerDestination(int maxRequestsQueuedPerDestination) {
+			Assert.assertTrue(maxRequestsQueuedPerDestination > 0);
+			_maxRequestsQueuedPerDestination = maxRequestsQueuedPerDestination;
+			return this;
+		}
+
+		/**
+		 * @param maxResponseBytes The largest response body which will be read (larger responses fail).
+		 * @return This builder.
+		 */
+		public Builder maxResponseBytes(int maxResponseBytes) {
+			Assert.assertTrue(maxResponseBytes > 0);
+			_maxResponseBytes = maxResponseBytes;
+			return this;
+		}
+
+		/**
+		 * @param hedgeDelayMillis How long get(), put(), and delete() wait for a response before sending a duplicate
+		 * request (a "hedge") and taking whichever response arrives first (0 to never hedge).  This is the default.
+		 * @return This builder.
+		 */
+		public Builder hedgeDelayMillis(long hedgeDelayMillis) {
+			Assert.assertTrue(hedgeDelayMillis >= 0L);
+			_hedgeDelayMillis = hedgeDelayMillis;
+			return this;
+		}
+
+		/**
+		 * @param hedgeAtObservedP95 True to hedge at the 95th percentile of the client's recent latencies, rather than
+		 * at a fixed delay (the fixed delay is still used until there are enough samples), so only the slowest 5% of
+		 * requests are hedged.
+		 * @return This builder.
+		 */
+		public Builder hedgeAtObservedP95(boolean hedgeAtObservedP95) {
+			_hedgeAtObservedP95 = hedgeAtObservedP95;
+			return this;
+		}
+
+		/**
+		 * @param maxRetries How many times get(), put(), and delete() are retried after a failure (including a timeout)
+		 * or a 502, 503, or 504 response (0 to never retry).
+		 * @return This builder.
+		 */
+		public Builder maxRetries(int maxRetries) {
+			Assert.assertTrue(maxRetries >= 0);
+			_maxRetries = maxRetries;
+			return this;
+		}
+
+		/**
+		 * @param retryBackoffMillis The base of the exponential backoff between retries.  Each wait is a random time
+		 * up to this doubled for each retry, so clients which failed together don't retry together.
+		 * @return This builder.
+		 */
+		public Builder retryBackoffMillis(long retryBackoffMillis) {
+			Assert.assertTrue(retryBackoffMillis >= 0L);
+			_retryBackoffMillis = retryBackoffMillis;
+			return this;
+		}
+
+		/**
+		 * @param ratio The most hedges and retries, together, as a fraction of requests, over time.  Beyond this, a
+		 * request makes only its one attempt, so a struggling server doesn't get extra load.
+		 * @param burst The most hedges and retries allowed at once, before the ratio applies.
+		 * @return This builder.
+		 */
+		public Builder retryBudget(double ratio, int burst) {
+			Assert.assertTrue(ratio >= 0.0);
+			Assert.assertTrue(burst >= 0);
+			_retryBudgetRatio = ratio;
+			_retryBudgetBurst = burst;
+			return this;
+		}
+
+		/**
+		 * @return A started client, which must be closed once no longer needed.
+		 */
+		public RestClient build() {
+			HttpClient client = new HttpClient();
+			client.setConnectTimeout(_connectTimeoutMillis);
+			client.setIdleTimeout(_idleTimeoutMillis);
+			client.setMaxConnectionsPerDestination(_maxConnectionsPerDestination);
+			client.setMaxRequestsQueuedPerDestination(_maxRequestsQueuedPerDestination);
+			try {
+				client.start();
+			} catch (Exception e) {
+				// Starting a client only allocates its threads and selectors.
+				throw Assert.unexpected(e);
+			}
+			return new RestClient(client
+					, _requestTimeoutMillis
+					, _maxResponseBytes
+					, _hedgeDelayMillis
+					, _hedgeAtObservedP95
+					, _maxRetries
+					, _retryBackoffMillis
+					, new RetryBudget(_retryBudgetRatio, _retryBudgetBurst)
+			);
+		}
+	}
+}
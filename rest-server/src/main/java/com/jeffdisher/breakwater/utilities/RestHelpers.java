@@ -1,5 +1,6 @@
 package com.jeffdisher.breakwater.utilities;
 
+import java.io.BufferedOutputStream;
 import java.io.BufferedWriter;
 import java.io.FileNotFoundException;
 import java.io.IOException;
@@ -10,6 +11,12 @@ import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLEncoder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.List;
 import java.util.Map;
 
@@ -20,20 +27,20 @@ import com.jeffdisher.breakwater.StringMultiMap;
  * Basic client-side REST utility methods.
  * These are packaged along with the Breakwater server for easier testing of downstream tools as well as the creation of
  * simple client-side utilities.
+ * Each call opens its own connection so, for service-to-service traffic, use a shared RestClient instead.
  */
 public class RestHelpers {
+	// The chunk size used when uploading a stream of unknown length.
+	private static final int STREAMING_CHUNK_BYTES = 64 * 1024;
+	// The most we ask the FileChannel to transfer in one call, when downloading to a file.
+	private static final long FILE_TRANSFER_BYTES = 1024 * 1024;
+
 	public static byte[] get(String url) throws MalformedURLException, IOException {
 		HttpURLConnection connection = (HttpURLConnection)new URL(url).openConnection();
 		
 		byte[] buffer;
 		try {
-			InputStream stream = connection.getInputStream();
-			buffer = new byte[connection.getContentLength()];
-			int didRead = 0;
-			while (didRead < buffer.length) {
-				int size = stream.read(buffer, didRead, buffer.length - didRead);
-				didRead += size;
-			}
+			buffer = _readResponse(connection);
 		} catch (FileNotFoundException e) {
 			// 404-ed!
 			buffer = null;
@@ -41,6 +48,44 @@ public class RestHelpers {
 		return buffer;
 	}
 
+	/**
+	 * Downloads the response directly into the given stream, so it is never held in memory.
+	 * 
+	 * @param url The URL to GET.
+	 * @param output The stream where the body is written (not closed).
+	 * @return The number of bytes written, or -1 if the resource wasn't found (in which case nothing is written).
+	 */
+	public static long getToStream(String url, OutputStream output) throws MalformedURLException, IOException {
+		HttpURLConnection connection = (HttpURLConnection)new URL(url).openConnection();
+		InputStream stream = _openOrNull(connection);
+		long copied = -1L;
+		if (null != stream) {
+			try (stream) {
+				copied = stream.transferTo(output);
+			}
+		}
+		return copied;
+	}
+
+	/**
+	 * Downloads the response directly into a file, through a FileChannel, so it is never held in memory.
+	 * 
+	 * @param url The URL to GET.
+	 * @param path The file to write (replaced if it exists).
+	 * @return The number of bytes written, or -1 if the resource wasn't found (in which case the file isn't touched).
+	 */
+	public static long getToFile(String url, Path path) throws MalformedURLException, IOException {
+		HttpURLConnection connection = (HttpURLConnection)new URL(url).openConnection();
+		InputStream stream = _openOrNull(connection);
+		long copied = -1L;
+		if (null != stream) {
+			try (stream) {
+				copied = copyToFile(stream, path);
+			}
+		}
+		return copied;
+	}
+
 	public static byte[] put(String url, byte[] toSend) throws MalformedURLException, IOException {
 		HttpURLConnection connection = (HttpURLConnection)new URL(url).openConnection();
 		connection.setRequestMethod("PUT");
@@ -50,23 +95,63 @@ public class RestHelpers {
 		return _readResponse(connection);
 	}
 
+	/**
+	 * Uploads the stream with chunked transfer encoding, so it doesn't need to be held in memory (or have a known size).
+	 * 
+	 * @param url The URL to PUT.
+	 * @param input The body to send, read until its end (not closed).
+	 * @return The response body.
+	 */
+	public static byte[] putFromStream(String url, InputStream input) throws MalformedURLException, IOException {
+		return _upload(url, "PUT", input, -1L);
+	}
+
+	/**
+	 * Uploads the file, streaming it with its known length, so it doesn't need to be held in memory.
+	 * 
+	 * @param url The URL to PUT.
+	 * @param path The file to send.
+	 * @return The response body.
+	 */
+	public static byte[] putFromFile(String url, Path path) throws MalformedURLException, IOException {
+		try (InputStream input = Files.newInputStream(path)) {
+			return _upload(url, "PUT", input, Files.size(path));
+		}
+	}
+
 	public static byte[] postParts(String url, StringMultiMap<byte[]> toSend) throws MalformedURLException, IOException {
-		HttpURLConnection connection = (HttpURLConnection)new URL(url).openConnection();
-		connection.setRequestMethod("POST");
-		connection.setDoOutput(true);
-		// We need to send the variables as a multi-part POST, so we need a boundary and then we can start writing.
-		String boundary = "===" + System.currentTimeMillis() + "===";
-		connection.setRequestProperty("Content-Type", "multipart/form-data; boundary=" + boundary);
-		OutputStream outputStream = connection.getOutputStream();
-		BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(outputStream));
+		MultiPartEncoder parts = new MultiPartEncoder();
 		for (Map.Entry<String, List<byte[]>> entry : toSend.entrySet()) {
-			String key = entry.getKey();
 			for (byte[] value : entry.getValue()) {
-				_addPart(outputStream, writer, boundary, key, value);
+				parts.addBytes(entry.getKey(), value);
 			}
 		}
-		writer.append("--" + boundary + "--").append("\r\n");
-		writer.close();
+		return postMultiPart(url, parts);
+	}
+
+	/**
+	 * Sends the parts as a multipart/form-data POST, streaming them from where they live.  The body is sent with a
+	 * Content-Length if the size of every part is known, or chunked otherwise.
+	 * 
+	 * @param url The URL to POST.
+	 * @param parts The parts to send (this writes them, so it can only be sent once).
+	 * @return The response body.
+	 */
+	public static byte[] postMultiPart(String url, MultiPartEncoder parts) throws MalformedURLException, IOException {
+		HttpURLConnection connection = (HttpURLConnection)new URL(url).openConnection();
+		connection.setRequestMethod("POST");
+		connection.setDoOutput(true);
+		connection.setRequestProperty("Content-Type", parts.getContentType());
+		long length = parts.getContentLength();
+		if (length >= 0L) {
+			connection.setFixedLengthStreamingMode(length);
+		} else {
+			connection.setChunkedStreamingMode(STREAMING_CHUNK_BYTES);
+		}
+		// The encoder writes each part's headers and content in separate writes, so we buffer to coalesce them.
+		try (OutputStream outputStream = new BufferedOutputStream(connection.getOutputStream(), STREAMING_CHUNK_BYTES)) {
+			parts.writeTo(outputStream);
+		}
 		return _readResponse(connection);
 	}
 
@@ -113,6 +198,30 @@ public class RestHelpers {
 		return _readResponse(connection);
 	}
 
+	/**
+	 * Posts the stream with chunked transfer encoding, so it doesn't need to be held in memory (or have a known size).
+	 * 
+	 * @param url The URL to POST.
+	 * @param input The body to send, read until its end (not closed).
+	 * @return The response body.
+	 */
+	public static byte[] postBinaryFromStream(String url, InputStream input) throws MalformedURLException, IOException {
+		return _upload(url, "POST", input, -1L);
+	}
+
+	/**
+	 * Posts the file, streaming it with its known length, so it doesn't need to be held in memory.
+	 * 
+	 * @param url The URL to POST.
+	 * @param path The file to send.
+	 * @return The response body.
+	 */
+	public static byte[] postBinaryFromFile(String url, Path path) throws MalformedURLException, IOException {
+		try (InputStream input = Files.newInputStream(path)) {
+			return _upload(url, "POST", input, Files.size(path));
+		}
+	}
+
 	public static byte[] delete(String url) throws MalformedURLException, IOException {
 		HttpURLConnection connection = (HttpURLConnection)new URL(url).openConnection();
 		connection.setRequestMethod("DELETE");
@@ -121,28 +230,60 @@ public class RestHelpers {
 	}
 
 
-	private static void _addPart(OutputStream outputStream, BufferedWriter writer, String boundary, String key, byte[] value) throws IOException {
-		String hyphens = "--";
-		String lineFeed = "\r\n";
-		writer.append(hyphens + boundary).append(lineFeed);
-		writer.append("Content-Disposition: form-data; name=\"" + key + "\"").append(lineFeed);
-		writer.append("Content-Type: application/octet-stream").append(lineFeed);
-		writer.append(lineFeed);
-		writer.flush();
-		outputStream.write(value);
-		outputStream.flush();
-		writer.append(lineFeed);
+	/**
+	 * Copies the stream into the file through a FileChannel, in bounded steps.  Shared with RestClient.
+	 * 
+	 * @param input The stream to read until its end.
+	 * @param path The file to write (replaced if it exists).
+	 * @return The number of bytes copied.
+	 */
+	static long copyToFile(InputStream input, Path path) throws IOException {
+		ReadableByteChannel source = Channels.newChannel(input);
+		long position = 0L;
+		try (FileChannel file = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			// The source is blocking so this only transfers nothing once it reaches the end.
+			long transferred = file.transferFrom(source, position, FILE_TRANSFER_BYTES);
+			while (transferred > 0L) {
+				position += transferred;
+				transferred = file.transferFrom(source, position, FILE_TRANSFER_BYTES);
+			}
+		}
+		return position;
+	}
+
+	private static InputStream _openOrNull(HttpURLConnection connection) throws IOException {
+		InputStream stream;
+		try {
+			stream = connection.getInputStream();
+		} catch (FileNotFoundException e) {
+			// 404-ed!
+			stream = null;
+		}
+		return stream;
+	}
+
+	private static byte[] _upload(String url, String method, InputStream input, long length) throws MalformedURLException, IOException {
+		HttpURLConnection connection = (HttpURLConnection)new URL(url).openConnection();
+		connection.setRequestMethod(method);
+		connection.setDoOutput(true);
+		connection.setRequestProperty("Content-Type", "application/octet-stream");
+		// Without a streaming mode, HttpURLConnection buffers the whole body in memory to compute its length.
+		if (length >= 0L) {
+			connection.setFixedLengthStreamingMode(length);
+		} else {
+			connection.setChunkedStreamingMode(STREAMING_CHUNK_BYTES);
+		}
+		try (OutputStream outputStream = connection.getOutputStream()) {
+			input.transferTo(outputStream);
+		}
+		return _readResponse(connection);
 	}
 
 	private static byte[] _readResponse(HttpURLConnection connection) throws IOException {
-		// Read the response.
-		InputStream stream = connection.getInputStream();
-		byte[] buffer = new byte[connection.getContentLength()];
-		int didRead = 0;
-		while (didRead < buffer.length) {
-			int size = stream.read(buffer, didRead, buffer.length - didRead);
-			didRead += size;
+		// Read the response to the end, since chunked responses don't have a Content-Length.  Reading it all (and
+		// closing the stream) also lets HttpURLConnection return the connection to its keep-alive cache.
+		try (InputStream stream = connection.getInputStream()) {
+			return stream.readAllBytes();
 		}
-		return buffer;
 	}
 }
@@ -0,0 +1,55 @@
+package com.jeffdisher.breakwater.utilities;
+
+
+/**
+ * Limits the extra attempts (retries and hedges) a RestClient makes to a fraction of its requests, so they can't
+ * multiply the load on a server which is already failing or slow.
+ * Each request deposits the ratio into a balance and each extra attempt withdraws 1 from it, so extra attempts can
+ * never exceed that ratio of requests, over time.  The balance starts at (and is capped at) the burst, which allows
+ * some extra attempts before any requests have been made, or after a quiet period, but no more than that at once.
+ */
+class RetryBudget {
+	private final double _ratio;
+	private final double _burst;
+
+	// All the variables below are protected by the monitor on this.
+	private double _balance;
+	private long _rejectedCount;
+
+	public RetryBudget(double ratio, int burst) {
+		Assert.assertTrue(ratio >= 0.0);
+		Assert.assertTrue(burst >= 0);
+		_ratio = ratio;
+		_burst = burst;
+		_balance = burst;
+	}
+
+	/**
+	 * Called once for each request (not each attempt).
+	 */
+	public synchronized void deposit() {
+		_balance = Math.min(_burst, _balance + _ratio);
+	}
+
+	/**
+	 * Called before making an extra attempt.
+	 *
+	 * @return True if the attempt is within the budget (and was paid for), false if it should be skipped.
+	 */
+	public synchronized boolean tryWithdraw() {
+		boolean allowed = (_balance >= 1.0);
+		if (allowed) {
+			_balance -= 1.0;
+		} else {
+			_rejectedCount += 1;
+		}
+		return allowed;
+	}
+
+	/**
+	 * @return The number of extra attempts skipped since the budget was exhausted.
+	 */
+	public synchronized long getRejectedCount() {
+		return _rejectedCount;
+	}
+}
@@ -1,28 +1,64 @@
 package com.jeffdisher.breakwater;
 
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.io.PrintWriter;
 import java.net.ConnectException;
+import java.net.HttpURLConnection;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.NetworkInterface;
 import java.net.URI;
+import java.net.URL;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
 
 import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.client.api.ContentResponse;
 import org.eclipse.jetty.client.api.Request;
+import org.eclipse.jetty.client.http.HttpClientTransportOverHTTP;
 import org.eclipse.jetty.client.util.StringRequestContent;
+import org.eclipse.jetty.http.HttpFields;
 import org.eclipse.jetty.http.HttpMethod;
+import org.eclipse.jetty.http.HttpVersion;
+import org.eclipse.jetty.http2.client.HTTP2Client;
+import org.eclipse.jetty.http2.client.http.HttpClientTransportOverHTTP2;
+import org.eclipse.jetty.io.ClientConnector;
 import org.eclipse.jetty.util.resource.PathResource;
+import org.eclipse.jetty.websocket.api.ExtensionConfig;
 import org.eclipse.jetty.websocket.api.RemoteEndpoint;
 import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.StatusCode;
 import org.eclipse.jetty.websocket.api.WebSocketListener;
 import org.eclipse.jetty.websocket.api.exceptions.UpgradeException;
 import org.eclipse.jetty.websocket.client.ClientUpgradeRequest;
@@ -33,8 +69,17 @@ import org.junit.Assume;
 import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
 
+import com.jeffdisher.breakwater.utilities.FanOut;
+import com.jeffdisher.breakwater.utilities.MultiPartEncoder;
+import com.jeffdisher.breakwater.utilities.RestClient;
 import com.jeffdisher.breakwater.utilities.RestHelpers;
 
+import jakarta.servlet.AsyncContext;
+import jakarta.servlet.ReadListener;
+import jakarta.servlet.ServletInputStream;
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.WriteListener;
+import jakarta.servlet.http.Cookie;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
 import jakarta.servlet.http.HttpSession;
@@ -155,6 +200,72 @@ public class RestServerTest {
 		server.stop();
 	}
 
+	@Test
+	public void testMultiPartEncoder() throws Throwable {
+		RestServer server = new RestServer(new InetSocketAddress(8080), null, null);
+		// Replies with the declared length (-1 if chunked), then the size and CRC of each part.
+		server.addPostMultiPartHandler("/parts", new IPostMultiPartHandler() {
+			@Override
+			public void handle(HttpServletRequest request, HttpServletResponse response, Object[] path, StringMultiMap<byte[]> multiPart) throws IOException {
+				StringBuilder description = new StringBuilder();
+				description.append(request.getContentLengthLong());
+				for (String name : new String[] { "text", "file", "stream" }) {
+					description.append(" ").append(_describePart(multiPart.getIfSingle(name)));
+				}
+				response.setContentType("text/plain;charset=utf-8");
+				response.setStatus(HttpServletResponse.SC_OK);
+				response.getWriter().print(description);
+			}
+		});
+		server.start();
+		TemporaryFolder folder = new TemporaryFolder();
+		folder.create();
+		// Content which looks like the old timestamp boundary, and our own boundary prefix, is sent intact.
+		byte[] text = ("--===" + System.currentTimeMillis() + "===\r\n--breakwater-\r\n").getBytes(StandardCharsets.UTF_8);
+		byte[] blob = new byte[20_000];
+		for (int i = 0; i < blob.length; ++i) {
+			blob[i] = (byte)(i * 7);
+		}
+		Path file = folder.newFile("blob.bin").toPath();
+		Files.write(file, blob);
+		String expected = _describePart(text) + " " + _describePart(blob) + " " + _describePart(blob);
+
+		MultiPartEncoder parts = new MultiPartEncoder()
+				.addBytes("text", text)
+				.addFile("file", file, null)
+				.addStream("stream", "stream.bin", "application/octet-stream", new ByteArrayInputStream(blob), blob.length);
+		long length = parts.getContentLength();
+		Assert.assertTrue(length > (text.length + 2L * blob.length));
+		Assert.assertEquals(length + " " + expected, new String(RestHelpers.postMultiPart("http://localhost:8080/parts", parts), StandardCharsets.UTF_8));
+
+		// An unknown length makes the request chunked.
+		parts = new MultiPartEncoder()
+				.addBytes("text", text)
+				.addFile("file", file, null)
+				.addStream("stream", null, null, new ByteArrayInputStream(blob), -1L);
+		Assert.assertEquals(-1L, parts.getContentLength());
+		Assert.assertEquals("-1 " + expected, new String(RestHelpers.postMultiPart("http://localhost:8080/parts", parts), StandardCharsets.UTF_8));
+
+		// A stream shorter than declared fails rather than sending a corrupt body.
+		parts = new MultiPartEncoder()
+				.addStream("stream", null, null, new ByteArrayInputStream(blob), blob.length + 1L);
+		try {
+			RestHelpers.postMultiPart("http://localhost:8080/parts", parts);
+			Assert.fail();
+		} catch (IOException e) {
+			// Expected.
+		}
+
+		folder.delete();
+		server.stop();
+	}
+
+	private static String _describePart(byte[] value) {
+		CRC32 crc = new CRC32();
+		crc.update(value);
+		return value.length + ":" + crc.getValue();
+	}
+
 	@Test
 	public void testDelete() throws Throwable {
 		CountDownLatch stopLatch = new CountDownLatch(1);
@@ -346,134 +457,743 @@ public class RestServerTest {
 	}
 
 	@Test
-	public void testStaticContent() throws Throwable {
+	public void testBoundedSessionCache() throws Throwable {
 		TemporaryFolder folder = new TemporaryFolder();
 		folder.create();
 		File dir = folder.newFolder();
-		new File(dir, "temp.txt").createNewFile();
-		RestServer server = new RestServer(new InetSocketAddress(8080), new PathResource(dir), "no-store,no-cache,must-revalidate");
+		RestServer server = new RestServer(new InetSocketAddress(8080), null, null);
+		server.setSessionCache(SessionCacheSettings.builder(dir.toPath())
+				.maxSessions(2)
+				.idleEvictionSeconds(1)
+				.build()
+		);
+		server.addPostRawHandler("/start", new IPostRawHandler() {
+			@Override
+			public void handle(HttpServletRequest request, HttpServletResponse response, Object[] path) throws IOException {
+				String name = new String(request.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+				request.getSession(true).setAttribute("NAME", name);
+				response.setContentType("text/plain;charset=utf-8");
+				response.setStatus(HttpServletResponse.SC_OK);
+				response.getWriter().print(name);
+			}});
+		server.addGetHandler("/get", new IGetHandler() {
+			@Override
+			public void handle(HttpServletRequest request, HttpServletResponse response, Object[] path) throws IOException {
+				HttpSession session = request.getSession(false);
+				if (null != session) {
+					response.setContentType("text/plain;charset=utf-8");
+					response.setStatus(HttpServletResponse.SC_OK);
+					response.getWriter().print(session.getAttribute("NAME"));
+				} else {
+					response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+				}
+			}
+		});
 		server.start();
-		byte[] found = RestHelpers.get("http://localhost:8080/temp.txt");
-		byte[] missing = RestHelpers.get("http://localhost:8080/temp2.txt");
-		Assert.assertArrayEquals(new byte[0], found);
-		Assert.assertArrayEquals(null, missing);
+		BoundedSessionCache cache = server.getSessionCache();
+		
+		// Each client has its own cookies, so its own session, but only 2 fit in memory.
+		HttpClient[] clients = new HttpClient[3];
+		for (int i = 0; i < clients.length; ++i) {
+			clients[i] = new HttpClient();
+			clients[i].start();
+			Assert.assertEquals("user" + i, _sendRequest(clients[i], HttpMethod.POST, "http://localhost:8080/start", "user" + i));
+		}
+		// Eviction happens when the request releases the session, which can be after the client has its response.
+		long evictStart = System.currentTimeMillis();
+		while (((cache.getSessionsCurrent() > 2L) || (cache.getEvictionCount() < 1L)) && ((System.currentTimeMillis() - evictStart) < 10_000L)) {
+			Thread.sleep(10L);
+		}
+		Assert.assertTrue(cache.getSessionsCurrent() <= 2L);
+		Assert.assertEquals(1L, cache.getEvictionCount());
+		// The first session was the least recently used so it was evicted and is reloaded from its file.
+		Assert.assertEquals("user0", _sendRequest(clients[0], HttpMethod.GET, "http://localhost:8080/get", ""));
+		Assert.assertEquals(1L, cache.getMissCount());
+		Assert.assertEquals(1L, cache.getReloadCount());
+		Assert.assertEquals("user2", _sendRequest(clients[2], HttpMethod.GET, "http://localhost:8080/get", ""));
+		Assert.assertTrue(cache.getHitCount() >= 1L);
+		
+		// Once idle, everything is evicted, but still reloaded on demand.
+		long waitStart = System.currentTimeMillis();
+		while ((cache.getSessionsCurrent() > 0L) && ((System.currentTimeMillis() - waitStart) < 10_000L)) {
+			Thread.sleep(100L);
+		}
+		Assert.assertEquals(0L, cache.getSessionsCurrent());
+		Assert.assertTrue(cache.getIdleEvictionCount() >= 2L);
+		long reloads = cache.getReloadCount();
+		for (int i = 0; i < clients.length; ++i) {
+			Assert.assertEquals("user" + i, _sendRequest(clients[i], HttpMethod.GET, "http://localhost:8080/get", ""));
+			clients[i].stop();
+		}
+		Assert.assertEquals(reloads + 3L, cache.getReloadCount());
 		server.stop();
+		folder.delete();
 	}
 
 	@Test
-	public void testWebSocket() throws Throwable {
-		CountDownLatch closeLatch = new CountDownLatch(2);
-		CountDownLatch clientReadLatch = new CountDownLatch(2);
-		Throwable[] failureReference = new Throwable[1];
+	public void testCookieSessions() throws Throwable {
+		byte[] oldSecret = new byte[32];
+		byte[] newSecret = new byte[32];
+		Arrays.fill(oldSecret, (byte)1);
+		Arrays.fill(newSecret, (byte)2);
+		HttpClient httpClient = new HttpClient();
+		httpClient.start();
+		String loggedInUserName = "USER_NAME";
+		
+		// One node creates the session.
+		RestServer server = _startCookieSessionServer(CookieSessionSettings.builder("k1", oldSecret).encrypt(true).build());
+		Assert.assertEquals(loggedInUserName, _sendRequest(httpClient, HttpMethod.POST, "http://localhost:8080/start", loggedInUserName));
+		Assert.assertEquals(loggedInUserName, _sendRequest(httpClient, HttpMethod.GET, "http://localhost:8080/get", ""));
+		String cookie = httpClient.getCookieStore().getCookies().get(0).getValue();
+		Assert.assertTrue(cookie.startsWith("k1."));
+		// The attribute is encrypted so the client can't see it.
+		byte[] payload = Base64.getUrlDecoder().decode(cookie.split("\\.")[1]);
+		Assert.assertFalse(new String(payload, StandardCharsets.ISO_8859_1).contains(loggedInUserName));
+		server.stop();
+		
+		// Another node, which has since rotated to a new key, can still read it.
+		server = _startCookieSessionServer(CookieSessionSettings.builder("k2", newSecret).previousKey("k1", oldSecret).encrypt(true).build());
+		Assert.assertEquals(loggedInUserName, _sendRequest(httpClient, HttpMethod.GET, "http://localhost:8080/get", ""));
+		
+		// A modified cookie is ignored.
+		char[] tampered = cookie.toCharArray();
+		int index = cookie.indexOf('.') + 5;
+		tampered[index] = ('A' == tampered[index]) ? 'B' : 'A';
+		HttpClient otherClient = new HttpClient();
+		otherClient.start();
+		ContentResponse response = otherClient.newRequest("http://localhost:8080/get").headers((HttpFields.Mutable headers) -> headers.put("Cookie", "BWSESSION=" + new String(tampered))).send();
+		Assert.assertEquals(HttpServletResponse.SC_BAD_REQUEST, response.getStatus());
+		otherClient.stop();
+		
+		// Something too big for the cookie is rejected, leaving the session as it was.
+		Assert.assertEquals("too large", _sendRequest(httpClient, HttpMethod.POST, "http://localhost:8080/start", "x".repeat(3000)));
+		// Even when it is larger than a serialized string could be.
+		Assert.assertEquals("too large", _sendRequest(httpClient, HttpMethod.POST, "http://localhost:8080/start", "\u00e9".repeat(40_000)));
+		Assert.assertEquals(loggedInUserName, _sendRequest(httpClient, HttpMethod.GET, "http://localhost:8080/get", ""));
+		
+		// A change re-signs the cookie with the new key.
+		Assert.assertEquals("NEW_NAME", _sendRequest(httpClient, HttpMethod.POST, "http://localhost:8080/start", "NEW_NAME"));
+		Assert.assertTrue(httpClient.getCookieStore().getCookies().get(0).getValue().startsWith("k2."));
+		Assert.assertEquals("NEW_NAME", _sendRequest(httpClient, HttpMethod.GET, "http://localhost:8080/get", ""));
+		
+		// Invalidating the session deletes the cookie.
+		Assert.assertEquals("", _sendRequest(httpClient, HttpMethod.POST, "http://localhost:8080/start", ""));
+		Assert.assertEquals("", _sendRequest(httpClient, HttpMethod.GET, "http://localhost:8080/get", ""));
+		Assert.assertTrue(httpClient.getCookieStore().getCookies().isEmpty());
+		
+		httpClient.stop();
+		server.stop();
+	}
+
+	@Test
+	public void testCookieSessionsBehindResponseCache() throws Throwable {
+		byte[] secret = new byte[32];
+		Arrays.fill(secret, (byte)3);
+		ResponseCache cache = new ResponseCache(60_000L, 1024 * 1024, Collections.emptyList(), Collections.emptyList());
 		RestServer server = new RestServer(new InetSocketAddress(8080), null, null);
-		// We want to create a server with 2 protocols, at the same root address, so make sure that we can resolve multiple protocols.
-		server.addWebSocketFactory("/ws/{string}", "textPrefix", (JettyServerUpgradeRequest upgradeRequest, Object[] path) -> new NamedListener((String)path[1]) {
+		server.setCookieSessions(CookieSessionSettings.builder("k1", secret).build());
+		// Counts the client's visits in its session.
+		server.addGetHandler("/visit", new IGetHandler() {
 			@Override
-			public void onConnect(String name, RemoteEndpoint endpoint)
-			{
+			public void handle(HttpServletRequest request, HttpServletResponse response, Object[] path) throws IOException {
+				HttpSession session = request.getSession(true);
+				Integer visits = (Integer)session.getAttribute("VISITS");
+				int count = (null != visits) ? (visits + 1) : 1;
+				session.setAttribute("VISITS", count);
+				response.setContentType("text/plain;charset=utf-8");
+				response.setStatus(HttpServletResponse.SC_OK);
+				response.getWriter().print(count);
 			}
+		}, null, cache);
+		// Only reads the session, so it doesn't write a cookie.
+		server.addGetHandler("/peek", new IGetHandler() {
 			@Override
-			public void onError(String name, RemoteEndpoint endpoint, Throwable error)
-			{
-				failureReference[0] = error;
+			public void handle(HttpServletRequest request, HttpServletResponse response, Object[] path) throws IOException {
+				HttpSession session = request.getSession(false);
+				response.setContentType("text/plain;charset=utf-8");
+				response.setStatus(HttpServletResponse.SC_OK);
+				response.getWriter().print((null != session) ? session.getAttribute("VISITS") : "none");
 			}
+		}, null, cache);
+		server.start();
+		HttpClient first = new HttpClient();
+		first.start();
+		HttpClient second = new HttpClient();
+		second.start();
+
+		// Each response carries the client's own cookie and none are shared.
+		Assert.assertEquals("1", _sendRequest(first, HttpMethod.GET, "http://localhost:8080/visit", ""));
+		Assert.assertEquals(1, first.getCookieStore().getCookies().size());
+		Assert.assertEquals("2", _sendRequest(first, HttpMethod.GET, "http://localhost:8080/visit", ""));
+		Assert.assertEquals("1", _sendRequest(second, HttpMethod.GET, "http://localhost:8080/visit", ""));
+		Assert.assertEquals(1, second.getCookieStore().getCookies().size());
+		Assert.assertEquals("2", _sendRequest(first, HttpMethod.GET, "http://localhost:8080/peek", ""));
+		Assert.assertEquals("1", _sendRequest(second, HttpMethod.GET, "http://localhost:8080/peek", ""));
+		Assert.assertEquals(0, cache.getEntryCount());
+
+		// A response which didn't use a session is still cached.
+		HttpClient anonymous = new HttpClient();
+		anonymous.start();
+		Assert.assertEquals("none", _sendRequest(anonymous, HttpMethod.GET, "http://localhost:8080/peek", ""));
+		Assert.assertEquals("none", _sendRequest(anonymous, HttpMethod.GET, "http://localhost:8080/peek", ""));
+		Assert.assertEquals(1, cache.getEntryCount());
+		Assert.assertEquals(1L, cache.getHitCount());
+
+		anonymous.stop();
+		second.stop();
+		first.stop();
+		server.stop();
+	}
+
+	private static RestServer _startCookieSessionServer(CookieSessionSettings settings) {
+		RestServer server = new RestServer(new InetSocketAddress(8080), null, null);
+		server.setCookieSessions(settings);
+		server.addPostRawHandler("/start", new IPostRawHandler() {
 			@Override
-			public void onBinary(String name, RemoteEndpoint endpoint, byte[] payload, int offset, int len)
-			{
-				Assert.fail();
-			}
+			public void handle(HttpServletRequest request, HttpServletResponse response, Object[] path) throws IOException {
+				response.setContentType("text/plain;charset=utf-8");
+				response.setStatus(HttpServletResponse.SC_OK);
+				byte[] rawPost = request.getInputStream().readAllBytes();
+				if (rawPost.length > 0) {
+					String name = new String(rawPost, StandardCharsets.UTF_8);
+					try {
+						request.getSession(true).setAttribute("NAME", name);
+						response.getWriter().print(name);
+					} catch (IllegalStateException e) {
+						response.getWriter().print("too large");
+					}
+				} else {
+					request.getSession(true).invalidate();
+				}
+			}});
+		server.addGetHandler("/get", new IGetHandler() {
 			@Override
-			public void onText(String name, RemoteEndpoint endpoint, String message)
-			{
-				try
-				{
-					endpoint.sendString(name + message);
+			public void handle(HttpServletRequest request, HttpServletResponse response, Object[] path) throws IOException {
+				HttpSession session = request.getSession(false);
+				if (null != session) {
+					response.setContentType("text/plain;charset=utf-8");
+					response.setStatus(HttpServletResponse.SC_OK);
+					response.getWriter().print(session.getAttribute("NAME"));
+				} else {
+					response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
 				}
-				catch (IOException e)
-				{
-					failureReference[0] = e;
+			}
+		});
+		server.start();
+		return server;
+	}
+
+	@Test
+	public void testRestClient() throws Throwable {
+		Set<Integer> remotePorts = Collections.synchronizedSet(new HashSet<>());
+		RestServer server = new RestServer(new InetSocketAddress(8080), null, null);
+		server.addGetHandler("/chunked", new IGetHandler() {
+			@Override
+			public void handle(HttpServletRequest request, HttpServletResponse response, Object[] path) throws IOException {
+				remotePorts.add(request.getRemotePort());
+				response.setContentType("application/octet-stream");
+				response.setStatus(HttpServletResponse.SC_OK);
+				// Flushing before the end forces a chunked response, with no Content-Length.
+				OutputStream stream = response.getOutputStream();
+				for (int i = 0; i < 100; ++i) {
+					stream.write(new byte[1000]);
+					stream.flush();
 				}
 			}
+		});
+		server.addGetHandler("/slow", new IGetHandler() {
 			@Override
-			public void onClose()
-			{
-				closeLatch.countDown();
+			public void handle(HttpServletRequest request, HttpServletResponse response, Object[] path) throws IOException {
+				try {
+					Thread.sleep(1000L);
+				} catch (InterruptedException e) {
+					throw new AssertionError(e);
+				}
+				response.setStatus(HttpServletResponse.SC_OK);
 			}
 		});
-		server.addWebSocketFactory("/ws/{string}", "binaryRotate", (JettyServerUpgradeRequest upgradeRequest, Object[] path) -> new NamedListener((String)path[1]) {
+		server.addPutHandler("/echo", new IPutHandler() {
 			@Override
-			public void onConnect(String name, RemoteEndpoint endpoint)
-			{
+			public void handle(HttpServletRequest request, HttpServletResponse response, Object[] path, InputStream inputStream) throws IOException {
+				response.setStatus(HttpServletResponse.SC_OK);
+				response.getOutputStream().write(inputStream.readAllBytes());
 			}
+		});
+		server.addPostRawHandler("/echo", new IPostRawHandler() {
 			@Override
-			public void onError(String name, RemoteEndpoint endpoint, Throwable error)
-			{
-				failureReference[0] = error;
+			public void handle(HttpServletRequest request, HttpServletResponse response, Object[] path) throws IOException {
+				response.setStatus(HttpServletResponse.SC_OK);
+				response.getOutputStream().write(request.getInputStream().readAllBytes());
 			}
+		});
+		server.addPostFormHandler("/form", new IPostFormHandler() {
 			@Override
-			public void onBinary(String name, RemoteEndpoint endpoint, byte[] payload, int offset, int len)
-			{
-				byte rotate = Byte.valueOf(name);
-				for (int i = 0; i < len; ++i)
-				{
-					payload[offset + i] = (byte) (payload[offset + i] + rotate);
-				}
-				try
-				{
-					endpoint.sendBytes(ByteBuffer.wrap(payload, offset, len));
-				}
-				catch (IOException e)
-				{
-					failureReference[0] = e;
-				}
+			public void handle(HttpServletRequest request, HttpServletResponse response, Object[] path, StringMultiMap<String> formVariables) throws IOException {
+				response.setStatus(HttpServletResponse.SC_OK);
+				response.getWriter().print(formVariables.valueCount() + " " + formVariables.getIfSingle("var2"));
 			}
+		});
+		server.addPostMultiPartHandler("/parts", new IPostMultiPartHandler() {
 			@Override
-			public void onText(String name, RemoteEndpoint endpoint, String message)
-			{
-				Assert.fail();
+			public void handle(HttpServletRequest request, HttpServletResponse response, Object[] path, StringMultiMap<byte[]> multiPart) throws IOException {
+				response.setStatus(HttpServletResponse.SC_OK);
+				response.getWriter().print(multiPart.valueCount() + " " + new String(multiPart.getIfSingle("var2"), StandardCharsets.UTF_8));
 			}
+		});
+		server.addDeleteHandler("/delete", new IDeleteHandler() {
 			@Override
-			public void onClose()
-			{
-				closeLatch.countDown();
+			public void handle(HttpServletRequest request, HttpServletResponse response, Object[] path) throws IOException {
+				response.setStatus(HttpServletResponse.SC_OK);
+				response.getWriter().print("deleted");
 			}
 		});
 		server.start();
 		
-		String textOut[] = new String[1];
-		ProtocolClient textClient = new ProtocolClient("ws://localhost:8080/ws/prefix_", "textPrefix") {
-			@Override
-			public void onError(RemoteEndpoint endpoint, Throwable error)
-			{
-				failureReference[0] = error;
-			}
+		// RestHelpers now reads responses without a length.
+		Assert.assertEquals(100_000, RestHelpers.get("http://localhost:8080/chunked").length);
+		remotePorts.clear();
+		
+		RestClient client = RestClient.builder()
+				.maxConnectionsPerDestination(4)
+				.requestTimeoutMillis(500L)
+				.build();
+		// Sequential requests all reuse the same pooled connection.
+		for (int i = 0; i < 10; ++i) {
+			Assert.assertEquals(100_000, client.get("http://localhost:8080/chunked").length);
+		}
+		Assert.assertEquals(1, remotePorts.size());
+		Assert.assertNull(client.get("http://localhost:8080/missing"));
+		try {
+			client.delete("http://localhost:8080/missing");
+			Assert.fail();
+		} catch (FileNotFoundException e) {
+			// Expected.
+		}
+		try {
+			client.get("http://localhost:8080/slow");
+			Assert.fail();
+		} catch (IOException e) {
+			// Expected.
+		}
+		
+		Assert.assertEquals("put", new String(client.put("http://localhost:8080/echo", "put".getBytes(StandardCharsets.UTF_8)), StandardCharsets.UTF_8));
+		Assert.assertEquals("raw", new String(client.postBinary("http://localhost:8080/echo", "raw".getBytes(StandardCharsets.UTF_8)), StandardCharsets.UTF_8));
+		StringMultiMap<String> form = new StringMultiMap<>();
+		form.append("var1", "val1");
+		form.append("var1", "a");
+		form.append("var2", "b & c");
+		Assert.assertEquals("3 b & c", new String(client.postForm("http://localhost:8080/form", form), StandardCharsets.UTF_8));
+		StringMultiMap<byte[]> parts = new StringMultiMap<>();
+		parts.append("var1", "val1".getBytes(StandardCharsets.UTF_8));
+		parts.append("var2", "b".getBytes(StandardCharsets.UTF_8));
+		Assert.assertEquals("2 b", new String(client.postParts("http://localhost:8080/parts", parts), StandardCharsets.UTF_8));
+		Assert.assertEquals("deleted", new String(client.delete("http://localhost:8080/delete"), StandardCharsets.UTF_8));
+		
+		client.close();
+		server.stop();
+	}
+
+	@Test
+	public void testStreamingTransfers() throws Throwable {
+		int size = 8 * 1024 * 1024;
+		byte[] blob = new byte[size];
+		for (int i = 0; i < size; ++i) {
+			blob[i] = (byte)(i * 13);
+		}
+		CRC32 expected = new CRC32();
+		expected.update(blob);
+		RestServer server = new RestServer(new InetSocketAddress(8080), null, null);
+		server.addGetHandler("/blob", new IGetHandler() {
 			@Override
-			public void onBinary(RemoteEndpoint endpoint, byte[] payload, int offset, int len)
-			{
-				Assert.fail();
+			public void handle(HttpServletRequest request, HttpServletResponse response, Object[] path) throws IOException {
+				response.setContentType("application/octet-stream");
+				response.setStatus(HttpServletResponse.SC_OK);
+				response.getOutputStream().write(blob);
 			}
+		});
+		// Both upload methods reply with the length the client declared (-1 if chunked), the size, and the CRC.
+		IPutHandler putHandler = new IPutHandler() {
 			@Override
-			public void onText(RemoteEndpoint endpoint, String message)
-			{
-				textOut[0] = message;
-				clientReadLatch.countDown();
+			public void handle(HttpServletRequest request, HttpServletResponse response, Object[] path, InputStream inputStream) throws IOException {
+				_describeUpload(request, response, inputStream);
 			}
 		};
-		byte[] binaryOut = new byte[4];
-		ProtocolClient binaryClient = new ProtocolClient("ws://localhost:8080/ws/16", "binaryRotate") {
+		server.addPutHandler("/upload", putHandler);
+		server.addPostRawHandler("/upload", new IPostRawHandler() {
 			@Override
-			public void onError(RemoteEndpoint endpoint, Throwable error)
-			{
-				failureReference[0] = error;
+			public void handle(HttpServletRequest request, HttpServletResponse response, Object[] path) throws IOException {
+				_describeUpload(request, response, request.getInputStream());
 			}
+		});
+		server.start();
+		TemporaryFolder folder = new TemporaryFolder();
+		folder.create();
+		Path file = folder.newFile().toPath();
+		Files.write(file, blob);
+		Path downloaded = folder.getRoot().toPath().resolve("downloaded");
+		String chunked = "-1 " + size + " " + expected.getValue();
+		String fixed = size + " " + size + " " + expected.getValue();
+		
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		Assert.assertEquals(size, RestHelpers.getToStream("http://localhost:8080/blob", output));
+		Assert.assertArrayEquals(blob, output.toByteArray());
+		Assert.assertEquals(-1L, RestHelpers.getToStream("http://localhost:8080/missing", output));
+		Assert.assertEquals(size, RestHelpers.getToFile("http://localhost:8080/blob", downloaded));
+		Assert.assertArrayEquals(blob, Files.readAllBytes(downloaded));
+		Assert.assertEquals(chunked, new String(RestHelpers.putFromStream("http://localhost:8080/upload", new ByteArrayInputStream(blob)), StandardCharsets.UTF_8));
+		Assert.assertEquals(fixed, new String(RestHelpers.putFromFile("http://localhost:8080/upload", file), StandardCharsets.UTF_8));
+		Assert.assertEquals(chunked, new String(RestHelpers.postBinaryFromStream("http://localhost:8080/upload", new ByteArrayInputStream(blob)), StandardCharsets.UTF_8));
+		Assert.assertEquals(fixed, new String(RestHelpers.postBinaryFromFile("http://localhost:8080/upload", file), StandardCharsets.UTF_8));
+		
+		// The client streams past its response size limit.
+		RestClient client = RestClient.builder().maxResponseBytes(1024).build();
+		output = new ByteArrayOutputStream();
+		Assert.assertEquals(size, client.getToStream("http://localhost:8080/blob", output));
+		Assert.assertArrayEquals(blob, output.toByteArray());
+		Assert.assertEquals(-1L, client.getToStream("http://localhost:8080/missing", output));
+		Files.delete(downloaded);
+		Assert.assertEquals(size, client.getToFile("http://localhost:8080/blob", downloaded));
+		Assert.assertArrayEquals(blob, Files.readAllBytes(downloaded));
+		Assert.assertEquals(chunked, new String(client.putFromStream("http://localhost:8080/upload", new ByteArrayInputStream(blob)), StandardCharsets.UTF_8));
+		Assert.assertEquals(fixed, new String(client.putFromFile("http://localhost:8080/upload", file), StandardCharsets.UTF_8));
+		Assert.assertEquals(chunked, new String(client.postBinaryFromStream("http://localhost:8080/upload", new ByteArrayInputStream(blob)), StandardCharsets.UTF_8));
+		Assert.assertEquals(fixed, new String(client.postBinaryFromFile("http://localhost:8080/upload", file), StandardCharsets.UTF_8));
+		client.close();
+		
+		folder.delete();
+		server.stop();
+	}
+
+	@Test
+	public void testFanOut() throws Throwable {
+		RestServer server = new RestServer(new InetSocketAddress(8080), null, null);
+		server.addGetHandler("/delay/{string}", new IGetHandler() {
 			@Override
-			public void onBinary(RemoteEndpoint endpoint, byte[] payload, int offset, int len)
-			{
-				Assert.assertEquals(binaryOut.length, len);
-				System.arraycopy(payload, offset, binaryOut, 0, len);
-				clientReadLatch.countDown();
+			public void handle(HttpServletRequest request, HttpServletResponse response, Object[] path) throws IOException {
+				long millis = Long.parseLong((String)path[1]);
+				try {
+					Thread.sleep(millis);
+				} catch (InterruptedException e) {
+					// The server is stopping.
+				}
+				response.setContentType("text/plain;charset=utf-8");
+				response.setStatus(HttpServletResponse.SC_OK);
+				response.getWriter().print(millis);
 			}
-			@Override
+		});
+		server.start();
+		RestClient client = RestClient.builder().build();
+
+		// 8 slow requests, a missing resource, and one which times out:  this takes about as long as the slowest.
+		List<String> urls = new ArrayList<>();
+		for (int i = 0; i < 8; ++i) {
+			urls.add("http://localhost:8080/delay/400");
+		}
+		urls.add("http://localhost:8080/missing");
+		urls.add("http://localhost:8080/delay/2000");
+		long start = System.currentTimeMillis();
+		FanOut fanOut = client.fanOut(urls, 10, 1000L);
+		List<FanOut.Result> results = fanOut.awaitAll();
+		long elapsed = System.currentTimeMillis() - start;
+		Assert.assertTrue(elapsed < 2000L);
+		Assert.assertEquals(10, results.size());
+		for (int i = 0; i < 8; ++i) {
+			Assert.assertTrue(results.get(i).isSuccess());
+			Assert.assertEquals("400", new String(results.get(i).body, StandardCharsets.UTF_8));
+		}
+		Assert.assertEquals(404, results.get(8).status);
+		Assert.assertFalse(results.get(8).isSuccess());
+		Assert.assertEquals(-1, results.get(9).status);
+		Assert.assertTrue(results.get(9).failure instanceof TimeoutException);
+		Assert.assertEquals(10, fanOut.getCompletedCount());
+		Assert.assertEquals(2, fanOut.getFailedCount());
+
+		// With 2 in flight, results are returned as they complete:  the 3rd starts when the 2nd is done.
+		fanOut = client.fanOut(List.of("http://localhost:8080/delay/600", "http://localhost:8080/delay/50", "http://localhost:8080/delay/100"), 2, 0L);
+		Assert.assertEquals(1, fanOut.next().index);
+		Assert.assertEquals(2, fanOut.next().index);
+		Assert.assertEquals(0, fanOut.next().index);
+		Assert.assertNull(fanOut.next());
+
+		// Cancelling fails whatever is outstanding.
+		fanOut = client.fanOut(List.of("http://localhost:8080/delay/2000", "http://localhost:8080/delay/2000"), 1, 0L);
+		fanOut.cancel();
+		results = fanOut.awaitAll();
+		Assert.assertTrue(results.get(0).failure instanceof CancellationException);
+		Assert.assertTrue(results.get(1).failure instanceof CancellationException);
+
+		// Requests failing synchronously don't start the next one recursively (which would overflow the stack).
+		List<String> badUrls = Collections.nCopies(50_000, "http://bad host/");
+		fanOut = client.fanOut(badUrls, 1, 0L);
+		results = fanOut.awaitAll();
+		Assert.assertEquals(50_000, fanOut.getFailedCount());
+		Assert.assertTrue(results.get(49_999).failure instanceof IllegalArgumentException);
+
+		client.close();
+		server.stop();
+	}
+
+	@Test
+	public void testHedgingAndRetries() throws Throwable {
+		AtomicInteger flakyCalls = new AtomicInteger();
+		AtomicInteger tailCalls = new AtomicInteger();
+		AtomicInteger downCalls = new AtomicInteger();
+		RestServer server = new RestServer(new InetSocketAddress(8080), null, null);
+		// Unavailable twice, then fine.
+		server.addGetHandler("/flaky", new IGetHandler() {
+			@Override
+			public void handle(HttpServletRequest request, HttpServletResponse response, Object[] path) throws IOException {
+				if (flakyCalls.incrementAndGet() <= 2) {
+					response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+				} else {
+					response.setStatus(HttpServletResponse.SC_OK);
+					response.getWriter().print("ok");
+				}
+			}
+		});
+		// Only the first call is slow, as though it hit a bad backend.
+		server.addPutHandler("/tail", new IPutHandler() {
+			@Override
+			public void handle(HttpServletRequest request, HttpServletResponse response, Object[] path, InputStream inputStream) throws IOException {
+				byte[] body = inputStream.readAllBytes();
+				if (1 == tailCalls.incrementAndGet()) {
+					try {
+						Thread.sleep(3000L);
+					} catch (InterruptedException e) {
+						// The server is stopping.
+					}
+				}
+				response.setStatus(HttpServletResponse.SC_OK);
+				response.getOutputStream().write(body);
+			}
+		});
+		server.addDeleteHandler("/down", new IDeleteHandler() {
+			@Override
+			public void handle(HttpServletRequest request, HttpServletResponse response, Object[] path) throws IOException {
+				downCalls.incrementAndGet();
+				response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+			}
+		});
+		server.start();
+
+		RestClient client = RestClient.builder()
+				.maxRetries(3)
+				.retryBackoffMillis(10L)
+				.hedgeDelayMillis(200L)
+				.build();
+		Assert.assertArrayEquals("ok".getBytes(StandardCharsets.UTF_8), client.get("http://localhost:8080/flaky"));
+		Assert.assertEquals(3, flakyCalls.get());
+		Assert.assertEquals(2L, client.getRetryCount());
+		// The hedge answers long before the first attempt would.
+		long start = System.currentTimeMillis();
+		Assert.assertArrayEquals(new byte[] { 1, 2, 3 }, client.put("http://localhost:8080/tail", new byte[] { 1, 2, 3 }));
+		Assert.assertTrue((System.currentTimeMillis() - start) < 2000L);
+		Assert.assertEquals(2, tailCalls.get());
+		Assert.assertEquals(1L, client.getHedgeCount());
+		client.close();
+
+		// With no ratio and a burst of 1, only one retry is ever sent, however many are allowed per request.
+		client = RestClient.builder()
+				.maxRetries(5)
+				.retryBackoffMillis(0L)
+				.retryBudget(0.0, 1)
+				.build();
+		for (int i = 0; i < 3; ++i) {
+			try {
+				client.delete("http://localhost:8080/down");
+				Assert.fail();
+			} catch (IOException e) {
+				// Expected.
+			}
+		}
+		Assert.assertEquals(4, downCalls.get());
+		Assert.assertEquals(1L, client.getRetryCount());
+		Assert.assertEquals(3L, client.getBudgetRejectedCount());
+		client.close();
+		server.stop();
+	}
+
+	private static void _describeUpload(HttpServletRequest request, HttpServletResponse response, InputStream inputStream) throws IOException {
+		CRC32 crc = new CRC32();
+		byte[] buffer = new byte[64 * 1024];
+		long total = 0L;
+		int read = inputStream.read(buffer);
+		while (read > 0) {
+			crc.update(buffer, 0, read);
+			total += read;
+			read = inputStream.read(buffer);
+		}
+		response.setContentType("text/plain;charset=utf-8");
+		response.setStatus(HttpServletResponse.SC_OK);
+		response.getWriter().print(request.getContentLengthLong() + " " + total + " " + crc.getValue());
+	}
+
+	@Test
+	public void testStaticContent() throws Throwable {
+		TemporaryFolder folder = new TemporaryFolder();
+		folder.create();
+		File dir = folder.newFolder();
+		new File(dir, "temp.txt").createNewFile();
+		RestServer server = new RestServer(new InetSocketAddress(8080), new PathResource(dir), "no-store,no-cache,must-revalidate");
+		server.start();
+		byte[] found = RestHelpers.get("http://localhost:8080/temp.txt");
+		byte[] missing = RestHelpers.get("http://localhost:8080/temp2.txt");
+		Assert.assertArrayEquals(new byte[0], found);
+		Assert.assertArrayEquals(null, missing);
+		server.stop();
+	}
+
+	@Test
+	public void testCachedStaticContent() throws Throwable {
+		TemporaryFolder folder = new TemporaryFolder();
+		folder.create();
+		File dir = folder.newFolder();
+		byte[] script = "var x = 1;".getBytes(StandardCharsets.UTF_8);
+		Files.write(new File(dir, "app.js").toPath(), script);
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+		GZIPOutputStream gzip = new GZIPOutputStream(compressed);
+		gzip.write(script);
+		gzip.close();
+		Files.write(new File(dir, "app.js.gz").toPath(), compressed.toByteArray());
+		RestServer server = new RestServer(new InetSocketAddress(8080), new PathResource(dir), "no-cache", 1024L * 1024L);
+		server.start();
+
+		// A normal request gets the original file.
+		Assert.assertArrayEquals(script, RestHelpers.get("http://localhost:8080/app.js"));
+		Assert.assertNull(RestHelpers.get("http://localhost:8080/missing.js"));
+
+		// A client accepting gzip gets the precompressed sibling.
+		HttpURLConnection connection = (HttpURLConnection)new URL("http://localhost:8080/app.js").openConnection();
+		connection.setRequestProperty("Accept-Encoding", "gzip");
+		Assert.assertEquals("gzip", connection.getHeaderField("Content-Encoding"));
+		Assert.assertEquals("no-cache", connection.getHeaderField("Cache-Control"));
+		Assert.assertTrue(connection.getContentType().contains("javascript"));
+		Assert.assertArrayEquals(script, new GZIPInputStream(connection.getInputStream()).readAllBytes());
+		String etag = connection.getHeaderField("ETag");
+		Assert.assertNotNull(etag);
+
+		// Revalidating with the ETag returns 304.
+		connection = (HttpURLConnection)new URL("http://localhost:8080/app.js").openConnection();
+		connection.setRequestProperty("Accept-Encoding", "gzip");
+		connection.setRequestProperty("If-None-Match", etag);
+		Assert.assertEquals(304, connection.getResponseCode());
+		server.stop();
+	}
+
+	@Test
+	public void testWebSocket() throws Throwable {
+		CountDownLatch closeLatch = new CountDownLatch(2);
+		CountDownLatch clientReadLatch = new CountDownLatch(2);
+		Throwable[] failureReference = new Throwable[1];
+		RestServer server = new RestServer(new InetSocketAddress(8080), null, null);
+		// We want to create a server with 2 protocols, at the same root address, so make sure that we can resolve multiple protocols.
+		server.addWebSocketFactory("/ws/{string}", "textPrefix", (JettyServerUpgradeRequest upgradeRequest, Object[] path) -> new NamedListener((String)path[1]) {
+			@Override
+			public void onConnect(String name, RemoteEndpoint endpoint)
+			{
+			}
+			@Override
+			public void onError(String name, RemoteEndpoint endpoint, Throwable error)
+			{
+				failureReference[0] = error;
+			}
+			@Override
+			public void onBinary(String name, RemoteEndpoint endpoint, byte[] payload, int offset, int len)
+			{
+				Assert.fail();
+			}
+			@Override
+			public void onText(String name, RemoteEndpoint endpoint, String message)
+			{
+				try
+				{
+					endpoint.sendString(name + message);
+				}
+				catch (IOException e)
+				{
+					failureReference[0] = e;
+				}
+			}
+			@Override
+			public void onClose()
+			{
+				closeLatch.countDown();
+			}
+		});
+		server.addWebSocketFactory("/ws/{string}", "binaryRotate", (JettyServerUpgradeRequest upgradeRequest, Object[] path) -> new NamedListener((String)path[1]) {
+			@Override
+			public void onConnect(String name, RemoteEndpoint endpoint)
+			{
+			}
+			@Override
+			public void onError(String name, RemoteEndpoint endpoint, Throwable error)
+			{
+				failureReference[0] = error;
+			}
+			@Override
+			public void onBinary(String name, RemoteEndpoint endpoint, byte[] payload, int offset, int len)
+			{
+				byte rotate = Byte.valueOf(name);
+				for (int i = 0; i < len; ++i)
+				{
+					payload[offset + i] = (byte) (payload[offset + i] + rotate);
+				}
+				try
+				{
+					endpoint.sendBytes(ByteBuffer.wrap(payload, offset, len));
+				}
+				catch (IOException e)
+				{
+					failureReference[0] = e;
+				}
+			}
+			@Override
+			public void onText(String name, RemoteEndpoint endpoint, String message)
+			{
+				Assert.fail();
+			}
+			@Override
+			public void onClose()
+			{
+				closeLatch.countDown();
+			}
+		});
+		server.start();
+		
+		String textOut[] = new String[1];
+		ProtocolClient textClient = new ProtocolClient("ws://localhost:8080/ws/prefix_", "textPrefix") {
+			@Override
+			public void onError(RemoteEndpoint endpoint, Throwable error)
+			{
+				failureReference[0] = error;
+			}
+			@Override
+			public void onBinary(RemoteEndpoint endpoint, byte[] payload, int offset, int len)
+			{
+				Assert.fail();
+			}
+			@Override
+			public void onText(RemoteEndpoint endpoint, String message)
+			{
+				textOut[0] = message;
+				clientReadLatch.countDown();
+			}
+		};
+		byte[] binaryOut = new byte[4];
+		ProtocolClient binaryClient = new ProtocolClient("ws://localhost:8080/ws/16", "binaryRotate") {
+			@Override
+			public void onError(RemoteEndpoint endpoint, Throwable error)
+			{
+				failureReference[0] = error;
+			}
+			@Override
+			public void onBinary(RemoteEndpoint endpoint, byte[] payload, int offset, int len)
+			{
+				Assert.assertEquals(binaryOut.length, len);
+				System.arraycopy(payload, offset, binaryOut, 0, len);
+				clientReadLatch.countDown();
+			}
+			@Override
 			public void onText(RemoteEndpoint endpoint, String message)
 			{
 				Assert.fail();
@@ -768,13 +1488,1418 @@ public class RestServerTest {
 		server.stop();
 	}
 
+	@Test
+	public void testCompressedGet() throws Throwable {
+		String large = "TESTING".repeat(1000);
+		RestServer server = new RestServer(new InetSocketAddress(8080), null, null);
+		CompressionPolicy policy = new CompressionPolicy(1024, Deflater.BEST_SPEED, Collections.emptySet());
+		server.addGetHandler("/{string}", new IGetHandler() {
+			@Override
+			public void handle(HttpServletRequest request, HttpServletResponse response, Object[] path) throws IOException {
+				String which = (String)path[0];
+				response.setContentType(("large".equals(which) || "async".equals(which)) ? "text/plain;charset=utf-8" : "image/png");
+				response.setStatus(HttpServletResponse.SC_OK);
+				if ("async".equals(which)) {
+					_writeAsync(request, response, large.getBytes(StandardCharsets.UTF_8));
+				} else {
+					response.getWriter().print("small".equals(which) ? "TESTING" : large);
+				}
+			}}, policy);
+		server.start();
+
+		// Without Accept-Encoding, we should see the normal response.
+		Assert.assertArrayEquals(large.getBytes(StandardCharsets.UTF_8), RestHelpers.get("http://localhost:8080/large"));
+
+		// With gzip, the large response should be compressed.
+		HttpURLConnection connection = (HttpURLConnection)new URL("http://localhost:8080/large").openConnection();
+		connection.setRequestProperty("Accept-Encoding", "gzip");
+		Assert.assertEquals("gzip", connection.getHeaderField("Content-Encoding"));
+		Assert.assertEquals(large, new String(new GZIPInputStream(connection.getInputStream()).readAllBytes(), StandardCharsets.UTF_8));
+
+		// deflate is also supported.
+		connection = (HttpURLConnection)new URL("http://localhost:8080/large").openConnection();
+		connection.setRequestProperty("Accept-Encoding", "deflate, gzip;q=0");
+		Assert.assertEquals("deflate", connection.getHeaderField("Content-Encoding"));
+		Assert.assertEquals(large, new String(new InflaterInputStream(connection.getInputStream()).readAllBytes(), StandardCharsets.UTF_8));
+
+		// Small responses and already-compressed types are sent as-is.
+		connection = (HttpURLConnection)new URL("http://localhost:8080/small").openConnection();
+		connection.setRequestProperty("Accept-Encoding", "gzip");
+		Assert.assertNull(connection.getHeaderField("Content-Encoding"));
+		Assert.assertEquals(7, connection.getContentLength());
+		Assert.assertEquals("TESTING", new String(connection.getInputStream().readAllBytes(), StandardCharsets.UTF_8));
+		connection = (HttpURLConnection)new URL("http://localhost:8080/image").openConnection();
+		connection.setRequestProperty("Accept-Encoding", "gzip");
+		Assert.assertNull(connection.getHeaderField("Content-Encoding"));
+		Assert.assertEquals(large, new String(connection.getInputStream().readAllBytes(), StandardCharsets.UTF_8));
+
+		// Asynchronous writes go straight through, uncompressed.
+		connection = (HttpURLConnection)new URL("http://localhost:8080/async").openConnection();
+		connection.setRequestProperty("Accept-Encoding", "gzip");
+		Assert.assertEquals(200, connection.getResponseCode());
+		Assert.assertNull(connection.getHeaderField("Content-Encoding"));
+		Assert.assertEquals(large, new String(connection.getInputStream().readAllBytes(), StandardCharsets.UTF_8));
+		server.stop();
+	}
+
+	@Test
+	public void testConditionalGet() throws Throwable {
+		int[] bodyCount = new int[1];
+		RestServer server = new RestServer(new InetSocketAddress(8080), null, null);
+		server.addGetHandler("/{string}", new IConditionalGetHandler() {
+			@Override
+			public ResponseValidator getValidator(HttpServletRequest request, Object[] path) throws IOException {
+				return "tagged".equals(path[0])
+						? new ResponseValidator("v1", false, -1L)
+						: new ResponseValidator(null, false, 1_000_000L)
+				;
+			}
+			@Override
+			public void handle(HttpServletRequest request, HttpServletResponse response, Object[] path) throws IOException {
+				bodyCount[0] += 1;
+				response.setContentType("text/plain;charset=utf-8");
+				response.setStatus(HttpServletResponse.SC_OK);
+				response.getWriter().print("TESTING");
+			}});
+		server.start();
+
+		// The first fetch gets the body and the validators.
+		HttpURLConnection connection = (HttpURLConnection)new URL("http://localhost:8080/tagged").openConnection();
+		Assert.assertEquals(200, connection.getResponseCode());
+		Assert.assertEquals("\"v1\"", connection.getHeaderField("ETag"));
+		Assert.assertEquals("TESTING", new String(connection.getInputStream().readAllBytes(), StandardCharsets.UTF_8));
+		Assert.assertEquals(1, bodyCount[0]);
 
-	private String _sendRequest(HttpClient httpClient, HttpMethod method, String url, String loggedInUserName) throws Throwable {
-		Request request = httpClient.newRequest(url);
-		request.method(method);
-		request.body(new StringRequestContent(loggedInUserName));
-		String content = new String(request.send().getContent(), StandardCharsets.UTF_8);
-		return content;
+		// Revalidating gets a 304 without generating the body.
+		connection = (HttpURLConnection)new URL("http://localhost:8080/tagged").openConnection();
+		connection.setRequestProperty("If-None-Match", "\"v0\", \"v1\"");
+		Assert.assertEquals(304, connection.getResponseCode());
+		Assert.assertEquals(1, bodyCount[0]);
+
+		// A stale tag gets the body.
+		connection = (HttpURLConnection)new URL("http://localhost:8080/tagged").openConnection();
+		connection.setRequestProperty("If-None-Match", "\"v0\"");
+		Assert.assertEquals(200, connection.getResponseCode());
+		Assert.assertEquals(2, bodyCount[0]);
+
+		// Last-Modified works the same way.
+		connection = (HttpURLConnection)new URL("http://localhost:8080/dated").openConnection();
+		connection.setIfModifiedSince(2_000_000L);
+		Assert.assertEquals(304, connection.getResponseCode());
+		connection = (HttpURLConnection)new URL("http://localhost:8080/dated").openConnection();
+		connection.setIfModifiedSince(0L);
+		Assert.assertEquals(200, connection.getResponseCode());
+		Assert.assertEquals(3, bodyCount[0]);
+		server.stop();
+	}
+
+	@Test
+	public void testCompressedRequestBodies() throws Throwable {
+		RestServer server = new RestServer(new InetSocketAddress(8080), null, null);
+		server.setMaxDecompressedRequestSize(10_000L);
+		server.addPutHandler("/put", new IPutHandler() {
+			@Override
+			public void handle(HttpServletRequest request, HttpServletResponse response, Object[] path, InputStream inputStream) throws IOException {
+				byte[] data = inputStream.readAllBytes();
+				response.setContentType("text/plain;charset=utf-8");
+				response.setStatus(HttpServletResponse.SC_OK);
+				response.getWriter().print("" + data.length);
+			}});
+		server.addPutHandler("/async", new IPutHandler() {
+			@Override
+			public void handle(HttpServletRequest request, HttpServletResponse response, Object[] path, InputStream inputStream) throws IOException {
+				AsyncContext async = request.startAsync();
+				ServletInputStream input = (ServletInputStream)inputStream;
+				ByteArrayOutputStream received = new ByteArrayOutputStream();
+				input.setReadListener(new ReadListener() {
+					@Override
+					public void onDataAvailable() throws IOException {
+						byte[] buffer = new byte[1000];
+						while (input.isReady() && !input.isFinished()) {
+							int didRead = input.read(buffer);
+							if (didRead > 0) {
+								received.write(buffer, 0, didRead);
+							}
+						}
+					}
+					@Override
+					public void onAllDataRead() throws IOException {
+						response.setContentType("text/plain;charset=utf-8");
+						response.setStatus(HttpServletResponse.SC_OK);
+						response.getWriter().print("" + received.size());
+						async.complete();
+					}
+					@Override
+					public void onError(Throwable t) {
+						response.setStatus(DecompressingRequest.isMalformed(t) ? HttpServletResponse.SC_BAD_REQUEST : HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+						async.complete();
+					}
+				});
+			}});
+		server.addPostFormHandler("/form", new IPostFormHandler() {
+			@Override
+			public void handle(HttpServletRequest request, HttpServletResponse response, Object[] path, StringMultiMap<String> formVariables) throws IOException {
+				response.setContentType("text/plain;charset=utf-8");
+				response.setStatus(HttpServletResponse.SC_OK);
+				response.getWriter().print(formVariables.getIfSingle("var1"));
+			}});
+		server.addPostMultiPartHandler("/parts", new IPostMultiPartHandler() {
+			@Override
+			public void handle(HttpServletRequest request, HttpServletResponse response, Object[] path, StringMultiMap<byte[]> multiPart) throws IOException {
+				response.setContentType("text/plain;charset=utf-8");
+				response.setStatus(HttpServletResponse.SC_OK);
+				response.getWriter().print(multiPart.valueCount() + " " + new String(multiPart.getIfSingle("part0"), StandardCharsets.UTF_8));
+			}});
+		server.start();
+
+		// A compressed PUT is seen, by the handler, as the inflated data.
+		byte[] raw = new byte[5_000];
+		HttpURLConnection connection = _openCompressedUpload("http://localhost:8080/put", "PUT", "application/octet-stream", raw);
+		Assert.assertEquals(200, connection.getResponseCode());
+		Assert.assertEquals("5000", new String(connection.getInputStream().readAllBytes(), StandardCharsets.UTF_8));
+
+		// Something inflating past the limit is rejected.
+		connection = _openCompressedUpload("http://localhost:8080/put", "PUT", "application/octet-stream", new byte[20_000]);
+		Assert.assertEquals(413, connection.getResponseCode());
+
+		// Deflate is also supported.
+		ByteArrayOutputStream deflated = new ByteArrayOutputStream();
+		DeflaterOutputStream deflater = new DeflaterOutputStream(deflated);
+		deflater.write(raw);
+		deflater.close();
+		connection = _openEncodedUpload("http://localhost:8080/put", "deflate", deflated.toByteArray());
+		Assert.assertEquals(200, connection.getResponseCode());
+		Assert.assertEquals("5000", new String(connection.getInputStream().readAllBytes(), StandardCharsets.UTF_8));
+
+		// Something which isn't validly encoded (a bad header or a truncated stream) is a bad request.
+		connection = _openEncodedUpload("http://localhost:8080/put", "gzip", "not compressed".getBytes(StandardCharsets.UTF_8));
+		Assert.assertEquals(400, connection.getResponseCode());
+		byte[] truncated = Arrays.copyOf(deflated.toByteArray(), deflated.size() / 2);
+		connection = _openEncodedUpload("http://localhost:8080/put", "deflate", truncated);
+		Assert.assertEquals(400, connection.getResponseCode());
+
+		// Asynchronous reads see the same inflated data, and the same errors.
+		byte[] large = new byte[9_000];
+		new Random(1).nextBytes(large);
+		connection = _openCompressedUpload("http://localhost:8080/async", "PUT", "application/octet-stream", large);
+		Assert.assertEquals(200, connection.getResponseCode());
+		Assert.assertEquals("9000", new String(connection.getInputStream().readAllBytes(), StandardCharsets.UTF_8));
+		connection = _openEncodedUpload("http://localhost:8080/async", "deflate", deflated.toByteArray());
+		Assert.assertEquals(200, connection.getResponseCode());
+		Assert.assertEquals("5000", new String(connection.getInputStream().readAllBytes(), StandardCharsets.UTF_8));
+		connection = _openEncodedUpload("http://localhost:8080/async", "deflate", truncated);
+		Assert.assertEquals(400, connection.getResponseCode());
+
+		// Forms are inflated before parsing.
+		connection = _openCompressedUpload("http://localhost:8080/form", "POST", "application/x-www-form-urlencoded; charset=UTF-8", "var1=value".getBytes(StandardCharsets.UTF_8));
+		Assert.assertEquals(200, connection.getResponseCode());
+		Assert.assertEquals("value", new String(connection.getInputStream().readAllBytes(), StandardCharsets.UTF_8));
+
+		// Multi-part bodies are also inflated before parsing, with the same limit on the number of parts.
+		MultiPartEncoder parts = new MultiPartEncoder();
+		for (int i = 0; i < 20; ++i) {
+			parts.addBytes("part" + i, ("value" + i).getBytes(StandardCharsets.UTF_8));
+		}
+		ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+		parts.writeTo(encoded);
+		connection = _openCompressedUpload("http://localhost:8080/parts", "POST", parts.getContentType(), encoded.toByteArray());
+		Assert.assertEquals(200, connection.getResponseCode());
+		Assert.assertEquals("17 value0", new String(connection.getInputStream().readAllBytes(), StandardCharsets.UTF_8));
+
+		// An encoding we don't support is rejected.
+		connection = _openEncodedUpload("http://localhost:8080/put", "br", raw);
+		Assert.assertEquals(415, connection.getResponseCode());
+		server.stop();
+	}
+
+
+	private String _sendRequest(HttpClient httpClient, HttpMethod method, String url, String loggedInUserName) throws Throwable {
+		Request request = httpClient.newRequest(url);
+		request.method(method);
+		request.body(new StringRequestContent(loggedInUserName));
+		String content = new String(request.send().getContent(), StandardCharsets.UTF_8);
+		return content;
+	}
+
+	@Test
+	public void testResponseCache() throws Throwable {
+		int[] bodyCount = new int[1];
+		CountDownLatch entered = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		ResponseCache cache = new ResponseCache(60_000L, 1_000_000L, List.of("Accept-Language"), List.of("q"));
+		RestServer server = new RestServer(new InetSocketAddress(8080), null, null);
+		server.addGetHandler("/{string}", new IGetHandler() {
+			@Override
+			public void handle(HttpServletRequest request, HttpServletResponse response, Object[] path) throws IOException {
+				synchronized (bodyCount) {
+					bodyCount[0] += 1;
+				}
+				if ("slow".equals(path[0])) {
+					entered.countDown();
+					try {
+						release.await();
+					} catch (InterruptedException e) {
+						throw new AssertionError(e);
+					}
+				}
+				response.setContentType("text/plain;charset=utf-8");
+				response.setStatus(HttpServletResponse.SC_OK);
+				if ("cookie".equals(path[0])) {
+					response.addCookie(new Cookie("name", "value"));
+				}
+				response.getWriter().print(path[0] + " " + request.getHeader("Accept-Language") + " " + request.getParameter("q"));
+			}}, null, cache);
+		server.start();
+
+		// Repeated fetches only invoke the handler once.
+		Assert.assertEquals("fast null null", new String(RestHelpers.get("http://localhost:8080/fast"), StandardCharsets.UTF_8));
+		Assert.assertEquals("fast null null", new String(RestHelpers.get("http://localhost:8080/fast"), StandardCharsets.UTF_8));
+		Assert.assertEquals(1, bodyCount[0]);
+
+		// Key headers and parameters are distinct entries.
+		HttpURLConnection connection = (HttpURLConnection)new URL("http://localhost:8080/fast?q=1").openConnection();
+		connection.setRequestProperty("Accept-Language", "fr");
+		Assert.assertEquals("fast fr 1", new String(connection.getInputStream().readAllBytes(), StandardCharsets.UTF_8));
+		Assert.assertEquals("fast null 1", new String(RestHelpers.get("http://localhost:8080/fast?q=1"), StandardCharsets.UTF_8));
+		Assert.assertEquals("fast null 1", new String(RestHelpers.get("http://localhost:8080/fast?q=1&other=2"), StandardCharsets.UTF_8));
+		Assert.assertEquals(3, bodyCount[0]);
+		Assert.assertEquals(3, cache.getEntryCount());
+
+		// Concurrent misses are coalesced into one invocation.
+		Thread[] threads = new Thread[4];
+		String[] results = new String[threads.length];
+		for (int i = 0; i < threads.length; ++i) {
+			int index = i;
+			threads[i] = new Thread(() -> {
+				try {
+					results[index] = new String(RestHelpers.get("http://localhost:8080/slow"), StandardCharsets.UTF_8);
+				} catch (IOException e) {
+					throw new AssertionError(e);
+				}
+			});
+			threads[i].start();
+		}
+		entered.await();
+		// Give the other requests time to queue up behind the first.
+		Thread.sleep(200L);
+		release.countDown();
+		for (int i = 0; i < threads.length; ++i) {
+			threads[i].join();
+			Assert.assertEquals("slow null null", results[i]);
+		}
+		Assert.assertEquals(4, bodyCount[0]);
+
+		// Responses with cookies are never cached.
+		RestHelpers.get("http://localhost:8080/cookie");
+		RestHelpers.get("http://localhost:8080/cookie");
+		Assert.assertEquals(6, bodyCount[0]);
+		Assert.assertEquals(4, cache.getEntryCount());
+		Assert.assertEquals(6, cache.getMissCount());
+		Assert.assertEquals(3, cache.getCoalescedCount());
+		Assert.assertEquals(5, cache.getHitCount());
+		Assert.assertTrue(cache.getCachedBytes() > 0L);
+		server.stop();
+	}
+
+	@Test
+	public void testResponseCacheServerSessions() throws Throwable {
+		ResponseCache cache = new ResponseCache(60_000L, 1_000_000L, Collections.emptyList(), Collections.emptyList());
+		RestServer server = new RestServer(new InetSocketAddress(8080), null, null);
+		server.addGetHandler("/login/{string}", new IGetHandler() {
+			@Override
+			public void handle(HttpServletRequest request, HttpServletResponse response, Object[] path) throws IOException {
+				request.getSession(true).setAttribute("NAME", path[1]);
+				response.setContentType("text/plain;charset=utf-8");
+				response.setStatus(HttpServletResponse.SC_OK);
+				response.getWriter().print("hello " + path[1]);
+			}}, null, cache);
+		server.addGetHandler("/whoami", new IGetHandler() {
+			@Override
+			public void handle(HttpServletRequest request, HttpServletResponse response, Object[] path) throws IOException {
+				HttpSession session = request.getSession(false);
+				response.setContentType("text/plain;charset=utf-8");
+				response.setStatus(HttpServletResponse.SC_OK);
+				response.getWriter().print((null != session) ? session.getAttribute("NAME") : "anonymous");
+			}}, null, cache);
+		server.start();
+		HttpClient alice = new HttpClient();
+		alice.start();
+		HttpClient bob = new HttpClient();
+		bob.start();
+
+		// Creating a session, or reading one, makes the response private.
+		ContentResponse response = alice.GET("http://localhost:8080/login/alice");
+		Assert.assertEquals("hello alice", response.getContentAsString());
+		Assert.assertNotNull(response.getHeaders().get("Set-Cookie"));
+		Assert.assertEquals("alice", alice.GET("http://localhost:8080/whoami").getContentAsString());
+		Assert.assertEquals(0, cache.getEntryCount());
+		Assert.assertEquals("hello bob", bob.GET("http://localhost:8080/login/bob").getContentAsString());
+		Assert.assertEquals("bob", bob.GET("http://localhost:8080/whoami").getContentAsString());
+		Assert.assertEquals("anonymous", new String(RestHelpers.get("http://localhost:8080/whoami"), StandardCharsets.UTF_8));
+		Assert.assertEquals(1, cache.getEntryCount());
+		Assert.assertEquals(0L, cache.getHitCount());
+
+		alice.stop();
+		bob.stop();
+		server.stop();
+	}
+
+	@Test
+	public void testResponseCacheLimits() throws Throwable {
+		CountDownLatch entered = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		AtomicInteger hangCalls = new AtomicInteger();
+		ResponseCache cache = new ResponseCache(300L, 1_000_000L, Collections.emptyList(), Collections.emptyList(), 200L);
+		RestServer server = new RestServer(new InetSocketAddress(8080), null, null);
+		server.addGetHandler("/item/{string}", new IGetHandler() {
+			@Override
+			public void handle(HttpServletRequest request, HttpServletResponse response, Object[] path) throws IOException {
+				response.setContentType("text/plain;charset=utf-8");
+				response.setStatus(HttpServletResponse.SC_OK);
+				response.getWriter().print(path[1]);
+			}}, null, cache);
+		// Only the first call hangs.
+		server.addGetHandler("/hang", new IGetHandler() {
+			@Override
+			public void handle(HttpServletRequest request, HttpServletResponse response, Object[] path) throws IOException {
+				if (1 == hangCalls.incrementAndGet()) {
+					entered.countDown();
+					try {
+						release.await();
+					} catch (InterruptedException e) {
+						throw new AssertionError(e);
+					}
+				}
+				response.setContentType("text/plain;charset=utf-8");
+				response.setStatus(HttpServletResponse.SC_OK);
+				response.getWriter().print("hang");
+			}}, null, cache);
+		server.addGetHandler("/missing", new IGetHandler() {
+			@Override
+			public void handle(HttpServletRequest request, HttpServletResponse response, Object[] path) throws IOException {
+				response.setHeader("X-Reason", "gone");
+				response.sendError(HttpServletResponse.SC_NOT_FOUND, "No such item");
+			}}, null, cache);
+		AtomicInteger bigCalls = new AtomicInteger();
+		ResponseCache smallCache = new ResponseCache(60_000L, 10_000L, Collections.emptyList(), Collections.emptyList());
+		server.addGetHandler("/big", new IGetHandler() {
+			@Override
+			public void handle(HttpServletRequest request, HttpServletResponse response, Object[] path) throws IOException {
+				bigCalls.incrementAndGet();
+				response.setContentType("text/plain;charset=utf-8");
+				response.setStatus(HttpServletResponse.SC_OK);
+				PrintWriter writer = response.getWriter();
+				for (int i = 0; i < 50; ++i) {
+					writer.print("x".repeat(1_000));
+					if (20 == i) {
+						response.setHeader("X-Late", "still sent");
+					}
+				}
+			}}, null, smallCache);
+		AtomicInteger asyncCalls = new AtomicInteger();
+		server.addGetHandler("/async", new IGetHandler() {
+			@Override
+			public void handle(HttpServletRequest request, HttpServletResponse response, Object[] path) throws IOException {
+				asyncCalls.incrementAndGet();
+				response.setContentType("text/plain;charset=utf-8");
+				response.setStatus(HttpServletResponse.SC_OK);
+				response.setHeader("X-Async", "true");
+				_writeAsync(request, response, "y".repeat(5_000).getBytes(StandardCharsets.UTF_8));
+			}}, new CompressionPolicy(1024, Deflater.BEST_SPEED, Collections.emptySet()), smallCache);
+		server.start();
+
+		// Expired entries are swept out when something new is cached, without being requested again.
+		RestHelpers.get("http://localhost:8080/item/a");
+		RestHelpers.get("http://localhost:8080/item/b");
+		Assert.assertEquals(2, cache.getEntryCount());
+		Thread.sleep(400L);
+		RestHelpers.get("http://localhost:8080/item/c");
+		Assert.assertEquals(1, cache.getEntryCount());
+		Assert.assertEquals(0L, cache.getEvictionCount());
+
+		// A request waiting on a hung handler gives up and invokes the handler itself.
+		Thread leader = new Thread(() -> {
+			try {
+				RestHelpers.get("http://localhost:8080/hang");
+			} catch (IOException e) {
+				throw new AssertionError(e);
+			}
+		});
+		leader.start();
+		entered.await();
+		Assert.assertEquals("hang", new String(RestHelpers.get("http://localhost:8080/hang"), StandardCharsets.UTF_8));
+		Assert.assertEquals(1L, cache.getCoalesceTimeoutCount());
+		Assert.assertEquals(2, hangCalls.get());
+		release.countDown();
+		leader.join();
+
+		// Errors reach the client with the container's error page and the headers set before them, and aren't cached.
+		for (int i = 0; i < 2; ++i) {
+			HttpURLConnection connection = (HttpURLConnection)new URL("http://localhost:8080/missing").openConnection();
+			Assert.assertEquals(404, connection.getResponseCode());
+			Assert.assertEquals("gone", connection.getHeaderField("X-Reason"));
+			Assert.assertTrue(new String(connection.getErrorStream().readAllBytes(), StandardCharsets.UTF_8).contains("No such item"));
+		}
+		Assert.assertEquals(0L, cache.getHitCount());
+
+		// A body too large for the cache is streamed through, rather than held, and never cached.
+		for (int i = 0; i < 2; ++i) {
+			HttpURLConnection connection = (HttpURLConnection)new URL("http://localhost:8080/big").openConnection();
+			Assert.assertEquals(200, connection.getResponseCode());
+			Assert.assertEquals("still sent", connection.getHeaderField("X-Late"));
+			Assert.assertEquals("x".repeat(50_000), new String(connection.getInputStream().readAllBytes(), StandardCharsets.UTF_8));
+		}
+		Assert.assertEquals(2, bigCalls.get());
+		Assert.assertEquals(0, smallCache.getEntryCount());
+
+		// Asynchronous writes are also passed through (uncompressed), with their headers, and never cached.
+		for (int i = 0; i < 2; ++i) {
+			HttpURLConnection connection = (HttpURLConnection)new URL("http://localhost:8080/async").openConnection();
+			connection.setRequestProperty("Accept-Encoding", "gzip");
+			Assert.assertEquals(200, connection.getResponseCode());
+			Assert.assertEquals("true", connection.getHeaderField("X-Async"));
+			Assert.assertNull(connection.getHeaderField("Content-Encoding"));
+			Assert.assertEquals("y".repeat(5_000), new String(connection.getInputStream().readAllBytes(), StandardCharsets.UTF_8));
+		}
+		Assert.assertEquals(2, asyncCalls.get());
+		Assert.assertEquals(0, smallCache.getEntryCount());
+		server.stop();
+	}
+
+	@Test
+	public void testHttp2Cleartext() throws Throwable {
+		RestServer server = new RestServer(new InetSocketAddress(8080), null, null, 0L, Http2Configuration.CLEARTEXT_DEFAULT);
+		server.addGetHandler("/version", new IGetHandler() {
+			@Override
+			public void handle(HttpServletRequest request, HttpServletResponse response, Object[] path) throws IOException {
+				response.setContentType("text/plain;charset=utf-8");
+				response.setStatus(HttpServletResponse.SC_OK);
+				response.getWriter().print(request.getProtocol());
+			}});
+		server.start();
+
+		// HTTP/1.1 clients still work on the same connector.
+		Assert.assertEquals("HTTP/1.1", new String(RestHelpers.get("http://localhost:8080/version"), StandardCharsets.UTF_8));
+
+		// Prior-knowledge HTTP/2 clients are also accepted.
+		HttpClient httpClient = new HttpClient(new HttpClientTransportOverHTTP2(new HTTP2Client()));
+		httpClient.start();
+		ContentResponse response = httpClient.GET("http://localhost:8080/version");
+		Assert.assertEquals(HttpVersion.HTTP_2, response.getVersion());
+		Assert.assertEquals("HTTP/2.0", response.getContentAsString());
+		httpClient.stop();
+		server.stop();
+	}
+
+	@Test
+	public void testUnixDomainSocket() throws Throwable {
+		// Unix domain sockets are only supported by the JDK starting in version 16.
+		Assume.assumeTrue(Runtime.version().feature() >= 16);
+		File directory = Files.createTempDirectory("breakwater").toFile();
+		Path socketPath = new File(directory, "test.sock").toPath();
+		RestServer server = new RestServer(null, null, null, 0L, null);
+		server.addUnixDomainSocket(socketPath);
+		server.addGetHandler("/test", new IGetHandler() {
+			@Override
+			public void handle(HttpServletRequest request, HttpServletResponse response, Object[] path) throws IOException {
+				response.setContentType("text/plain;charset=utf-8");
+				response.setStatus(HttpServletResponse.SC_OK);
+				response.getWriter().print("TESTING");
+			}});
+		server.start();
+		Assert.assertEquals(-1, server.getPort());
+		Assert.assertEquals(List.of(socketPath), server.getUnixDomainSocketPaths());
+		
+		HttpClient httpClient = new HttpClient(new HttpClientTransportOverHTTP(ClientConnector.forUnixDomain(socketPath)));
+		httpClient.start();
+		ContentResponse response = httpClient.GET("http://localhost/test");
+		Assert.assertEquals(200, response.getStatus());
+		Assert.assertEquals("TESTING", response.getContentAsString());
+		httpClient.stop();
+		server.stop();
+		Files.deleteIfExists(socketPath);
+		directory.delete();
+	}
+
+	@Test
+	public void testMultipleConnectors() throws Throwable {
+		RestServer server = new RestServer(List.of(
+				ConnectorConfiguration.tcp(new InetSocketAddress(8080))
+					.acceptors(1)
+					.selectors(2)
+					.acceptQueueSize(128)
+					.idleTimeoutMillis(5_000L)
+					.outputBufferSize(8 * 1024)
+					.tcpNoDelay(true)
+					.build()
+				, ConnectorConfiguration.tcp(new InetSocketAddress("localhost", 0))
+					.http2(Http2Configuration.CLEARTEXT_DEFAULT)
+					.build()
+			), null, null, 0L);
+		server.addGetHandler("/test", new IGetHandler() {
+			@Override
+			public void handle(HttpServletRequest request, HttpServletResponse response, Object[] path) throws IOException {
+				response.setContentType("text/plain;charset=utf-8");
+				response.setStatus(HttpServletResponse.SC_OK);
+				response.getWriter().print("TESTING");
+			}});
+		server.start();
+		
+		List<Integer> ports = server.getPorts();
+		Assert.assertEquals(2, ports.size());
+		Assert.assertEquals(8080, (int)ports.get(0));
+		Assert.assertEquals(8080, server.getPort());
+		for (int port : ports) {
+			Assert.assertEquals("TESTING", new String(RestHelpers.get("http://localhost:" + port + "/test"), StandardCharsets.UTF_8));
+		}
+		server.stop();
+	}
+
+	@Test
+	public void testRangeGet() throws Throwable {
+		byte[] data = new byte[1000];
+		for (int i = 0; i < data.length; ++i) {
+			data[i] = (byte)i;
+		}
+		class BlobHandler implements IRangeGetHandler, IConditionalGetHandler {
+			@Override
+			public ResponseValidator getValidator(HttpServletRequest request, Object[] path) throws IOException {
+				return new ResponseValidator("v1", false, -1L);
+			}
+			@Override
+			public long getLength(HttpServletRequest request, Object[] path) throws IOException {
+				return data.length;
+			}
+			@Override
+			public String getContentType(HttpServletRequest request, Object[] path) throws IOException {
+				return "application/octet-stream";
+			}
+			@Override
+			public InputStream openRange(HttpServletRequest request, Object[] path, long offset, long length) throws IOException {
+				return new ByteArrayInputStream(data, (int)offset, (int)length);
+			}
+			@Override
+			public void handle(HttpServletRequest request, HttpServletResponse response, Object[] path) throws IOException {
+				response.setContentType("application/octet-stream");
+				response.setStatus(HttpServletResponse.SC_OK);
+				response.getOutputStream().write(data);
+			}
+		}
+		RestServer server = new RestServer(new InetSocketAddress(8080), null, null);
+		server.addGetHandler("/blob", new BlobHandler());
+		server.start();
+		
+		// No range gets everything, advertising range support.
+		HttpURLConnection connection = (HttpURLConnection)new URL("http://localhost:8080/blob").openConnection();
+		Assert.assertEquals(200, connection.getResponseCode());
+		Assert.assertEquals("bytes", connection.getHeaderField("Accept-Ranges"));
+		Assert.assertEquals(1000, connection.getInputStream().readAllBytes().length);
+		
+		// A single range.
+		connection = (HttpURLConnection)new URL("http://localhost:8080/blob").openConnection();
+		connection.setRequestProperty("Range", "bytes=10-19");
+		Assert.assertEquals(206, connection.getResponseCode());
+		Assert.assertEquals("bytes 10-19/1000", connection.getHeaderField("Content-Range"));
+		byte[] body = connection.getInputStream().readAllBytes();
+		Assert.assertEquals(10, body.length);
+		Assert.assertEquals(10, body[0]);
+		
+		// A suffix range.
+		connection = (HttpURLConnection)new URL("http://localhost:8080/blob").openConnection();
+		connection.setRequestProperty("Range", "bytes=-5");
+		Assert.assertEquals(206, connection.getResponseCode());
+		Assert.assertEquals("bytes 995-999/1000", connection.getHeaderField("Content-Range"));
+		
+		// Multiple ranges (with overlapping ones merged).
+		connection = (HttpURLConnection)new URL("http://localhost:8080/blob").openConnection();
+		connection.setRequestProperty("Range", "bytes=0-9,5-14,900-");
+		Assert.assertEquals(206, connection.getResponseCode());
+		Assert.assertTrue(connection.getContentType().startsWith("multipart/byteranges; boundary="));
+		String multipart = new String(connection.getInputStream().readAllBytes(), StandardCharsets.ISO_8859_1);
+		Assert.assertTrue(multipart.contains("Content-Range: bytes 0-14/1000"));
+		Assert.assertTrue(multipart.contains("Content-Range: bytes 900-999/1000"));
+		
+		// Unsatisfiable.
+		connection = (HttpURLConnection)new URL("http://localhost:8080/blob").openConnection();
+		connection.setRequestProperty("Range", "bytes=1000-");
+		Assert.assertEquals(416, connection.getResponseCode());
+		Assert.assertEquals("bytes */1000", connection.getHeaderField("Content-Range"));
+		
+		// If-Range honours the range only if the version matches.
+		connection = (HttpURLConnection)new URL("http://localhost:8080/blob").openConnection();
+		connection.setRequestProperty("Range", "bytes=10-19");
+		connection.setRequestProperty("If-Range", "\"v1\"");
+		Assert.assertEquals(206, connection.getResponseCode());
+		connection = (HttpURLConnection)new URL("http://localhost:8080/blob").openConnection();
+		connection.setRequestProperty("Range", "bytes=10-19");
+		connection.setRequestProperty("If-Range", "\"v0\"");
+		Assert.assertEquals(200, connection.getResponseCode());
+		Assert.assertEquals(1000, connection.getInputStream().readAllBytes().length);
+		server.stop();
+	}
+
+	@Test
+	public void testEventStream() throws Throwable {
+		EventStream stream = new EventStream(8, 60_000L, 1024 * 1024);
+		EventStream slowStream = new EventStream(0, 60_000L, 64 * 1024);
+		RestServer server = new RestServer(new InetSocketAddress(8080), null, null);
+		server.addEventStreamHandler("/events/{string}", new IEventStreamHandler() {
+			@Override
+			public EventStream selectStream(HttpServletRequest request, Object[] path) throws IOException {
+				EventStream selected = null;
+				if ("main".equals(path[1])) {
+					selected = stream;
+				} else if ("slow".equals(path[1])) {
+					selected = slowStream;
+				}
+				return selected;
+			}});
+		server.start();
+		
+		HttpURLConnection connection = (HttpURLConnection)new URL("http://localhost:8080/events/other").openConnection();
+		Assert.assertEquals(404, connection.getResponseCode());
+		
+		// Events are delivered as they are published.
+		connection = (HttpURLConnection)new URL("http://localhost:8080/events/main").openConnection();
+		Assert.assertEquals(200, connection.getResponseCode());
+		Assert.assertTrue(connection.getContentType().startsWith("text/event-stream"));
+		BufferedReader first = new BufferedReader(new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8));
+		_waitForSubscribers(stream, 1);
+		Assert.assertEquals(1L, stream.publish("greeting", "hello\nworld"));
+		Assert.assertEquals("id: 1\nevent: greeting\ndata: hello\ndata: world\n", _readEvent(first));
+		Assert.assertEquals(2L, stream.publish(null, "second"));
+		Assert.assertEquals("id: 2\ndata: second\n", _readEvent(first));
+		
+		// A reconnecting client gets what it missed.
+		connection = (HttpURLConnection)new URL("http://localhost:8080/events/main").openConnection();
+		connection.setRequestProperty("Last-Event-ID", "1");
+		BufferedReader second = new BufferedReader(new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8));
+		Assert.assertEquals("id: 2\ndata: second\n", _readEvent(second));
+		_waitForSubscribers(stream, 2);
+		stream.publish(null, "both");
+		Assert.assertEquals("id: 3\ndata: both\n", _readEvent(first));
+		Assert.assertEquals("id: 3\ndata: both\n", _readEvent(second));
+		
+		// A client which never reads is eventually evicted.
+		connection = (HttpURLConnection)new URL("http://localhost:8080/events/slow").openConnection();
+		Assert.assertEquals(200, connection.getResponseCode());
+		_waitForSubscribers(slowStream, 1);
+		String large = "x".repeat(16 * 1024);
+		for (int i = 0; (i < 100_000) && (0L == slowStream.getEvictionCount()); ++i) {
+			slowStream.publish(null, large);
+		}
+		Assert.assertEquals(1L, slowStream.getEvictionCount());
+		Assert.assertEquals(0, slowStream.getSubscriberCount());
+		
+		stream.close();
+		slowStream.close();
+		Assert.assertNull(first.readLine());
+		server.stop();
+	}
+
+	@Test
+	public void testWebSocketSettings() throws Throwable {
+		long[] idleTimeout = new long[1];
+		int[] closeStatus = new int[1];
+		CountDownLatch closeLatch = new CountDownLatch(1);
+		CountDownLatch echoLatch = new CountDownLatch(1);
+		RestServer server = new RestServer(new InetSocketAddress(8080), null, null);
+		WebSocketSettings settings = WebSocketSettings.builder()
+				.idleTimeoutMillis(60_000L)
+				.maxTextMessageSize(16)
+				.inputBufferSize(1024)
+				.build();
+		server.addWebSocketFactory("/limited", "echo", (JettyServerUpgradeRequest upgradeRequest, Object[] path) -> new WebSocketListener() {
+			private Session _session;
+			@Override
+			public void onWebSocketConnect(Session session) {
+				_session = session;
+				idleTimeout[0] = session.getIdleTimeout().toMillis();
+			}
+			@Override
+			public void onWebSocketText(String message) {
+				try {
+					_session.getRemote().sendString(message);
+				} catch (IOException e) {
+					throw new AssertionError(e);
+				}
+			}
+			@Override
+			public void onWebSocketClose(int statusCode, String reason) {
+				closeStatus[0] = statusCode;
+				closeLatch.countDown();
+			}
+		}, settings);
+		server.start();
+		
+		ProtocolClient client = new ProtocolClient("ws://localhost:8080/limited", "echo") {
+			@Override
+			public void onError(RemoteEndpoint endpoint, Throwable error) {
+			}
+			@Override
+			public void onBinary(RemoteEndpoint endpoint, byte[] payload, int offset, int len) {
+				Assert.fail();
+			}
+			@Override
+			public void onText(RemoteEndpoint endpoint, String message) {
+				Assert.assertEquals("short", message);
+				echoLatch.countDown();
+			}
+		};
+		client.waitForConnect();
+		
+		// A message under the limit works but one over it closes the connection.
+		client.sendText("short");
+		echoLatch.await();
+		// The client can see the connection before the server's onWebSocketConnect() runs, but not before the echo.
+		Assert.assertEquals(60_000L, idleTimeout[0]);
+		client.sendText("this message is longer than the limit");
+		closeLatch.await();
+		Assert.assertEquals(StatusCode.MESSAGE_TOO_LARGE, closeStatus[0]);
+		client.stop();
+		server.stop();
+	}
+
+	@Test
+	public void testWebSocketHub() throws Throwable {
+		WebSocketHub hub = new WebSocketHub(64, 64 * 1024, WebSocketHub.SlowConsumerPolicy.DISCONNECT);
+		WebSocketHub slowHub = new WebSocketHub(1024, 256 * 1024, WebSocketHub.SlowConsumerPolicy.DROP);
+		WebSocketHub countHub = new WebSocketHub(4, 256 * 1024, WebSocketHub.SlowConsumerPolicy.DROP);
+		RestServer server = new RestServer(new InetSocketAddress(8080), null, null);
+		server.addWebSocketFactory("/hub/{string}", "hub", (JettyServerUpgradeRequest upgradeRequest, Object[] path) -> new WebSocketListener() {
+			private Session _session;
+			@Override
+			public void onWebSocketConnect(Session session) {
+				_session = session;
+				String topic = (String)path[1];
+				if ("slow".equals(topic)) {
+					slowHub.subscribe(topic, session);
+					countHub.subscribe(topic, session);
+				} else {
+					hub.subscribe(topic, session);
+				}
+			}
+			@Override
+			public void onWebSocketClose(int statusCode, String reason) {
+				hub.unsubscribeAll(_session);
+				slowHub.unsubscribeAll(_session);
+				countHub.unsubscribeAll(_session);
+			}
+		});
+		server.start();
+		
+		List<LinkedBlockingQueue<String>> received = new ArrayList<>();
+		List<ProtocolClient> clients = new ArrayList<>();
+		for (String topic : new String[] { "a", "a", "b" }) {
+			LinkedBlockingQueue<String> queue = new LinkedBlockingQueue<>();
+			ProtocolClient client = new ProtocolClient("ws://localhost:8080/hub/" + topic, "hub") {
+				@Override
+				public void onError(RemoteEndpoint endpoint, Throwable error) {
+				}
+				@Override
+				public void onBinary(RemoteEndpoint endpoint, byte[] payload, int offset, int len) {
+					Assert.fail();
+				}
+				@Override
+				public void onText(RemoteEndpoint endpoint, String message) {
+					queue.add(message);
+				}
+			};
+			client.waitForConnect();
+			received.add(queue);
+			clients.add(client);
+		}
+		while ((hub.getSubscriberCount("a") < 2) || (hub.getSubscriberCount("b") < 1)) {
+			Thread.sleep(10L);
+		}
+		
+		// Each topic only reaches its own subscribers.
+		Assert.assertEquals(2, hub.publishText("a", "to a"));
+		Assert.assertEquals(1, hub.publishText("b", "to b"));
+		Assert.assertEquals(0, hub.publishText("c", "nobody"));
+		Assert.assertEquals("to a", received.get(0).take());
+		Assert.assertEquals("to a", received.get(1).take());
+		Assert.assertEquals("to b", received.get(2).take());
+		
+		// Closing a client unsubscribes it.
+		clients.get(0).stop();
+		while (hub.getSubscriberCount("a") > 1) {
+			Thread.sleep(10L);
+		}
+		
+		// A client which stops reading has messages dropped, instead of blocking the publisher.
+		CountDownLatch unblock = new CountDownLatch(1);
+		ProtocolClient slowClient = new ProtocolClient("ws://localhost:8080/hub/slow", "hub") {
+			@Override
+			public void onError(RemoteEndpoint endpoint, Throwable error) {
+			}
+			@Override
+			public void onBinary(RemoteEndpoint endpoint, byte[] payload, int offset, int len) {
+				try {
+					unblock.await();
+				} catch (InterruptedException e) {
+					throw new AssertionError(e);
+				}
+			}
+			@Override
+			public void onText(RemoteEndpoint endpoint, String message) {
+				Assert.fail();
+			}
+		};
+		slowClient.waitForConnect();
+		while (slowHub.getSubscriberCount("slow") < 1) {
+			Thread.sleep(10L);
+		}
+		byte[] large = new byte[16 * 1024];
+		for (int i = 0; (i < 100_000) && (0L == slowHub.getDroppedCount()); ++i) {
+			slowHub.publishBinary("slow", large);
+		}
+		Assert.assertTrue(slowHub.getDroppedCount() > 0L);
+		Assert.assertEquals(1, slowHub.getSubscriberCount("slow"));
+		// The number of queued messages is also limited, however small they are.
+		for (int i = 0; i < 10; ++i) {
+			countHub.publishBinary("slow", new byte[1]);
+		}
+		Assert.assertTrue(countHub.getDroppedCount() >= 6L);
+		Assert.assertEquals(1, countHub.getSubscriberCount("slow"));
+		unblock.countDown();
+		
+		slowClient.stop();
+		clients.get(1).stop();
+		clients.get(2).stop();
+		server.stop();
+	}
+
+	@Test
+	public void testWebSocketCompression() throws Throwable {
+		RestServer server = new RestServer(new InetSocketAddress(8080), null, null);
+		server.setWebSocketCompressionLevel(Deflater.BEST_SPEED);
+		IWebSocketFactory echo = (JettyServerUpgradeRequest upgradeRequest, Object[] path) -> new WebSocketListener() {
+			private Session _session;
+			@Override
+			public void onWebSocketConnect(Session session) {
+				_session = session;
+			}
+			@Override
+			public void onWebSocketText(String message) {
+				try {
+					_session.getRemote().sendString(message);
+				} catch (IOException e) {
+					throw new AssertionError(e);
+				}
+			}
+		};
+		server.addWebSocketFactory("/default", "echo", echo);
+		server.addWebSocketFactory("/plain", "echo", echo, WebSocketSettings.builder().compression(false).build());
+		server.addWebSocketFactory("/reset", "echo", echo, WebSocketSettings.builder().serverContextTakeover(false).clientContextTakeover(false).build());
+		server.start();
+		
+		WebSocketClient client = new WebSocketClient();
+		client.start();
+		String message = "{\"verbose\": \"json\", \"verbose\": \"json\", \"verbose\": \"json\"}";
+		
+		// Routes without settings accept compression as Jetty always has.
+		List<ExtensionConfig> extensions = _connectWithDeflate(client, "/default", message);
+		Assert.assertEquals(1, extensions.size());
+		Assert.assertEquals("permessage-deflate", extensions.get(0).getName());
+		Assert.assertTrue(extensions.get(0).getParameterKeys().isEmpty());
+		// Compression can be refused, even though the client offered it.
+		extensions = _connectWithDeflate(client, "/plain", message);
+		Assert.assertTrue(extensions.isEmpty());
+		// Context takeover can be disabled in either direction.
+		extensions = _connectWithDeflate(client, "/reset", message);
+		Assert.assertEquals(1, extensions.size());
+		Assert.assertEquals(Set.of("server_no_context_takeover", "client_no_context_takeover"), extensions.get(0).getParameterKeys());
+		
+		client.stop();
+		server.stop();
+	}
+
+	@Test
+	public void testWebSocketConnectionLimits() throws Throwable {
+		RestServer server = new RestServer(new InetSocketAddress(8080), null, null);
+		IWebSocketFactory idle = (JettyServerUpgradeRequest upgradeRequest, Object[] path) -> new WebSocketListener() {
+		};
+		server.addWebSocketFactory("/capped", "idle", idle, WebSocketSettings.builder().maxConnections(2).build());
+		server.addWebSocketFactory("/single", "idle", idle, WebSocketSettings.builder().maxConnectionsPerAddress(1).compression(false).build());
+		server.addWebSocketFactory("/broken", "idle", (JettyServerUpgradeRequest upgradeRequest, Object[] path) -> {
+			throw new IllegalStateException("broken");
+		}, WebSocketSettings.builder().maxConnections(1).build());
+		server.start();
+		WebSocketRegistry registry = server.getWebSocketRegistry();
+		
+		// A factory which throws doesn't leak its slot, so the route isn't locked out.
+		for (int i = 0; i < 3; ++i) {
+			int status = _failIdle("/broken");
+			Assert.assertTrue((-1 != status) && (503 != status));
+		}
+		Assert.assertEquals(0, registry.getConnectionCount());
+		
+		// The route limit is enforced at upgrade.
+		ProtocolClient first = _connectIdle("/capped");
+		ProtocolClient second = _connectIdle("/capped");
+		Assert.assertEquals(2, registry.getConnectionCount("/capped"));
+		Assert.assertEquals(503, _failIdle("/capped"));
+		Assert.assertEquals(1L, registry.getRejectedCount());
+		Assert.assertEquals(2L * WebSocketRegistry.estimateConnectionBytes(WebSocketSettings.DEFAULT, false), registry.getEstimatedMemoryBytes("/capped"));
+		
+		// As is the per-address limit, independently of other routes.
+		ProtocolClient single = _connectIdle("/single");
+		Assert.assertEquals(503, _failIdle("/single"));
+		Assert.assertEquals(2L, registry.getRejectedCount());
+		Assert.assertEquals(3, registry.getConnectionCount());
+		Assert.assertEquals(3, registry.getConnectionCountForAddress("127.0.0.1"));
+		
+		// Closing a connection frees its slot.
+		first.stop();
+		while (registry.getConnectionCount("/capped") > 1) {
+			Thread.sleep(10L);
+		}
+		ProtocolClient replacement = _connectIdle("/capped");
+		Assert.assertEquals(2, registry.getConnectionCount("/capped"));
+		
+		second.stop();
+		single.stop();
+		replacement.stop();
+		while (registry.getConnectionCount() > 0) {
+			Thread.sleep(10L);
+		}
+		Assert.assertEquals(0L, registry.getEstimatedMemoryBytes());
+		Assert.assertEquals(0, registry.getConnectionCountForAddress("127.0.0.1"));
+		server.stop();
+	}
+
+	@Test
+	public void testWebSocketSender() throws Throwable {
+		WebSocketSender[] sender = new WebSocketSender[1];
+		CountDownLatch connectLatch = new CountDownLatch(1);
+		RestServer server = new RestServer(new InetSocketAddress(8080), null, null);
+		server.addWebSocketFactory("/batch", "batch", (JettyServerUpgradeRequest upgradeRequest, Object[] path) -> new WebSocketListener() {
+			@Override
+			public void onWebSocketConnect(Session session) {
+				sender[0] = new WebSocketSender(session, 1024);
+				connectLatch.countDown();
+			}
+		});
+		server.start();
+		
+		LinkedBlockingQueue<String> received = new LinkedBlockingQueue<>();
+		ProtocolClient client = new ProtocolClient("ws://localhost:8080/batch", "batch") {
+			@Override
+			public void onError(RemoteEndpoint endpoint, Throwable error) {
+			}
+			@Override
+			public void onBinary(RemoteEndpoint endpoint, byte[] payload, int offset, int len) {
+				received.add("binary " + len);
+			}
+			@Override
+			public void onText(RemoteEndpoint endpoint, String message) {
+				received.add(message);
+			}
+		};
+		client.waitForConnect();
+		connectLatch.await();
+		
+		// A burst of small messages all arrive, in order, including the last one (which flushes the batch).
+		int sent = 0;
+		for (int i = 0; i < 1000; ++i) {
+			while (!sender[0].sendText("message " + i)) {
+				// The queue is full so wait for it to drain.
+				Thread.sleep(1L);
+			}
+			sent += 1;
+		}
+		Assert.assertTrue(sender[0].sendBinary(new byte[16]));
+		for (int i = 0; i < sent; ++i) {
+			Assert.assertEquals("message " + i, received.take());
+		}
+		Assert.assertEquals("binary 16", received.take());
+		
+		// A message which could never fit is rejected.
+		Assert.assertFalse(sender[0].sendBinary(new byte[2048]));
+		Assert.assertTrue(sender[0].getRejectedCount() >= 1L);
+		// The client can see the last message before the server's write callback runs.
+		while (sender[0].getSentCount() < 1001L) {
+			Thread.sleep(10L);
+		}
+		Assert.assertEquals(0, sender[0].getQueuedMessageCount());
+		Assert.assertEquals(0L, sender[0].getQueuedBytes());
+		Assert.assertTrue(sender[0].getPeakQueuedBytes() > 0L);
+		Assert.assertTrue(sender[0].getPeakQueuedBytes() <= 1024L);
+		Assert.assertTrue(sender[0].getMaxLatencyNanos() >= sender[0].getAverageLatencyNanos());
+		
+		client.stop();
+		server.stop();
+	}
+
+	@Test
+	public void testOffloadedWebSocket() throws Throwable {
+		ExecutorService executor = Executors.newFixedThreadPool(2, (Runnable runnable) -> new Thread(runnable, "offload"));
+		LinkedBlockingQueue<String> handled = new LinkedBlockingQueue<>();
+		CountDownLatch unblock = new CountDownLatch(1);
+		OffloadingWebSocketListener[] offloaded = new OffloadingWebSocketListener[1];
+		RestServer server = new RestServer(new InetSocketAddress(8080), null, null);
+		IWebSocketFactory slow = (JettyServerUpgradeRequest upgradeRequest, Object[] path) -> new WebSocketListener() {
+			@Override
+			public void onWebSocketText(String message) {
+				try {
+					unblock.await();
+				} catch (InterruptedException e) {
+					throw new AssertionError(e);
+				}
+				handled.add(Thread.currentThread().getName() + " " + message);
+			}
+		};
+		server.addWebSocketFactory("/offload", "offload", (JettyServerUpgradeRequest upgradeRequest, Object[] path) -> {
+			offloaded[0] = new OffloadingWebSocketListener(slow.create(upgradeRequest, path), executor, 4);
+			return offloaded[0];
+		});
+		server.start();
+		
+		ProtocolClient client = new ProtocolClient("ws://localhost:8080/offload", "offload") {
+			@Override
+			public void onError(RemoteEndpoint endpoint, Throwable error) {
+			}
+			@Override
+			public void onBinary(RemoteEndpoint endpoint, byte[] payload, int offset, int len) {
+				Assert.fail();
+			}
+			@Override
+			public void onText(RemoteEndpoint endpoint, String message) {
+				Assert.fail();
+			}
+		};
+		client.waitForConnect();
+		
+		// While the listener is blocked, the queue fills and reads are suspended, instead of queuing everything.
+		for (int i = 0; i < 100; ++i) {
+			client.sendText("message " + i);
+		}
+		while (0L == offloaded[0].getSuspendCount()) {
+			Thread.sleep(10L);
+		}
+		Assert.assertTrue(offloaded[0].getQueuedMessageCount() <= 4);
+		
+		// Once unblocked, every message is handled, in order, on the executor.
+		unblock.countDown();
+		for (int i = 0; i < 100; ++i) {
+			Assert.assertEquals("offload message " + i, handled.take());
+		}
+		Assert.assertEquals(0, offloaded[0].getQueuedMessageCount());
+		
+		client.stop();
+		server.stop();
+		executor.shutdown();
+	}
+
+	@Test
+	public void testOffloadedWebSocketFailures() throws Throwable {
+		ExecutorService executor = Executors.newFixedThreadPool(2, (Runnable runnable) -> new Thread(runnable, "offload"));
+		LinkedBlockingQueue<String> events = new LinkedBlockingQueue<>();
+		CountDownLatch unblock = new CountDownLatch(1);
+		OffloadingWebSocketListener[] offloaded = new OffloadingWebSocketListener[1];
+		RestServer server = new RestServer(new InetSocketAddress(8080), null, null);
+		IWebSocketFactory failing = (JettyServerUpgradeRequest upgradeRequest, Object[] path) -> new WebSocketListener() {
+			@Override
+			public void onWebSocketText(String message) {
+				if ("stuck".equals(message)) {
+					try {
+						unblock.await();
+					} catch (InterruptedException e) {
+						throw new AssertionError(e);
+					}
+				} else if ("boom".equals(message)) {
+					throw new IllegalStateException("boom");
+				}
+				events.add(message);
+			}
+			@Override
+			public void onWebSocketClose(int statusCode, String reason) {
+				events.add("close " + statusCode);
+			}
+		};
+		server.addWebSocketFactory("/offload", "offload", (JettyServerUpgradeRequest upgradeRequest, Object[] path) -> {
+			offloaded[0] = new OffloadingWebSocketListener(failing.create(upgradeRequest, path), executor, 2, 200L);
+			return offloaded[0];
+		});
+		server.start();
+		LinkedBlockingQueue<Integer> closes = new LinkedBlockingQueue<>();
+		
+		// A listener which throws closes the connection, but it still hears about the close.
+		ProtocolClient client = new ProtocolClient("ws://localhost:8080/offload", "offload") {
+			@Override
+			public void onWebSocketClose(int statusCode, String reason) {
+				closes.add(statusCode);
+			}
+			@Override
+			public void onError(RemoteEndpoint endpoint, Throwable error) {
+			}
+			@Override
+			public void onBinary(RemoteEndpoint endpoint, byte[] payload, int offset, int len) {
+				Assert.fail();
+			}
+			@Override
+			public void onText(RemoteEndpoint endpoint, String message) {
+				Assert.fail();
+			}
+		};
+		client.waitForConnect();
+		client.sendText("first");
+		client.sendText("boom");
+		Assert.assertEquals("first", events.take());
+		Assert.assertEquals(StatusCode.SERVER_ERROR, closes.take().intValue());
+		Assert.assertTrue(events.take().startsWith("close "));
+		Assert.assertEquals(1L, offloaded[0].getCallbackFailureCount());
+		client.stop();
+		
+		// A listener which stops making progress can only hold Jetty's thread for a bounded time.
+		client = new ProtocolClient("ws://localhost:8080/offload", "offload") {
+			@Override
+			public void onWebSocketClose(int statusCode, String reason) {
+				closes.add(statusCode);
+			}
+			@Override
+			public void onError(RemoteEndpoint endpoint, Throwable error) {
+			}
+			@Override
+			public void onBinary(RemoteEndpoint endpoint, byte[] payload, int offset, int len) {
+				Assert.fail();
+			}
+			@Override
+			public void onText(RemoteEndpoint endpoint, String message) {
+				Assert.fail();
+			}
+		};
+		client.waitForConnect();
+		client.sendText("stuck");
+		for (int i = 0; i < 10; ++i) {
+			client.sendText("message " + i);
+		}
+		Assert.assertEquals(StatusCode.TRY_AGAIN_LATER, closes.take().intValue());
+		Assert.assertTrue(offloaded[0].getBlockTimeoutCount() >= 1L);
+		unblock.countDown();
+		client.stop();
+		
+		server.stop();
+		executor.shutdown();
+	}
+
+	@Test
+	public void testWebSocketStream() throws Throwable {
+		RestServer server = new RestServer(new InetSocketAddress(8080), null, null);
+		// The binary message limit doesn't apply to stream listeners since the message is never assembled.
+		WebSocketSettings settings = WebSocketSettings.builder()
+				.maxBinaryMessageSize(1024)
+				.inputBufferSize(4096)
+				.build();
+		server.addWebSocketFactory("/stream", "stream", (JettyServerUpgradeRequest upgradeRequest, Object[] path) -> new IWebSocketStreamListener() {
+			private Session _session;
+			private CRC32 _crc = new CRC32();
+			private long _total;
+			private int _fragments;
+			private WebSocketFragment _first;
+			@Override
+			public void onWebSocketConnect(Session session) {
+				_session = session;
+			}
+			@Override
+			public void onWebSocketText(String message) {
+				_reply("text " + message);
+			}
+			@Override
+			public void onWebSocketBinaryFragment(WebSocketFragment fragment, boolean isLast) {
+				_crc.update(fragment.getPayload());
+				_total += fragment.getLength();
+				_fragments += 1;
+				if (null == _first) {
+					// Retaining copies the fragment so it outlives the callback.
+					_first = fragment.retain();
+				}
+				if (isLast) {
+					_reply("binary " + _total + " " + _crc.getValue() + " " + (_fragments > 1) + " " + _first.getPayload().get(0));
+					_first.release();
+					_first = null;
+					_crc.reset();
+					_total = 0L;
+					_fragments = 0;
+				}
+			}
+			private void _reply(String message) {
+				try {
+					_session.getRemote().sendString(message);
+				} catch (IOException e) {
+					throw new AssertionError(e);
+				}
+			}
+		}, settings);
+		server.start();
+		
+		LinkedBlockingQueue<String> received = new LinkedBlockingQueue<>();
+		ProtocolClient client = new ProtocolClient("ws://localhost:8080/stream", "stream") {
+			@Override
+			public void onError(RemoteEndpoint endpoint, Throwable error) {
+			}
+			@Override
+			public void onBinary(RemoteEndpoint endpoint, byte[] payload, int offset, int len) {
+				Assert.fail();
+			}
+			@Override
+			public void onText(RemoteEndpoint endpoint, String message) {
+				received.add(message);
+			}
+		};
+		client.waitForConnect();
+		
+		byte[] large = new byte[1024 * 1024];
+		for (int i = 0; i < large.length; ++i) {
+			large[i] = (byte)(i * 31 + 7);
+		}
+		CRC32 expected = new CRC32();
+		expected.update(large);
+		client.sendBinary(large);
+		Assert.assertEquals("binary " + large.length + " " + expected.getValue() + " true 7", received.take());
+		// Text is still delivered whole.
+		client.sendText("hello");
+		Assert.assertEquals("text hello", received.take());
+		// The stream is reset for the next message.
+		client.sendBinary(new byte[] { 5, 6, 7 });
+		expected.reset();
+		expected.update(new byte[] { 5, 6, 7 });
+		Assert.assertEquals("binary 3 " + expected.getValue() + " false 5", received.take());
+		
+		client.stop();
+		server.stop();
+	}
+
+	private static HttpURLConnection _openCompressedUpload(String url, String method, String contentType, byte[] raw) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection)new URL(url).openConnection();
+		connection.setRequestMethod(method);
+		connection.setDoOutput(true);
+		connection.setRequestProperty("Content-Type", contentType);
+		connection.setRequestProperty("Content-Encoding", "gzip");
+		GZIPOutputStream stream = new GZIPOutputStream(connection.getOutputStream());
+		stream.write(raw);
+		stream.close();
+		return connection;
+	}
+
+	private static HttpURLConnection _openEncodedUpload(String url, String encoding, byte[] encoded) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection)new URL(url).openConnection();
+		connection.setRequestMethod("PUT");
+		connection.setDoOutput(true);
+		connection.setRequestProperty("Content-Type", "application/octet-stream");
+		connection.setRequestProperty("Content-Encoding", encoding);
+		OutputStream stream = connection.getOutputStream();
+		stream.write(encoded);
+		stream.close();
+		return connection;
+	}
+
+	// Echoes the message over a new connection which offers permessage-deflate, returning the negotiated extensions.
+	private static List<ExtensionConfig> _connectWithDeflate(WebSocketClient client, String path, String message) throws Exception {
+		LinkedBlockingQueue<String> received = new LinkedBlockingQueue<>();
+		ClientUpgradeRequest req = new ClientUpgradeRequest();
+		req.setSubProtocols("echo");
+		req.addExtensions("permessage-deflate");
+		Session session = client.connect(new WebSocketListener() {
+			@Override
+			public void onWebSocketText(String text) {
+				received.add(text);
+			}
+		}, new URI("ws://localhost:8080" + path), req).get();
+		List<ExtensionConfig> extensions = session.getUpgradeResponse().getExtensions();
+		// Messages still work in both directions, whatever was negotiated.
+		session.getRemote().sendString(message);
+		Assert.assertEquals(message, received.take());
+		session.close();
+		return extensions;
+	}
+
+	private static ProtocolClient _connectIdle(String path) throws Throwable {
+		ProtocolClient client = new ProtocolClient("ws://localhost:8080" + path, "idle") {
+			@Override
+			public void onError(RemoteEndpoint endpoint, Throwable error) {
+			}
+			@Override
+			public void onBinary(RemoteEndpoint endpoint, byte[] payload, int offset, int len) {
+				Assert.fail();
+			}
+			@Override
+			public void onText(RemoteEndpoint endpoint, String message) {
+				Assert.fail();
+			}
+		};
+		client.waitForConnect();
+		return client;
+	}
+
+	// Writes the data with servlet asynchronous IO, in small pieces, completing the response once it is all written.
+	private static void _writeAsync(HttpServletRequest request, HttpServletResponse response, byte[] data) throws IOException {
+		AsyncContext async = request.startAsync();
+		ServletOutputStream output = response.getOutputStream();
+		output.setWriteListener(new WriteListener() {
+			private int _written;
+			@Override
+			public void onWritePossible() throws IOException {
+				boolean done = false;
+				while (!done && output.isReady()) {
+					if (_written < data.length) {
+						int size = Math.min(1000, data.length - _written);
+						output.write(data, _written, size);
+						_written += size;
+					} else {
+						// We only complete once the last write is done.
+						async.complete();
+						done = true;
+					}
+				}
+			}
+			@Override
+			public void onError(Throwable t) {
+				async.complete();
+			}
+		});
+	}
+
+	// Returns the HTTP status of an upgrade which is expected to be rejected.
+	private static int _failIdle(String path) throws Throwable {
+		ProtocolClient client = new ProtocolClient("ws://localhost:8080" + path, "idle") {
+			@Override
+			public void onError(RemoteEndpoint endpoint, Throwable error) {
+			}
+			@Override
+			public void onBinary(RemoteEndpoint endpoint, byte[] payload, int offset, int len) {
+				Assert.fail();
+			}
+			@Override
+			public void onText(RemoteEndpoint endpoint, String message) {
+				Assert.fail();
+			}
+		};
+		int status = -1;
+		try {
+			client.waitForConnect();
+		} catch (UpgradeException e) {
+			status = e.getResponseStatusCode();
+		}
+		client.stop();
+		return status;
+	}
+
+	private static void _waitForSubscribers(EventStream stream, int count) throws InterruptedException {
+		while (stream.getSubscriberCount() < count) {
+			Thread.sleep(10L);
+		}
+	}
+
+	private static String _readEvent(BufferedReader reader) throws IOException {
+		StringBuilder builder = new StringBuilder();
+		String line = reader.readLine();
+		while (!line.isEmpty()) {
+			builder.append(line).append("\n");
+			line = reader.readLine();
+		}
+		return builder.toString();
 	}
 
 	private static String _addressAsUrlString(InetAddress address)
@@ -0,0 +1,120 @@
+package com.jeffdisher.breakwater.benchmarks;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.client.http.HttpClientTransportOverHTTP;
+import org.eclipse.jetty.io.ClientConnector;
+
+import com.jeffdisher.breakwater.IGetHandler;
+import com.jeffdisher.breakwater.RestServer;
+
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
+
+/**
+ * A load harness comparing loopback TCP and a Unix domain socket, for the same RestServer, as a same-host proxy would
+ * use them:  a small pool of keep-alive connections carrying many small GETs.
+ *
+ * Run with:  java -cp <test classpath> com.jeffdisher.breakwater.benchmarks.UnixDomainBenchmark [requests] [concurrency]
+ * This is not a unit test, so it is not run by the build.  Requires JDK 16+.
+ */
+public class UnixDomainBenchmark
+{
+	private static final int CONNECTIONS = 8;
+	private static final int WARMUP_REQUESTS = 2_000;
+
+	public static void main(String[] args) throws Exception
+	{
+		int requests = (args.length > 0) ? Integer.parseInt(args[0]) : 50_000;
+		int concurrency = (args.length > 1) ? Integer.parseInt(args[1]) : 8;
+
+		Path directory = Files.createTempDirectory("breakwater");
+		Path socketPath = directory.resolve("bench.sock");
+		RestServer server = new RestServer(new InetSocketAddress("localhost", 0), null, null, 0L, null);
+		server.addUnixDomainSocket(socketPath);
+		server.addGetHandler("/small", new IGetHandler() {
+			@Override
+			public void handle(HttpServletRequest request, HttpServletResponse response, Object[] path) throws IOException {
+				response.setContentType("text/plain;charset=utf-8");
+				response.setStatus(HttpServletResponse.SC_OK);
+				response.getWriter().print("small");
+			}});
+		server.start();
+
+		_run("TCP", new ClientConnector(), "http://localhost:" + server.getPort() + "/small", requests, concurrency);
+		// The host is ignored when connecting over a Unix domain socket.
+		_run("UNIX", ClientConnector.forUnixDomain(socketPath), "http://localhost/small", requests, concurrency);
+
+		server.stop();
+		Files.deleteIfExists(socketPath);
+		Files.delete(directory);
+	}
+
+
+	private static void _run(String name, ClientConnector connector, String url, int requests, int concurrency) throws Exception
+	{
+		HttpClient client = new HttpClient(new HttpClientTransportOverHTTP(connector));
+		client.setMaxConnectionsPerDestination(CONNECTIONS);
+		// We manage concurrency with our own semaphore so the client queue never needs to reject anything.
+		client.setMaxRequestsQueuedPerDestination(concurrency + 1);
+		client.start();
+
+		_sendAll(client, url, WARMUP_REQUESTS, concurrency);
+		long[] latencies = _sendAll(client, url, requests, concurrency);
+		client.stop();
+
+		long totalNanos = latencies[latencies.length - 1];
+		long[] sorted = Arrays.copyOf(latencies, latencies.length - 1);
+		Arrays.sort(sorted);
+		double seconds = (double)totalNanos / 1_000_000_000.0;
+		System.out.printf("%-5s %8d requests, %4d concurrent: %10.0f req/s, p50 %6d us, p99 %6d us%n"
+				, name
+				, requests
+				, concurrency
+				, (double)requests / seconds
+				, sorted[sorted.length / 2] / 1_000L
+				, sorted[(int)(sorted.length * 0.99)] / 1_000L
+		);
+	}
+
+	// Returns the latency of each request, in nanoseconds, with the total elapsed time appended as the last element.
+	private static long[] _sendAll(HttpClient client, String url, int requests, int concurrency) throws InterruptedException
+	{
+		long[] results = new long[requests + 1];
+		Semaphore permits = new Semaphore(concurrency);
+		CountDownLatch done = new CountDownLatch(requests);
+		AtomicInteger failures = new AtomicInteger();
+		long start = System.nanoTime();
+		for (int i = 0; i < requests; ++i)
+		{
+			int index = i;
+			permits.acquire();
+			long sent = System.nanoTime();
+			client.newRequest(url).send((result) -> {
+				results[index] = System.nanoTime() - sent;
+				if (result.isFailed() || (200 != result.getResponse().getStatus()))
+				{
+					failures.incrementAndGet();
+				}
+				permits.release();
+				done.countDown();
+			});
+		}
+		done.await();
+		results[requests] = System.nanoTime() - start;
+		if (failures.get() > 0)
+		{
+			System.err.println("WARNING:  " + failures.get() + " requests failed");
+		}
+		return results;
+	}
+}
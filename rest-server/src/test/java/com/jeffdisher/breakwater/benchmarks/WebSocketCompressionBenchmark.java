@@ -0,0 +1,257 @@
+package com.jeffdisher.breakwater.benchmarks;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.WebSocketListener;
+import org.eclipse.jetty.websocket.client.ClientUpgradeRequest;
+import org.eclipse.jetty.websocket.client.WebSocketClient;
+import org.eclipse.jetty.websocket.server.JettyServerUpgradeRequest;
+
+import com.jeffdisher.breakwater.IWebSocketFactory;
+import com.jeffdisher.breakwater.RestServer;
+import com.jeffdisher.breakwater.WebSocketSettings;
+
+
+/**
+ * A harness comparing the permessage-deflate settings of WebSocket routes:  the server pushes a burst of verbose JSON
+ * messages to a client which offers compression, over routes with compression disabled, enabled, and enabled without
+ * context takeover.  For each, it reports the bytes sent by the server (counted by a relay between the client and the
+ * server), the throughput, and the CPU time used by the process (client, relay and server, since they share it).
+ *
+ * Run with:  java -cp <test classpath> com.jeffdisher.breakwater.benchmarks.WebSocketCompressionBenchmark [messages] [level]
+ * This is not a unit test, so it is not run by the build.
+ */
+public class WebSocketCompressionBenchmark
+{
+	private static final int WARMUP_MESSAGES = 5_000;
+
+	public static void main(String[] args) throws Exception
+	{
+		int messages = (args.length > 0) ? Integer.parseInt(args[0]) : 100_000;
+		int level = (args.length > 1) ? Integer.parseInt(args[1]) : -1;
+
+		RestServer server = new RestServer(new InetSocketAddress("localhost", 0), null, null);
+		server.setWebSocketCompressionLevel(level);
+		IWebSocketFactory feed = (JettyServerUpgradeRequest upgradeRequest, Object[] path) -> new WebSocketListener() {
+			private Session _session;
+			@Override
+			public void onWebSocketConnect(Session session)
+			{
+				_session = session;
+			}
+			@Override
+			public void onWebSocketText(String message)
+			{
+				// The client asks for a burst of this many messages.
+				int count = Integer.parseInt(message);
+				try
+				{
+					for (int i = 0; i < count; ++i)
+					{
+						_session.getRemote().sendString(_message(i));
+					}
+				}
+				catch (IOException e)
+				{
+					// The client is gone.
+				}
+			}
+		};
+		server.addWebSocketFactory("/plain", "feed", feed, WebSocketSettings.builder().compression(false).build());
+		server.addWebSocketFactory("/deflate", "feed", feed, WebSocketSettings.builder().build());
+		server.addWebSocketFactory("/reset", "feed", feed, WebSocketSettings.builder().serverContextTakeover(false).build());
+		server.start();
+
+		CountingRelay relay = new CountingRelay(server.getPort());
+		String base = "ws://localhost:" + relay.getPort();
+		_run("plain", base + "/plain", relay, messages);
+		_run("deflate", base + "/deflate", relay, messages);
+		_run("reset", base + "/reset", relay, messages);
+
+		relay.close();
+		server.stop();
+	}
+
+
+	private static void _run(String name, String url, CountingRelay relay, int messages) throws Exception
+	{
+		WebSocketClient client = new WebSocketClient();
+		client.start();
+
+		_connect(client, url, new Receiver(), WARMUP_MESSAGES);
+		long startBytes = relay.getDownstreamBytes();
+		com.sun.management.OperatingSystemMXBean os = (com.sun.management.OperatingSystemMXBean)ManagementFactory.getOperatingSystemMXBean();
+		Receiver receiver = new Receiver();
+		long startCpu = os.getProcessCpuTime();
+		long start = System.nanoTime();
+		_connect(client, url, receiver, messages);
+		long nanos = System.nanoTime() - start;
+		long cpuNanos = os.getProcessCpuTime() - startCpu;
+		long wireBytes = relay.getDownstreamBytes() - startBytes;
+		client.stop();
+
+		double seconds = (double)nanos / 1_000_000_000.0;
+		System.out.printf("%-8s %8d messages: %10.0f msg/s, %8d KiB on the wire (%5.1f%% of payload), %6d ms CPU%n"
+				, name
+				, messages
+				, (double)messages / seconds
+				, wireBytes / 1024L
+				, 100.0 * (double)wireBytes / (double)receiver.payloadBytes
+				, cpuNanos / 1_000_000L
+		);
+	}
+
+	private static void _connect(WebSocketClient client, String url, Receiver receiver, int messages) throws Exception
+	{
+		ClientUpgradeRequest req = new ClientUpgradeRequest();
+		req.setSubProtocols("feed");
+		req.addExtensions("permessage-deflate");
+		Session session = client.connect(receiver, new URI(url), req).get();
+		receiver.burst(session, messages);
+		session.close();
+		receiver.awaitClose();
+	}
+
+	private static String _message(int index)
+	{
+		return "{\"id\": " + index
+				+ ", \"type\": \"price-update\", \"instrument\": {\"symbol\": \"EXAMPLE\", \"exchange\": \"EXAMPLE-EXCHANGE\"}"
+				+ ", \"bid\": {\"price\": " + (100 + (index % 7)) + ", \"quantity\": " + (index % 1000) + "}"
+				+ ", \"ask\": {\"price\": " + (101 + (index % 5)) + ", \"quantity\": " + (index % 900) + "}"
+				+ ", \"status\": \"open\", \"source\": \"benchmark\"}"
+		;
+	}
+
+
+	private static class Receiver implements WebSocketListener
+	{
+		public long payloadBytes;
+		private final CountDownLatch _closed = new CountDownLatch(1);
+		private CountDownLatch _remaining;
+
+		// Requests a burst of messages and waits for all of them to arrive.
+		public void burst(Session session, int count) throws Exception
+		{
+			_remaining = new CountDownLatch(count);
+			payloadBytes = 0L;
+			session.getRemote().sendString(Integer.toString(count));
+			_remaining.await();
+		}
+
+		public void awaitClose() throws InterruptedException
+		{
+			_closed.await();
+		}
+
+		@Override
+		public void onWebSocketText(String message)
+		{
+			// Messages are delivered on one thread, in order, and the latch publishes the count to the waiting thread.
+			payloadBytes += message.length();
+			_remaining.countDown();
+		}
+
+		@Override
+		public void onWebSocketClose(int statusCode, String reason)
+		{
+			_closed.countDown();
+		}
+	}
+
+
+	// A blocking TCP relay to the server which counts the bytes the server sends, regardless of what the client and
+	// server negotiate.  Each connection uses a thread per direction, which is fine for the few connections we open.
+	private static class CountingRelay
+	{
+		private final ServerSocket _listener;
+		private final AtomicLong _downstreamBytes;
+
+		public CountingRelay(int serverPort) throws IOException
+		{
+			_listener = new ServerSocket(0);
+			_downstreamBytes = new AtomicLong();
+			Thread acceptor = new Thread(() -> {
+				try
+				{
+					while (true)
+					{
+						Socket client = _listener.accept();
+						Socket upstream = new Socket("localhost", serverPort);
+						client.setTcpNoDelay(true);
+						upstream.setTcpNoDelay(true);
+						_pipe(client, upstream, null);
+						_pipe(upstream, client, _downstreamBytes);
+					}
+				}
+				catch (IOException e)
+				{
+					// The listener was closed.
+				}
+			}, "Relay acceptor");
+			acceptor.setDaemon(true);
+			acceptor.start();
+		}
+
+		public int getPort()
+		{
+			return _listener.getLocalPort();
+		}
+
+		public long getDownstreamBytes()
+		{
+			return _downstreamBytes.get();
+		}
+
+		public void close() throws IOException
+		{
+			_listener.close();
+		}
+
+		private static void _pipe(Socket from, Socket to, AtomicLong counter)
+		{
+			Thread thread = new Thread(() -> {
+				byte[] buffer = new byte[64 * 1024];
+				try
+				{
+					InputStream in = from.getInputStream();
+					OutputStream out = to.getOutputStream();
+					int read = in.read(buffer);
+					while (read > 0)
+					{
+						if (null != counter)
+						{
+							counter.addAndGet(read);
+						}
+						out.write(buffer, 0, read);
+						read = in.read(buffer);
+					}
+				}
+				catch (IOException e)
+				{
+					// Either side closed.
+				}
+				try
+				{
+					from.close();
+					to.close();
+				}
+				catch (IOException e)
+				{
+					// Nothing to do.
+				}
+			}, "Relay pipe");
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+}
@@ -0,0 +1,269 @@
+package com.jeffdisher.breakwater.benchmarks;
+
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.WebSocketListener;
+import org.eclipse.jetty.websocket.client.ClientUpgradeRequest;
+import org.eclipse.jetty.websocket.client.WebSocketClient;
+import org.eclipse.jetty.websocket.server.JettyServerUpgradeRequest;
+
+import com.jeffdisher.breakwater.RestServer;
+import com.jeffdisher.breakwater.WebSocketHub;
+import com.jeffdisher.breakwater.WebSocketRegistry;
+import com.jeffdisher.breakwater.WebSocketSettings;
+
+
+/**
+ * A soak and scale harness for WebSocket routes:  it opens many local connections to a RestServer, reports the upgrade
+ * rate and the heap used per connection, holds the connections idle for a while to check that none are dropped, then
+ * broadcasts timestamped messages through a WebSocketHub to growing numbers of subscribers and reports the end-to-end
+ * latency percentiles for each.
+ *
+ * The client and server share the process, so the heap figure covers both ends of each connection (it is reported next
+ * to the server's own estimate from the WebSocketRegistry).  Each connection needs 2 file descriptors and one local
+ * port, so large runs need a higher "ulimit -n" and, beyond roughly 28k connections, a wider ip_local_port_range.
+ *
+ * Run with:  java -cp <test classpath> com.jeffdisher.breakwater.benchmarks.WebSocketSoakBenchmark [connections] [idle seconds] [rounds]
+ * This is not a unit test, so it is not run by the build.
+ */
+public class WebSocketSoakBenchmark
+{
+	private static final int MAX_PENDING_UPGRADES = 256;
+	private static final int WARMUP_ROUNDS = 20;
+
+	public static void main(String[] args) throws Exception
+	{
+		int connections = (args.length > 0) ? Integer.parseInt(args[0]) : 5_000;
+		int idleSeconds = (args.length > 1) ? Integer.parseInt(args[1]) : 10;
+		int rounds = (args.length > 2) ? Integer.parseInt(args[2]) : 100;
+
+		// The subscriber counts we measure fan-out for:  connection i joins every tier larger than i.
+		int[] tiers = _tiers(connections);
+		WebSocketHub hub = new WebSocketHub(64, 1024 * 1024, WebSocketHub.SlowConsumerPolicy.DROP);
+		RestServer server = new RestServer(new InetSocketAddress("localhost", 0), null, null);
+		server.addWebSocketFactory("/soak/{string}", "soak", (JettyServerUpgradeRequest upgradeRequest, Object[] path) -> new WebSocketListener() {
+			private Session _session;
+			@Override
+			public void onWebSocketConnect(Session session)
+			{
+				_session = session;
+				int index = Integer.parseInt((String)path[1]);
+				for (int tier : tiers)
+				{
+					if (index < tier)
+					{
+						hub.subscribe(_topic(tier), session);
+					}
+				}
+			}
+			@Override
+			public void onWebSocketClose(int statusCode, String reason)
+			{
+				hub.unsubscribeAll(_session);
+			}
+		}, WebSocketSettings.builder().idleTimeoutMillis(0L).compression(false).build());
+		server.start();
+		WebSocketRegistry registry = server.getWebSocketRegistry();
+
+		WebSocketClient client = new WebSocketClient();
+		client.setIdleTimeout(Duration.ZERO);
+		client.start();
+		String base = "ws://localhost:" + server.getPort() + "/soak/";
+
+		// Phase 1:  Open the connections, a bounded number at a time, measuring the upgrade rate and the heap growth.
+		long startHeap = _usedHeap();
+		Receiver[] receivers = new Receiver[connections];
+		List<Session> sessions = new ArrayList<>(connections);
+		Semaphore pending = new Semaphore(MAX_PENDING_UPGRADES);
+		AtomicInteger failures = new AtomicInteger();
+		long start = System.nanoTime();
+		for (int i = 0; i < connections; ++i)
+		{
+			receivers[i] = new Receiver();
+			ClientUpgradeRequest req = new ClientUpgradeRequest();
+			req.setSubProtocols("soak");
+			pending.acquire();
+			client.connect(receivers[i], new URI(base + i), req).whenComplete((Session session, Throwable error) -> {
+				if (null != error)
+				{
+					failures.incrementAndGet();
+				}
+				else
+				{
+					synchronized (sessions)
+					{
+						sessions.add(session);
+					}
+				}
+				pending.release();
+			});
+		}
+		pending.acquire(MAX_PENDING_UPGRADES);
+		pending.release(MAX_PENDING_UPGRADES);
+		long upgradeNanos = System.nanoTime() - start;
+		// The server side is registered before the client sees the upgrade complete, but subscribing happens in onWebSocketConnect.
+		_awaitSubscribers(hub, tiers);
+		long heapBytes = _usedHeap() - startHeap;
+
+		System.out.printf("upgrades: %d connected (%d failed) in %d ms:  %.0f upgrades/s%n"
+				, sessions.size()
+				, failures.get()
+				, upgradeNanos / 1_000_000L
+				, (double)sessions.size() / ((double)upgradeNanos / 1_000_000_000.0)
+		);
+		System.out.printf("heap: %d KiB total, %.1f KiB per connection (client and server), server estimate %.1f KiB per connection%n"
+				, heapBytes / 1024L
+				, (double)heapBytes / 1024.0 / (double)sessions.size()
+				, (double)registry.getEstimatedMemoryBytes() / 1024.0 / (double)registry.getConnectionCount()
+		);
+
+		// Phase 2:  Leave everything idle and check nothing was dropped.
+		Thread.sleep(idleSeconds * 1000L);
+		int closed = 0;
+		for (Receiver receiver : receivers)
+		{
+			if (receiver.isClosed())
+			{
+				closed += 1;
+			}
+		}
+		System.out.printf("idle: after %d s, %d connections open on the server, %d closed on the client%n"
+				, idleSeconds
+				, registry.getConnectionCount()
+				, closed
+		);
+
+		// Phase 3:  Broadcast to each tier, one message at a time, recording the latency seen by every subscriber.
+		for (int tier : tiers)
+		{
+			_broadcast(hub, receivers, tier, WARMUP_ROUNDS, null);
+			long[] latencies = new long[tier * rounds];
+			long broadcastStart = System.nanoTime();
+			_broadcast(hub, receivers, tier, rounds, latencies);
+			long broadcastNanos = System.nanoTime() - broadcastStart;
+			Arrays.sort(latencies);
+			System.out.printf("fan-out %6d subscribers: %8.0f deliveries/s, latency p50 %6d us, p90 %6d us, p99 %6d us, p99.9 %6d us, max %6d us%n"
+					, tier
+					, (double)latencies.length / ((double)broadcastNanos / 1_000_000_000.0)
+					, _percentile(latencies, 0.50)
+					, _percentile(latencies, 0.90)
+					, _percentile(latencies, 0.99)
+					, _percentile(latencies, 0.999)
+					, latencies[latencies.length - 1] / 1_000L
+			);
+		}
+		System.out.printf("hub: %d dropped, %d disconnected%n", hub.getDroppedCount(), hub.getDisconnectedCount());
+
+		client.stop();
+		server.stop();
+	}
+
+
+	private static int[] _tiers(int connections)
+	{
+		// 1%, 10% and all of the connections, skipping any tier which rounds down to nothing or repeats.
+		int[] candidates = new int[] { connections / 100, connections / 10, connections };
+		return Arrays.stream(candidates).filter((int tier) -> tier > 0).distinct().toArray();
+	}
+
+	private static String _topic(int tier)
+	{
+		return "tier-" + tier;
+	}
+
+	private static void _awaitSubscribers(WebSocketHub hub, int[] tiers) throws InterruptedException
+	{
+		for (int tier : tiers)
+		{
+			while (hub.getSubscriberCount(_topic(tier)) < tier)
+			{
+				Thread.sleep(10L);
+			}
+		}
+	}
+
+	// Publishes each round's message once the previous one reached every subscriber (latencies is null when warming up).
+	private static void _broadcast(WebSocketHub hub, Receiver[] receivers, int tier, int rounds, long[] latencies) throws InterruptedException
+	{
+		for (int round = 0; round < rounds; ++round)
+		{
+			CountDownLatch delivered = new CountDownLatch(tier);
+			int base = round * tier;
+			for (int i = 0; i < tier; ++i)
+			{
+				receivers[i].expect(delivered, latencies, base + i);
+			}
+			hub.publishText(_topic(tier), Long.toString(System.nanoTime()));
+			if (!delivered.await(30L, TimeUnit.SECONDS))
+			{
+				throw new IllegalStateException("Broadcast to " + tier + " subscribers stalled with " + delivered.getCount() + " missing");
+			}
+		}
+	}
+
+	private static long _percentile(long[] sorted, double fraction)
+	{
+		int index = Math.min(sorted.length - 1, (int)(fraction * (double)sorted.length));
+		return sorted[index] / 1_000L;
+	}
+
+	private static long _usedHeap() throws InterruptedException
+	{
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 3; ++i)
+		{
+			System.gc();
+			Thread.sleep(100L);
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+
+	private static class Receiver implements WebSocketListener
+	{
+		private volatile CountDownLatch _delivered;
+		private volatile long[] _latencies;
+		private volatile int _slot;
+		private volatile boolean _isClosed;
+
+		// Called before each broadcast, while no message is in flight to this receiver.
+		public void expect(CountDownLatch delivered, long[] latencies, int slot)
+		{
+			_latencies = latencies;
+			_slot = slot;
+			_delivered = delivered;
+		}
+
+		public boolean isClosed()
+		{
+			return _isClosed;
+		}
+
+		@Override
+		public void onWebSocketText(String message)
+		{
+			long latency = System.nanoTime() - Long.parseLong(message);
+			if (null != _latencies)
+			{
+				_latencies[_slot] = latency;
+			}
+			_delivered.countDown();
+		}
+
+		@Override
+		public void onWebSocketClose(int statusCode, String reason)
+		{
+			_isClosed = true;
+		}
+	}
+}